@@ -0,0 +1,54 @@
+package com.plugin.gateway.config;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.enums.AuditStorageEngine;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.store.AuditTrailStore;
+import com.plugin.gateway.trail.store.AuditTrailStoreFactory;
+
+/**
+ * Creates the one {@link AuditTrailStore} named by
+ * <code>audit.storageEngine</code> and shares it, through one
+ * {@link AuditTrailRepository}, between the audit filter and the audit
+ * controller. Unknown engine names fall back to the file engine.
+ */
+@Configuration
+public class AuditTrailConfiguration {
+
+	private final Logger configurationLogger = LoggerFactory.getLogger(AuditTrailConfiguration.class);
+
+	@Bean(destroyMethod = "close")
+	public AuditTrailStore auditTrailStore(AuditConfigurationProperties auditProperties,
+			List<AuditTrailStoreFactory> storeFactories) throws IOException {
+		String engine = auditProperties.getStorageEngine().toLowerCase(Locale.ROOT);
+		AuditTrailStoreFactory fallback = null;
+		for (AuditTrailStoreFactory storeFactory : storeFactories) {
+			if (storeFactory.getNames().contains(engine))
+				return storeFactory.create(auditProperties);
+			if (storeFactory.getNames().contains(AuditStorageEngine.FILESYSTEM.getValue()))
+				fallback = storeFactory;
+		}
+		if (fallback == null)
+			throw new IllegalStateException("No audit storage engine named " + engine);
+		configurationLogger.warn("Unknown audit storage engine {}, using {}", engine,
+				AuditStorageEngine.FILESYSTEM.getValue());
+		return fallback.create(auditProperties);
+	}
+
+	@Bean
+	public AuditTrailRepository auditTrailRepository(AuditTrailStore auditTrailStore,
+			AuditConfigurationProperties auditProperties) {
+		return new AuditTrailRepository(auditTrailStore,
+				AuditMatchMode.fromValue(auditProperties.getMatchMode(), AuditMatchMode.EXACT));
+	}
+}
@@ -0,0 +1,51 @@
+package com.plugin.gateway.config;
+
+import java.util.Collections;
+
+import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+/**
+ * Creates the one {@link MongoClient} of the gateway from the
+ * <code>spring.data.mongodb</code> properties. With it in the context Spring
+ * Boot backs off from its legacy <code>com.mongodb.MongoClient</code> and
+ * builds the database factory of the repositories on this client, so the
+ * repositories and the Mongo audit engine share one connection pool.
+ */
+@Configuration
+public class MongoClientConfiguration {
+
+	@Bean(destroyMethod = "close")
+	public MongoClient mongoClient(MongoProperties mongoProperties) {
+		return MongoClients.create(settings(mongoProperties));
+	}
+
+	/**
+	 * A URI wins over host, port and credentials, as with the client Spring
+	 * Boot would have built.
+	 */
+	static MongoClientSettings settings(MongoProperties mongoProperties) {
+		if (mongoProperties.getUri() != null || mongoProperties.getHost() == null)
+			return MongoClientSettings.builder()
+					.applyConnectionString(new ConnectionString(mongoProperties.determineUri())).build();
+		int port = mongoProperties.getPort() == null ? MongoProperties.DEFAULT_PORT : mongoProperties.getPort();
+		MongoClientSettings.Builder builder = MongoClientSettings.builder().applyToClusterSettings(cluster -> cluster
+				.hosts(Collections.singletonList(new ServerAddress(mongoProperties.getHost(), port))));
+		if (mongoProperties.getUsername() != null && mongoProperties.getPassword() != null) {
+			String database = mongoProperties.getAuthenticationDatabase() != null
+					? mongoProperties.getAuthenticationDatabase()
+					: mongoProperties.getMongoClientDatabase();
+			builder.credential(MongoCredential.createCredential(mongoProperties.getUsername(), database,
+					mongoProperties.getPassword()));
+		}
+		return builder.build();
+	}
+}
@@ -11,6 +11,8 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 
+import io.jsonwebtoken.Claims;
+
 public class JwtTokenFilter extends GenericFilterBean {
 
 	private JwtTokenProvider jwtTokenProvider;
@@ -23,8 +25,10 @@ public class JwtTokenFilter extends GenericFilterBean {
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain filterChain)
         throws IOException, ServletException {
         String token = jwtTokenProvider.resolveToken((HttpServletRequest) req);
-        if (token != null && jwtTokenProvider.validateToken(token, (HttpServletRequest)req)) {
-            Authentication auth = token != null ? jwtTokenProvider.getAuthentication(token) : null;
+        // verified once, the authentication is built from the same claims
+        Claims claims = token != null ? jwtTokenProvider.resolveClaims(token, (HttpServletRequest) req) : null;
+        if (claims != null) {
+            Authentication auth = jwtTokenProvider.getAuthentication(claims);
             SecurityContextHolder.getContext().setAuthentication(auth);
         }
         filterChain.doFilter(req, res);
@@ -1,8 +1,14 @@
 package com.plugin.gateway.configs;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
@@ -14,6 +20,9 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.plugin.gateway.auth.model.Role;
 import com.plugin.gateway.service.CustomUserDetailsService;
 
@@ -22,6 +31,7 @@ import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.impl.DefaultClaims;
 
 @Component
 public class JwtTokenProvider {
@@ -31,6 +41,12 @@ public class JwtTokenProvider {
 	
     @Value("${security.jwt.token.expire-length:3600000}")
     private long validityInMilliseconds = 3600000; // 1h
+
+    @Value("${security.jwt.token.claims-cache-size:10000}")
+    private int claimsCacheSize = 10000;
+
+    // verified read only claims by token digest, each dropped when its token expires
+    private Cache<String, Claims> claimsCache;
     
     @Autowired
     private CustomUserDetailsService userDetailsService;
@@ -38,6 +54,23 @@ public class JwtTokenProvider {
     @PostConstruct
     protected void init() {
         secretKey = Base64.getEncoder().encodeToString(secretKey.getBytes());
+        claimsCache = Caffeine.newBuilder().maximumSize(claimsCacheSize).expireAfter(new Expiry<String, Claims>() {
+            @Override
+            public long expireAfterCreate(String digest, Claims claims, long currentTime) {
+                long left = claims.getExpiration().getTime() - System.currentTimeMillis();
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, left));
+            }
+
+            @Override
+            public long expireAfterUpdate(String digest, Claims claims, long currentTime, long currentDuration) {
+                return expireAfterCreate(digest, claims, currentTime);
+            }
+
+            @Override
+            public long expireAfterRead(String digest, Claims claims, long currentTime, long currentDuration) {
+                return currentDuration;
+            }
+        }).build();
     }
     
     public String createToken(String username, Set<Role> set) {
@@ -54,12 +87,16 @@ public class JwtTokenProvider {
     }
     
     public Authentication getAuthentication(String token) {
-        UserDetails userDetails = this.userDetailsService.loadUserByUsername(getUsername(token));
+        return getAuthentication(getClaims(token));
+    }
+
+    public Authentication getAuthentication(Claims claims) {
+        UserDetails userDetails = this.userDetailsService.loadUserByUsername(claims.getSubject());
         return new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities());
     }
     
     public String getUsername(String token) {
-        return Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token).getBody().getSubject();
+        return getClaims(token).getSubject();
     }
     
     public String resolveToken(HttpServletRequest req) {
@@ -71,18 +108,67 @@ public class JwtTokenProvider {
     }
     
     public boolean validateToken(String token, HttpServletRequest request) {
+        return resolveClaims(token, request) != null;
+    }
+
+    /**
+     * Verifies the token once and keeps its claims until it expires, so a
+     * request verifies it at most once and a token seen before is not parsed
+     * again. The claims are shared by every request with the token and can not
+     * be changed.
+     *
+     * @param token
+     * @param request gets the <code>Expired</code> attribute when the token
+     *                has expired
+     * @return the verified claims, <code>null</code> when the token has expired
+     *         or carries no expiration
+     */
+    public Claims resolveClaims(String token, HttpServletRequest request) {
         try {
-            Jws<Claims> claims = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token);
-            if (claims.getBody().getExpiration().before(new Date())) {
-                return false;
+            Claims claims = getClaims(token);
+            if (claims.getExpiration() == null || claims.getExpiration().before(new Date())) {
+                return null;
             }
-            return true;
+            return claims;
         }
         catch (ExpiredJwtException e) {
             //throw new CustomException("Token is expired", HttpStatus.UNAUTHORIZED);
             request.setAttribute("Expired",e.getMessage());
-            return false;
+            return null;
+        }
+    }
+
+    private Claims getClaims(String token) {
+        String digest = digest(token);
+        Claims claims = claimsCache.getIfPresent(digest);
+        if (claims != null && claims.getExpiration().after(new Date())) {
+            return claims;
+        }
+        claims = verify(token);
+        if (claims.getExpiration() != null) {
+            claimsCache.put(digest, claims);
         }
+        return claims;
+    }
+
+    /**
+     * Checks the signature and the expiration of the token.
+     *
+     * @param token
+     * @return its claims, which can not be changed
+     */
+    Claims verify(String token) {
+        Jws<Claims> verified = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token);
+        // the claims keep the given map, whose setters then throw
+        return new DefaultClaims(Collections.unmodifiableMap(new LinkedHashMap<>(verified.getBody())));
+    }
 
+    private static String digest(String token) {
+        try {
+            return Base64.getEncoder().encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Token digest problem " + e.getMessage(), e);
+        }
     }
 }
@@ -3,7 +3,10 @@
  */
 package com.plugin.gateway.controller;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -22,14 +25,20 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
-import com.plugin.gateway.enums.AuditStorageEngine;
-import com.plugin.gateway.property.AuditConfigurationProperties;
 import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.service.AuditStatsService;
 import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+import com.plugin.gateway.trail.store.AuditPredicate;
+import com.plugin.gateway.trail.store.AuditSearchCriteria;
 
 /**
  * @author Sankha
@@ -40,15 +49,36 @@ import com.plugin.gateway.trail.model.AuditTrail;
 @RequestMapping(value = { "/auditTrail", "/audittrail", "/AuditTrail" })
 public class AuditTrailController {
 
+	public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
 	AuditTrailRepository auditTrailRepository;
+	AuditStatsService auditStatsService;
+	ObjectMapper objectMapper;
 	private Logger controllerLogger = LoggerFactory.getLogger(AuditTrailController.class);
 
 	@Autowired
-	public AuditTrailController(AuditConfigurationProperties auditProperties) {
-		AuditStorageEngine storageEngineEnum = Arrays.asList(AuditStorageEngine.values()).stream()
-				.filter(predicate -> predicate.getValue().equalsIgnoreCase(auditProperties.getStorageEngine()))
-				.findFirst().orElse(AuditStorageEngine.FILESYSTEM);
-		auditTrailRepository = new AuditTrailRepository(storageEngineEnum);
+	public AuditTrailController(AuditTrailRepository auditTrailRepository, AuditStatsService auditStatsService,
+			ObjectMapper objectMapper) {
+		this.auditTrailRepository = auditTrailRepository;
+		this.auditStatsService = auditStatsService;
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Request counts per route from the traffic rollups, without reading audit
+	 * records. <code>from</code> and <code>to</code> are epoch seconds and
+	 * default to the last hour.
+	 */
+	@GetMapping(value = { "/stats", "/Stats" })
+	public List<AuditRouteRollup> getTrafficStats(@RequestParam(value = "from", required = false) Long from,
+			@RequestParam(value = "to", required = false) Long to,
+			@RequestParam(value = "serviceName", required = false) String serviceName,
+			@RequestParam(value = "requestMethod", required = false) String requestMethod,
+			@RequestParam(value = "responseCode", required = false) Integer responseCode,
+			@RequestParam(value = "perMinute", defaultValue = "false") boolean perMinute) {
+		long toSecond = to != null ? to : Instant.now().getEpochSecond();
+		long fromSecond = from != null ? from : toSecond - 3600;
+		return auditStatsService.query(fromSecond, toSecond, serviceName, requestMethod, responseCode, perMinute);
 	}
 
 	@GetMapping("/{id}")
@@ -57,19 +87,81 @@ public class AuditTrailController {
 	}
 
 	@GetMapping(value = { "/", "" })
-	public List<AuditTrail> getAllTrailData() {
+	public List<AuditTrail> getAllTrailData(@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "limit", defaultValue = "0") int limit) {
+		if (StringUtils.isNotBlank(after) || limit > 0) {
+			List<AuditTrail> page = new ArrayList<>();
+			auditTrailRepository.stream(new JsonObject(), after, limit, page::add);
+			return page;
+		}
 		return auditTrailRepository.findAll();
 	}
 
+	@GetMapping(value = { "/", "" }, produces = APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamAllTrailData(
+			@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "limit", defaultValue = "0") int limit) {
+		return streamAsNdjson(new JsonObject(), after, limit);
+	}
+
 	@PostMapping(value = { "/search", "/Search" }, produces = { MediaType.APPLICATION_JSON_VALUE,
 			MediaType.APPLICATION_XML_VALUE })
-	public List<AuditTrail> searchFailedData(@RequestBody String object) {
-		if (StringUtils.isNotBlank(object))
-			return auditTrailRepository.search(new JsonParser().parse(object).getAsJsonObject());
+	public List<AuditTrail> searchFailedData(@RequestBody String object,
+			@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "limit", defaultValue = "0") int limit) {
+		if (StringUtils.isNotBlank(object)) {
+			JsonObject searchObject = new JsonParser().parse(object).getAsJsonObject();
+			if (StringUtils.isNotBlank(after) || limit > 0) {
+				List<AuditTrail> page = new ArrayList<>();
+				auditTrailRepository.stream(searchObject, after, limit, page::add);
+				return page;
+			}
+			return auditTrailRepository.search(searchObject);
+		}
 
 		return Collections.emptyList();
 	}
 
+	@PostMapping(value = { "/search", "/Search" }, produces = APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamSearchData(@RequestBody String object,
+			@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "limit", defaultValue = "0") int limit) {
+		if (StringUtils.isNotBlank(object))
+			return streamAsNdjson(new JsonParser().parse(object).getAsJsonObject(), after, limit);
+		return ResponseEntity.badRequest().build();
+	}
+
+	/**
+	 * Writes one JSON document per line while the repository walks its cursor,
+	 * so only the record being written is held in memory. A client resumes with
+	 * <code>after</code> set to the id of the last line it received. The search
+	 * and the cursor are checked before the body starts, so they answer 400; a
+	 * read failure answers 500 while nothing was sent yet and otherwise breaks
+	 * the connection, never ending a short body as if it were complete.
+	 */
+	private ResponseEntity<StreamingResponseBody> streamAsNdjson(JsonObject searchObject, String after, int limit) {
+		AuditSearchCriteria criteria;
+		try {
+			criteria = auditTrailRepository.criteria(searchObject);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		}
+		if (StringUtils.isNotBlank(after) && auditTrailRepository.findById(after) == null)
+			return ResponseEntity.badRequest().build();
+		StreamingResponseBody body = outputStream -> {
+			auditTrailRepository.stream(criteria, after, limit, record -> {
+				try {
+					outputStream.write(objectMapper.writeValueAsBytes(record));
+					outputStream.write('\n');
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			outputStream.flush();
+		};
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+	}
+
 	@PatchMapping(value = { "/{id}" })
 	public ResponseEntity<String> updateTrailObject(@RequestHeader("x-username") String user,
 			@PathVariable("id") String id, @RequestBody String object) {
@@ -89,5 +181,50 @@ public class AuditTrailController {
 		return ResponseEntity.badRequest().build();
 	}
 
-	// TODO: work on bulk update
+	/**
+	 * Sets one status on many records, selected either by an <code>ids</code>
+	 * array or by a <code>search</code> object taking the same criteria as
+	 * <code>/search</code>, or by both. The storage engine applies the change
+	 * in bulk. The selection must pin ids, an indexed field value or a request
+	 * time bound: blank values and unknown keys are ignored by the search, and
+	 * a selection left with nothing else would update the whole trail.
+	 */
+	@PatchMapping(value = { "/bulk", "/Bulk" })
+	public ResponseEntity<String> bulkUpdateTrailObjects(@RequestHeader("x-username") String user,
+			@RequestBody String object) {
+		if (StringUtils.isBlank(object))
+			return ResponseEntity.badRequest().build();
+		AuditSearchCriteria criteria;
+		JsonObject patchObject;
+		try {
+			patchObject = new JsonParser().parse(object).getAsJsonObject();
+			JsonObject searchObject = patchObject.has("search") && patchObject.get("search").isJsonObject()
+					? patchObject.getAsJsonObject("search").deepCopy()
+					: new JsonObject();
+			if (patchObject.has("ids"))
+				searchObject.add("ids", patchObject.get("ids"));
+			criteria = auditTrailRepository.criteria(searchObject);
+		} catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+			return badRequest(e.getMessage());
+		}
+		if (!AuditSearchCriteria.hasValue(patchObject, "status"))
+			return badRequest("A status is required");
+		if (criteria.getPredicate() == AuditPredicate.ALL || !criteria.isNarrowed())
+			return badRequest("The selection must name ids, an indexed field value or a request time bound");
+		int updated = auditTrailRepository.updateStatus(criteria, patchObject.get("status").getAsString(), user);
+		if (updated == 0)
+			return ResponseEntity.noContent().build();
+		JsonObject response = new JsonObject();
+		response.addProperty("status", HttpStatus.OK.toString());
+		response.addProperty("message", "Audit Trail Updated");
+		response.addProperty("updated", updated);
+		return ResponseEntity.ok(response.toString());
+	}
+
+	private ResponseEntity<String> badRequest(String message) {
+		JsonObject response = new JsonObject();
+		response.addProperty("status", HttpStatus.BAD_REQUEST.toString());
+		response.addProperty("message", message);
+		return ResponseEntity.badRequest().body(response.toString());
+	}
 }
@@ -0,0 +1,49 @@
+/**
+ * 
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+
+/**
+ * When the file engine forces appended audit records to disk.
+ * <ul>
+ * <li>{@link #NONE}: left to the operating system, a crash can lose the
+ * records of the last seconds</li>
+ * <li>{@link #INTERVAL}: forced every
+ * <code>audit.durabilityIntervalMillis</code>, a crash loses at most one
+ * interval</li>
+ * <li>{@link #GROUP_COMMIT}: a save returns once its records are forced,
+ * concurrent saves share one force</li>
+ * </ul>
+ * 
+ * @author Sankha
+ *
+ */
+public enum AuditDurability {
+
+	NONE("none"), INTERVAL("interval"), GROUP_COMMIT("group-commit");
+	String value;
+
+	public String getValue() {
+		return value;
+	}
+
+	private AuditDurability(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @param value configured in <code>audit.durability</code>
+	 * @return the matching mode, {@link #NONE} when none matches
+	 */
+	public static AuditDurability fromValue(String value) {
+		return Arrays.stream(values()).filter(durability -> durability.getValue().equalsIgnoreCase(value))
+				.findFirst().orElse(NONE);
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * 
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+
+/**
+ * How bare text criteria match on every engine, always ignoring case.
+ * {@link #EXACT} uses the day indexes of the file engine, Mongo walks the
+ * keys of its case insensitive field indexes for {@link #EXACT} and
+ * {@link #PREFIX} unless the search also looks up body words in the text
+ * index, and {@link #CONTAINS} always scans.
+ * 
+ * @author Sankha
+ *
+ */
+public enum AuditMatchMode {
+
+	EXACT("exact"), PREFIX("prefix"), CONTAINS("contains");
+	String value;
+
+	public String getValue() {
+		return value;
+	}
+
+	private AuditMatchMode(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @param value configured in <code>audit.matchMode</code> or sent as
+	 *              <code>matchMode</code> with a search
+	 * @param defaultMode returned when none matches
+	 * @return the matching mode
+	 */
+	public static AuditMatchMode fromValue(String value, AuditMatchMode defaultMode) {
+		return Arrays.stream(values()).filter(mode -> mode.getValue().equalsIgnoreCase(value)).findFirst()
+				.orElse(defaultMode);
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * 
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+
+/**
+ * What the audit writer does with a record when its queue is full.
+ * 
+ * @author Sankha
+ *
+ */
+public enum AuditOverflowPolicy {
+
+	BLOCK("block"), DROP_OLDEST("drop-oldest"), SAMPLE("sample");
+	String value;
+
+	public String getValue() {
+		return value;
+	}
+
+	private AuditOverflowPolicy(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @param value configured in <code>audit.overflowPolicy</code>
+	 * @return the matching policy, {@link #BLOCK} when none matches
+	 */
+	public static AuditOverflowPolicy fromValue(String value) {
+		return Arrays.stream(values()).filter(policy -> policy.getValue().equalsIgnoreCase(value)).findFirst()
+				.orElse(BLOCK);
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ *
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+
+/**
+ * When the replay tool sends the recorded requests.
+ *
+ * @author Sankha
+ *
+ */
+public enum AuditReplaySchedule {
+
+	TIME_SCALED("timeScaled"), MAX_RATE("maxRate");
+	String value;
+
+	public String getValue() {
+		return value;
+	}
+
+	private AuditReplaySchedule(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @param value given as <code>--schedule</code>
+	 * @return the matching schedule, {@link #TIME_SCALED} when none matches
+	 */
+	public static AuditReplaySchedule fromValue(String value) {
+		return Arrays.stream(values()).filter(schedule -> schedule.getValue().equalsIgnoreCase(value)).findFirst()
+				.orElse(TIME_SCALED);
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
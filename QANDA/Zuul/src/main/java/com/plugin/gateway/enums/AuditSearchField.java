@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Record fields a search can name, with their type and the document field
+ * the Mongo engine stores them under. Number fields are also read as a
+ * primitive <code>long</code>, so comparing them boxes nothing.
+ *
+ * @author Sankha
+ *
+ */
+public enum AuditSearchField {
+
+	ID("id", "_id", Kind.ID, AuditTrail::getId),
+	SERVICE_NAME("serviceName", Kind.TEXT, AuditTrail::getServiceName),
+	ACTION("action", Kind.TEXT, AuditTrail::getAction),
+	STATUS("status", Kind.TEXT, AuditTrail::getStatus),
+	REQUEST_METHOD("requestMethod", Kind.TEXT, AuditTrail::getRequestMethod),
+	PERFORMED_BY("performedBy", Kind.TEXT, AuditTrail::getPerformedBy),
+	UPDATED_BY("updatedBy", Kind.TEXT, AuditTrail::getUpdatedBy),
+	REQUEST_URL("requestUrl", Kind.TEXT, AuditTrail::getRequestUrl),
+	CONTEXT_PATH("contextPath", Kind.TEXT, AuditTrail::getContextPath),
+	QUERY_PARAMS("queryParams", Kind.TEXT, AuditTrail::getQueryParams),
+	RESPONSE_CODE("responseCode", AuditTrail::getResponseCode),
+	REQUEST_TIMESTAMP("requestTimestamp", AuditTrail::getRequestTimestamp),
+	UPDATE_TIMESTAMP("updateTimestamp", AuditTrail::getUpdateTimestamp),
+	UPSTREAM_LATENCY_MILLIS("upstreamLatencyMillis", AuditTrail::getUpstreamLatencyMillis),
+	GATEWAY_LATENCY_MILLIS("gatewayLatencyMillis", AuditTrail::getGatewayLatencyMillis),
+	RESPONSE_BYTES("responseBytes", AuditTrail::getResponseBytes);
+
+	/**
+	 * How values of a field are compared: ids by equality, text ignoring case,
+	 * numbers as <code>long</code>.
+	 */
+	public enum Kind {
+		ID, TEXT, NUMBER
+	}
+
+	String value;
+	String mongoField;
+	Kind kind;
+	Function<AuditTrail, Object> accessor;
+	// number fields only
+	Predicate<AuditTrail> presence;
+	ToLongFunction<AuditTrail> longAccessor;
+
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the field name in the Mongo documents
+	 */
+	public String getMongoField() {
+		return mongoField;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	private AuditSearchField(String value, Kind kind, Function<AuditTrail, Object> accessor) {
+		this(value, value, kind, accessor);
+	}
+
+	private AuditSearchField(String value, String mongoField, Kind kind, Function<AuditTrail, Object> accessor) {
+		this.value = value;
+		this.mongoField = mongoField;
+		this.kind = kind;
+		this.accessor = accessor;
+	}
+
+	private AuditSearchField(String value, ToIntFunction<AuditTrail> accessor) {
+		this(value, Kind.NUMBER, record -> (long) accessor.applyAsInt(record));
+		this.presence = record -> true;
+		this.longAccessor = accessor::applyAsInt;
+	}
+
+	private AuditSearchField(String value, Function<AuditTrail, Long> accessor) {
+		this(value, Kind.NUMBER, accessor::apply);
+		this.presence = record -> accessor.apply(record) != null;
+		this.longAccessor = record -> accessor.apply(record);
+	}
+
+	/**
+	 * @param record
+	 * @return the value of the field in the record, a {@link java.util.UUID},
+	 *         {@link String} or {@link Long} by kind, or <code>null</code>
+	 */
+	public Object valueOf(AuditTrail record) {
+		return accessor.apply(record);
+	}
+
+	/**
+	 * @param record
+	 * @return <code>true</code> when the record holds a value for the number
+	 *         field
+	 */
+	public boolean hasLongValue(AuditTrail record) {
+		return presence.test(record);
+	}
+
+	/**
+	 * Reads a number field without boxing it, see
+	 * {@link #hasLongValue(AuditTrail)} for records that lack it.
+	 *
+	 * @param record
+	 * @return the value of the number field in the record
+	 */
+	public long longValueOf(AuditTrail record) {
+		return longAccessor.applyAsLong(record);
+	}
+
+	/**
+	 * @param value field name as sent with a search, in any case
+	 * @return the matching field or <code>null</code> when none matches
+	 */
+	public static AuditSearchField fromValue(String value) {
+		return Arrays.stream(values()).filter(field -> field.getValue().equalsIgnoreCase(value)).findFirst()
+				.orElse(null);
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package com.plugin.gateway.enums;
+
+import java.util.Arrays;
+
+/**
+ * Comparisons a search can apply to a field, sent as
+ * <code>{"field": {"operator": value}}</code>. Text comparisons ignore case
+ * on every engine. {@link #MATCH} is what a bare <code>{"field": value}</code>
+ * on a text field means; it is compiled into {@link #EQ}, {@link #PREFIX} or
+ * {@link #CONTAINS} following the <code>matchMode</code> of the search or
+ * <code>audit.matchMode</code>.
+ *
+ * @author Sankha
+ *
+ */
+public enum AuditSearchOperator {
+
+	EQ("eq"), NE("ne"), GT("gt"), GTE("gte"), LT("lt"), LTE("lte"), IN("in"), PREFIX("prefix"),
+	CONTAINS("contains"), MATCH("match");
+	String value;
+
+	public String getValue() {
+		return value;
+	}
+
+	private AuditSearchOperator(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @return <code>true</code> for the ordering comparisons, which only apply
+	 *         to numbers
+	 */
+	public boolean isRange() {
+		return this == GT || this == GTE || this == LT || this == LTE;
+	}
+
+	/**
+	 * @return <code>true</code> for the comparisons that only apply to text
+	 */
+	public boolean isTextOnly() {
+		return this == PREFIX || this == CONTAINS || this == MATCH;
+	}
+
+	/**
+	 * @param value operator name as sent with a search, in any case
+	 * @return the matching operator or <code>null</code> when none matches
+	 */
+	public static AuditSearchOperator fromValue(String value) {
+		return Arrays.stream(values()).filter(operator -> operator.getValue().equalsIgnoreCase(value)).findFirst()
+				.orElse(null);
+	}
+
+	/**
+	 * @param matchMode sent as <code>matchMode</code> with a search
+	 * @return the operator bare text terms of that search use
+	 */
+	public static AuditSearchOperator fromMatchMode(AuditMatchMode matchMode) {
+		switch (matchMode) {
+		case EXACT:
+			return EQ;
+		case PREFIX:
+			return PREFIX;
+		default:
+			return CONTAINS;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
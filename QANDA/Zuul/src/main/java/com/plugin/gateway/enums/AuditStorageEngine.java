@@ -3,13 +3,15 @@
  */
 package com.plugin.gateway.enums;
 
+import java.util.Arrays;
+
 /**
  * @author Sankha
  *
  */
 public enum AuditStorageEngine {
 
-	FILE("file"),MONGODB("mongodb"),FILESYSTEM("filesystem"),MONGO("mongo");
+	FILE("file"),MONGODB("mongodb"),FILESYSTEM("filesystem"),MONGO("mongo"),RING("ring");
 	String value;
 
 
@@ -20,6 +22,16 @@ public enum AuditStorageEngine {
     private AuditStorageEngine(String value) {
         this.value = value;
     }
+
+    /**
+     * @param value configured in <code>audit.storageEngine</code>
+     * @return the matching engine, {@link #FILESYSTEM} when none matches
+     */
+    public static AuditStorageEngine fromValue(String value) {
+        return Arrays.stream(values()).filter(engine -> engine.getValue().equalsIgnoreCase(value)).findFirst()
+                .orElse(FILESYSTEM);
+    }
+
     @Override
     public String toString() {
         // TODO Auto-generated method stub
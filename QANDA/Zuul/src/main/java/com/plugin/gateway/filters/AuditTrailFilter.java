@@ -3,18 +3,11 @@
  */
 package com.plugin.gateway.filters;
 
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,19 +17,41 @@ import org.springframework.stereotype.Component;
 import com.netflix.zuul.ZuulFilter;
 import com.netflix.zuul.context.RequestContext;
 import com.netflix.zuul.exception.ZuulException;
-import com.plugin.gateway.enums.AuditStorageEngine;
 import com.plugin.gateway.property.AuditConfigurationProperties;
-import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.capture.AuditHeaderPolicy;
+import com.plugin.gateway.trail.capture.AuditTeeRequestWrapper;
 import com.plugin.gateway.trail.model.AuditTrail;
 
 /**
+ * Captures the audit record of the request before it is routed and leaves it
+ * in the request context, the {@link AuditTrailResponseFilter} completes it
+ * with the response and hands it to the writer.
+ *
  * @author Sankha
  *
  */
 @Component
 public class AuditTrailFilter extends ZuulFilter {
 
-	AuditTrailRepository auditTrailRepository;
+	/**
+	 * Request context key of the captured {@link AuditTrail}.
+	 */
+	public static final String AUDIT_RECORD_KEY = "auditTrailRecord";
+
+	/**
+	 * Request context key of the {@link System#nanoTime()} the record was
+	 * captured at.
+	 */
+	public static final String AUDIT_START_KEY = "auditTrailStart";
+
+	/**
+	 * Request context key of the {@link AuditTeeRequestWrapper} keeping the
+	 * body of an audited write.
+	 */
+	public static final String AUDIT_BODY_KEY = "auditTrailBody";
+
+	AuditHeaderPolicy auditHeaderPolicy;
+	private final int requestBodyMaxBytes;
 	private Logger logger = LoggerFactory.getLogger(AuditTrailFilter.class);
 
 
@@ -44,11 +59,9 @@ public class AuditTrailFilter extends ZuulFilter {
 	 * 
 	 */
 	@Autowired
-	public AuditTrailFilter(AuditConfigurationProperties auditProperties) {
-		AuditStorageEngine storageEngineEnum = Arrays.asList(AuditStorageEngine.values()).stream()
-				.filter(predicate -> predicate.getValue().equalsIgnoreCase(auditProperties.getStorageEngine()))
-				.findFirst().orElse(AuditStorageEngine.FILESYSTEM);
-		auditTrailRepository = new AuditTrailRepository(storageEngineEnum);
+	public AuditTrailFilter(AuditHeaderPolicy auditHeaderPolicy, AuditConfigurationProperties auditProperties) {
+		this.auditHeaderPolicy = auditHeaderPolicy;
+		this.requestBodyMaxBytes = auditProperties.getRequestBodyMaxBytes();
 	}
 
 	@Override
@@ -58,9 +71,9 @@ public class AuditTrailFilter extends ZuulFilter {
 
 	@Override
 	public Object run() throws ZuulException {
+		RequestContext.getCurrentContext().set(AUDIT_START_KEY, System.nanoTime());
 		HttpServletRequest request = RequestContext.getCurrentContext().getRequest();
-		HttpServletResponse response = RequestContext.getCurrentContext().getResponse();
-		updateServiceAuditTrail(request, response);
+		updateServiceAuditTrail(request);
 		logger.info("request -> {}, request uri -> {}", request, request.getRequestURI());
 		return null;
 	}
@@ -78,37 +91,28 @@ public class AuditTrailFilter extends ZuulFilter {
 	/**
 	 * @param request
 	 */
-	private void updateServiceAuditTrail(HttpServletRequest request, HttpServletResponse response) {
+	private void updateServiceAuditTrail(HttpServletRequest request) {
 		String serviceName = request.getRequestURI().split("/")[1];
-		if (auditTrailRepository != null) {
-			String performedBy = request.getHeader("x-username");
-			String action = request.getHeader("x-action") != null ? request.getHeader("x-action") : "";
-			String requestMethod = request.getMethod();
-			Map<String, Object> headerMap = new HashMap<>();
-			Enumeration<String> headerName = request.getHeaderNames();
-			while (headerName.hasMoreElements()) {
-				String header = headerName.nextElement();
-				headerMap.put(header, request.getHeader(header));
-			}
-			AuditTrail auditObject = new AuditTrail(serviceName, action, requestMethod, request.getRequestURI(),
-					performedBy, request.getContextPath(), headerMap);
-			if (requestMethod.equals(HttpMethod.POST.name()) || requestMethod.equals(HttpMethod.PUT.name())
-					|| requestMethod.equals(HttpMethod.PATCH.name())) {
-				try {
-					auditObject.setRequestBody(
-							request.getReader().lines().collect(Collectors.joining(System.lineSeparator())));
-				} catch (IOException e) {
-					logger.error(ExceptionUtils.getFullStackTrace(e));
-				}
-			}
-			if (!request.getParameterMap().isEmpty()) {
-				auditObject.setRequestParams(request.getParameterMap());
-			}
-			if (StringUtils.isNotBlank(request.getQueryString())) {
-				auditObject.setQueryParams(request.getQueryString());
-			}
-			auditObject.setResponseCode(response.getStatus());
-			auditTrailRepository.save(auditObject);
+		String performedBy = request.getHeader("x-username");
+		String action = request.getHeader("x-action") != null ? request.getHeader("x-action") : "";
+		String requestMethod = request.getMethod();
+		Map<String, Object> headerMap = auditHeaderPolicy.capture(request);
+		AuditTrail auditObject = new AuditTrail(serviceName, action, requestMethod, request.getRequestURI(),
+				performedBy, request.getContextPath(), headerMap);
+		// the body is kept as it streams to the backend, the response filter
+		// takes what was read
+		if (requestBodyMaxBytes > 0 && (requestMethod.equals(HttpMethod.POST.name())
+				|| requestMethod.equals(HttpMethod.PUT.name()) || requestMethod.equals(HttpMethod.PATCH.name()))) {
+			AuditTeeRequestWrapper bodyTee = new AuditTeeRequestWrapper(request, requestBodyMaxBytes);
+			RequestContext.getCurrentContext().setRequest(bodyTee);
+			RequestContext.getCurrentContext().set(AUDIT_BODY_KEY, bodyTee);
+		}
+		if (!request.getParameterMap().isEmpty()) {
+			auditObject.setRequestParams(request.getParameterMap());
+		}
+		if (StringUtils.isNotBlank(request.getQueryString())) {
+			auditObject.setQueryParams(request.getQueryString());
 		}
+		RequestContext.getCurrentContext().set(AUDIT_RECORD_KEY, auditObject);
 	}
 }
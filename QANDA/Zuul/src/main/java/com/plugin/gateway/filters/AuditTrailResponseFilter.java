@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.plugin.gateway.filters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.stereotype.Component;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.exception.ZuulException;
+import com.plugin.gateway.service.AuditTrailWriter;
+import com.plugin.gateway.trail.capture.AuditCountingInputStream;
+import com.plugin.gateway.trail.capture.AuditLatencyRecorder;
+import com.plugin.gateway.trail.capture.AuditSamplingPolicy;
+import com.plugin.gateway.trail.capture.AuditTeeRequestWrapper;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Completes the record captured by the {@link AuditTrailFilter} with the
+ * request body kept while it was routed, its size and whether it was cut at
+ * the capture limit, the final response status, the upstream latency, the
+ * gateway latency and the response bytes, and lets the
+ * {@link AuditSamplingPolicy} decide whether it is written. Post filters also
+ * run after a routing error, so failed requests are audited as well. Runs
+ * after the error filter has set the status and before the response is sent;
+ * a streamed body is wrapped so the record is finished when the send response
+ * filter closes it, with the bytes it copied and the time of the last one.
+ * That filter does not run once a throwable is set, so a failed request is
+ * finished at once. Latencies of every request go to the
+ * {@link AuditLatencyRecorder}, sampled out or not.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class AuditTrailResponseFilter extends ZuulFilter {
+
+	private final AuditTrailWriter auditTrailWriter;
+	private final AuditSamplingPolicy auditSamplingPolicy;
+	private final AuditLatencyRecorder auditLatencyRecorder;
+
+	@Autowired
+	public AuditTrailResponseFilter(AuditTrailWriter auditTrailWriter, AuditSamplingPolicy auditSamplingPolicy,
+			AuditLatencyRecorder auditLatencyRecorder) {
+		this.auditTrailWriter = auditTrailWriter;
+		this.auditSamplingPolicy = auditSamplingPolicy;
+		this.auditLatencyRecorder = auditLatencyRecorder;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().get(AuditTrailFilter.AUDIT_RECORD_KEY) != null;
+	}
+
+	@Override
+	public Object run() throws ZuulException {
+		RequestContext context = RequestContext.getCurrentContext();
+		AuditTrail auditObject = (AuditTrail) context.remove(AuditTrailFilter.AUDIT_RECORD_KEY);
+		if (auditObject == null)
+			return null;
+		auditObject.setResponseCode(context.getResponseStatusCode());
+		AuditTeeRequestWrapper bodyTee = (AuditTeeRequestWrapper) context.get(AuditTrailFilter.AUDIT_BODY_KEY);
+		if (bodyTee != null) {
+			auditObject.setRequestBody(bodyTee.getCapturedBody());
+			auditObject.setRequestBodyBytes(bodyTee.getBodyBytes());
+			auditObject.setRequestBodyTruncated(bodyTee.isTruncated());
+		}
+		Long upstreamStart = (Long) context.get(AuditUpstreamTimingFilter.UPSTREAM_START_KEY);
+		if (upstreamStart != null)
+			auditObject.setUpstreamLatencyMillis(millisSince(upstreamStart));
+		boolean kept = auditSamplingPolicy.sample(auditObject.getRequestMethod(), auditObject.getResponseCode(),
+				context.getThrowable() != null);
+		Long start = (Long) context.get(AuditTrailFilter.AUDIT_START_KEY);
+		String route = (String) context.get(FilterConstants.PROXY_KEY);
+		if (sendsResponseStream(context))
+			context.setResponseDataStream(new AuditCountingInputStream(context.getResponseDataStream(),
+					bytes -> complete(auditObject, kept, start, route, bytes)));
+		else {
+			// after an error the error controller writes the response, not this body
+			String body = context.getThrowable() == null ? context.getResponseBody() : null;
+			complete(auditObject, kept, start, route,
+					body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length);
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the send response filter will copy and close the response
+	 * stream: it does not run once a throwable is set, and a set body wins
+	 * over the stream, which is then never closed.
+	 */
+	private static boolean sendsResponseStream(RequestContext context) {
+		return context.getThrowable() == null && context.getResponseBody() == null
+				&& context.getResponseDataStream() != null;
+	}
+
+	@Override
+	public String filterType() {
+		return "post";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 900;
+	}
+
+	private void complete(AuditTrail auditObject, boolean kept, Long start, String route, long responseBytes) {
+		if (start != null)
+			auditObject.setGatewayLatencyMillis(millisSince(start));
+		auditObject.setResponseBytes(responseBytes);
+		auditLatencyRecorder.record(route, auditObject);
+		if (kept)
+			auditTrailWriter.submit(auditObject);
+		else
+			auditTrailWriter.skip(auditObject);
+	}
+
+	private static long millisSince(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package com.plugin.gateway.filters;
+
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.stereotype.Component;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.exception.ZuulException;
+
+/**
+ * Marks when routing starts, ahead of the routing filters, so the
+ * {@link AuditTrailResponseFilter} can tell the time the backend took from
+ * the time spent in the gateway.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class AuditUpstreamTimingFilter extends ZuulFilter {
+
+	/**
+	 * Request context key of the {@link System#nanoTime()} routing started at.
+	 */
+	public static final String UPSTREAM_START_KEY = "auditUpstreamStart";
+
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().get(AuditTrailFilter.AUDIT_RECORD_KEY) != null;
+	}
+
+	@Override
+	public Object run() throws ZuulException {
+		RequestContext.getCurrentContext().set(UPSTREAM_START_KEY, System.nanoTime());
+		return null;
+	}
+
+	@Override
+	public String filterType() {
+		return "route";
+	}
+
+	@Override
+	public int filterOrder() {
+		return FilterConstants.RIBBON_ROUTING_FILTER_ORDER - 10;
+	}
+}
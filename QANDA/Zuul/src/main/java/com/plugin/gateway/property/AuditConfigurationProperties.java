@@ -3,6 +3,10 @@
  */
 package com.plugin.gateway.property;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.validation.constraints.NotNull;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -17,6 +21,76 @@ public class AuditConfigurationProperties {
 	@NotNull
 	private String storageEngine;
 
+	private long segmentMaxBytes = 64L * 1024 * 1024;
+
+	private int queueCapacity = 10000;
+
+	private int batchSize = 500;
+
+	private long flushIntervalMillis = 200;
+
+	private String overflowPolicy = "block";
+
+	private double sampleRate = 0.1;
+
+	private String matchMode = "exact";
+
+	private int retentionDays = 0;
+
+	private long retentionMaxBytes = 0;
+
+	private double compactionThreshold = 0.2;
+
+	private long retentionIntervalMinutes = 60;
+
+	private String headerCaptureMode = "denylist";
+
+	private List<String> headerAllowlist = new ArrayList<>();
+
+	private List<String> headerDenylist = new ArrayList<>(
+			Arrays.asList("authorization", "proxy-authorization", "cookie"));
+
+	private int headerMaxValueLength = 256;
+
+	private List<String> headerInternedValues = new ArrayList<>(Arrays.asList("host", "user-agent", "content-type",
+			"accept", "accept-encoding", "accept-language", "connection"));
+
+	private int headerDictionarySize = 4096;
+
+	private int ringCapacity = 65536;
+
+	private int statsWindowMinutes = 60;
+
+	private int statsMaxRoutes = 4096;
+
+	private String durability = "none";
+
+	private long durabilityIntervalMillis = 1000;
+
+	private String mongoWriteConcern = "acknowledged";
+
+	private int searchParallelism = 4;
+
+	private boolean bodyIndex = false;
+
+	private int bodyIndexMaxTokens = 64;
+
+	private double readSampleRate = 1.0;
+
+	private double samplingMinRate = 0.01;
+
+	private double samplingQueueThreshold = 0.5;
+
+	private long samplingLatencyThresholdMillis = 250;
+
+	private long ringMaxBytes = 64L * 1024 * 1024;
+
+	private int requestBodyMaxBytes = 16384;
+
+	private int writerStripes = 1;
+
+	private long dayIndexCacheMaxBytes = 256L * 1024 * 1024;
+
 	/**
 	 * @return the storageEngine
 	 */
@@ -31,7 +105,484 @@ public class AuditConfigurationProperties {
 		this.storageEngine = storageEngine;
 	}
 
+	/**
+	 * @return the size after which the file engine rolls to a new segment
+	 */
+	public long getSegmentMaxBytes() {
+		return segmentMaxBytes;
+	}
 
-	
-	
+	/**
+	 * @param segmentMaxBytes the segmentMaxBytes to set
+	 */
+	public void setSegmentMaxBytes(long segmentMaxBytes) {
+		this.segmentMaxBytes = segmentMaxBytes;
+	}
+
+	/**
+	 * @return the number of audit records the writer queue holds
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity the queueCapacity to set
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return the maximum number of audit records written in one batch
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the batchSize to set
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return how long the writer waits for records before checking for shutdown
+	 */
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	/**
+	 * @param flushIntervalMillis the flushIntervalMillis to set
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * @return what happens to a record when the writer queue is full
+	 */
+	public String getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy the overflowPolicy to set
+	 */
+	public void setOverflowPolicy(String overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @return the share of records kept by the sample policy once the queue is half full
+	 */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate the sampleRate to set
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return how every engine matches bare text criteria unless a search sends its own matchMode
+	 */
+	public String getMatchMode() {
+		return matchMode;
+	}
+
+	/**
+	 * @param matchMode the matchMode to set
+	 */
+	public void setMatchMode(String matchMode) {
+		this.matchMode = matchMode;
+	}
+
+	/**
+	 * @return the number of days of audit data to keep, 0 keeps every day
+	 */
+	public int getRetentionDays() {
+		return retentionDays;
+	}
+
+	/**
+	 * @param retentionDays the retentionDays to set
+	 */
+	public void setRetentionDays(int retentionDays) {
+		this.retentionDays = retentionDays;
+	}
+
+	/**
+	 * @return the disk budget of the file engine, 0 for none
+	 */
+	public long getRetentionMaxBytes() {
+		return retentionMaxBytes;
+	}
+
+	/**
+	 * @param retentionMaxBytes the retentionMaxBytes to set
+	 */
+	public void setRetentionMaxBytes(long retentionMaxBytes) {
+		this.retentionMaxBytes = retentionMaxBytes;
+	}
+
+	/**
+	 * @return the share of superseded record versions that triggers a compaction of a day
+	 */
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * @param compactionThreshold the compactionThreshold to set
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return the minutes between two retention runs
+	 */
+	public long getRetentionIntervalMinutes() {
+		return retentionIntervalMinutes;
+	}
+
+	/**
+	 * @param retentionIntervalMinutes the retentionIntervalMinutes to set
+	 */
+	public void setRetentionIntervalMinutes(long retentionIntervalMinutes) {
+		this.retentionIntervalMinutes = retentionIntervalMinutes;
+	}
+
+	/**
+	 * @return <code>allowlist</code> to capture only the listed headers,
+	 *         <code>denylist</code> to capture all but the listed ones
+	 */
+	public String getHeaderCaptureMode() {
+		return headerCaptureMode;
+	}
+
+	/**
+	 * @param headerCaptureMode the headerCaptureMode to set
+	 */
+	public void setHeaderCaptureMode(String headerCaptureMode) {
+		this.headerCaptureMode = headerCaptureMode;
+	}
+
+	/**
+	 * @return the headers captured in <code>allowlist</code> mode
+	 */
+	public List<String> getHeaderAllowlist() {
+		return headerAllowlist;
+	}
+
+	/**
+	 * @param headerAllowlist the headerAllowlist to set
+	 */
+	public void setHeaderAllowlist(List<String> headerAllowlist) {
+		this.headerAllowlist = headerAllowlist;
+	}
+
+	/**
+	 * @return the headers dropped in <code>denylist</code> mode
+	 */
+	public List<String> getHeaderDenylist() {
+		return headerDenylist;
+	}
+
+	/**
+	 * @param headerDenylist the headerDenylist to set
+	 */
+	public void setHeaderDenylist(List<String> headerDenylist) {
+		this.headerDenylist = headerDenylist;
+	}
+
+	/**
+	 * @return the length captured header values are cut to, 0 keeps them whole
+	 */
+	public int getHeaderMaxValueLength() {
+		return headerMaxValueLength;
+	}
+
+	/**
+	 * @param headerMaxValueLength the headerMaxValueLength to set
+	 */
+	public void setHeaderMaxValueLength(int headerMaxValueLength) {
+		this.headerMaxValueLength = headerMaxValueLength;
+	}
+
+	/**
+	 * @return the headers whose values repeat enough to be shared between records
+	 */
+	public List<String> getHeaderInternedValues() {
+		return headerInternedValues;
+	}
+
+	/**
+	 * @param headerInternedValues the headerInternedValues to set
+	 */
+	public void setHeaderInternedValues(List<String> headerInternedValues) {
+		this.headerInternedValues = headerInternedValues;
+	}
+
+	/**
+	 * @return the number of distinct header names and values shared between records
+	 */
+	public int getHeaderDictionarySize() {
+		return headerDictionarySize;
+	}
+
+	/**
+	 * @param headerDictionarySize the headerDictionarySize to set
+	 */
+	public void setHeaderDictionarySize(int headerDictionarySize) {
+		this.headerDictionarySize = headerDictionarySize;
+	}
+
+	/**
+	 * @return the number of records the in memory ring engine keeps
+	 */
+	public int getRingCapacity() {
+		return ringCapacity;
+	}
+
+	/**
+	 * @param ringCapacity the ringCapacity to set
+	 */
+	public void setRingCapacity(int ringCapacity) {
+		this.ringCapacity = ringCapacity;
+	}
+
+	/**
+	 * @return minutes of route rollups kept in memory
+	 */
+	public int getStatsWindowMinutes() {
+		return statsWindowMinutes;
+	}
+
+	/**
+	 * @param statsWindowMinutes the statsWindowMinutes to set
+	 */
+	public void setStatsWindowMinutes(int statsWindowMinutes) {
+		this.statsWindowMinutes = statsWindowMinutes;
+	}
+
+	/**
+	 * @return routes counted separately before new ones are counted as other
+	 */
+	public int getStatsMaxRoutes() {
+		return statsMaxRoutes;
+	}
+
+	/**
+	 * @param statsMaxRoutes the statsMaxRoutes to set
+	 */
+	public void setStatsMaxRoutes(int statsMaxRoutes) {
+		this.statsMaxRoutes = statsMaxRoutes;
+	}
+
+	/**
+	 * @return when the file engine forces appended records to disk, see AuditDurability
+	 */
+	public String getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @param durability the durability to set
+	 */
+	public void setDurability(String durability) {
+		this.durability = durability;
+	}
+
+	/**
+	 * @return time between two forces in the interval durability mode
+	 */
+	public long getDurabilityIntervalMillis() {
+		return durabilityIntervalMillis;
+	}
+
+	/**
+	 * @param durabilityIntervalMillis the durabilityIntervalMillis to set
+	 */
+	public void setDurabilityIntervalMillis(long durabilityIntervalMillis) {
+		this.durabilityIntervalMillis = durabilityIntervalMillis;
+	}
+
+	/**
+	 * @return write concern of the Mongo engine, a com.mongodb.WriteConcern name
+	 */
+	public String getMongoWriteConcern() {
+		return mongoWriteConcern;
+	}
+
+	/**
+	 * @param mongoWriteConcern the mongoWriteConcern to set
+	 */
+	public void setMongoWriteConcern(String mongoWriteConcern) {
+		this.mongoWriteConcern = mongoWriteConcern;
+	}
+
+	/**
+	 * @return days a file engine search scans at the same time
+	 */
+	public int getSearchParallelism() {
+		return searchParallelism;
+	}
+
+	/**
+	 * @param searchParallelism the searchParallelism to set
+	 */
+	public void setSearchParallelism(int searchParallelism) {
+		this.searchParallelism = searchParallelism;
+	}
+
+	/**
+	 * @return <code>true</code> to index the request bodies and query strings for <code>bodyContains</code> searches
+	 */
+	public boolean isBodyIndex() {
+		return bodyIndex;
+	}
+
+	/**
+	 * @param bodyIndex the bodyIndex to set
+	 */
+	public void setBodyIndex(boolean bodyIndex) {
+		this.bodyIndex = bodyIndex;
+	}
+
+	/**
+	 * @return the distinct body tokens indexed per record, records with more are checked on every body search
+	 */
+	public int getBodyIndexMaxTokens() {
+		return bodyIndexMaxTokens;
+	}
+
+	/**
+	 * @param bodyIndexMaxTokens the bodyIndexMaxTokens to set
+	 */
+	public void setBodyIndexMaxTokens(int bodyIndexMaxTokens) {
+		this.bodyIndexMaxTokens = bodyIndexMaxTokens;
+	}
+
+	/**
+	 * @return the share of successful reads that are audited while the writer keeps up
+	 */
+	public double getReadSampleRate() {
+		return readSampleRate;
+	}
+
+	/**
+	 * @param readSampleRate the readSampleRate to set
+	 */
+	public void setReadSampleRate(double readSampleRate) {
+		this.readSampleRate = readSampleRate;
+	}
+
+	/**
+	 * @return the share of successful reads still audited at the highest load
+	 */
+	public double getSamplingMinRate() {
+		return samplingMinRate;
+	}
+
+	/**
+	 * @param samplingMinRate the samplingMinRate to set
+	 */
+	public void setSamplingMinRate(double samplingMinRate) {
+		this.samplingMinRate = samplingMinRate;
+	}
+
+	/**
+	 * @return the writer queue fill ratio above which the read sample rate is lowered
+	 */
+	public double getSamplingQueueThreshold() {
+		return samplingQueueThreshold;
+	}
+
+	/**
+	 * @param samplingQueueThreshold the samplingQueueThreshold to set
+	 */
+	public void setSamplingQueueThreshold(double samplingQueueThreshold) {
+		this.samplingQueueThreshold = samplingQueueThreshold;
+	}
+
+	/**
+	 * @return the average batch write latency above which the read sample rate is lowered
+	 */
+	public long getSamplingLatencyThresholdMillis() {
+		return samplingLatencyThresholdMillis;
+	}
+
+	/**
+	 * @param samplingLatencyThresholdMillis the samplingLatencyThresholdMillis to set
+	 */
+	public void setSamplingLatencyThresholdMillis(long samplingLatencyThresholdMillis) {
+		this.samplingLatencyThresholdMillis = samplingLatencyThresholdMillis;
+	}
+
+	/**
+	 * @return the off heap bytes the ring engine keeps encoded records in
+	 */
+	public long getRingMaxBytes() {
+		return ringMaxBytes;
+	}
+
+	/**
+	 * @param ringMaxBytes the ringMaxBytes to set
+	 */
+	public void setRingMaxBytes(long ringMaxBytes) {
+		this.ringMaxBytes = ringMaxBytes;
+	}
+
+	/**
+	 * @return request body bytes kept on audited writes, 0 keeps none; the body streams to the backend either way
+	 */
+	public int getRequestBodyMaxBytes() {
+		return requestBodyMaxBytes;
+	}
+
+	/**
+	 * @param requestBodyMaxBytes the requestBodyMaxBytes to set
+	 */
+	public void setRequestBodyMaxBytes(int requestBodyMaxBytes) {
+		this.requestBodyMaxBytes = requestBodyMaxBytes;
+	}
+
+	/**
+	 * @return the number of independent writer queues and threads, records
+	 *         are striped over them by service name and the file engine keeps
+	 *         one log per stripe
+	 */
+	public int getWriterStripes() {
+		return writerStripes;
+	}
+
+	/**
+	 * @param writerStripes the writerStripes to set
+	 */
+	public void setWriterStripes(int writerStripes) {
+		this.writerStripes = writerStripes;
+	}
+
+	/**
+	 * @return the estimated heap the file engine keeps its day search indexes
+	 *         in, least recently searched days are evicted first, 0 keeps
+	 *         every day
+	 */
+	public long getDayIndexCacheMaxBytes() {
+		return dayIndexCacheMaxBytes;
+	}
+
+	/**
+	 * @param dayIndexCacheMaxBytes the dayIndexCacheMaxBytes to set
+	 */
+	public void setDayIndexCacheMaxBytes(long dayIndexCacheMaxBytes) {
+		this.dayIndexCacheMaxBytes = dayIndexCacheMaxBytes;
+	}
 }
@@ -3,318 +3,139 @@
  */
 package com.plugin.gateway.repository;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Instant;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.mongodb.MongoClient;
-import com.plugin.gateway.enums.AuditStorageEngine;
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.exception.CustomException;
 import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+import com.plugin.gateway.trail.store.AuditSearchCriteria;
+import com.plugin.gateway.trail.store.AuditTrailStore;
 
 /**
  * @author Sankha
  *
  */
 public class AuditTrailRepository {
-	private static final String AUDIT_TRAIL_FILE_PREFIX = "trailList";
-	private static final String AUDIT_TRAIL_FILE_EXTENTION = ".dat";
-	private static final String AUDIT_TRAIL_FOLDER = "AuditTrail";
-	protected List<AuditTrail> listOfEntries;
 	private Logger repositoryLogger = LoggerFactory.getLogger(AuditTrailRepository.class);
-	private MongoTemplate mongoTemplate;
-
-	private AuditStorageEngine storageEngine;
-
-	public AuditTrailRepository(AuditStorageEngine storageEngine) {
-		switch (storageEngine) {
-		case FILE:
-		case FILESYSTEM:
-			if (Files.notExists(Paths.get(AUDIT_TRAIL_FOLDER), LinkOption.NOFOLLOW_LINKS)) {
-				try {
-					Files.createDirectory(Paths.get(AUDIT_TRAIL_FOLDER));
-				} catch (IOException e) {
-					repositoryLogger.error(ExceptionUtils.getFullStackTrace(e));
-				}
-			}
-			if (listOfEntries == null || listOfEntries.isEmpty())
-				loadAllTrailDataByDate(LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE));
-			this.storageEngine = AuditStorageEngine.FILESYSTEM;
-			break;
-		case MONGO:
-		case MONGODB:
-			MongoClient mongoClient = new MongoClient();
-			mongoTemplate = new MongoTemplate(mongoClient, AUDIT_TRAIL_FOLDER);
-			this.storageEngine = AuditStorageEngine.MONGODB;
-			break;
-		default:
-			break;
-		}
+	private final AuditTrailStore auditTrailStore;
+	private final AuditMatchMode defaultMatchMode;
 
+	/**
+	 * @param auditTrailStore  the storage engine chosen by
+	 *                         <code>audit.storageEngine</code>
+	 * @param defaultMatchMode how bare text criteria match, from
+	 *                         <code>audit.matchMode</code>
+	 */
+	public AuditTrailRepository(AuditTrailStore auditTrailStore, AuditMatchMode defaultMatchMode) {
+		this.auditTrailStore = auditTrailStore;
+		this.defaultMatchMode = defaultMatchMode;
 	}
 
-	private void loadAllTrailDataByDate(String format) {
-		listOfEntries = new CopyOnWriteArrayList<AuditTrail>();
-		if (Files.exists(Paths.get(AUDIT_TRAIL_FOLDER))) {
-			String pwd = System.getProperty("user.dir");
-			Path loadFilePath = Paths.get(pwd, AUDIT_TRAIL_FOLDER + File.separator + AUDIT_TRAIL_FILE_PREFIX + "_"
-					+ format + AUDIT_TRAIL_FILE_EXTENTION);
-			if (Files.exists(loadFilePath)) {
-				try {
-					FileInputStream fileInputStream = new FileInputStream(loadFilePath.toFile());
-					BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream);
-					ObjectInputStream objectStream = new ObjectInputStream(bufferedInputStream);
-					Object fileData = null;
-					if (bufferedInputStream.available() > 0) {
-						fileData = objectStream.readObject();
-					}
-					if (fileData != null)
-						listOfEntries.addAll((List<AuditTrail>) fileData);
-					objectStream.close();
-					fileInputStream.close();
-				} catch (Exception e) {
-					repositoryLogger.error(ExceptionUtils.getFullStackTrace(e));
-				}
-			}
-		}
+	/**
+	 * @param object search body
+	 * @return the search compiled with the configured match mode
+	 * @throws IllegalArgumentException when the search is malformed
+	 */
+	public AuditSearchCriteria criteria(JsonObject object) {
+		return new AuditSearchCriteria(object, defaultMatchMode);
 	}
 
 	public List<AuditTrail> findAll() {
-		switch (storageEngine) {
-		case FILESYSTEM:
-			loadAllTrailData();
-			break;
-		case MONGODB:
-			listOfEntries = mongoTemplate.findAll(AuditTrail.class);
-			break;
-		default:
-			break;
+		try {
+			return auditTrailStore.findAll();
+		} catch (IOException e) {
+			throw readProblem(e);
 		}
-		return listOfEntries;
 	}
 
 	public AuditTrail findById(String id) {
-		switch (storageEngine) {
-		case FILESYSTEM:
-			if (listOfEntries.isEmpty()) {
-				loadAllTrailDataByDate(LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE));
-			}
-			if (listOfEntries.stream().anyMatch(resource -> resource.getId().equals(UUID.fromString(id)))) {
-				return listOfEntries.stream().filter(resource -> resource.getId().equals(UUID.fromString(id)))
-						.findFirst().orElse(null);
-			} else {
-				loadAllTrailData();
-				return listOfEntries.stream().filter(resource -> resource.getId().equals(UUID.fromString(id)))
-						.findFirst().orElse(null);
-			}
-		case MONGODB:
-			return mongoTemplate.findById(id, AuditTrail.class);
-		default:
-			break;
+		try {
+			return auditTrailStore.findById(UUID.fromString(id));
+		} catch (IOException e) {
+			throw readProblem(e);
 		}
-		return null;
 	}
 
 	public AuditTrail save(AuditTrail object) {
-		switch (storageEngine) {
-		case FILESYSTEM:
-			saveToDataFile(object);
-			break;
-		case MONGODB:
-			mongoTemplate.save(object);
-			break;
-		default:
-			break;
+		try {
+			auditTrailStore.save(object);
+		} catch (Exception e) {
+			throw new RuntimeException("Data File save problem " + e.getMessage(), e);
 		}
-
 		return object;
 	}
 
-	public List<AuditTrail> search(JsonObject object) {
-		switch (storageEngine) {
-		case FILESYSTEM:
-			return searchResultInFileSystem(object);
-		case MONGODB:
-			return searchResultInMongoDB(object);
-		default:
-			break;
+	/**
+	 * Writes a batch of records in one go.
+	 * 
+	 * @param objects
+	 */
+	public void saveAll(List<AuditTrail> objects) {
+		try {
+			auditTrailStore.saveAll(objects);
+		} catch (Exception e) {
+			throw new RuntimeException("Data File save problem " + e.getMessage(), e);
 		}
-		return Collections.emptyList();
+	}
 
+	public List<AuditTrail> search(JsonObject object) {
+		List<AuditTrail> results = new ArrayList<>();
+		stream(object, null, 0, results::add);
+		return results;
 	}
 
 	/**
+	 * Hands the matching records to the consumer one at a time, so the caller
+	 * never holds the whole result. The order is the one of the storage engine.
 	 * 
-	 * @param object
-	 * @return
+	 * @param object   search criteria, empty for all records
+	 * @param after    id of the last record the caller already has, or
+	 *                 <code>null</code> to start at the beginning
+	 * @param limit    maximum number of records, 0 for no limit
+	 * @param consumer
+	 * @return the number of records handed to the consumer
+	 * @throws IllegalArgumentException when the search is malformed or
+	 *                                  <code>after</code> names no stored
+	 *                                  record
+	 * @throws CustomException          with a server error status when the
+	 *                                  engine fails to read, possibly after
+	 *                                  some records were handed over
 	 */
-	private List<AuditTrail> searchResultInMongoDB(JsonObject object) {
-		Query searchQuery = new Query();
-		if (checkSearchKey(object, "requestTimestamp"))
-			searchQuery.addCriteria(Criteria.where("requestTimestamp").is(object.get("requestTimestamp").getAsLong()));
-
-		if (checkSearchKey(object, "serviceName")) {
-			String searchData = object.get("serviceName").getAsString();
-			if (checkIfHasSpecialCharacter(searchData)) {
-				searchData = escapeMetaCharacters(searchData);
-			}
-			searchQuery.addCriteria(
-					Criteria.where("serviceName").regex(Pattern.compile(searchData, Pattern.CASE_INSENSITIVE)));
-		}
-		if (checkSearchKey(object, "action")) {
-			String searchData = object.get("action").getAsString();
-			if (checkIfHasSpecialCharacter(searchData)) {
-				searchData = escapeMetaCharacters(searchData);
-			}
-			searchQuery
-					.addCriteria(Criteria.where("action").regex(Pattern.compile(searchData, Pattern.CASE_INSENSITIVE)));
-		}
-		if (checkSearchKey(object, "status")) {
-			String searchData = object.get("status").getAsString();
-			if (checkIfHasSpecialCharacter(searchData)) {
-				searchData = escapeMetaCharacters(searchData);
-			}
-			searchQuery
-					.addCriteria(Criteria.where("status").regex(Pattern.compile(searchData, Pattern.CASE_INSENSITIVE)));
-		}
-		return mongoTemplate.find(searchQuery, AuditTrail.class);
+	public int stream(JsonObject object, String after, int limit, Consumer<AuditTrail> consumer) {
+		return stream(criteria(object), after, limit, consumer);
 	}
 
 	/**
-	 * @param object
-	 * @param entries
-	 * @return
+	 * @see #stream(JsonObject, String, int, Consumer)
 	 */
-	private List<AuditTrail> searchResultInFileSystem(JsonObject object) {
-		Set<Map.Entry<String, JsonElement>> entries = object.entrySet();
-		JsonElement targetDate = object.get("targetDate");
-		if (object.has("targetDate") && targetDate != null && StringUtils.isNotBlank(targetDate.getAsString())) {
-
-			if (targetDate.getAsString().equalsIgnoreCase("today") || targetDate.getAsString()
-					.equalsIgnoreCase(LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE)))
-				loadAllTrailDataByDate(LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE));
-
-			else if (targetDate.getAsString().equalsIgnoreCase("yesterday") || targetDate.getAsString()
-					.equalsIgnoreCase(LocalDate.now().minusDays(1).format(DateTimeFormatter.BASIC_ISO_DATE)))
-				loadAllTrailDataByDate(LocalDate.now().minusDays(1).format(DateTimeFormatter.BASIC_ISO_DATE));
-
-			else if (targetDate.getAsString().equalsIgnoreCase("daybeforeyesterday") || targetDate.getAsString()
-					.equalsIgnoreCase(LocalDate.now().minusDays(2).format(DateTimeFormatter.BASIC_ISO_DATE)))
-				loadAllTrailDataByDate(LocalDate.now().minusDays(2).format(DateTimeFormatter.BASIC_ISO_DATE));
-			else
-				loadAllTrailDataByDate(targetDate.getAsString());
-		} else {
-			loadAllTrailData();
+	public int stream(AuditSearchCriteria criteria, String after, int limit, Consumer<AuditTrail> consumer) {
+		try {
+			return auditTrailStore.stream(criteria, after, limit, consumer);
+		} catch (IOException e) {
+			throw readProblem(e);
 		}
-		List<AuditTrail> results = listOfEntries.stream().filter(resource -> {
-			if (resource != null) {
-				boolean predicate = true;
-				for (Map.Entry<String, JsonElement> entry : entries) {
-					if (entry.getValue() != null) {
-						switch (entry.getKey().toLowerCase()) {
-						case "id":
-							predicate = predicate && resource.getId() != null
-									&& resource.getId().equals(UUID.fromString(entry.getValue().getAsString()));
-							break;
-						case "serviceName":
-							predicate = predicate && resource.getServiceName() != null
-									&& resource.getServiceName().equalsIgnoreCase(entry.getValue().getAsString());
-							break;
-						case "action":
-							predicate = predicate && resource.getAction() != null
-									&& resource.getAction().equalsIgnoreCase(entry.getValue().getAsString());
-							break;
-						case "status":
-							predicate = predicate && resource.getStatus() != null
-									&& resource.getStatus().equalsIgnoreCase(entry.getValue().getAsString());
-							break;
-						case "requestMethod":
-							predicate = predicate && resource.getRequestMethod() != null
-									&& resource.getRequestMethod().equalsIgnoreCase(entry.getValue().getAsString());
-						case "performedBy":
-							predicate = predicate && resource.getPerformedBy() != null
-									&& resource.getPerformedBy().equalsIgnoreCase(entry.getValue().getAsString());
-							break;
-						default:
-							break;
-						}
-					}
-				}
-				if (object.has("fromDate") && object.get("fromDate") != null && object.has("toDate")
-						&& object.get("toDate") != null) {
-					predicate = predicate
-							&& resource.getRequestTimestamp().longValue() >= object.get("fromDate").getAsLong()
-							&& resource.getRequestTimestamp().longValue() <= object.get("toDate").getAsLong();
-				}
-				return predicate;
-			}
-			return false;
-		}).collect(Collectors.toList());
-		return results;
 	}
 
 	public boolean update(AuditTrail object, AuditTrail patchObject) {
-		if (listOfEntries.isEmpty()) {
-			loadAllTrailDataByDate(LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE));
-		}
-
-		if (!listOfEntries.stream().anyMatch(resource -> resource.getId().equals(object.getId()))) {
-			loadAllTrailData();
-		}
-		AuditTrail auditTrailToBeUpdated = listOfEntries.stream()
-				.filter(resource -> resource.getId().equals(object.getId())).findFirst().orElse(null);
+		AuditTrail auditTrailToBeUpdated = object;
 		if (auditTrailToBeUpdated != null) {
 			auditTrailToBeUpdated.setStatus(patchObject.getStatus());
 			auditTrailToBeUpdated.setUpdatedBy(patchObject.getUpdatedBy());
 			auditTrailToBeUpdated.setUpdateTimestamp(Instant.now().getEpochSecond());
-
 			try {
-				String pwd = System.getProperty("user.dir");
-				String dateFormatForFile = LocalDateTime
-						.ofEpochSecond(auditTrailToBeUpdated.getRequestTimestamp(), 0,
-								OffsetDateTime.now(ZoneId.systemDefault()).getOffset())
-						.format(DateTimeFormatter.BASIC_ISO_DATE);
-				Path updateFilePath = Paths.get(pwd, AUDIT_TRAIL_FOLDER + File.separator + AUDIT_TRAIL_FILE_PREFIX + "_"
-						+ dateFormatForFile + AUDIT_TRAIL_FILE_EXTENTION);
-				FileOutputStream fileOutputStream = new FileOutputStream(updateFilePath.toFile());
-				synchronized (fileOutputStream) {
-					ObjectOutputStream objectStream = new ObjectOutputStream(fileOutputStream);
-					objectStream.writeObject(listOfEntries);
-					objectStream.close();
-					fileOutputStream.close();
-				}
+				auditTrailStore.save(auditTrailToBeUpdated);
 				return true;
 			} catch (Exception e) {
 				repositoryLogger.error(ExceptionUtils.getFullStackTrace(e));
@@ -330,6 +151,86 @@ public class AuditTrailRepository {
 		patchObject.setId(UUID.fromString(id));
 		return update(findById(id), patchObject);
 	}
+
+	/**
+	 * Sets the status of many records at once, see
+	 * {@link AuditTrailStore#updateStatus(AuditSearchCriteria, String, String, long)}.
+	 * 
+	 * @param object search criteria selecting the records, an <code>ids</code>
+	 *               array selects them by id
+	 * @param status
+	 * @param user
+	 * @return the number of records updated
+	 */
+	public int updateStatus(JsonObject object, String status, String user) {
+		return updateStatus(criteria(object), status, user);
+	}
+
+	/**
+	 * @param criteria selecting the records
+	 * @param status
+	 * @param user
+	 * @return the number of records updated
+	 */
+	public int updateStatus(AuditSearchCriteria criteria, String status, String user) {
+		try {
+			return auditTrailStore.updateStatus(criteria, status, user, Instant.now().getEpochSecond());
+		} catch (Exception e) {
+			throw new RuntimeException("Audit bulk update problem " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Adds per minute route counts to the stored ones.
+	 * 
+	 * @param rollups
+	 */
+	public void saveRollups(List<AuditRouteRollup> rollups) {
+		try {
+			auditTrailStore.saveRollups(rollups);
+		} catch (Exception e) {
+			throw new RuntimeException("Audit rollup save problem " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param fromSecond epoch second
+	 * @param toSecond   epoch second
+	 * @return the stored route counts of the minutes starting within the range
+	 */
+	public List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) {
+		try {
+			return auditTrailStore.findRollups(fromSecond, toSecond);
+		} catch (IOException e) {
+			throw readProblem(e);
+		}
+	}
+
+	/**
+	 * Applies the retention of the storage engine, see
+	 * {@link AuditTrailStore#applyRetention(int, long, double)}.
+	 *
+	 * @param retentionDays       days to keep, 0 keeps every day
+	 * @param maxBytes            disk budget, 0 for none
+	 * @param compactionThreshold share of superseded versions that triggers a
+	 *                            compaction
+	 */
+	public void applyRetention(int retentionDays, long maxBytes, double compactionThreshold) {
+		try {
+			auditTrailStore.applyRetention(retentionDays, maxBytes, compactionThreshold);
+		} catch (IOException e) {
+			throw new RuntimeException("Audit retention problem " + e.getMessage(), e);
+		}
+	}
+	/**
+	 * A failed read surfaces as a server error instead of a short or empty
+	 * answer the caller would take for the whole result.
+	 */
+	private CustomException readProblem(IOException e) {
+		repositoryLogger.error(ExceptionUtils.getFullStackTrace(e));
+		return new CustomException("Audit read problem " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+	}
+
 	// Change method
 //	public void delete(AuditTrail obj) {
 //		if (obj != null) {
@@ -355,83 +256,4 @@ public class AuditTrailRepository {
 //	public void deleteById(String id) {
 //		delete(findById(id));
 //	}
-
-	private void loadAllTrailData() {
-		listOfEntries = new CopyOnWriteArrayList<AuditTrail>();
-		if (Files.exists(Paths.get(AUDIT_TRAIL_FOLDER))) {
-			try {
-				String pwd = System.getProperty("user.dir");
-				final int maxDepth = 10;
-				Stream<Path> matches = Files.find(Paths.get(pwd, AUDIT_TRAIL_FOLDER), maxDepth,
-						(path, basicFileAttributes) -> String.valueOf(path).endsWith(AUDIT_TRAIL_FILE_EXTENTION));
-				matches.distinct().parallel().forEachOrdered(loadFilePath -> {
-					try {
-						FileInputStream fileInputStream = new FileInputStream(loadFilePath.toFile());
-						ObjectInputStream objectStream = new ObjectInputStream(fileInputStream);
-						listOfEntries.addAll((List<AuditTrail>) objectStream.readObject());
-						objectStream.close();
-						fileInputStream.close();
-					} catch (Exception e) {
-						repositoryLogger.error(ExceptionUtils.getStackTrace(e));
-					}
-				});
-				matches.close();
-			} catch (Exception e) {
-				repositoryLogger.error(ExceptionUtils.getStackTrace(e));
-			} finally {
-			}
-		}
-	}
-
-	private boolean checkSearchKey(JsonObject jObject, String key) {
-		if (jObject.has(key) && !jObject.get(key).isJsonNull() && jObject.get(key) != null) {
-			String content = StringUtils.removeStart(jObject.get(key).toString(), "\"");
-			content = StringUtils.removeEnd(content, "\"");
-			return StringUtils.isNotBlank(content);
-
-		}
-		return false;
-	}
-
-	private String escapeMetaCharacters(String inputString) {
-		final String[] metaCharacters = { "\\", "^", "$", "{", "}", "[", "]", "(", ")", ".", "*", "+", "?", "|", "<",
-				">", "-", "&", "%" };
-
-		for (int i = 0; i < metaCharacters.length; i++) {
-			if (inputString.contains(metaCharacters[i])) {
-				inputString = inputString.replace(metaCharacters[i], "\\" + metaCharacters[i]);
-			}
-		}
-		return inputString;
-	}
-
-	private boolean checkIfHasSpecialCharacter(String searchData) {
-		Pattern special = Pattern.compile("[!@#$%&*()_+=|<>?{}\\[\\]~-]");
-		return special.matcher(searchData).find();
-	}
-
-	private void saveToDataFile(AuditTrail object) {
-		if (Files.exists(Paths.get(AUDIT_TRAIL_FOLDER))) {
-			try {
-				// based on list size write in multiple files.
-				if (listOfEntries == null || listOfEntries.isEmpty())
-					listOfEntries = new CopyOnWriteArrayList<AuditTrail>();
-				if (listOfEntries.contains(object))
-					listOfEntries.remove(object);
-				listOfEntries.add(object);
-				String pwd = System.getProperty("user.dir");
-				Path saveFilePath = Paths.get(pwd, AUDIT_TRAIL_FOLDER + File.separator + AUDIT_TRAIL_FILE_PREFIX + "_"
-						+ LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + AUDIT_TRAIL_FILE_EXTENTION);
-				FileOutputStream fileOutputStream = new FileOutputStream(saveFilePath.toFile());
-				synchronized (fileOutputStream) {
-					ObjectOutputStream objectStream = new ObjectOutputStream(fileOutputStream);
-					objectStream.writeObject(listOfEntries);
-					objectStream.close();
-					fileOutputStream.close();
-				}
-			} catch (Exception e) {
-				throw new RuntimeException("Data File save problem " + e.getMessage(), e);
-			}
-		}
-	}
 }
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package com.plugin.gateway.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Keeps the audit storage bounded on long running gateways. A background
+ * thread applies the configured retention every
+ * <code>audit.retentionIntervalMinutes</code>; the run time and failed runs
+ * are published as <code>audit.retention.*</code> metrics.
+ *
+ * @author Sankha
+ *
+ */
+@Service
+public class AuditRetentionManager {
+
+	private final Logger retentionLogger = LoggerFactory.getLogger(AuditRetentionManager.class);
+	private final AuditTrailRepository auditTrailRepository;
+	private final AuditConfigurationProperties auditProperties;
+	private final Timer runTimer;
+	private final Counter failedCounter;
+	private final ScheduledExecutorService scheduler;
+
+	@Autowired
+	public AuditRetentionManager(AuditTrailRepository auditTrailRepository,
+			AuditConfigurationProperties auditProperties, MeterRegistry meterRegistry) {
+		this.auditTrailRepository = auditTrailRepository;
+		this.auditProperties = auditProperties;
+		this.runTimer = Timer.builder("audit.retention.run").register(meterRegistry);
+		this.failedCounter = meterRegistry.counter("audit.retention.failed");
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "audit-trail-retention");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = Math.max(1, auditProperties.getRetentionIntervalMinutes());
+		scheduler.scheduleWithFixedDelay(this::run, 1, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Applies the retention once.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+		try {
+			auditTrailRepository.applyRetention(auditProperties.getRetentionDays(),
+					auditProperties.getRetentionMaxBytes(), auditProperties.getCompactionThreshold());
+		} catch (Exception e) {
+			failedCounter.increment();
+			retentionLogger.error(ExceptionUtils.getFullStackTrace(e));
+		} finally {
+			runTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stops the background thread, a run in progress finishes first.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
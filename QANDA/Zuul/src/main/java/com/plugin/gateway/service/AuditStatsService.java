@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package com.plugin.gateway.service;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+import com.plugin.gateway.trail.stats.AuditTrafficRollup;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps per route traffic rollups of the audit stream. Every submitted record
+ * is counted in an {@link AuditTrafficRollup}; once a minute is over by one
+ * more minute its counters are flushed to the storage engine. Stats queries
+ * read the recent minutes from memory and older ones from the stored rollups,
+ * so their cost depends on minutes and routes, never on the number of audit
+ * records.
+ *
+ * @author Sankha
+ *
+ */
+@Service
+public class AuditStatsService {
+
+	private final Logger statsLogger = LoggerFactory.getLogger(AuditStatsService.class);
+	private final AuditTrailRepository auditTrailRepository;
+	private final AuditTrafficRollup trafficRollup;
+	private final Clock clock;
+	private final Counter failedCounter;
+	private final ScheduledExecutorService scheduler;
+
+	@Autowired
+	public AuditStatsService(AuditTrailRepository auditTrailRepository, AuditConfigurationProperties auditProperties,
+			MeterRegistry meterRegistry) {
+		this(auditTrailRepository, auditProperties, meterRegistry, Clock.systemUTC());
+	}
+
+	/**
+	 * @param auditTrailRepository
+	 * @param auditProperties
+	 * @param meterRegistry
+	 * @param clock                the clock minutes are counted and queried by
+	 */
+	AuditStatsService(AuditTrailRepository auditTrailRepository, AuditConfigurationProperties auditProperties,
+			MeterRegistry meterRegistry, Clock clock) {
+		this.auditTrailRepository = auditTrailRepository;
+		this.clock = clock;
+		this.trafficRollup = new AuditTrafficRollup(auditProperties.getStatsWindowMinutes(),
+				auditProperties.getStatsMaxRoutes(), clock.instant().getEpochSecond());
+		meterRegistry.gauge("audit.stats.routes", trafficRollup, AuditTrafficRollup::getRouteCount);
+		this.failedCounter = meterRegistry.counter("audit.stats.flush.failed");
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "audit-trail-stats");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> flush(clock.instant().getEpochSecond() - 120), 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Counts the record under its route and request minute.
+	 *
+	 * @param record
+	 */
+	public void record(AuditTrail record) {
+		long timestamp = record.getRequestTimestamp() == null ? clock.instant().getEpochSecond()
+				: record.getRequestTimestamp();
+		trafficRollup.record(record.getServiceName(), record.getRequestMethod(), record.getResponseCode(),
+				timestamp);
+	}
+
+	/**
+	 * @param fromSecond    epoch second
+	 * @param toSecond      epoch second
+	 * @param serviceName   only this service when not <code>null</code>
+	 * @param requestMethod only this method when not <code>null</code>
+	 * @param responseCode  only this response code when not <code>null</code>
+	 * @param perMinute     one rollup per route and minute instead of one total
+	 *                      per route
+	 * @return the request counts of the minutes starting within the range, by
+	 *         minute and then by descending count
+	 */
+	public List<AuditRouteRollup> query(long fromSecond, long toSecond, String serviceName, String requestMethod,
+			Integer responseCode, boolean perMinute) {
+		Map<String, AuditRouteRollup> results = new LinkedHashMap<>();
+		Consumer<AuditRouteRollup> accumulator = rollup -> {
+			if ((serviceName != null && !serviceName.equalsIgnoreCase(rollup.getServiceName()))
+					|| (requestMethod != null && !requestMethod.equalsIgnoreCase(rollup.getRequestMethod()))
+					|| (responseCode != null && responseCode != rollup.getResponseCode()))
+				return;
+			Long minute = perMinute ? rollup.getMinute() : null;
+			String key = minute + "\n" + rollup.getServiceName() + '\n' + rollup.getRequestMethod() + '\n'
+					+ rollup.getResponseCode();
+			AuditRouteRollup result = results.computeIfAbsent(key, ignored -> new AuditRouteRollup(minute,
+					rollup.getServiceName(), rollup.getRequestMethod(), rollup.getResponseCode(), 0));
+			result.setCount(result.getCount() + rollup.getCount());
+		};
+		long nowSecond = clock.instant().getEpochSecond();
+		long coveredFrom = trafficRollup.coveredFrom(nowSecond);
+		// nothing is counted ahead of the clock
+		toSecond = Math.min(toSecond, nowSecond);
+		fromSecond = Math.max(0, fromSecond);
+		if (fromSecond < coveredFrom)
+			auditTrailRepository.findRollups(fromSecond, Math.min(toSecond, coveredFrom - 1)).forEach(accumulator);
+		if (toSecond >= coveredFrom)
+			trafficRollup.collect(Math.max(fromSecond, coveredFrom), toSecond, accumulator);
+		List<AuditRouteRollup> sorted = new ArrayList<>(results.values());
+		sorted.sort(Comparator.comparing(AuditRouteRollup::getMinute, Comparator.nullsFirst(Comparator.naturalOrder()))
+				.thenComparing(Comparator.comparingLong(AuditRouteRollup::getCount).reversed()));
+		return sorted;
+	}
+
+	/**
+	 * Flushes the counters of the minutes starting before the given second.
+	 *
+	 * @param beforeSecond epoch second
+	 */
+	public void flush(long beforeSecond) {
+		try {
+			trafficRollup.flush(beforeSecond, auditTrailRepository::saveRollups);
+		} catch (Exception e) {
+			failedCounter.increment();
+			statsLogger.error(ExceptionUtils.getFullStackTrace(e));
+		}
+	}
+
+	/**
+	 * Stops the background thread and flushes every counter, the current minute
+	 * included.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush(Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package com.plugin.gateway.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.plugin.gateway.enums.AuditOverflowPolicy;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.store.AuditTrailStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Takes audit records off the request thread. Records are queued in bounded
+ * queues and background threads write them to the repository in batches.
+ * With <code>writerStripes</code> above one every stripe has its own queue and
+ * thread and a record goes to the stripe of its service, see
+ * {@link AuditTrailStore#stripeOf(String, int)}, so busy services do not
+ * contend with each other on one queue lock and the records of a service stay
+ * in order. Every submitted record is counted by the {@link AuditStatsService},
+ * dropped and sampled out ones included. The queue depth, dropped records and
+ * batch latency are published as <code>audit.writer.*</code> metrics.
+ *
+ * @author Sankha
+ *
+ */
+@Service
+public class AuditTrailWriter {
+
+	private final Logger writerLogger = LoggerFactory.getLogger(AuditTrailWriter.class);
+	private final AuditTrailRepository auditTrailRepository;
+	private final AuditStatsService auditStatsService;
+	private final List<BlockingQueue<AuditTrail>> queues;
+	private final AuditOverflowPolicy overflowPolicy;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final long blockSliceMillis;
+	private final double sampleRate;
+	private final int sampleThreshold;
+	private final Counter droppedCounter;
+	private final Counter failedCounter;
+	private final Timer batchTimer;
+	private final List<Thread> drainThreads;
+	private final int queueCapacity;
+	// moving average of the batch write time, halved while the writer idles
+	private volatile long batchLatencyNanos;
+	private volatile boolean running = true;
+
+	@Autowired
+	public AuditTrailWriter(AuditTrailRepository auditTrailRepository, AuditStatsService auditStatsService,
+			AuditConfigurationProperties auditProperties, MeterRegistry meterRegistry) {
+		this.auditTrailRepository = auditTrailRepository;
+		this.auditStatsService = auditStatsService;
+		int stripes = Math.max(1, auditProperties.getWriterStripes());
+		int stripeCapacity = (auditProperties.getQueueCapacity() + stripes - 1) / stripes;
+		this.queueCapacity = stripeCapacity * stripes;
+		List<BlockingQueue<AuditTrail>> stripeQueues = new ArrayList<>(stripes);
+		for (int stripe = 0; stripe < stripes; stripe++)
+			stripeQueues.add(new ArrayBlockingQueue<>(stripeCapacity));
+		this.queues = Collections.unmodifiableList(stripeQueues);
+		this.overflowPolicy = AuditOverflowPolicy.fromValue(auditProperties.getOverflowPolicy());
+		this.batchSize = auditProperties.getBatchSize();
+		this.flushIntervalMillis = auditProperties.getFlushIntervalMillis();
+		this.blockSliceMillis = Math.max(1, flushIntervalMillis);
+		this.sampleRate = auditProperties.getSampleRate();
+		this.sampleThreshold = stripeCapacity / 2;
+		meterRegistry.gauge("audit.writer.queue.depth", this, AuditTrailWriter::getQueueDepth);
+		this.droppedCounter = Counter.builder("audit.writer.dropped").tag("policy", overflowPolicy.getValue())
+				.register(meterRegistry);
+		this.failedCounter = meterRegistry.counter("audit.writer.failed");
+		this.batchTimer = Timer.builder("audit.writer.batch").register(meterRegistry);
+		List<Thread> threads = new ArrayList<>(stripes);
+		for (int stripe = 0; stripe < stripes; stripe++) {
+			BlockingQueue<AuditTrail> queue = queues.get(stripe);
+			Thread drainThread = new Thread(() -> drain(queue),
+					stripes == 1 ? "audit-trail-writer" : "audit-trail-writer-" + stripe);
+			drainThread.setDaemon(true);
+			drainThread.start();
+			threads.add(drainThread);
+		}
+		this.drainThreads = Collections.unmodifiableList(threads);
+	}
+
+	/**
+	 * Queues the record on the stripe of its service, the overflow policy
+	 * decides what happens when that queue is full. Once the writer is shut
+	 * down the gateway may still be serving, so records are then written on the
+	 * calling thread instead of being queued for threads that are gone.
+	 *
+	 * @param record
+	 */
+	public void submit(AuditTrail record) {
+		auditStatsService.record(record);
+		if (!running) {
+			write(Collections.singletonList(record));
+			return;
+		}
+		BlockingQueue<AuditTrail> queue = queues
+				.get(AuditTrailStore.stripeOf(record.getServiceName(), queues.size()));
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				boolean queued = false;
+				// waits in slices so a shutdown meanwhile does not leave the caller hanging
+				while (running && !(queued = queue.offer(record, blockSliceMillis, TimeUnit.MILLISECONDS)))
+					;
+				if (!queued) {
+					write(Collections.singletonList(record));
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				droppedCounter.increment();
+				return;
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(record)) {
+				if (queue.poll() != null)
+					droppedCounter.increment();
+			}
+			break;
+		case SAMPLE:
+			if (queue.size() >= sampleThreshold && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+				droppedCounter.increment();
+			} else if (!queue.offer(record)) {
+				droppedCounter.increment();
+			}
+			break;
+		default:
+			break;
+		}
+		// shutdown drains after it stops the writer, so a record queued as it
+		// did is either in that drain or written here
+		if (!running)
+			flush(queue);
+	}
+
+	/**
+	 * Counts a record that was sampled out without writing it.
+	 *
+	 * @param record
+	 */
+	public void skip(AuditTrail record) {
+		auditStatsService.record(record);
+	}
+
+	/**
+	 * @return the number of records waiting to be written
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (BlockingQueue<AuditTrail> queue : queues)
+			depth += queue.size();
+		return depth;
+	}
+
+	/**
+	 * @return the number of records the queues hold
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return the moving average of the batch write time in milliseconds
+	 */
+	public double getBatchLatencyMillis() {
+		return batchLatencyNanos / 1_000_000.0;
+	}
+
+	/**
+	 * Stops the background threads and writes whatever is still queued, later
+	 * submits write their record themselves.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		try {
+			for (Thread drainThread : drainThreads)
+				drainThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (BlockingQueue<AuditTrail> queue : queues)
+			flush(queue);
+		writerLogger.info("Audit trail writer stopped");
+	}
+
+	/**
+	 * Writes whatever the queue holds on the calling thread.
+	 */
+	private void flush(BlockingQueue<AuditTrail> queue) {
+		List<AuditTrail> batch = new ArrayList<>(batchSize);
+		while (queue.drainTo(batch, batchSize) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void drain(BlockingQueue<AuditTrail> queue) {
+		List<AuditTrail> batch = new ArrayList<>(batchSize);
+		while (running) {
+			try {
+				AuditTrail first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					batchLatencyNanos /= 2;
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				write(batch);
+				batch.clear();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void write(List<AuditTrail> batch) {
+		long start = System.nanoTime();
+		try {
+			auditTrailRepository.saveAll(batch);
+		} catch (Exception e) {
+			failedCounter.increment(batch.size());
+			writerLogger.error(ExceptionUtils.getFullStackTrace(e));
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			batchTimer.record(elapsed, TimeUnit.NANOSECONDS);
+			batchLatencyNanos = (batchLatencyNanos * 7 + elapsed) / 8;
+		}
+	}
+}
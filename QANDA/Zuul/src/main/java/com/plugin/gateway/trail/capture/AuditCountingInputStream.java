@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Counts the bytes read through a response body stream and hands the total to
+ * a callback on the first close. The send response filter closes the stream
+ * once the body is copied to the client, also when the copy fails, so the
+ * callback sees the final count.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditCountingInputStream extends FilterInputStream {
+
+	private final LongConsumer onClose;
+	private long count;
+	private boolean closed;
+
+	/**
+	 * @param in
+	 * @param onClose receives the number of bytes read
+	 */
+	public AuditCountingInputStream(InputStream in, LongConsumer onClose) {
+		super(in);
+		this.onClose = onClose;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = super.read();
+		if (value >= 0)
+			count++;
+		return value;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0)
+			count += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long length) throws IOException {
+		long skipped = super.skip(length);
+		count += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (!closed) {
+				closed = true;
+				onClose.accept(count);
+			}
+		}
+	}
+}
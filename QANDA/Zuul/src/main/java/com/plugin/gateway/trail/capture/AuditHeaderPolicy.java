@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+
+/**
+ * Decides which request headers end up in an audit record. Headers are kept
+ * by an allowlist or dropped by a denylist, values are cut to
+ * <code>audit.headerMaxValueLength</code>, and header names as well as the
+ * values of the repetitive headers are interned into a shared
+ * {@link AuditStringDictionary}.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class AuditHeaderPolicy {
+
+	private static final String ALLOWLIST = "allowlist";
+
+	private final boolean allowlist;
+	private final Set<String> listedHeaders;
+	private final Set<String> internedValues;
+	private final int maxValueLength;
+	private final AuditStringDictionary dictionary;
+
+	@Autowired
+	public AuditHeaderPolicy(AuditConfigurationProperties auditProperties) {
+		this.allowlist = ALLOWLIST.equalsIgnoreCase(auditProperties.getHeaderCaptureMode());
+		this.listedHeaders = lowerCase(
+				allowlist ? auditProperties.getHeaderAllowlist() : auditProperties.getHeaderDenylist());
+		this.internedValues = lowerCase(auditProperties.getHeaderInternedValues());
+		this.maxValueLength = auditProperties.getHeaderMaxValueLength();
+		this.dictionary = new AuditStringDictionary(auditProperties.getHeaderDictionarySize());
+	}
+
+	/**
+	 * @param request
+	 * @return the captured headers by lower cased name
+	 */
+	public Map<String, Object> capture(HttpServletRequest request) {
+		Map<String, Object> headers = new HashMap<>();
+		Enumeration<String> headerNames = request.getHeaderNames();
+		while (headerNames.hasMoreElements()) {
+			String header = headerNames.nextElement();
+			String name = dictionary.intern(header.toLowerCase(Locale.ROOT));
+			if (captures(name))
+				headers.put(name, value(name, request.getHeader(header)));
+		}
+		return headers;
+	}
+
+	/**
+	 * @param name lower cased header name
+	 * @return <code>true</code> when the header is recorded
+	 */
+	public boolean captures(String name) {
+		return allowlist == listedHeaders.contains(name);
+	}
+
+	/**
+	 * @return the dictionary shared by the captured headers
+	 */
+	public AuditStringDictionary getDictionary() {
+		return dictionary;
+	}
+
+	private String value(String name, String value) {
+		if (value == null)
+			return null;
+		if (maxValueLength > 0 && value.length() > maxValueLength)
+			value = value.substring(0, maxValueLength);
+		return internedValues.contains(name) ? dictionary.intern(value) : value;
+	}
+
+	private static Set<String> lowerCase(Collection<String> names) {
+		Set<String> lowerCased = new HashSet<>();
+		if (names != null)
+			names.forEach(name -> lowerCased.add(name.trim().toLowerCase(Locale.ROOT)));
+		return lowerCased;
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes the latency and size of each routed response per Zuul route:
+ * <code>audit.route.upstream.latency</code>, the time the backend took,
+ * <code>audit.route.gateway.latency</code>, the time from capture to the last
+ * byte sent, and <code>audit.route.response.bytes</code>. All three keep a
+ * percentile histogram, so <code>/actuator/metrics</code> and the registries
+ * that aggregate buckets can tell which route is slow. The route tag is the
+ * Zuul route id, a bounded set, and <code>~unrouted</code> for requests no
+ * route matched. The meters of a route are built and registered on its
+ * first response, later ones only record.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class AuditLatencyRecorder {
+
+	public static final String UNROUTED = "~unrouted";
+
+	private final MeterRegistry meterRegistry;
+	private final Map<String, RouteMeters> routeMeters = new ConcurrentHashMap<>();
+
+	@Autowired
+	public AuditLatencyRecorder(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * @param route  Zuul route id or <code>null</code>
+	 * @param record completed with its latencies and response bytes
+	 */
+	public void record(String route, AuditTrail record) {
+		RouteMeters meters = routeMeters.computeIfAbsent(route == null ? UNROUTED : route, RouteMeters::new);
+		if (record.getUpstreamLatencyMillis() != null)
+			meters.upstreamLatency.record(record.getUpstreamLatencyMillis(), TimeUnit.MILLISECONDS);
+		if (record.getGatewayLatencyMillis() != null)
+			meters.gatewayLatency.record(record.getGatewayLatencyMillis(), TimeUnit.MILLISECONDS);
+		if (record.getResponseBytes() != null)
+			meters.responseBytes.record(record.getResponseBytes());
+	}
+
+	/**
+	 * The three meters of one route, registered once.
+	 */
+	private final class RouteMeters {
+		private final Timer upstreamLatency;
+		private final Timer gatewayLatency;
+		private final DistributionSummary responseBytes;
+
+		private RouteMeters(String route) {
+			upstreamLatency = timer("audit.route.upstream.latency", route);
+			gatewayLatency = timer("audit.route.gateway.latency", route);
+			responseBytes = DistributionSummary.builder("audit.route.response.bytes").baseUnit("bytes")
+					.tag("route", route).publishPercentileHistogram().register(meterRegistry);
+		}
+
+		private Timer timer(String name, String route) {
+			return Timer.builder(name).tag("route", route).publishPercentileHistogram().register(meterRegistry);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.service.AuditTrailWriter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Decides which requests end up in the audit trail. Writes and responses
+ * outside 2xx are always kept, successful reads are kept at the effective
+ * read rate. The rate starts at <code>audit.readSampleRate</code>; once a
+ * second it is halved while the writer queue or its batch latency is above
+ * its threshold and raised again by a tenth of the configured rate while both
+ * are below, never going under <code>audit.samplingMinRate</code>. The
+ * effective rate is published as <code>audit.sampling.rate</code> and every
+ * decision is counted in <code>audit.sampling.decisions</code>, tagged with
+ * the decision and its reason, so sampled counts can be scaled back up.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class AuditSamplingPolicy {
+
+	private static final long ADJUST_INTERVAL_NANOS = 1_000_000_000L;
+
+	private final AuditTrailWriter auditTrailWriter;
+	private final double readSampleRate;
+	private final double minRate;
+	private final double queueThreshold;
+	private final long latencyThresholdMillis;
+	private final AtomicLong nextAdjust = new AtomicLong(System.nanoTime() + ADJUST_INTERVAL_NANOS);
+	private volatile double effectiveRate;
+	private final Counter keptWrites;
+	private final Counter keptErrors;
+	private final Counter keptSampled;
+	private final Counter droppedSampled;
+
+	@Autowired
+	public AuditSamplingPolicy(AuditTrailWriter auditTrailWriter, AuditConfigurationProperties auditProperties,
+			MeterRegistry meterRegistry) {
+		this.auditTrailWriter = auditTrailWriter;
+		this.readSampleRate = Math.max(0, Math.min(1, auditProperties.getReadSampleRate()));
+		this.minRate = Math.max(0, Math.min(readSampleRate, auditProperties.getSamplingMinRate()));
+		this.queueThreshold = auditProperties.getSamplingQueueThreshold();
+		this.latencyThresholdMillis = auditProperties.getSamplingLatencyThresholdMillis();
+		this.effectiveRate = readSampleRate;
+		meterRegistry.gauge("audit.sampling.rate", this, AuditSamplingPolicy::getEffectiveRate);
+		this.keptWrites = decisionCounter(meterRegistry, "kept", "write");
+		this.keptErrors = decisionCounter(meterRegistry, "kept", "error");
+		this.keptSampled = decisionCounter(meterRegistry, "kept", "sampled");
+		this.droppedSampled = decisionCounter(meterRegistry, "dropped", "sampled");
+	}
+
+	/**
+	 * @param requestMethod
+	 * @param responseCode  final status of the response
+	 * @param failed        <code>true</code> when routing raised an error
+	 * @return <code>true</code> when the request is to be audited
+	 */
+	public boolean sample(String requestMethod, int responseCode, boolean failed) {
+		if (!isRead(requestMethod)) {
+			keptWrites.increment();
+			return true;
+		}
+		if (failed || responseCode < 200 || responseCode >= 300) {
+			keptErrors.increment();
+			return true;
+		}
+		adjust();
+		double rate = effectiveRate;
+		if (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate) {
+			keptSampled.increment();
+			return true;
+		}
+		droppedSampled.increment();
+		return false;
+	}
+
+	/**
+	 * @return the share of successful reads audited right now
+	 */
+	public double getEffectiveRate() {
+		return effectiveRate;
+	}
+
+	/**
+	 * Recomputes the effective rate once per interval, the caller that wins the
+	 * interval does it and the others go on with the current rate.
+	 */
+	private void adjust() {
+		adjust(System.nanoTime());
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()} of the caller
+	 */
+	void adjust(long now) {
+		long due = nextAdjust.get();
+		if (now - due < 0 || !nextAdjust.compareAndSet(due, now + ADJUST_INTERVAL_NANOS))
+			return;
+		boolean overloaded = auditTrailWriter.getQueueDepth() > queueThreshold * auditTrailWriter.getQueueCapacity()
+				|| auditTrailWriter.getBatchLatencyMillis() > latencyThresholdMillis;
+		double rate = effectiveRate;
+		effectiveRate = overloaded ? Math.max(minRate, rate / 2)
+				: Math.min(readSampleRate, rate + readSampleRate / 10);
+	}
+
+	private static boolean isRead(String requestMethod) {
+		return "GET".equalsIgnoreCase(requestMethod) || "HEAD".equalsIgnoreCase(requestMethod)
+				|| "OPTIONS".equalsIgnoreCase(requestMethod);
+	}
+
+	private static Counter decisionCounter(MeterRegistry meterRegistry, String decision, String reason) {
+		return Counter.builder("audit.sampling.decisions").tag("decision", decision).tag("reason", reason)
+				.register(meterRegistry);
+	}
+}
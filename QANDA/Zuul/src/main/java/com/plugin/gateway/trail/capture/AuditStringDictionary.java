@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded interning dictionary shared by all requests. Repeated header names
+ * and values resolve to one instance, so queued and cached records do not
+ * each hold their own copy. Once full the dictionary stops growing and hands
+ * new strings back as they are.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditStringDictionary {
+
+	private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+	private final int capacity;
+
+	/**
+	 * @param capacity the number of distinct strings kept
+	 */
+	public AuditStringDictionary(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param value
+	 * @return the shared instance equal to the value, or the value itself when
+	 *         it is new and the dictionary is full
+	 */
+	public String intern(String value) {
+		if (value == null)
+			return null;
+		String interned = entries.get(value);
+		if (interned != null)
+			return interned;
+		if (entries.size() >= capacity)
+			return value;
+		interned = entries.putIfAbsent(value, value);
+		return interned == null ? value : interned;
+	}
+
+	/**
+	 * @return the number of strings in the dictionary
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
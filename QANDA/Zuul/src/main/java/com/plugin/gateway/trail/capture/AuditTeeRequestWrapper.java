@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Lets the request body stream through to the backend untouched while keeping
+ * a copy of its first <code>maxBytes</code>. The copy grows with what was
+ * read, so a small body costs a small buffer and a large upload never costs
+ * more than the prefix. Reading through {@link #getReader()} goes through the
+ * same copy.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTeeRequestWrapper extends HttpServletRequestWrapper {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int maxBytes;
+	private byte[] captured = new byte[0];
+	private int capturedLength;
+	private long bodyBytes;
+	private ServletInputStream teeStream;
+	private BufferedReader reader;
+
+	/**
+	 * @param request
+	 * @param maxBytes body bytes to keep
+	 */
+	public AuditTeeRequestWrapper(HttpServletRequest request, int maxBytes) {
+		super(request);
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		if (teeStream == null)
+			teeStream = new TeeInputStream(super.getInputStream());
+		return teeStream;
+	}
+
+	@Override
+	public BufferedReader getReader() throws IOException {
+		if (reader == null)
+			reader = new BufferedReader(new InputStreamReader(getInputStream(), charset()));
+		return reader;
+	}
+
+	/**
+	 * @return the kept prefix of the body read so far decoded with the request
+	 *         charset, <code>null</code> when nothing was read
+	 */
+	public String getCapturedBody() {
+		return capturedLength == 0 ? null : new String(captured, 0, capturedLength, charset());
+	}
+
+	/**
+	 * @return the number of body bytes read so far, kept or not
+	 */
+	public long getBodyBytes() {
+		return bodyBytes;
+	}
+
+	/**
+	 * @return <code>true</code> when more was read than kept
+	 */
+	public boolean isTruncated() {
+		return bodyBytes > capturedLength;
+	}
+
+	private Charset charset() {
+		String encoding = getCharacterEncoding();
+		try {
+			return encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+		} catch (IllegalArgumentException e) {
+			return StandardCharsets.UTF_8;
+		}
+	}
+
+	private void capture(int value) {
+		bodyBytes++;
+		if (capturedLength == maxBytes)
+			return;
+		ensure(1);
+		captured[capturedLength++] = (byte) value;
+	}
+
+	private void capture(byte[] buffer, int offset, int length) {
+		bodyBytes += length;
+		int kept = Math.min(length, maxBytes - capturedLength);
+		if (kept <= 0)
+			return;
+		ensure(kept);
+		System.arraycopy(buffer, offset, captured, capturedLength, kept);
+		capturedLength += kept;
+	}
+
+	/**
+	 * Grows the copy to the content length when it is known, by doubling
+	 * otherwise, never past <code>maxBytes</code>.
+	 */
+	private void ensure(int extra) {
+		if (capturedLength + extra <= captured.length)
+			return;
+		int contentLength = getContentLength();
+		int capacity = Math.max(captured.length * 2,
+				Math.max(capturedLength + extra, contentLength > 0 ? contentLength : INITIAL_CAPACITY));
+		captured = Arrays.copyOf(captured, Math.min(maxBytes, capacity));
+	}
+
+	private final class TeeInputStream extends ServletInputStream {
+		private final ServletInputStream in;
+
+		TeeInputStream(ServletInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = in.read();
+			if (value >= 0)
+				capture(value);
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = in.read(buffer, offset, length);
+			if (read > 0)
+				capture(buffer, offset, read);
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return in.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			in.setReadListener(readListener);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compressed copy of a closed {@link AuditSegment}, stored as
+ * <code>.segz</code>. The segment bytes are cut into fixed blocks that are
+ * compressed one by one and a trailer lists where every block starts, so a
+ * record is read by inflating only the blocks it spans and the offsets kept
+ * by the indexes stay valid after compression.
+ *
+ * <pre>
+ * [block]* [long blockStart]* [int blockCount][int blockBytes][long length][int magic]
+ * </pre>
+ *
+ * @author Sankha
+ *
+ */
+final class AuditCompressedSegment implements AuditSegment.SegmentReader {
+
+	static final String FILE_EXTENTION = ".segz";
+	static final int BLOCK_BYTES = 64 * 1024;
+	private static final int MAGIC = 0x4154535A;
+	private static final int TRAILER_BYTES = 20;
+
+	private final FileChannel channel;
+	private final long[] blockStarts;
+	private final long blockTableStart;
+	private final int blockBytes;
+	private final long length;
+	private final Inflater inflater = new Inflater();
+	private byte[] block;
+	private int blockNumber = -1;
+
+	private AuditCompressedSegment(FileChannel channel, long[] blockStarts, long blockTableStart, int blockBytes,
+			long length) {
+		this.channel = channel;
+		this.blockStarts = blockStarts;
+		this.blockTableStart = blockTableStart;
+		this.blockBytes = blockBytes;
+		this.length = length;
+	}
+
+	/**
+	 * Compresses the first <code>length</code> bytes of a segment.
+	 *
+	 * @param source the segment
+	 * @param length the committed length of the segment
+	 * @param target the compressed file, replaced when it exists
+	 * @throws IOException
+	 */
+	static void compress(Path source, long length, Path target) throws IOException {
+		int blockCount = (int) ((length + BLOCK_BYTES - 1) / BLOCK_BYTES);
+		long[] blockStarts = new long[blockCount];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer raw = ByteBuffer.allocate(BLOCK_BYTES);
+			byte[] compressed = new byte[BLOCK_BYTES + BLOCK_BYTES / 8 + 64];
+			long position = 0;
+			for (int number = 0; number < blockCount; number++) {
+				raw.clear();
+				raw.limit((int) Math.min(BLOCK_BYTES, length - (long) number * BLOCK_BYTES));
+				AuditSegment.readFully(input, raw, (long) number * BLOCK_BYTES);
+				deflater.reset();
+				deflater.setInput(raw.array(), 0, raw.limit());
+				deflater.finish();
+				blockStarts[number] = position;
+				while (!deflater.finished()) {
+					int produced = deflater.deflate(compressed);
+					position += write(output, ByteBuffer.wrap(compressed, 0, produced), position);
+				}
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(blockCount * 8 + TRAILER_BYTES);
+			for (long blockStart : blockStarts)
+				trailer.putLong(blockStart);
+			trailer.putInt(blockCount).putInt(BLOCK_BYTES).putLong(length).putInt(MAGIC).flip();
+			write(output, trailer, position);
+			output.force(true);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return the compressed segment, open until {@link #close()}
+	 * @throws IOException
+	 */
+	static AuditCompressedSegment open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+			AuditSegment.readFully(channel, trailer, channel.size() - TRAILER_BYTES);
+			trailer.flip();
+			int blockCount = trailer.getInt();
+			int blockBytes = trailer.getInt();
+			long length = trailer.getLong();
+			if (trailer.getInt() != MAGIC)
+				throw new IOException(path + " is not a compressed audit segment");
+			long blockTableStart = channel.size() - TRAILER_BYTES - blockCount * 8L;
+			ByteBuffer table = ByteBuffer.allocate(blockCount * 8);
+			AuditSegment.readFully(channel, table, blockTableStart);
+			table.flip();
+			long[] blockStarts = new long[blockCount];
+			for (int number = 0; number < blockCount; number++)
+				blockStarts[number] = table.getLong();
+			return new AuditCompressedSegment(channel, blockStarts, blockTableStart, blockBytes, length);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param path
+	 * @return the length of the segment before compression
+	 * @throws IOException
+	 */
+	static long lengthOf(Path path) throws IOException {
+		try (AuditCompressedSegment compressed = open(path)) {
+			return compressed.length;
+		}
+	}
+
+	@Override
+	public void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			long at = position + buffer.position();
+			if (at >= length)
+				throw new EOFException();
+			load((int) (at / blockBytes));
+			int from = (int) (at % blockBytes);
+			int count = Math.min(buffer.remaining(), blockLength(blockNumber) - from);
+			buffer.put(block, from, count);
+		}
+	}
+
+	/**
+	 * @return a stream over the uncompressed segment bytes, closing it closes
+	 *         the file
+	 */
+	InputStream inputStream() {
+		return new InputStream() {
+			private long position;
+
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] target, int offset, int count) throws IOException {
+				if (position >= length)
+					return -1;
+				load((int) (position / blockBytes));
+				int from = (int) (position % blockBytes);
+				int read = Math.min(count, blockLength(blockNumber) - from);
+				System.arraycopy(block, from, target, offset, read);
+				position += read;
+				return read;
+			}
+
+			@Override
+			public long skip(long count) {
+				long skipped = Math.max(0, Math.min(count, length - position));
+				position += skipped;
+				return skipped;
+			}
+
+			@Override
+			public void close() throws IOException {
+				AuditCompressedSegment.this.close();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+
+	private void load(int number) throws IOException {
+		if (number == blockNumber)
+			return;
+		long start = blockStarts[number];
+		long end = number + 1 < blockStarts.length ? blockStarts[number + 1] : blockTableStart;
+		ByteBuffer compressed = ByteBuffer.allocate((int) (end - start));
+		AuditSegment.readFully(channel, compressed, start);
+		if (block == null)
+			block = new byte[blockBytes];
+		inflater.reset();
+		inflater.setInput(compressed.array());
+		try {
+			int inflated = 0;
+			int expected = blockLength(number);
+			while (inflated < expected && !inflater.finished()) {
+				int count = inflater.inflate(block, inflated, expected - inflated);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated compressed audit block " + number);
+				inflated += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed audit block " + number + ": " + e.getMessage(), e);
+		}
+		blockNumber = number;
+	}
+
+	private int blockLength(int number) {
+		return (int) Math.min(blockBytes, length - (long) number * blockBytes);
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = buffer.remaining();
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+		return written;
+	}
+}
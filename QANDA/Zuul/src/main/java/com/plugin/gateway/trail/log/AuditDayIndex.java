@@ -0,0 +1,265 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * In memory secondary indexes over the latest version of every record of one
+ * day. Each record gets a dense local id; the indexed fields keep one
+ * {@link BitSet} of local ids per lower cased value so a search intersects
+ * posting lists instead of decoding records, and request timestamps are kept
+ * sorted in an {@link AuditTimeIndex} for range lookups.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditDayIndex {
+
+	/**
+	 * Fields that can be searched through the index, by lower cased name.
+	 */
+	public static final Map<String, Function<AuditTrail, String>> INDEXED_FIELDS;
+	static {
+		Map<String, Function<AuditTrail, String>> fields = new LinkedHashMap<>();
+		fields.put("servicename", AuditTrail::getServiceName);
+		fields.put("action", AuditTrail::getAction);
+		fields.put("status", AuditTrail::getStatus);
+		fields.put("requestmethod", AuditTrail::getRequestMethod);
+		fields.put("performedby", AuditTrail::getPerformedBy);
+		INDEXED_FIELDS = Collections.unmodifiableMap(fields);
+	}
+	private static final String[] FIELD_NAMES = INDEXED_FIELDS.keySet().toArray(new String[0]);
+
+	private final String day;
+	private final Map<UUID, Integer> localIds = new HashMap<>();
+	private final List<AuditSegment> segmentTable = new ArrayList<>();
+	private final List<Map<String, BitSet>> postings = new ArrayList<>();
+	private int size;
+	private int[] segmentOf = new int[1024];
+	private long[] offsetOf = new long[1024];
+	private String[][] valuesOf = new String[FIELD_NAMES.length][1024];
+	// heap held by the strings of valuesOf
+	private long valueBytes;
+	private final AuditTimeIndex timeIndex = new AuditTimeIndex(1024);
+
+	AuditDayIndex(String day) {
+		this.day = day;
+		for (int field = 0; field < FIELD_NAMES.length; field++)
+			postings.add(new HashMap<>());
+	}
+
+	/**
+	 * Indexes a record, a newer version of a known record replaces the postings
+	 * of the older one.
+	 */
+	synchronized void add(AuditSegment segment, long offset, AuditTrail record) {
+		Integer known = localIds.get(record.getId());
+		int localId;
+		if (known == null) {
+			localId = size++;
+			grow(size);
+			localIds.put(record.getId(), localId);
+			long timestamp = record.getRequestTimestamp() == null ? 0 : record.getRequestTimestamp();
+			timeIndex.add(timestamp, localId);
+		} else {
+			localId = known;
+		}
+		int segmentNumber = segmentTable.indexOf(segment);
+		if (segmentNumber < 0) {
+			segmentNumber = segmentTable.size();
+			segmentTable.add(segment);
+		}
+		segmentOf[localId] = segmentNumber;
+		offsetOf[localId] = offset;
+		for (int field = 0; field < FIELD_NAMES.length; field++) {
+			String value = normalize(INDEXED_FIELDS.get(FIELD_NAMES[field]).apply(record));
+			String previous = valuesOf[field][localId];
+			if (value != null && value.equals(previous))
+				continue;
+			if (previous != null) {
+				postings.get(field).get(previous).clear(localId);
+				valueBytes -= stringBytes(previous);
+			}
+			valuesOf[field][localId] = value;
+			if (value != null) {
+				postings.get(field).computeIfAbsent(value, key -> new BitSet()).set(localId);
+				valueBytes += stringBytes(value);
+			}
+		}
+	}
+
+	/**
+	 * @param terms lower cased field name to the value it must equal ignoring
+	 *              case, see {@link #INDEXED_FIELDS}
+	 * @param ids   the record ids or <code>null</code> for any record
+	 * @param from  the lowest request timestamp or <code>null</code>
+	 * @param to    the highest request timestamp or <code>null</code>
+	 * @return the local ids of the matching records
+	 */
+	public synchronized BitSet match(Map<String, String> terms, Collection<UUID> ids, Long from, Long to) {
+		BitSet result = new BitSet(size);
+		if (ids != null) {
+			for (UUID id : ids) {
+				Integer localId = localIds.get(id);
+				if (localId != null)
+					result.set(localId);
+			}
+		} else {
+			result.set(0, size);
+		}
+		for (Map.Entry<String, String> term : terms.entrySet()) {
+			int field = Arrays.asList(FIELD_NAMES).indexOf(term.getKey());
+			if (field < 0)
+				continue;
+			BitSet posting = postings.get(field).get(normalize(term.getValue()));
+			if (posting == null)
+				return new BitSet();
+			result.and(posting);
+		}
+		if (from != null || to != null)
+			retainTimeRange(result, from == null ? 0 : from, to == null ? Long.MAX_VALUE : to);
+		return result;
+	}
+
+	/**
+	 * Reads the indexed version of the given records, one file open per
+	 * segment.
+	 *
+	 * @param matches local ids from {@link #match(Map, Collection, Long, Long)}
+	 * @return the records in write order
+	 * @throws IOException
+	 */
+	public List<AuditTrail> read(BitSet matches) throws IOException {
+		Map<AuditSegment, List<Long>> offsetsBySegment = new LinkedHashMap<>();
+		synchronized (this) {
+			for (int localId = matches.nextSetBit(0); localId >= 0; localId = matches.nextSetBit(localId + 1))
+				offsetsBySegment.computeIfAbsent(segmentTable.get(segmentOf[localId]), key -> new ArrayList<>())
+						.add(offsetOf[localId]);
+		}
+		List<AuditTrail> records = new ArrayList<>(matches.cardinality());
+		for (Map.Entry<AuditSegment, List<Long>> entry : offsetsBySegment.entrySet())
+			records.addAll(entry.getKey().read(entry.getValue()));
+		return records;
+	}
+
+	/**
+	 * Splits matches by the segment holding their indexed version, so each
+	 * part can be read with a single pass over one segment.
+	 *
+	 * @param matches local ids from {@link #match(Map, Collection, Long, Long)}
+	 * @return one non empty set of local ids per segment
+	 */
+	public synchronized List<BitSet> splitBySegment(BitSet matches) {
+		List<BitSet> parts = new ArrayList<>();
+		for (int segment = 0; segment < segmentTable.size(); segment++)
+			parts.add(new BitSet());
+		for (int localId = matches.nextSetBit(0); localId >= 0; localId = matches.nextSetBit(localId + 1))
+			parts.get(segmentOf[localId]).set(localId);
+		parts.removeIf(BitSet::isEmpty);
+		return parts;
+	}
+
+	/**
+	 * Keeps the matches whose latest version is at one of the given offsets, a
+	 * record only an older version of which was found drops out.
+	 *
+	 * @param matches changed in place
+	 * @param offsets ascending offsets per segment, see
+	 *                {@link AuditSegmentLog#findTokens(String, long[])}
+	 */
+	public synchronized void retainOffsets(BitSet matches, Map<AuditSegment, long[]> offsets) {
+		for (int localId = matches.nextSetBit(0); localId >= 0; localId = matches.nextSetBit(localId + 1)) {
+			long[] segmentOffsets = offsets.get(segmentTable.get(segmentOf[localId]));
+			if (segmentOffsets == null || Arrays.binarySearch(segmentOffsets, offsetOf[localId]) < 0)
+				matches.clear(localId);
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the local id of the record or -1 when the day does not hold it
+	 */
+	public synchronized int localId(UUID id) {
+		Integer localId = localIds.get(id);
+		return localId == null ? -1 : localId;
+	}
+
+	/**
+	 * @return the day in <code>yyyyMMdd</code>
+	 */
+	public String getDay() {
+		return day;
+	}
+
+	/**
+	 * @return the number of distinct records of the day
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return a rough count of the heap bytes the index holds, what the day
+	 *         index cache is sized by
+	 */
+	public synchronized long estimatedBytes() {
+		long bytes = valueBytes;
+		// the local id map entries with their UUID and Integer
+		bytes += size * 88L;
+		// segmentOf, offsetOf, valuesOf and the time index
+		bytes += segmentOf.length * (4L + 8L + 4L * FIELD_NAMES.length) + timeIndex.capacity() * 12L;
+		for (Map<String, BitSet> fieldPostings : postings) {
+			for (Map.Entry<String, BitSet> posting : fieldPostings.entrySet())
+				bytes += 80 + stringBytes(posting.getKey()) + posting.getValue().size() / 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Clears the matches requested before <code>from</code> or after
+	 * <code>to</code> in place, so a query allocates no range of its own.
+	 */
+	private void retainTimeRange(BitSet result, long from, long to) {
+		if (result.isEmpty())
+			return;
+		int start = timeIndex.lowerBound(from);
+		for (int position = 0; position < start; position++)
+			result.clear(timeIndex.localIdAt(position));
+		for (int position = timeIndex.upperBound(to); position < timeIndex.size(); position++)
+			result.clear(timeIndex.localIdAt(position));
+	}
+
+	private void grow(int required) {
+		if (required <= segmentOf.length)
+			return;
+		int capacity = Math.max(required, segmentOf.length * 2);
+		segmentOf = Arrays.copyOf(segmentOf, capacity);
+		offsetOf = Arrays.copyOf(offsetOf, capacity);
+		for (int field = 0; field < FIELD_NAMES.length; field++)
+			valuesOf[field] = Arrays.copyOf(valuesOf[field], capacity);
+	}
+
+	private static long stringBytes(String value) {
+		return 40 + 2L * value.length();
+	}
+
+	private static String normalize(String value) {
+		return value == null ? null : value.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import com.plugin.gateway.enums.AuditDurability;
+
+/**
+ * Settings of an {@link AuditSegmentLog}, named so call sites do not read as
+ * a row of numbers. Every setter returns the options to chain them, the
+ * defaults are a 64 MB segment, {@link AuditDurability#NONE}, no body index,
+ * no bound on the cached day indexes and a writable log.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditLogOptions {
+
+	private long segmentMaxBytes = 64L * 1024 * 1024;
+	private AuditDurability durability = AuditDurability.NONE;
+	private long forceIntervalMillis;
+	private int bodyIndexMaxTokens;
+	private long dayIndexMaxBytes;
+	private boolean readOnly;
+
+	/**
+	 * @return the size after which the active segment is rolled
+	 */
+	public long getSegmentMaxBytes() {
+		return segmentMaxBytes;
+	}
+
+	/**
+	 * @param segmentMaxBytes the size after which the active segment is rolled,
+	 *                        at most 2 GB
+	 * @return these options
+	 */
+	public AuditLogOptions segmentMaxBytes(long segmentMaxBytes) {
+		this.segmentMaxBytes = segmentMaxBytes;
+		return this;
+	}
+
+	/**
+	 * @return when appends are forced to disk
+	 */
+	public AuditDurability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @param durability when appends are forced to disk
+	 * @return these options
+	 */
+	public AuditLogOptions durability(AuditDurability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	/**
+	 * @return the time between two forces in the
+	 *         {@link AuditDurability#INTERVAL} mode
+	 */
+	public long getForceIntervalMillis() {
+		return forceIntervalMillis;
+	}
+
+	/**
+	 * @param forceIntervalMillis the time between two forces in the
+	 *                            {@link AuditDurability#INTERVAL} mode
+	 * @return these options
+	 */
+	public AuditLogOptions forceIntervalMillis(long forceIntervalMillis) {
+		this.forceIntervalMillis = forceIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * @return the distinct body tokens indexed per record, 0 when the body
+	 *         index is off
+	 */
+	public int getBodyIndexMaxTokens() {
+		return bodyIndexMaxTokens;
+	}
+
+	/**
+	 * @param bodyIndexMaxTokens the distinct body tokens indexed per record, 0
+	 *                           turns the body index off
+	 * @return these options
+	 */
+	public AuditLogOptions bodyIndexMaxTokens(int bodyIndexMaxTokens) {
+		this.bodyIndexMaxTokens = bodyIndexMaxTokens;
+		return this;
+	}
+
+	/**
+	 * @return the estimated heap the cached day indexes may hold, 0 for no
+	 *         bound
+	 */
+	public long getDayIndexMaxBytes() {
+		return dayIndexMaxBytes;
+	}
+
+	/**
+	 * @param dayIndexMaxBytes the estimated heap the cached day indexes may
+	 *                         hold, 0 keeps every day built
+	 * @return these options
+	 */
+	public AuditLogOptions dayIndexMaxBytes(long dayIndexMaxBytes) {
+		this.dayIndexMaxBytes = dayIndexMaxBytes;
+		return this;
+	}
+
+	/**
+	 * @return <code>true</code> when the log refuses appends and retention and
+	 *         writes nothing to its directory
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * @param readOnly refuse appends and retention and write nothing to the
+	 *                 directory
+	 * @return these options
+	 */
+	public AuditLogOptions readOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+		return this;
+	}
+
+	/**
+	 * @return a copy to change without touching these options
+	 */
+	public AuditLogOptions copy() {
+		return new AuditLogOptions().segmentMaxBytes(segmentMaxBytes).durability(durability)
+				.forceIntervalMillis(forceIntervalMillis).bodyIndexMaxTokens(bodyIndexMaxTokens)
+				.dayIndexMaxBytes(dayIndexMaxBytes).readOnly(readOnly);
+	}
+}
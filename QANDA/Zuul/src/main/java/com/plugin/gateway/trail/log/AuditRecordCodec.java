@@ -0,0 +1,430 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Turns a single {@link AuditTrail} into the payload of one segment record and
+ * back. Payloads start with the codec version:
+ * <ul>
+ * <li>version 0 is plain Java serialization, written by older releases and
+ * recognised by its stream magic</li>
+ * <li>version 1 is a field by field binary layout: a presence bitmask, the id
+ * as two longs, strings as length prefixed UTF-8, numbers as zigzag varints
+ * and header names as codes of {@link #HEADER_NAMES} when they are known</li>
+ * <li>version 2 appends the upstream latency, gateway latency and response
+ * bytes after the request body, each when its presence bit is set</li>
+ * <li>version 3 appends the request body bytes received, and flags a request
+ * body cut at the capture limit with a presence bit alone</li>
+ * </ul>
+ * New fields or header names go into a new version, the old ones keep
+ * decoding.
+ *
+ * @author Sankha
+ *
+ */
+public final class AuditRecordCodec {
+
+	static final byte VERSION = 3;
+
+	/**
+	 * Header names of version 1, a name is stored as its position plus one and
+	 * unknown names as 0 followed by the name. Only ever append.
+	 */
+	static final String[] HEADER_NAMES = { "host", "user-agent", "accept", "accept-encoding", "accept-language",
+			"authorization", "content-type", "content-length", "connection", "cookie", "origin", "referer",
+			"cache-control", "pragma", "x-forwarded-for", "x-forwarded-host", "x-forwarded-proto", "x-forwarded-port",
+			"x-forwarded-prefix", "x-request-id", "x-username", "x-action", "postman-token", "sec-fetch-site",
+			"sec-fetch-mode", "sec-fetch-dest", "upgrade-insecure-requests", "if-none-match", "if-modified-since" };
+	private static final Map<String, Integer> HEADER_CODES;
+	static {
+		Map<String, Integer> codes = new HashMap<>();
+		for (int i = 0; i < HEADER_NAMES.length; i++)
+			codes.put(HEADER_NAMES[i], i + 1);
+		HEADER_CODES = Collections.unmodifiableMap(codes);
+	}
+
+	private static final byte SERIALIZED_MAGIC_FIRST = (byte) 0xAC;
+	private static final byte SERIALIZED_MAGIC_SECOND = (byte) 0xED;
+
+	private static final int HAS_ID = 1;
+	private static final int HAS_REQUEST_TIMESTAMP = 1 << 1;
+	private static final int HAS_UPDATE_TIMESTAMP = 1 << 2;
+	private static final int HAS_REQUEST_HEADERS = 1 << 3;
+	private static final int HAS_REQUEST_PARAMS = 1 << 4;
+	private static final int HAS_REQUEST_BODY = 1 << 5;
+	private static final int HAS_UPSTREAM_LATENCY = 1 << 6;
+	private static final int HAS_GATEWAY_LATENCY = 1 << 7;
+	private static final int HAS_RESPONSE_BYTES = 1 << 8;
+	private static final int HAS_REQUEST_BODY_BYTES = 1 << 9;
+	// a flag without a value
+	private static final int REQUEST_BODY_TRUNCATED = 1 << 10;
+
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_STRING = 1;
+	private static final int VALUE_STRING_ARRAY = 2;
+	private static final int VALUE_SERIALIZED = 3;
+
+	private AuditRecordCodec() {
+	}
+
+	public static byte[] encode(AuditTrail record) throws IOException {
+		Output output = new Output(256);
+		output.writeByte(VERSION);
+		int present = 0;
+		if (record.getId() != null)
+			present |= HAS_ID;
+		if (record.getRequestTimestamp() != null)
+			present |= HAS_REQUEST_TIMESTAMP;
+		if (record.getUpdateTimestamp() != null)
+			present |= HAS_UPDATE_TIMESTAMP;
+		if (record.getRequestHeaders() != null)
+			present |= HAS_REQUEST_HEADERS;
+		if (record.getRequestParams() != null)
+			present |= HAS_REQUEST_PARAMS;
+		if (record.getRequestBody() != null)
+			present |= HAS_REQUEST_BODY;
+		if (record.getUpstreamLatencyMillis() != null)
+			present |= HAS_UPSTREAM_LATENCY;
+		if (record.getGatewayLatencyMillis() != null)
+			present |= HAS_GATEWAY_LATENCY;
+		if (record.getResponseBytes() != null)
+			present |= HAS_RESPONSE_BYTES;
+		if (record.getRequestBodyBytes() != null)
+			present |= HAS_REQUEST_BODY_BYTES;
+		if (record.isRequestBodyTruncated())
+			present |= REQUEST_BODY_TRUNCATED;
+		output.writeVarInt(present);
+		if (record.getId() != null) {
+			output.writeLong(record.getId().getMostSignificantBits());
+			output.writeLong(record.getId().getLeastSignificantBits());
+		}
+		output.writeString(record.getServiceName());
+		output.writeString(record.getAction());
+		output.writeString(record.getRequestMethod());
+		output.writeString(record.getRequestUrl());
+		output.writeString(record.getPerformedBy());
+		output.writeString(record.getUpdatedBy());
+		output.writeString(record.getContextPath());
+		output.writeString(record.getQueryParams());
+		output.writeString(record.getStatus());
+		output.writeVarLong(zigzag(record.getResponseCode()));
+		if (record.getRequestTimestamp() != null)
+			output.writeVarLong(zigzag(record.getRequestTimestamp()));
+		if (record.getUpdateTimestamp() != null)
+			output.writeVarLong(zigzag(record.getUpdateTimestamp()));
+		if (record.getRequestHeaders() != null) {
+			output.writeVarInt(record.getRequestHeaders().size());
+			for (Map.Entry<String, Object> header : record.getRequestHeaders().entrySet()) {
+				Integer code = header.getKey() == null ? null : HEADER_CODES.get(header.getKey());
+				if (code != null) {
+					output.writeVarInt(code);
+				} else {
+					output.writeVarInt(0);
+					output.writeString(header.getKey());
+				}
+				writeValue(output, header.getValue());
+			}
+		}
+		if (record.getRequestParams() != null) {
+			output.writeVarInt(record.getRequestParams().size());
+			for (Map.Entry<String, String[]> param : record.getRequestParams().entrySet()) {
+				output.writeString(param.getKey());
+				writeValue(output, param.getValue());
+			}
+		}
+		if (record.getRequestBody() != null)
+			writeValue(output, record.getRequestBody());
+		if (record.getUpstreamLatencyMillis() != null)
+			output.writeVarLong(zigzag(record.getUpstreamLatencyMillis()));
+		if (record.getGatewayLatencyMillis() != null)
+			output.writeVarLong(zigzag(record.getGatewayLatencyMillis()));
+		if (record.getResponseBytes() != null)
+			output.writeVarLong(zigzag(record.getResponseBytes()));
+		if (record.getRequestBodyBytes() != null)
+			output.writeVarLong(zigzag(record.getRequestBodyBytes()));
+		return output.toByteArray();
+	}
+
+	/**
+	 * @param first byte of a payload
+	 * @return <code>false</code> when no payload of a known version starts
+	 *         with it
+	 */
+	static boolean mayStart(byte first) {
+		return first == SERIALIZED_MAGIC_FIRST || (first >= 1 && first <= VERSION);
+	}
+
+	public static AuditTrail decode(byte[] payload) throws IOException {
+		if (payload.length >= 2 && payload[0] == SERIALIZED_MAGIC_FIRST && payload[1] == SERIALIZED_MAGIC_SECOND)
+			return (AuditTrail) deserialize(payload);
+		Input input = new Input(payload);
+		int version = input.readByte();
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported audit record version " + version);
+		AuditTrail record = new AuditTrail();
+		int present = input.readVarInt();
+		if ((present & HAS_ID) != 0)
+			record.setId(new UUID(input.readLong(), input.readLong()));
+		record.setServiceName(input.readString());
+		record.setAction(input.readString());
+		record.setRequestMethod(input.readString());
+		record.setRequestUrl(input.readString());
+		record.setPerformedBy(input.readString());
+		record.setUpdatedBy(input.readString());
+		record.setContextPath(input.readString());
+		record.setQueryParams(input.readString());
+		record.setStatus(input.readString());
+		record.setResponseCode((int) unzigzag(input.readVarLong()));
+		if ((present & HAS_REQUEST_TIMESTAMP) != 0)
+			record.setRequestTimestamp(unzigzag(input.readVarLong()));
+		if ((present & HAS_UPDATE_TIMESTAMP) != 0)
+			record.setUpdateTimestamp(unzigzag(input.readVarLong()));
+		if ((present & HAS_REQUEST_HEADERS) != 0) {
+			int count = input.readVarInt();
+			Map<String, Object> headers = new HashMap<>(Math.max(16, count * 2));
+			for (int i = 0; i < count; i++) {
+				int code = input.readVarInt();
+				String name;
+				if (code == 0)
+					name = input.readString();
+				else if (code <= HEADER_NAMES.length)
+					name = HEADER_NAMES[code - 1];
+				else
+					throw new IOException("Unknown audit header code " + code);
+				headers.put(name, readValue(input));
+			}
+			record.setRequestHeaders(headers);
+		}
+		if ((present & HAS_REQUEST_PARAMS) != 0) {
+			int count = input.readVarInt();
+			Map<String, String[]> params = new LinkedHashMap<>(Math.max(16, count * 2));
+			for (int i = 0; i < count; i++) {
+				String name = input.readString();
+				Object value = readValue(input);
+				params.put(name, value instanceof String[] ? (String[]) value
+						: value == null ? null : new String[] { value.toString() });
+			}
+			record.setRequestParams(params);
+		}
+		if ((present & HAS_REQUEST_BODY) != 0)
+			record.setRequestBody(readValue(input));
+		// version 1 never sets the bits below, version 2 only those of the timings
+		if ((present & HAS_UPSTREAM_LATENCY) != 0)
+			record.setUpstreamLatencyMillis(unzigzag(input.readVarLong()));
+		if ((present & HAS_GATEWAY_LATENCY) != 0)
+			record.setGatewayLatencyMillis(unzigzag(input.readVarLong()));
+		if ((present & HAS_RESPONSE_BYTES) != 0)
+			record.setResponseBytes(unzigzag(input.readVarLong()));
+		if ((present & HAS_REQUEST_BODY_BYTES) != 0)
+			record.setRequestBodyBytes(unzigzag(input.readVarLong()));
+		record.setRequestBodyTruncated((present & REQUEST_BODY_TRUNCATED) != 0);
+		return record;
+	}
+
+	/**
+	 * The version 0 encoding, kept for comparison.
+	 */
+	static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(512);
+		ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+		objectStream.writeObject(value);
+		objectStream.close();
+		return byteStream.toByteArray();
+	}
+
+	private static Object deserialize(byte[] payload) throws IOException {
+		ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(payload));
+		try {
+			return objectStream.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown audit record type " + e.getMessage(), e);
+		} finally {
+			objectStream.close();
+		}
+	}
+
+	private static void writeValue(Output output, Object value) throws IOException {
+		if (value == null) {
+			output.writeVarInt(VALUE_NULL);
+		} else if (value instanceof String) {
+			output.writeVarInt(VALUE_STRING);
+			output.writeString((String) value);
+		} else if (value instanceof String[]) {
+			String[] values = (String[]) value;
+			output.writeVarInt(VALUE_STRING_ARRAY);
+			output.writeVarInt(values.length);
+			for (String element : values)
+				output.writeString(element);
+		} else {
+			byte[] serialized = serialize(value);
+			output.writeVarInt(VALUE_SERIALIZED);
+			output.writeVarInt(serialized.length);
+			output.writeBytes(serialized, 0, serialized.length);
+		}
+	}
+
+	private static Object readValue(Input input) throws IOException {
+		int type = input.readVarInt();
+		switch (type) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_STRING:
+			return input.readString();
+		case VALUE_STRING_ARRAY:
+			String[] values = new String[input.readVarInt()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = input.readString();
+			return values;
+		case VALUE_SERIALIZED:
+			return deserialize(input.readBytes(input.readVarInt()));
+		default:
+			throw new IOException("Unknown audit value type " + type);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static final class Output {
+		private byte[] buffer;
+		private int size;
+
+		Output(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		void writeByte(int value) {
+			ensure(1);
+			buffer[size++] = (byte) value;
+		}
+
+		void writeBytes(byte[] bytes, int offset, int length) {
+			ensure(length);
+			System.arraycopy(bytes, offset, buffer, size, length);
+			size += length;
+		}
+
+		void writeLong(long value) {
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				buffer[size++] = (byte) (value >>> shift);
+		}
+
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		/**
+		 * Writes the UTF-8 length plus one, 0 stands for <code>null</code>.
+		 */
+		void writeString(String value) {
+			if (value == null) {
+				writeVarInt(0);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length + 1);
+			writeBytes(bytes, 0, bytes.length);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+
+		private void ensure(int extra) {
+			if (size + extra > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+		}
+	}
+
+	private static final class Input {
+		private final byte[] buffer;
+		private int position;
+
+		Input(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		int readByte() throws IOException {
+			require(1);
+			return buffer[position++];
+		}
+
+		byte[] readBytes(int length) throws IOException {
+			require(length);
+			byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+			position += length;
+			return bytes;
+		}
+
+		long readLong() throws IOException {
+			require(8);
+			long value = 0;
+			for (int i = 0; i < 8; i++)
+				value = value << 8 | (buffer[position++] & 0xFF);
+			return value;
+		}
+
+		int readVarInt() throws IOException {
+			return (int) readVarLong();
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				require(1);
+				byte current = buffer[position++];
+				value |= (long) (current & 0x7F) << shift;
+				if (current >= 0)
+					return value;
+			}
+			throw new IOException("Malformed audit varint");
+		}
+
+		String readString() throws IOException {
+			int length = readVarInt();
+			if (length == 0)
+				return null;
+			require(length - 1);
+			String value = new String(buffer, position, length - 1, StandardCharsets.UTF_8);
+			position += length - 1;
+			return value;
+		}
+
+		private void require(int length) throws IOException {
+			if (length < 0 || position + length > buffer.length)
+				throw new EOFException("Truncated audit record");
+		}
+	}
+}
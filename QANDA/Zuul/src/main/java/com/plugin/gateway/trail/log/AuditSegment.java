@@ -0,0 +1,466 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * One file of the audit log. A segment holds the records of a single day and is
+ * named <code>trailList_&lt;yyyyMMdd&gt;_&lt;sequence&gt;.seg</code>. After an
+ * 8 byte header every record is stored as
+ * <code>[int length][int crc32][payload]</code>, so a torn tail left by a crash
+ * is detected and ignored on read. Once its day is over a segment may be
+ * replaced by an {@link AuditCompressedSegment}; it keeps its name and offsets
+ * and the reads below switch to the compressed file transparently.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSegment implements Comparable<AuditSegment> {
+
+	static final String FILE_PREFIX = "trailList";
+	static final String FILE_EXTENTION = ".seg";
+	static final int MAGIC = 0x41545347;
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_BYTES = 8;
+	static final int RECORD_HEADER_BYTES = 8;
+
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile(FILE_PREFIX + "_(\\d{8})_(\\d{5})(?:"
+			+ Pattern.quote(FILE_EXTENTION) + "|" + Pattern.quote(AuditCompressedSegment.FILE_EXTENTION) + ")");
+	private static final Logger segmentLogger = LoggerFactory.getLogger(AuditSegment.class);
+
+	private final Path path;
+	private final String date;
+	private final int sequence;
+	private final Path compressedPath;
+	private volatile long compressedLength = -1;
+
+	AuditSegment(Path path, String date, int sequence) {
+		this.path = path;
+		this.date = date;
+		this.sequence = sequence;
+		String fileName = path.getFileName().toString();
+		this.compressedPath = path.resolveSibling(fileName.substring(0, fileName.length() - FILE_EXTENTION.length())
+				+ AuditCompressedSegment.FILE_EXTENTION);
+	}
+
+	static AuditSegment of(Path directory, String date, int sequence) {
+		return new AuditSegment(directory.resolve(String.format("%s_%s_%05d%s", FILE_PREFIX, date, sequence,
+				FILE_EXTENTION)), date, sequence);
+	}
+
+	/**
+	 * @param path
+	 * @return the segment stored at the path or <code>null</code> when the file
+	 *         is not a segment, a compressed file maps to the segment it was
+	 *         made from
+	 */
+	static AuditSegment parse(Path path) {
+		Matcher matcher = FILE_NAME_PATTERN.matcher(path.getFileName().toString());
+		if (!matcher.matches())
+			return null;
+		return of(path.getParent(), matcher.group(1), Integer.parseInt(matcher.group(2)));
+	}
+
+	/**
+	 * @return <code>true</code> when only the compressed copy of the segment is
+	 *         left
+	 */
+	public boolean isCompressed() {
+		return !Files.exists(path) && Files.exists(compressedPath);
+	}
+
+	/**
+	 * @return the length of the segment, before compression for a compressed
+	 *         one, or 0 when the segment is gone
+	 * @throws IOException
+	 */
+	public long length() throws IOException {
+		try {
+			return Files.size(path);
+		} catch (NoSuchFileException e) {
+			if (!Files.exists(compressedPath))
+				return 0;
+			if (compressedLength < 0)
+				compressedLength = AuditCompressedSegment.lengthOf(compressedPath);
+			return compressedLength;
+		}
+	}
+
+	/**
+	 * Visits every complete record in file order.
+	 *
+	 * @param visitor
+	 * @return the offset right after the last record handed to the visitor
+	 * @throws IOException
+	 */
+	public long forEach(RecordVisitor visitor) throws IOException {
+		return forEach(length(), visitor);
+	}
+
+	/**
+	 * Visits every complete record that ends before <code>limit</code>, which
+	 * lets readers ignore a record the writer is still appending.
+	 *
+	 * @param limit
+	 * @param visitor
+	 * @return the offset right after the last record handed to the visitor
+	 * @throws IOException
+	 */
+	public long forEach(long limit, RecordVisitor visitor) throws IOException {
+		return forEach(HEADER_BYTES, limit, visitor);
+	}
+
+	/**
+	 * Visits the complete records between the record starting at
+	 * <code>from</code> and <code>limit</code>.
+	 *
+	 * @param from    offset of the first record to visit
+	 * @param limit
+	 * @param visitor
+	 * @return the offset right after the last record handed to the visitor
+	 * @throws IOException
+	 */
+	public long forEach(long from, long limit, RecordVisitor visitor) throws IOException {
+		if (limit < HEADER_BYTES)
+			return HEADER_BYTES;
+		// end of the last complete record, what a truncation may keep
+		long offset = Math.max(from, HEADER_BYTES);
+		try (DataInputStream input = new DataInputStream(
+				new BufferedInputStream(openInput(), 64 * 1024))) {
+			readHeader(input);
+			long skip = offset - HEADER_BYTES;
+			while (skip > 0) {
+				long skipped = input.skip(skip);
+				if (skipped <= 0)
+					throw new EOFException();
+				skip -= skipped;
+			}
+			CRC32 crc = new CRC32();
+			while (offset + RECORD_HEADER_BYTES <= limit) {
+				int length = input.readInt();
+				int checksum = input.readInt();
+				if (length <= 0 || offset + RECORD_HEADER_BYTES + length > limit) {
+					segmentLogger.warn("Ignoring torn audit record at {}:{}", path, offset);
+					break;
+				}
+				byte[] payload = new byte[length];
+				input.readFully(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					segmentLogger.warn("Ignoring corrupt audit record at {}:{}", path, offset);
+					break;
+				}
+				AuditTrail record = AuditRecordCodec.decode(payload);
+				long recordOffset = offset;
+				offset += RECORD_HEADER_BYTES + length;
+				if (!visitor.visit(recordOffset, record))
+					break;
+			}
+			return offset;
+		} catch (EOFException e) {
+			segmentLogger.warn("Audit segment {} ended unexpectedly at {}", path, offset);
+			return offset;
+		}
+	}
+
+	/**
+	 * Visits every record that passes its length and checksum checks, also
+	 * those after a damaged one: past damage the scan moves on byte by byte to
+	 * the next offset holding an intact record. Only for segments written
+	 * before a crash, a live scan stops at the first damage instead.
+	 *
+	 * @param visitor
+	 * @return the number of bytes skipped as damaged
+	 * @throws IOException
+	 */
+	long forEachIntact(RecordVisitor visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			long skipped = 0;
+			int offset = HEADER_BYTES;
+			while (offset + RECORD_HEADER_BYTES <= buffer.limit()) {
+				AuditTrail record = intactRecord(buffer, offset, crc);
+				if (record == null) {
+					int next = nextIntactRecord(buffer, offset + 1, crc);
+					int resume = next < 0 ? buffer.limit() : next;
+					skipped += resume - offset;
+					offset = resume;
+					continue;
+				}
+				int recordOffset = offset;
+				offset += RECORD_HEADER_BYTES + buffer.getInt(offset);
+				if (!visitor.visit(recordOffset, record))
+					return skipped;
+			}
+			// a record header cut short at the very end
+			return skipped + Math.max(0, buffer.limit() - offset);
+		}
+	}
+
+	/**
+	 * @param from  offset to look from
+	 * @param limit end of the bytes to look at
+	 * @return the offset of the first intact record at or after
+	 *         <code>from</code>, -1 when none ends before <code>limit</code>
+	 * @throws IOException
+	 */
+	long nextIntactRecord(long from, long limit) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(limit, channel.size()));
+			return from >= buffer.limit() ? -1 : nextIntactRecord(buffer, (int) from, new CRC32());
+		}
+	}
+
+	private static int nextIntactRecord(ByteBuffer buffer, int from, CRC32 crc) {
+		for (int offset = Math.max(from, HEADER_BYTES); offset + RECORD_HEADER_BYTES <= buffer.limit(); offset++) {
+			if (intactRecord(buffer, offset, crc) != null)
+				return offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the record at the offset or <code>null</code> when its length,
+	 *         checksum or payload is damaged
+	 */
+	private static AuditTrail intactRecord(ByteBuffer buffer, int offset, CRC32 crc) {
+		int length = buffer.getInt(offset);
+		if (length <= 0 || length > buffer.limit() - offset - RECORD_HEADER_BYTES
+				|| !AuditRecordCodec.mayStart(buffer.get(offset + RECORD_HEADER_BYTES)))
+			return null;
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(offset + RECORD_HEADER_BYTES).limit(offset + RECORD_HEADER_BYTES + length);
+		crc.reset();
+		crc.update(payload);
+		if ((int) crc.getValue() != buffer.getInt(offset + 4))
+			return null;
+		byte[] bytes = new byte[length];
+		payload.position(offset + RECORD_HEADER_BYTES);
+		payload.get(bytes);
+		try {
+			return AuditRecordCodec.decode(bytes);
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the single record starting at the given offset.
+	 *
+	 * @param offset
+	 * @return the record
+	 * @throws IOException
+	 */
+	public AuditTrail read(long offset) throws IOException {
+		return read(Collections.singletonList(offset)).get(0);
+	}
+
+	/**
+	 * Reads the records starting at the given offsets through one channel.
+	 *
+	 * @param offsets
+	 * @return the records in the order of the offsets
+	 * @throws IOException
+	 */
+	public List<AuditTrail> read(List<Long> offsets) throws IOException {
+		List<AuditTrail> records = new ArrayList<>(offsets.size());
+		try (SegmentReader reader = openReader()) {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+			CRC32 crc = new CRC32();
+			for (long offset : offsets) {
+				header.clear();
+				reader.readFully(header, offset);
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				reader.readFully(payload, offset + RECORD_HEADER_BYTES);
+				crc.reset();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != checksum)
+					throw new IOException("Corrupt audit record at " + path + ":" + offset);
+				records.add(AuditRecordCodec.decode(payload.array()));
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @param file
+	 * @return a path next to the file that no other writer of it uses, ending
+	 *         in <code>.tmp</code> so opening the log deletes it when a crash
+	 *         left it behind
+	 */
+	static Path temporaryPathOf(Path file) {
+		return file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+	}
+
+	static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+		while (header.hasRemaining())
+			channel.write(header, HEADER_BYTES - header.remaining());
+	}
+
+	/**
+	 * Writes one record at the given position.
+	 *
+	 * @return the number of bytes written
+	 */
+	static int writeRecord(FileChannel channel, long position, byte[] payload, CRC32 crc) throws IOException {
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+		buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+		return buffer.limit();
+	}
+
+	private InputStream openInput() throws IOException {
+		try {
+			return Files.newInputStream(path);
+		} catch (NoSuchFileException e) {
+			// compressed since the caller looked the segment up
+			return AuditCompressedSegment.open(compressedPath).inputStream();
+		}
+	}
+
+	private SegmentReader openReader() throws IOException {
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			return new SegmentReader() {
+				@Override
+				public void readFully(ByteBuffer buffer, long position) throws IOException {
+					AuditSegment.readFully(channel, buffer, position);
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		} catch (NoSuchFileException e) {
+			return AuditCompressedSegment.open(compressedPath);
+		}
+	}
+
+	private void readHeader(DataInputStream input) throws IOException {
+		if (input.readInt() != MAGIC)
+			throw new IOException(path + " is not an audit segment");
+		int version = input.readInt();
+		if (version > FORMAT_VERSION)
+			throw new IOException("Unsupported audit segment version " + version + " in " + path);
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0)
+				throw new EOFException();
+		}
+	}
+
+	/**
+	 * @return the path
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the path of the compressed copy of the segment
+	 */
+	public Path getCompressedPath() {
+		return compressedPath;
+	}
+
+	/**
+	 * @return the day of the segment in <code>yyyyMMdd</code>
+	 */
+	public String getDate() {
+		return date;
+	}
+
+	/**
+	 * @return the sequence
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	@Override
+	public int compareTo(AuditSegment other) {
+		int byDate = date.compareTo(other.date);
+		return byDate != 0 ? byDate : Integer.compare(sequence, other.sequence);
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof AuditSegment))
+			return false;
+		return path.equals(((AuditSegment) obj).path);
+	}
+
+	@Override
+	public String toString() {
+		return path.getFileName().toString();
+	}
+
+	/**
+	 * Callback for {@link AuditSegment#forEach(RecordVisitor)}.
+	 */
+	public interface RecordVisitor {
+		/**
+		 * @param offset of the record inside the segment
+		 * @param record
+		 * @return <code>false</code> to stop the iteration
+		 */
+		boolean visit(long offset, AuditTrail record);
+	}
+
+	/**
+	 * Positional reads over the plain or the compressed segment file.
+	 */
+	interface SegmentReader extends Closeable {
+		/**
+		 * Fills the remaining space of the buffer with the segment bytes starting
+		 * at <code>position</code>.
+		 */
+		void readFully(ByteBuffer buffer, long position) throws IOException;
+	}
+}
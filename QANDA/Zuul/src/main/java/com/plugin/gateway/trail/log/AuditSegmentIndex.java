@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sorted id to offset index of one {@link AuditSegment}, stored next to the
+ * segment as <code>.idx</code> and memory mapped for lookups. The file starts
+ * with the segment length it covers so an index left behind by a crash or a
+ * later append is detected and rebuilt. Each entry is
+ * <code>[long mostSigBits][long leastSigBits][long offset]</code> and only the
+ * latest offset of an id is kept. Offsets are positions in the uncompressed
+ * segment, so compressing a segment keeps its index valid.
+ *
+ * @author Sankha
+ *
+ */
+final class AuditSegmentIndex {
+
+	static final String FILE_EXTENTION = ".idx";
+	private static final int HEADER_BYTES = 8;
+	private static final int ENTRY_BYTES = 24;
+
+	private final ByteBuffer buffer;
+	private final int entries;
+
+	private AuditSegmentIndex(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.entries = (buffer.capacity() - HEADER_BYTES) / ENTRY_BYTES;
+	}
+
+	static Path pathOf(AuditSegment segment) {
+		return segment.getPath().resolveSibling(segment.getPath().getFileName() + FILE_EXTENTION);
+	}
+
+	/**
+	 * Maps the index of the segment, it is rebuilt from the segment first when
+	 * it is missing or does not cover the whole segment.
+	 *
+	 * @param segment
+	 * @return the index
+	 * @throws IOException
+	 */
+	static AuditSegmentIndex open(AuditSegment segment) throws IOException {
+		Path indexPath = pathOf(segment);
+		if (!isCurrent(segment))
+			rebuild(segment);
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new AuditSegmentIndex(mapped);
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @return <code>true</code> when the index file covers the segment as it is
+	 *         on disk
+	 * @throws IOException
+	 */
+	static boolean isCurrent(AuditSegment segment) throws IOException {
+		Path indexPath = pathOf(segment);
+		if (!Files.exists(indexPath) || Files.size(indexPath) < HEADER_BYTES)
+			return false;
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header) >= 0)
+				;
+			header.flip();
+			return header.getLong() == segment.length();
+		}
+	}
+
+	/**
+	 * Scans the segment and writes its index.
+	 *
+	 * @param segment
+	 * @throws IOException
+	 */
+	static void rebuild(AuditSegment segment) throws IOException {
+		long length = segment.length();
+		write(segment, scan(segment, length), length);
+	}
+
+	/**
+	 * Scans the segment into an index held in memory, leaving the index file
+	 * as it is.
+	 *
+	 * @param segment
+	 * @return the index
+	 * @throws IOException
+	 */
+	static AuditSegmentIndex build(AuditSegment segment) throws IOException {
+		long length = segment.length();
+		return of(scan(segment, length), length);
+	}
+
+	/**
+	 * @param offsets       latest offset of every id in the segment
+	 * @param segmentLength the segment length the offsets cover
+	 * @return an index held in memory
+	 */
+	static AuditSegmentIndex of(Map<UUID, Long> offsets, long segmentLength) {
+		return new AuditSegmentIndex(content(offsets, segmentLength));
+	}
+
+	private static Map<UUID, Long> scan(AuditSegment segment, long length) throws IOException {
+		Map<UUID, Long> offsets = new HashMap<>();
+		segment.forEach(length, (offset, record) -> {
+			offsets.put(record.getId(), offset);
+			return true;
+		});
+		return offsets;
+	}
+
+	/**
+	 * Writes the index through a temporary file of its own so readers that
+	 * still map the previous index keep a consistent view.
+	 *
+	 * @param segment
+	 * @param offsets       latest offset of every id in the segment
+	 * @param segmentLength the segment length the offsets cover
+	 * @throws IOException
+	 */
+	static void write(AuditSegment segment, Map<UUID, Long> offsets, long segmentLength) throws IOException {
+		ByteBuffer content = content(offsets, segmentLength);
+		Path indexPath = pathOf(segment);
+		Path temporaryPath = AuditSegment.temporaryPathOf(indexPath);
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				while (content.hasRemaining())
+					channel.write(content);
+			}
+			Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporaryPath);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the bytes of the index file, positioned at its start
+	 */
+	private static ByteBuffer content(Map<UUID, Long> offsets, long segmentLength) {
+		List<Map.Entry<UUID, Long>> sorted = new ArrayList<>(offsets.entrySet());
+		sorted.sort((left, right) -> compare(left.getKey().getMostSignificantBits(),
+				left.getKey().getLeastSignificantBits(), right.getKey().getMostSignificantBits(),
+				right.getKey().getLeastSignificantBits()));
+		ByteBuffer content = ByteBuffer.allocate(HEADER_BYTES + sorted.size() * ENTRY_BYTES);
+		content.putLong(segmentLength);
+		for (Map.Entry<UUID, Long> entry : sorted) {
+			content.putLong(entry.getKey().getMostSignificantBits());
+			content.putLong(entry.getKey().getLeastSignificantBits());
+			content.putLong(entry.getValue());
+		}
+		content.flip();
+		return content;
+	}
+
+	/**
+	 * @param id
+	 * @return the offset of the latest version of the record or -1
+	 */
+	long find(UUID id) {
+		long most = id.getMostSignificantBits();
+		long least = id.getLeastSignificantBits();
+		int low = 0;
+		int high = entries - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int position = HEADER_BYTES + middle * ENTRY_BYTES;
+			int order = compare(buffer.getLong(position), buffer.getLong(position + 8), most, least);
+			if (order < 0)
+				low = middle + 1;
+			else if (order > 0)
+				high = middle - 1;
+			else
+				return buffer.getLong(position + 16);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return all entries of the index
+	 */
+	Map<UUID, Long> entries() {
+		Map<UUID, Long> offsets = new HashMap<>(entries * 2);
+		for (int i = 0; i < entries; i++) {
+			int position = HEADER_BYTES + i * ENTRY_BYTES;
+			offsets.put(new UUID(buffer.getLong(position), buffer.getLong(position + 8)),
+					buffer.getLong(position + 16));
+		}
+		return offsets;
+	}
+
+	private static int compare(long leftMost, long leftLeast, long rightMost, long rightLeast) {
+		int order = Long.compare(leftMost, rightMost);
+		return order != 0 ? order : Long.compare(leftLeast, rightLeast);
+	}
+}
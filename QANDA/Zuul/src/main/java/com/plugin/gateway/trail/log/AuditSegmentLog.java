@@ -0,0 +1,1016 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.plugin.gateway.enums.AuditDurability;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Append-only audit log made of day {@link AuditSegment segments}. A save is a
+ * single append to the active segment of the day, which is rolled once it
+ * reaches the configured size or the day changes. An update appends a newer
+ * version of the record to the segments of the record's own day and the latest
+ * version wins on read. Closed days can be compacted, compressed and deleted
+ * by the retention methods without blocking writers for longer than a file
+ * swap. When appends reach the disk is set by the {@link AuditDurability}
+ * mode. With the body index on every segment also gets an
+ * {@link AuditTokenIndex} over the request bodies and query strings. The
+ * {@link AuditDayIndex day indexes} searches build are kept in a least
+ * recently used cache bounded by their estimated heap size, the day being
+ * written to is never evicted so repeated searches of the last few days are
+ * served from memory while older days are rebuilt from their segments on
+ * demand. A log opened read only leaves its folder as it finds it: a torn
+ * tail is skipped instead of cut off and offset indexes that do not cover
+ * their segment are built in memory instead of being written.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSegmentLog implements Closeable {
+
+	private static final Logger logLogger = LoggerFactory.getLogger(AuditSegmentLog.class);
+	private static final String TEMPORARY_EXTENTION = ".tmp";
+	private static final String CORRUPT_EXTENTION = ".corrupt";
+	private static final int COMPACTION_CHUNK_SIZE = 256;
+	// 9999-12-30, a day short of the end so no zone pushes it to 5 digits
+	private static final long MAX_EPOCH_SECOND = 253402128000L;
+
+	private final Path directory;
+	private final long maxSegmentBytes;
+	private final AuditDurability durability;
+	private final int bodyIndexMaxTokens;
+	private final long dayIndexMaxBytes;
+	private final boolean readOnly;
+	private final ScheduledExecutorService forceScheduler;
+	private final Object forceLock = new Object();
+	// number of appendAll calls written, guarded by this
+	private long appendedBatches;
+	// number of appendAll calls forced to disk, guarded by forceLock
+	private long forcedBatches;
+	private volatile List<AuditSegment> segments;
+	private final Map<AuditSegment, AuditSegmentIndex> indexes = new ConcurrentHashMap<>();
+	private final Map<AuditSegment, AuditTokenIndex> tokenIndexes = new ConcurrentHashMap<>();
+	// held while the token index of the segment is opened, one caller rebuilds a stale one
+	private final Map<AuditSegment, Object> tokenIndexLocks = new ConcurrentHashMap<>();
+	// access ordered, the least recently used day first
+	private final Map<String, AuditDayIndex> dayIndexes = Collections
+			.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true));
+	private SegmentWriter activeWriter;
+
+	/**
+	 * @param directory       holding the segments, created when missing
+	 * @param maxSegmentBytes size after which the active segment is rolled
+	 * @throws IOException
+	 */
+	public AuditSegmentLog(Path directory, long maxSegmentBytes) throws IOException {
+		this(directory, new AuditLogOptions().segmentMaxBytes(maxSegmentBytes));
+	}
+
+	/**
+	 * @param directory holding the segments, created when missing unless the
+	 *                  log is read only
+	 * @param options
+	 * @throws IOException
+	 */
+	public AuditSegmentLog(Path directory, AuditLogOptions options) throws IOException {
+		this.directory = directory;
+		// the in-memory token postings keep segment offsets as ints
+		this.maxSegmentBytes = Math.min(options.getSegmentMaxBytes(), Integer.MAX_VALUE);
+		this.durability = options.getDurability();
+		this.bodyIndexMaxTokens = options.getBodyIndexMaxTokens();
+		this.dayIndexMaxBytes = options.getDayIndexMaxBytes();
+		this.readOnly = options.isReadOnly();
+		if (!readOnly)
+			Files.createDirectories(directory);
+		try (Stream<Path> files = Files.list(directory)) {
+			segments = Collections.unmodifiableList(files.map(AuditSegment::parse).filter(segment -> segment != null)
+					.distinct().sorted().collect(Collectors.toList()));
+		}
+		if (readOnly) {
+			logLogger.info("Opened audit log {} read only with {} segments", directory, segments.size());
+			forceScheduler = null;
+			return;
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			// left behind by a compaction or compression that did not finish
+			for (Path leftover : files.filter(file -> file.getFileName().toString().endsWith(TEMPORARY_EXTENTION))
+					.collect(Collectors.toList()))
+				Files.deleteIfExists(leftover);
+		}
+		int rebuilt = 0;
+		for (AuditSegment segment : segments) {
+			if (!AuditSegmentIndex.isCurrent(segment)) {
+				recover(segment);
+				AuditSegmentIndex.rebuild(segment);
+				rebuilt++;
+			}
+		}
+		logLogger.info("Opened audit log {} with {} segments, rebuilt {} indexes", directory, segments.size(),
+				rebuilt);
+		if (durability == AuditDurability.INTERVAL) {
+			forceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "audit-log-force");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long interval = Math.max(1, options.getForceIntervalMillis());
+			forceScheduler.scheduleWithFixedDelay(() -> {
+				try {
+					force(Long.MAX_VALUE);
+				} catch (IOException e) {
+					logLogger.error(ExceptionUtils.getFullStackTrace(e));
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		} else {
+			forceScheduler = null;
+		}
+	}
+
+	/**
+	 * @param epochSecond clamped to the years 1970 to 9999 so the days keep
+	 *                    their 8 digits
+	 * @return the day in <code>yyyyMMdd</code> the timestamp belongs to
+	 */
+	public static String dayOf(Long epochSecond) {
+		LocalDate day = epochSecond == null ? LocalDate.now()
+				: Instant.ofEpochSecond(Math.max(0, Math.min(epochSecond, MAX_EPOCH_SECOND)))
+						.atZone(ZoneId.systemDefault()).toLocalDate();
+		return day.format(DateTimeFormatter.BASIC_ISO_DATE);
+	}
+
+	/**
+	 * Appends the record to the segments of its request day.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	public void append(AuditTrail record) throws IOException {
+		appendAll(Collections.singletonList(record));
+	}
+
+	/**
+	 * Appends the records in order, encoding and tokenizing happen before the
+	 * log is locked.
+	 * In the {@link AuditDurability#GROUP_COMMIT} mode the call returns once
+	 * the records are on disk.
+	 *
+	 * @param records
+	 * @throws IOException
+	 */
+	public void appendAll(List<AuditTrail> records) throws IOException {
+		checkWritable();
+		List<byte[]> payloads = new ArrayList<>(records.size());
+		List<long[]> tokens = new ArrayList<>(records.size());
+		for (AuditTrail record : records) {
+			payloads.add(AuditRecordCodec.encode(record));
+			tokens.add(bodyIndexMaxTokens > 0 ? AuditTokenizer.tokens(record, bodyIndexMaxTokens) : null);
+		}
+		long batch;
+		synchronized (this) {
+			// tails of older days taking late updates, open for the whole batch
+			Map<String, SegmentWriter> lateWriters = new HashMap<>();
+			try {
+				for (int i = 0; i < payloads.size(); i++)
+					append(records.get(i), payloads.get(i), tokens.get(i), lateWriters);
+			} finally {
+				closeAll(lateWriters.values());
+			}
+			batch = ++appendedBatches;
+		}
+		if (durability == AuditDurability.GROUP_COMMIT)
+			force(batch);
+	}
+
+	/**
+	 * Forces the active segment to disk unless the given batch already is.
+	 * Callers queue on the force lock while a force runs; the first one to get
+	 * it next forces everything appended so far, so the others find their
+	 * batch covered and return without a force of their own. Segments are
+	 * forced when they are closed, so only the active one is left.
+	 *
+	 * @param batch the appendAll call that has to be on disk
+	 */
+	private void force(long batch) throws IOException {
+		synchronized (forceLock) {
+			if (forcedBatches >= batch)
+				return;
+			long appended;
+			FileChannel channel;
+			synchronized (this) {
+				appended = appendedBatches;
+				channel = activeWriter == null ? null : activeWriter.channel;
+			}
+			if (forcedBatches >= appended)
+				return;
+			try {
+				if (channel != null)
+					// the file length is part of what fdatasync writes
+					channel.force(false);
+			} catch (ClosedChannelException e) {
+				// rolled meanwhile, closing forced it
+			}
+			forcedBatches = appended;
+		}
+	}
+
+	/**
+	 * @return the number of appendAll calls known to be on disk
+	 */
+	long getForcedBatches() {
+		synchronized (forceLock) {
+			return forcedBatches;
+		}
+	}
+
+	private void append(AuditTrail record, byte[] payload, long[] tokens, Map<String, SegmentWriter> lateWriters)
+			throws IOException {
+		String day = dayOf(record.getRequestTimestamp());
+		AuditDayIndex dayIndex = dayIndexes.get(day);
+		if (activeWriter != null && activeWriter.segment.getDate().compareTo(day) > 0) {
+			// late update of an older day, keep the active segment open
+			SegmentWriter writer = lateWriters.get(day);
+			if (writer == null || !writer.fits(payload.length)) {
+				lateWriters.remove(day);
+				if (writer != null)
+					writer.close();
+				writer = openTail(day, payload.length, false);
+				lateWriters.put(day, writer);
+			}
+			long offset = writer.append(record.getId(), payload, tokens);
+			if (dayIndex != null)
+				dayIndex.add(writer.segment, offset, record);
+			return;
+		}
+		if (activeWriter == null || !activeWriter.segment.getDate().equals(day) || !activeWriter.fits(payload.length)) {
+			if (activeWriter != null)
+				activeWriter.close();
+			activeWriter = null;
+			activeWriter = openTail(day, payload.length, bodyIndexMaxTokens > 0);
+		}
+		long offset = activeWriter.append(record.getId(), payload, tokens);
+		if (dayIndex != null)
+			dayIndex.add(activeWriter.segment, offset, record);
+	}
+
+	/**
+	 * @return all segments ordered by day and sequence
+	 */
+	public List<AuditSegment> segments() {
+		return segments;
+	}
+
+	/**
+	 * @param day in <code>yyyyMMdd</code>
+	 * @return the segments of the day ordered by sequence
+	 */
+	public List<AuditSegment> segments(String day) {
+		return segments.stream().filter(segment -> segment.getDate().equals(day)).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the days holding segments in ascending order
+	 */
+	public List<String> days() {
+		return segments.stream().map(AuditSegment::getDate).distinct().collect(Collectors.toList());
+	}
+
+	/**
+	 * Returns the secondary indexes of the day, building them from the day
+	 * segments on first use or after the cache evicted them. Once built they
+	 * follow every append to the day.
+	 *
+	 * @param day in <code>yyyyMMdd</code>
+	 * @return the index
+	 * @throws IOException
+	 */
+	public AuditDayIndex dayIndex(String day) throws IOException {
+		AuditDayIndex dayIndex = dayIndexes.get(day);
+		if (dayIndex != null)
+			return dayIndex;
+		AuditDayIndex building = new AuditDayIndex(day);
+		Map<AuditSegment, Long> scanned = new HashMap<>();
+		// scan without blocking writers, then catch up with what they appended meanwhile
+		for (AuditSegment segment : segments(day))
+			scanned.put(segment, segment.forEach(committedLength(segment), (offset, record) -> {
+				building.add(segment, offset, record);
+				return true;
+			}));
+		synchronized (this) {
+			dayIndex = dayIndexes.get(day);
+			if (dayIndex != null)
+				return dayIndex;
+			for (AuditSegment segment : segments(day)) {
+				Long from = scanned.get(segment);
+				segment.forEach(from == null ? AuditSegment.HEADER_BYTES : from, committedLength(segment),
+						(offset, record) -> {
+							building.add(segment, offset, record);
+							return true;
+						});
+			}
+			dayIndexes.put(day, building);
+			evictDayIndexes(day);
+		}
+		return building;
+	}
+
+	/**
+	 * Drops the least recently used day indexes until the cached ones fit
+	 * <code>dayIndexMaxBytes</code>. The day just built and the day of the
+	 * active segment stay even when they alone exceed it.
+	 */
+	private void evictDayIndexes(String built) {
+		if (dayIndexMaxBytes <= 0)
+			return;
+		String activeDay = activeWriter == null ? null : activeWriter.segment.getDate();
+		synchronized (dayIndexes) {
+			long cached = 0;
+			for (AuditDayIndex dayIndex : dayIndexes.values())
+				cached += dayIndex.estimatedBytes();
+			Iterator<Map.Entry<String, AuditDayIndex>> eldest = dayIndexes.entrySet().iterator();
+			while (cached > dayIndexMaxBytes && eldest.hasNext()) {
+				Map.Entry<String, AuditDayIndex> entry = eldest.next();
+				if (entry.getKey().equals(built) || entry.getKey().equals(activeDay))
+					continue;
+				cached -= entry.getValue().estimatedBytes();
+				eldest.remove();
+				logLogger.debug("Evicted the index of audit day {} from {}", entry.getKey(), directory);
+			}
+		}
+	}
+
+	/**
+	 * Reads the latest version of every record held by the given segments.
+	 *
+	 * @param segmentsToRead
+	 * @return the records in the order they were first written
+	 * @throws IOException
+	 */
+	public List<AuditTrail> read(List<AuditSegment> segmentsToRead) throws IOException {
+		Map<UUID, AuditTrail> latest = new LinkedHashMap<>();
+		for (AuditSegment segment : segmentsToRead) {
+			segment.forEach(committedLength(segment), (offset, record) -> {
+				latest.put(record.getId(), record);
+				return true;
+			});
+		}
+		return new ArrayList<>(latest.values());
+	}
+
+	/**
+	 * Looks the record up in the segment being written and then in the offset
+	 * indexes of the other segments, newest first. All versions of a record
+	 * live in the segments of its request day, so the first hit is the latest
+	 * version.
+	 *
+	 * @param id
+	 * @return the latest version of the record or <code>null</code>
+	 * @throws IOException
+	 */
+	public AuditTrail find(UUID id) throws IOException {
+		AuditSegment activeSegment = null;
+		synchronized (this) {
+			if (activeWriter != null) {
+				activeSegment = activeWriter.segment;
+				Long offset = activeWriter.offsets.get(id);
+				if (offset != null)
+					return activeSegment.read(offset);
+			}
+		}
+		List<AuditSegment> snapshot = segments;
+		for (int i = snapshot.size() - 1; i >= 0; i--) {
+			AuditSegment segment = snapshot.get(i);
+			if (segment.equals(activeSegment))
+				continue;
+			long offset = index(segment).find(id);
+			if (offset >= 0)
+				return segment.read(offset);
+		}
+		return null;
+	}
+
+	/**
+	 * Looks the record up like {@link #find(UUID)} without reading it.
+	 *
+	 * @param id
+	 * @return the day in <code>yyyyMMdd</code> holding the versions of the
+	 *         record or <code>null</code> when the log has none
+	 * @throws IOException
+	 */
+	public String findDay(UUID id) throws IOException {
+		AuditSegment activeSegment = null;
+		synchronized (this) {
+			if (activeWriter != null) {
+				activeSegment = activeWriter.segment;
+				if (activeWriter.offsets.containsKey(id))
+					return activeSegment.getDate();
+			}
+		}
+		List<AuditSegment> snapshot = segments;
+		for (int i = snapshot.size() - 1; i >= 0; i--) {
+			AuditSegment segment = snapshot.get(i);
+			if (!segment.equals(activeSegment) && index(segment).find(id) >= 0)
+				return segment.getDate();
+		}
+		return null;
+	}
+
+	/**
+	 * Looks the tokens up in the token indexes of the day segments.
+	 *
+	 * @param day    in <code>yyyyMMdd</code>
+	 * @param tokens hashes from {@link AuditTokenizer#hashes(String)}
+	 * @return per segment of the day the ascending offsets of the record
+	 *         versions holding every token or too many tokens to index them
+	 *         all, <code>null</code> when the body index is off or there is no
+	 *         token to look up
+	 * @throws IOException
+	 */
+	public Map<AuditSegment, long[]> findTokens(String day, long[] tokens) throws IOException {
+		if (bodyIndexMaxTokens <= 0 || tokens.length == 0)
+			return null;
+		Map<AuditSegment, long[]> found = new HashMap<>();
+		for (AuditSegment segment : segments(day)) {
+			// rebuilding a stale token index would write it, the caller scans instead
+			if (readOnly && !AuditTokenIndex.isCurrent(segment))
+				return null;
+			long[] offsets = postings(segment, tokens[0]);
+			for (int i = 1; i < tokens.length && offsets.length > 0; i++)
+				offsets = intersect(offsets, postings(segment, tokens[i]));
+			found.put(segment, union(offsets, postings(segment, AuditTokenizer.TRUNCATED)));
+		}
+		return found;
+	}
+
+	private long[] postings(AuditSegment segment, long token) throws IOException {
+		AuditTokenIndex.View active = null;
+		synchronized (this) {
+			// only the view is taken under the lock, writers go on while it is copied
+			if (activeWriter != null && activeWriter.segment.equals(segment) && activeWriter.postings != null)
+				active = activeWriter.postings.view(token);
+		}
+		if (active != null)
+			return active.offsets();
+		AuditTokenIndex index = tokenIndexes.get(segment);
+		if (index == null || !index.covers(segment.length())) {
+			synchronized (tokenIndexLock(segment)) {
+				index = tokenIndexes.get(segment);
+				if (index == null || !index.covers(segment.length())) {
+					index = AuditTokenIndex.open(segment, bodyIndexMaxTokens);
+					tokenIndexes.put(segment, index);
+				}
+			}
+		}
+		return index.find(token);
+	}
+
+	private Object tokenIndexLock(AuditSegment segment) {
+		return tokenIndexLocks.computeIfAbsent(segment, key -> new Object());
+	}
+
+	private static long[] intersect(long[] left, long[] right) {
+		long[] both = new long[Math.min(left.length, right.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < left.length && j < right.length;) {
+			if (left[i] < right[j])
+				i++;
+			else if (left[i] > right[j])
+				j++;
+			else {
+				both[count++] = left[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(both, count);
+	}
+
+	private static long[] union(long[] left, long[] right) {
+		if (right.length == 0)
+			return left;
+		long[] either = new long[left.length + right.length];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < left.length || j < right.length) {
+			if (j == right.length || (i < left.length && left[i] < right[j]))
+				either[count++] = left[i++];
+			else if (i == left.length || right[j] < left[i])
+				either[count++] = right[j++];
+			else {
+				either[count++] = left[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(either, count);
+	}
+
+	/**
+	 * Returns the offset index of a segment other than the active one. A
+	 * segment is only appended to, and its index only written, under the log
+	 * lock, so a missing or stale index is opened under it too: a reader
+	 * neither writes the index of a segment a late update holds open nor caches
+	 * one that update is about to replace. The active segment may have moved
+	 * to the segment meanwhile, its index is then built in memory from the
+	 * offsets of the writer and not cached.
+	 */
+	private AuditSegmentIndex index(AuditSegment segment) throws IOException {
+		AuditSegmentIndex index = indexes.get(segment);
+		if (index != null)
+			return index;
+		if (readOnly) {
+			// nothing appends, an index that falls behind is built in memory
+			index = AuditSegmentIndex.isCurrent(segment) ? AuditSegmentIndex.open(segment)
+					: AuditSegmentIndex.build(segment);
+			indexes.put(segment, index);
+			return index;
+		}
+		synchronized (this) {
+			if (activeWriter != null && activeWriter.segment.equals(segment))
+				return AuditSegmentIndex.of(activeWriter.offsets, activeWriter.position);
+			index = indexes.get(segment);
+			if (index == null) {
+				index = AuditSegmentIndex.open(segment);
+				indexes.put(segment, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @return the length of the segment that holds complete records only
+	 * @throws IOException
+	 */
+	public synchronized long committedLength(AuditSegment segment) throws IOException {
+		if (activeWriter != null && activeWriter.segment.equals(segment))
+			return activeWriter.position;
+		return segment.length();
+	}
+
+	/**
+	 * @return the bytes taken by the segments and their indexes
+	 * @throws IOException
+	 */
+	public long sizeOnDisk() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			long size = 0;
+			for (Path file : files.collect(Collectors.toList())) {
+				if (Files.isRegularFile(file))
+					size += Files.size(file);
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Rewrites the segments of a closed day with only the latest version of
+	 * every record once superseded versions make up at least
+	 * <code>minGarbageRatio</code> of the day. The new segments are written
+	 * aside and swapped in under the lock, the rewrite is dropped when a late
+	 * update changed the day meanwhile.
+	 *
+	 * @param day             in <code>yyyyMMdd</code>
+	 * @param minGarbageRatio share of superseded versions that triggers the
+	 *                        rewrite
+	 * @return <code>true</code> when the day was rewritten
+	 * @throws IOException
+	 */
+	public boolean compact(String day, double minGarbageRatio) throws IOException {
+		checkWritable();
+		List<AuditSegment> daySegments = segments(day);
+		if (daySegments.isEmpty() || !isClosed(day))
+			return false;
+		Map<AuditSegment, Long> lengths = new HashMap<>();
+		// (segment number << 48 | offset) of the latest version of every record
+		Map<UUID, Long> latest = new HashMap<>();
+		int versions = 0;
+		for (int number = 0; number < daySegments.size(); number++) {
+			AuditSegment segment = daySegments.get(number);
+			long segmentNumber = number;
+			int[] count = new int[1];
+			lengths.put(segment, segment.forEach(committedLength(segment), (offset, record) -> {
+				latest.put(record.getId(), segmentNumber << 48 | offset);
+				count[0]++;
+				return true;
+			}));
+			versions += count[0];
+		}
+		int superseded = versions - latest.size();
+		if (superseded == 0 || superseded < minGarbageRatio * versions)
+			return false;
+
+		List<List<Long>> survivors = new ArrayList<>();
+		for (int number = 0; number < daySegments.size(); number++)
+			survivors.add(new ArrayList<>());
+		for (long packed : latest.values())
+			survivors.get((int) (packed >>> 48)).add(packed & 0xFFFFFFFFFFFFL);
+		List<CompactedSegment> compacted = new ArrayList<>();
+		try {
+			CRC32 crc = new CRC32();
+			for (int number = 0; number < daySegments.size(); number++) {
+				List<Long> offsets = survivors.get(number);
+				Collections.sort(offsets);
+				for (int from = 0; from < offsets.size(); from += COMPACTION_CHUNK_SIZE) {
+					for (AuditTrail record : daySegments.get(number)
+							.read(offsets.subList(from, Math.min(offsets.size(), from + COMPACTION_CHUNK_SIZE)))) {
+						byte[] payload = AuditRecordCodec.encode(record);
+						CompactedSegment output = compacted.isEmpty() ? null : compacted.get(compacted.size() - 1);
+						if (output == null || !output.fits(payload.length)) {
+							if (output != null)
+								output.close();
+							output = new CompactedSegment(directory.resolve(String.format("%s_%s_compact_%05d%s%s",
+									AuditSegment.FILE_PREFIX, day, compacted.size() + 1, AuditSegment.FILE_EXTENTION,
+									TEMPORARY_EXTENTION)));
+							compacted.add(output);
+						}
+						output.append(record.getId(), payload, crc);
+					}
+				}
+			}
+			if (!compacted.isEmpty())
+				compacted.get(compacted.size() - 1).close();
+		} catch (IOException | RuntimeException e) {
+			discard(compacted);
+			throw e;
+		}
+
+		synchronized (this) {
+			boolean unchanged = isClosed(day) && segments(day).equals(daySegments);
+			for (AuditSegment segment : daySegments)
+				unchanged = unchanged && committedLength(segment) == lengths.get(segment);
+			if (!unchanged) {
+				discard(compacted);
+				logLogger.info("Skipped compaction of audit day {}, it changed meanwhile", day);
+				return false;
+			}
+			// the new segments sort after the old ones, so a crash before the old
+			// ones are deleted leaves duplicates of the latest versions only
+			int sequence = daySegments.get(daySegments.size() - 1).getSequence();
+			List<AuditSegment> updated = new ArrayList<>(segments);
+			updated.removeAll(daySegments);
+			for (CompactedSegment output : compacted) {
+				AuditSegment segment = AuditSegment.of(directory, day, ++sequence);
+				AuditSegmentIndex.write(segment, output.offsets, output.position);
+				Files.move(output.path, segment.getPath(), StandardCopyOption.ATOMIC_MOVE);
+				updated.add(segment);
+			}
+			Collections.sort(updated);
+			segments = Collections.unmodifiableList(updated);
+			dayIndexes.remove(day);
+			for (AuditSegment segment : daySegments)
+				deleteFiles(segment);
+		}
+		logLogger.info("Compacted audit day {} from {} to {} records in {} segments", day, versions, latest.size(),
+				compacted.size());
+		return true;
+	}
+
+	/**
+	 * Replaces the plain segments of a closed day with compressed copies.
+	 *
+	 * @param day in <code>yyyyMMdd</code>
+	 * @return the number of segments compressed
+	 * @throws IOException
+	 */
+	public int compress(String day) throws IOException {
+		checkWritable();
+		if (!isClosed(day))
+			return 0;
+		int compressed = 0;
+		for (AuditSegment segment : segments(day)) {
+			if (segment.isCompressed())
+				continue;
+			long length = committedLength(segment);
+			Path temporaryPath = segment.getCompressedPath()
+					.resolveSibling(segment.getCompressedPath().getFileName() + TEMPORARY_EXTENTION);
+			AuditCompressedSegment.compress(segment.getPath(), length, temporaryPath);
+			synchronized (this) {
+				if (!isClosed(day) || !segments.contains(segment) || committedLength(segment) != length) {
+					Files.deleteIfExists(temporaryPath);
+					continue;
+				}
+				Files.move(temporaryPath, segment.getCompressedPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				Files.delete(segment.getPath());
+			}
+			compressed++;
+		}
+		if (compressed > 0)
+			logLogger.info("Compressed {} segments of audit day {}", compressed, day);
+		return compressed;
+	}
+
+	/**
+	 * Deletes every segment of the day.
+	 *
+	 * @param day in <code>yyyyMMdd</code>
+	 * @throws IOException
+	 */
+	public synchronized void deleteDay(String day) throws IOException {
+		checkWritable();
+		if (activeWriter != null && activeWriter.segment.getDate().equals(day)) {
+			activeWriter.close();
+			activeWriter = null;
+		}
+		List<AuditSegment> daySegments = segments(day);
+		List<AuditSegment> updated = new ArrayList<>(segments);
+		updated.removeAll(daySegments);
+		segments = Collections.unmodifiableList(updated);
+		dayIndexes.remove(day);
+		for (AuditSegment segment : daySegments) {
+			deleteFiles(segment);
+			Files.deleteIfExists(
+					segment.getPath().resolveSibling(segment.getPath().getFileName() + CORRUPT_EXTENTION));
+		}
+		logLogger.info("Deleted {} segments of audit day {}", daySegments.size(), day);
+	}
+
+	private void checkWritable() {
+		if (readOnly)
+			throw new IllegalStateException("Audit log " + directory + " is open read only");
+	}
+
+	/**
+	 * A day is closed once it is over and the active segment moved past it,
+	 * only late updates still append to it.
+	 */
+	private synchronized boolean isClosed(String day) {
+		return day.compareTo(dayOf(null)) < 0 && (activeWriter == null || !activeWriter.segment.getDate().equals(day));
+	}
+
+	private void deleteFiles(AuditSegment segment) throws IOException {
+		indexes.remove(segment);
+		tokenIndexes.remove(segment);
+		tokenIndexLocks.remove(segment);
+		Files.deleteIfExists(segment.getPath());
+		Files.deleteIfExists(segment.getCompressedPath());
+		Files.deleteIfExists(AuditSegmentIndex.pathOf(segment));
+		Files.deleteIfExists(AuditTokenIndex.pathOf(segment));
+	}
+
+	/**
+	 * Repairs a segment a crash left without a current index before it is
+	 * indexed or appended to. Damage with no intact record after it is a torn
+	 * tail and is cut off, so the rebuilt index and the next append start right
+	 * after the last complete record. Damage followed by intact records is not
+	 * a tail: pages can reach the disk out of order when appends are not
+	 * forced. The segment is then copied aside with a <code>.corrupt</code>
+	 * suffix and rewritten with every intact record, before and after the
+	 * damage.
+	 */
+	private static void recover(AuditSegment segment) throws IOException {
+		if (segment.isCompressed())
+			return;
+		long size = Files.size(segment.getPath());
+		long end = segment.forEach(size, (offset, record) -> true);
+		if (end >= size)
+			return;
+		if (segment.nextIntactRecord(end + 1, size) < 0) {
+			try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.WRITE)) {
+				logLogger.warn("Truncating audit segment {} from {} to {} bytes", segment, size, end);
+				channel.truncate(end);
+			}
+			return;
+		}
+		Path corruptPath = segment.getPath().resolveSibling(segment.getPath().getFileName() + CORRUPT_EXTENTION);
+		Path temporaryPath = segment.getPath().resolveSibling(segment.getPath().getFileName() + TEMPORARY_EXTENTION);
+		long skipped;
+		try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			AuditSegment.writeHeader(channel);
+			CRC32 crc = new CRC32();
+			long[] position = { AuditSegment.HEADER_BYTES };
+			IOException[] failure = new IOException[1];
+			skipped = segment.forEachIntact((offset, record) -> {
+				try {
+					position[0] += AuditSegment.writeRecord(channel, position[0], AuditRecordCodec.encode(record), crc);
+					return true;
+				} catch (IOException e) {
+					failure[0] = e;
+					return false;
+				}
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			channel.force(true);
+		}
+		// the damaged file stays as it was, a crash before the swap leaves it in place
+		Files.copy(segment.getPath(), corruptPath, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temporaryPath, segment.getPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(AuditSegmentIndex.pathOf(segment));
+		Files.deleteIfExists(AuditTokenIndex.pathOf(segment));
+		logLogger.warn("Skipped {} damaged bytes inside audit segment {}, kept the original as {}", skipped, segment,
+				corruptPath.getFileName());
+	}
+
+	private static void discard(List<CompactedSegment> compacted) throws IOException {
+		for (CompactedSegment output : compacted) {
+			output.close();
+			Files.deleteIfExists(output.path);
+		}
+	}
+
+	/**
+	 * Closes every writer even when one fails, rethrowing the first failure.
+	 */
+	private static void closeAll(Collection<SegmentWriter> writers) throws IOException {
+		IOException failure = null;
+		for (SegmentWriter writer : writers) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (forceScheduler != null)
+			forceScheduler.shutdown();
+		if (activeWriter != null) {
+			activeWriter.close();
+			activeWriter = null;
+		}
+	}
+
+	/**
+	 * Opens the last segment of the day for appending or starts a new one when
+	 * there is none or it can not take the record.
+	 *
+	 * @param trackTokens keep the token postings of the segment in memory
+	 */
+	private SegmentWriter openTail(String day, int payloadLength, boolean trackTokens) throws IOException {
+		List<AuditSegment> daySegments = segments(day);
+		AuditSegment tail = daySegments.isEmpty() ? null : daySegments.get(daySegments.size() - 1);
+		if (tail != null && !tail.isCompressed()) {
+			SegmentWriter writer = new SegmentWriter(tail, false, trackTokens);
+			if (writer.fits(payloadLength))
+				return writer;
+			writer.close();
+		}
+		AuditSegment segment = AuditSegment.of(directory, day, tail == null ? 1 : tail.getSequence() + 1);
+		SegmentWriter writer = new SegmentWriter(segment, true, trackTokens);
+		List<AuditSegment> updated = new ArrayList<>(segments);
+		updated.add(segment);
+		Collections.sort(updated);
+		segments = Collections.unmodifiableList(updated);
+		logLogger.info("Rolled audit log to segment {}", segment);
+		return writer;
+	}
+
+	private class SegmentWriter implements Closeable {
+		private final AuditSegment segment;
+		private final FileChannel channel;
+		private final CRC32 crc = new CRC32();
+		private final Map<UUID, Long> offsets;
+		// null when the token index is left to be rebuilt on first search
+		private final AuditTokenIndex.Postings postings;
+		private long position;
+		private boolean dirty;
+
+		SegmentWriter(AuditSegment segment, boolean create, boolean trackTokens) throws IOException {
+			this.segment = segment;
+			if (create) {
+				channel = FileChannel.open(segment.getPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				AuditSegment.writeHeader(channel);
+				offsets = new HashMap<>();
+				position = AuditSegment.HEADER_BYTES;
+				dirty = true;
+			} else if (AuditSegmentIndex.isCurrent(segment)) {
+				// closed cleanly, the index already knows every record
+				channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				offsets = index(segment).entries();
+				position = channel.size();
+			} else {
+				// repair what a crash left behind before appending after it
+				recover(segment);
+				channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				offsets = new HashMap<>();
+				position = segment.forEach(channel.size(), (offset, record) -> {
+					offsets.put(record.getId(), offset);
+					return true;
+				});
+				dirty = true;
+			}
+			if (!trackTokens)
+				postings = null;
+			else if (create)
+				postings = new AuditTokenIndex.Postings();
+			else
+				synchronized (tokenIndexLock(segment)) {
+					postings = AuditTokenIndex.load(segment, bodyIndexMaxTokens);
+				}
+		}
+
+		boolean fits(int payloadLength) {
+			return position <= AuditSegment.HEADER_BYTES
+					|| position + AuditSegment.RECORD_HEADER_BYTES + payloadLength <= maxSegmentBytes;
+		}
+
+		long append(UUID id, byte[] payload, long[] tokens) throws IOException {
+			long start = position;
+			dirty = true;
+			position = start + AuditSegment.writeRecord(channel, start, payload, crc);
+			offsets.put(id, start);
+			if (postings != null && tokens != null)
+				postings.add(start, tokens);
+			return start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (dirty && durability != AuditDurability.NONE)
+				channel.force(false);
+			channel.close();
+			if (dirty) {
+				AuditSegmentIndex.write(segment, offsets, position);
+				indexes.remove(segment);
+				if (postings != null) {
+					synchronized (tokenIndexLock(segment)) {
+						postings.write(segment, position);
+					}
+				}
+				tokenIndexes.remove(segment);
+			}
+		}
+	}
+
+	/**
+	 * Segment written aside by {@link AuditSegmentLog#compact(String, double)}
+	 * until it is renamed into the log.
+	 */
+	private class CompactedSegment implements Closeable {
+		private final Path path;
+		private final FileChannel channel;
+		private final Map<UUID, Long> offsets = new HashMap<>();
+		private long position = AuditSegment.HEADER_BYTES;
+
+		CompactedSegment(Path path) throws IOException {
+			this.path = path;
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			AuditSegment.writeHeader(channel);
+		}
+
+		boolean fits(int payloadLength) {
+			return position <= AuditSegment.HEADER_BYTES
+					|| position + AuditSegment.RECORD_HEADER_BYTES + payloadLength <= maxSegmentBytes;
+		}
+
+		void append(UUID id, byte[] payload, CRC32 crc) throws IOException {
+			offsets.put(id, position);
+			position += AuditSegment.writeRecord(channel, position, payload, crc);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel.isOpen()) {
+				channel.force(true);
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.util.Arrays;
+
+/**
+ * Request timestamps of a day kept sorted in two parallel primitive arrays,
+ * the timestamps and the local ids of the records holding them. Records
+ * arrive close to time order, so an add lands at or near the end and only
+ * the few later entries are shifted. Range lookups are two binary searches
+ * over the timestamps and allocate nothing.
+ *
+ * @author Sankha
+ *
+ */
+final class AuditTimeIndex {
+
+	private long[] timestamps;
+	private int[] localIds;
+	private int size;
+
+	AuditTimeIndex(int capacity) {
+		timestamps = new long[Math.max(16, capacity)];
+		localIds = new int[timestamps.length];
+	}
+
+	/**
+	 * @param timestamp request timestamp
+	 * @param localId   record holding it
+	 */
+	void add(long timestamp, int localId) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+			localIds = Arrays.copyOf(localIds, size * 2);
+		}
+		// after every equal timestamp, so equal ones stay in write order
+		int position = upperBound(timestamp);
+		if (position < size) {
+			System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+			System.arraycopy(localIds, position, localIds, position + 1, size - position);
+		}
+		timestamps[position] = timestamp;
+		localIds[position] = localId;
+		size++;
+	}
+
+	/**
+	 * @param from
+	 * @return the first position whose timestamp is at least <code>from</code>
+	 */
+	int lowerBound(long from) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] < from)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @param to
+	 * @return the first position whose timestamp is above <code>to</code>
+	 */
+	int upperBound(long to) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] <= to)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @param position
+	 * @return the local id at the position
+	 */
+	int localIdAt(int position) {
+		return localIds[position];
+	}
+
+	/**
+	 * @param position
+	 * @return the timestamp at the position
+	 */
+	long timestampAt(int position) {
+		return timestamps[position];
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of entries the arrays hold before growing
+	 */
+	int capacity() {
+		return timestamps.length;
+	}
+}
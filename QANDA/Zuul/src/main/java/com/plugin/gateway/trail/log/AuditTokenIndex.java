@@ -0,0 +1,319 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Inverted index over the request bodies and query strings of one
+ * {@link AuditSegment}, stored next to the segment as <code>.tok</code> and
+ * memory mapped for lookups. Like the <code>.idx</code> file it starts with
+ * the segment length it covers and is rebuilt when it falls behind. Each entry
+ * is <code>[long token hash][long offset]</code>, sorted by hash and then
+ * offset, with one entry per distinct token of every record version, see
+ * {@link AuditTokenizer}.
+ *
+ * @author Sankha
+ *
+ */
+final class AuditTokenIndex {
+
+	static final String FILE_EXTENTION = ".tok";
+	private static final int HEADER_BYTES = 8;
+	private static final int ENTRY_BYTES = 16;
+
+	private final ByteBuffer buffer;
+	private final int entries;
+
+	private AuditTokenIndex(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.entries = (buffer.capacity() - HEADER_BYTES) / ENTRY_BYTES;
+	}
+
+	static Path pathOf(AuditSegment segment) {
+		return segment.getPath().resolveSibling(segment.getPath().getFileName() + FILE_EXTENTION);
+	}
+
+	/**
+	 * Maps the token index of the segment, it is rebuilt from the segment first
+	 * when it is missing or does not cover the whole segment.
+	 *
+	 * @param segment
+	 * @param maxTokens distinct tokens indexed per record
+	 * @return the index
+	 * @throws IOException
+	 */
+	static AuditTokenIndex open(AuditSegment segment, int maxTokens) throws IOException {
+		if (!isCurrent(segment))
+			rebuild(segment, maxTokens);
+		try (FileChannel channel = FileChannel.open(pathOf(segment), StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new AuditTokenIndex(mapped);
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @return <code>true</code> when the index file covers the segment as it is
+	 *         on disk
+	 * @throws IOException
+	 */
+	static boolean isCurrent(AuditSegment segment) throws IOException {
+		Path indexPath = pathOf(segment);
+		if (!Files.exists(indexPath) || Files.size(indexPath) < HEADER_BYTES)
+			return false;
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header) >= 0)
+				;
+			header.flip();
+			return header.getLong() == segment.length();
+		}
+	}
+
+	/**
+	 * Scans and tokenizes the segment and writes its token index.
+	 *
+	 * @param segment
+	 * @param maxTokens distinct tokens indexed per record
+	 * @throws IOException
+	 */
+	static void rebuild(AuditSegment segment, int maxTokens) throws IOException {
+		Postings postings = new Postings();
+		// the scanned length, a record still being appended makes it fall behind
+		long length = segment.forEach(segment.length(), (offset, record) -> {
+			postings.add(offset, AuditTokenizer.tokens(record, maxTokens));
+			return true;
+		});
+		postings.write(segment, length);
+	}
+
+	/**
+	 * @param segment
+	 * @param maxTokens distinct tokens indexed per record
+	 * @return the postings of the segment, to go on appending to it
+	 * @throws IOException
+	 */
+	static Postings load(AuditSegment segment, int maxTokens) throws IOException {
+		AuditTokenIndex index = open(segment, maxTokens);
+		Postings postings = new Postings();
+		for (int i = 0; i < index.entries; i++) {
+			int position = HEADER_BYTES + i * ENTRY_BYTES;
+			postings.add(index.buffer.getLong(position + 8), index.buffer.getLong(position));
+		}
+		return postings;
+	}
+
+	/**
+	 * @param segmentLength
+	 * @return <code>true</code> when the index covers a segment of that length
+	 */
+	boolean covers(long segmentLength) {
+		return buffer.getLong(0) == segmentLength;
+	}
+
+	/**
+	 * @param token hash from {@link AuditTokenizer}
+	 * @return the ascending offsets of the record versions holding the token
+	 */
+	long[] find(long token) {
+		int low = 0;
+		int high = entries;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (buffer.getLong(HEADER_BYTES + middle * ENTRY_BYTES) < token)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		int end = low;
+		while (end < entries && buffer.getLong(HEADER_BYTES + end * ENTRY_BYTES) == token)
+			end++;
+		long[] offsets = new long[end - low];
+		for (int i = low; i < end; i++)
+			offsets[i - low] = buffer.getLong(HEADER_BYTES + i * ENTRY_BYTES + 8);
+		return offsets;
+	}
+
+	/**
+	 * Token postings of the segment being written, one append-only list of
+	 * offsets per token in an open addressing table. Offsets are appended in
+	 * ascending order, so a list is already sorted and a lookup only copies it.
+	 * Offsets are kept as ints, segments are capped below 2 GB.
+	 */
+	static final class Postings {
+		private static final int INITIAL_LIST_CAPACITY = 4;
+		private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+		private long[] tokens = new long[1024];
+		// null marks a free slot, the token 0 is a valid one
+		private int[][] lists = new int[1024][];
+		private int[] sizes = new int[1024];
+		private int distinct;
+
+		/**
+		 * @param offset of the record version
+		 * @param tokens its distinct token hashes
+		 */
+		void add(long offset, long[] tokens) {
+			for (long token : tokens)
+				add(offset, token);
+		}
+
+		private void add(long offset, long token) {
+			int slot = slot(token);
+			int[] list = lists[slot];
+			if (list == null) {
+				if (2 * (distinct + 1) > lists.length) {
+					grow();
+					slot = slot(token);
+				}
+				list = new int[INITIAL_LIST_CAPACITY];
+				lists[slot] = list;
+				tokens[slot] = token;
+				distinct++;
+			} else if (sizes[slot] == list.length) {
+				// a new array, snapshots taken by view keep reading the old one
+				list = Arrays.copyOf(list, list.length + (list.length >> 1));
+				lists[slot] = list;
+			}
+			list[sizes[slot]++] = (int) offset;
+		}
+
+		/**
+		 * @return the slot holding the token or the free slot it goes to
+		 */
+		private int slot(long token) {
+			int mask = lists.length - 1;
+			int slot = (int) (token ^ (token >>> 32)) * 0x9E3779B9 & mask;
+			while (lists[slot] != null && tokens[slot] != token)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void grow() {
+			long[] oldTokens = tokens;
+			int[][] oldLists = lists;
+			int[] oldSizes = sizes;
+			tokens = new long[oldLists.length * 2];
+			lists = new int[oldLists.length * 2][];
+			sizes = new int[oldLists.length * 2];
+			for (int i = 0; i < oldLists.length; i++) {
+				if (oldLists[i] == null)
+					continue;
+				int slot = slot(oldTokens[i]);
+				tokens[slot] = oldTokens[i];
+				lists[slot] = oldLists[i];
+				sizes[slot] = oldSizes[i];
+			}
+		}
+
+		/**
+		 * Takes the current offsets of the token without copying them. The
+		 * caller holds the lock guarding the appends and copies the view once
+		 * it released it: appends only write past the view or to a new array.
+		 *
+		 * @param token
+		 * @return the offsets of the record versions holding the token so far
+		 */
+		View view(long token) {
+			int slot = slot(token);
+			return lists[slot] == null ? View.EMPTY : new View(lists[slot], sizes[slot]);
+		}
+
+		/**
+		 * @param token
+		 * @return the ascending offsets of the record versions holding the token
+		 */
+		long[] find(long token) {
+			return view(token).offsets();
+		}
+
+		/**
+		 * Writes the index through a temporary file of its own so readers that
+		 * still map the previous index keep a consistent view. The lists are streamed in
+		 * token order through a small buffer instead of being copied first.
+		 *
+		 * @param segment
+		 * @param segmentLength the segment length the postings cover
+		 * @throws IOException
+		 */
+		void write(AuditSegment segment, long segmentLength) throws IOException {
+			long[] sortedTokens = new long[distinct];
+			int[] sortedSlots = new int[distinct];
+			int count = 0;
+			for (int slot = 0; slot < lists.length; slot++) {
+				if (lists[slot] != null)
+					sortedTokens[count++] = tokens[slot];
+			}
+			Arrays.sort(sortedTokens);
+			for (int i = 0; i < count; i++)
+				sortedSlots[i] = slot(sortedTokens[i]);
+			Path indexPath = pathOf(segment);
+			Path temporaryPath = AuditSegment.temporaryPathOf(indexPath);
+			try {
+				try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE)) {
+					ByteBuffer content = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+					content.putLong(segmentLength);
+					for (int i = 0; i < count; i++) {
+						int[] list = lists[sortedSlots[i]];
+						for (int j = 0; j < sizes[sortedSlots[i]]; j++) {
+							if (content.remaining() < ENTRY_BYTES)
+								drain(content, channel);
+							content.putLong(sortedTokens[i]);
+							content.putLong(list[j]);
+						}
+					}
+					drain(content, channel);
+				}
+				Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(temporaryPath);
+				throw e;
+			}
+		}
+
+		private static void drain(ByteBuffer content, FileChannel channel) throws IOException {
+			content.flip();
+			while (content.hasRemaining())
+				channel.write(content);
+			content.clear();
+		}
+	}
+
+	/**
+	 * Offsets of one token as {@link Postings#view(long)} saw them.
+	 */
+	static final class View {
+		static final View EMPTY = new View(new int[0], 0);
+
+		private final int[] list;
+		private final int size;
+
+		private View(int[] list, int size) {
+			this.list = list;
+			this.size = size;
+		}
+
+		/**
+		 * @return the ascending offsets
+		 */
+		long[] offsets() {
+			long[] offsets = new long[size];
+			for (int i = 0; i < size; i++)
+				offsets[i] = list[i];
+			return offsets;
+		}
+	}
+}
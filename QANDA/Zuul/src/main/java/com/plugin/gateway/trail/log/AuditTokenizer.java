@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Splits request bodies and query strings into lower cased runs of letters
+ * and digits and hashes every token to 64 bits for the
+ * {@link AuditTokenIndex}. A body search looks for the tokens of the search
+ * term in order, so it ignores case, punctuation and one character words. A
+ * hash collision only costs a record that is read and then rejected by
+ * {@link #containsPhrase(String, long[])}.
+ *
+ * @author Sankha
+ *
+ */
+public final class AuditTokenizer {
+
+	private static final int MIN_TOKEN_LENGTH = 2;
+	private static final int MAX_TOKEN_LENGTH = 64;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Token added for records with more distinct tokens than are indexed, such
+	 * records are candidates for every body search.
+	 */
+	public static final long TRUNCATED = 0L;
+
+	private AuditTokenizer() {
+	}
+
+	/**
+	 * @param record
+	 * @param maxTokens distinct tokens kept per record, the first ones of the
+	 *                  body and then of the query string
+	 * @return the sorted distinct token hashes of the request body and the
+	 *         query string, with {@link #TRUNCATED} when some were left out
+	 */
+	public static long[] tokens(AuditTrail record, int maxTokens) {
+		Set<Long> distinct = new LinkedHashSet<>();
+		boolean truncated = false;
+		for (String text : new String[] { record.getRequestBody() == null ? null : record.getRequestBody().toString(),
+				record.getQueryParams() }) {
+			if (text == null || truncated)
+				continue;
+			for (long hash : hashes(text)) {
+				if (distinct.size() == maxTokens && !distinct.contains(hash)) {
+					truncated = true;
+					break;
+				}
+				distinct.add(hash);
+			}
+		}
+		if (truncated)
+			distinct.add(TRUNCATED);
+		long[] hashes = new long[distinct.size()];
+		int size = 0;
+		for (long hash : distinct)
+			hashes[size++] = hash;
+		Arrays.sort(hashes);
+		return hashes;
+	}
+
+	/**
+	 * @param text
+	 * @return the hash of every token of the text in text order, duplicates
+	 *         included
+	 */
+	public static long[] hashes(String text) {
+		long[] hashes = new long[8];
+		int size = 0;
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (tokenChar && start < 0) {
+				start = i;
+			} else if (!tokenChar && start >= 0) {
+				int length = i - start;
+				if (length >= MIN_TOKEN_LENGTH && length <= MAX_TOKEN_LENGTH) {
+					if (size == hashes.length)
+						hashes = Arrays.copyOf(hashes, size * 2);
+					hashes[size++] = hash(text, start, i);
+				}
+				start = -1;
+			}
+		}
+		return Arrays.copyOf(hashes, size);
+	}
+
+	/**
+	 * @param text
+	 * @param phrase token hashes from {@link #hashes(String)}
+	 * @return <code>true</code> when the text holds the tokens one after the
+	 *         other
+	 */
+	public static boolean containsPhrase(String text, long[] phrase) {
+		if (text == null)
+			return false;
+		long[] hashes = hashes(text);
+		for (int start = 0; start + phrase.length <= hashes.length; start++) {
+			int matched = 0;
+			while (matched < phrase.length && hashes[start + matched] == phrase[matched])
+				matched++;
+			if (matched == phrase.length)
+				return true;
+		}
+		return false;
+	}
+
+	private static long hash(String text, int from, int to) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = from; i < to; i++) {
+			hash ^= Character.toLowerCase(text.charAt(i));
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
@@ -28,6 +28,9 @@ public class AuditTrail implements Serializable {
 	private Object requestBody;
 	private int responseCode;
 	private Long requestTimestamp,updateTimestamp;
+	private Long upstreamLatencyMillis,gatewayLatencyMillis,responseBytes;
+	private Long requestBodyBytes;
+	private boolean requestBodyTruncated;
 	
 	public AuditTrail() {
 	}
@@ -324,6 +327,109 @@ public class AuditTrail implements Serializable {
 
 
 
+	/**
+	 * @return the time the routed backend took to answer, <code>null</code>
+	 *         when the request was not routed
+	 */
+	public Long getUpstreamLatencyMillis() {
+		return upstreamLatencyMillis;
+	}
+
+
+
+
+	/**
+	 * @param upstreamLatencyMillis the upstreamLatencyMillis to set
+	 */
+	public void setUpstreamLatencyMillis(Long upstreamLatencyMillis) {
+		this.upstreamLatencyMillis = upstreamLatencyMillis;
+	}
+
+
+
+
+	/**
+	 * @return the time from capture to the last response byte sent
+	 */
+	public Long getGatewayLatencyMillis() {
+		return gatewayLatencyMillis;
+	}
+
+
+
+
+	/**
+	 * @param gatewayLatencyMillis the gatewayLatencyMillis to set
+	 */
+	public void setGatewayLatencyMillis(Long gatewayLatencyMillis) {
+		this.gatewayLatencyMillis = gatewayLatencyMillis;
+	}
+
+
+
+
+	/**
+	 * @return the response body bytes relayed from the backend, or of the body
+	 *         a filter set
+	 */
+	public Long getResponseBytes() {
+		return responseBytes;
+	}
+
+
+
+
+	/**
+	 * @param responseBytes the responseBytes to set
+	 */
+	public void setResponseBytes(Long responseBytes) {
+		this.responseBytes = responseBytes;
+	}
+
+
+
+
+	/**
+	 * @return the request body bytes received from the client, kept or not
+	 */
+	public Long getRequestBodyBytes() {
+		return requestBodyBytes;
+	}
+
+
+
+
+	/**
+	 * @param requestBodyBytes the requestBodyBytes to set
+	 */
+	public void setRequestBodyBytes(Long requestBodyBytes) {
+		this.requestBodyBytes = requestBodyBytes;
+	}
+
+
+
+
+	/**
+	 * @return <code>true</code> when the request body holds only the prefix
+	 *         the capture limit kept
+	 */
+	public boolean isRequestBodyTruncated() {
+		return requestBodyTruncated;
+	}
+
+
+
+
+	/**
+	 * @param requestBodyTruncated the requestBodyTruncated to set
+	 */
+	public void setRequestBodyTruncated(boolean requestBodyTruncated) {
+		this.requestBodyTruncated = requestBodyTruncated;
+	}
+
+
+
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
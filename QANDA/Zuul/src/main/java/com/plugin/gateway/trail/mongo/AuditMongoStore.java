@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.TextIndexDefinition;
+import org.springframework.data.mongodb.core.query.Collation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.plugin.gateway.trail.log.AuditSegmentLog;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * Mongo side of the audit trail. Records are partitioned into one collection
+ * per request day, <code>auditTrail_&lt;yyyyMMdd&gt;</code>, so a day of audit
+ * data is dropped as a whole collection. Every day collection is indexed on
+ * <code>requestTimestamp</code>, <code>serviceName + requestTimestamp</code>
+ * and <code>performedBy</code>, the text ones under {@link #TEXT_COLLATION} so
+ * searches ignoring case still walk their keys, and with the body index on
+ * also carries a text index over <code>requestBody</code> and
+ * <code>queryParams</code>. The unpartitioned <code>auditTrail</code>
+ * collection written by older versions is still read. Route rollups live in
+ * the <code>auditRollup</code> collection, one document per route and minute.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditMongoStore {
+
+	public static final String COLLECTION_PREFIX = "auditTrail";
+	public static final String ROLLUP_COLLECTION = "auditRollup";
+	/**
+	 * Compares text ignoring case, a query has to carry it to use the indexes
+	 * built with it.
+	 */
+	public static final Collation TEXT_COLLATION = Collation.of("en")
+			.strength(Collation.ComparisonLevel.secondary());
+
+	private final Logger storeLogger = LoggerFactory.getLogger(AuditMongoStore.class);
+	private final MongoTemplate mongoTemplate;
+	private final boolean textIndexed;
+	private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+
+	public AuditMongoStore(MongoTemplate mongoTemplate) {
+		this(mongoTemplate, false);
+	}
+
+	/**
+	 * @param mongoTemplate
+	 * @param textIndexed   keep a text index over the request bodies and query
+	 *                      strings
+	 */
+	public AuditMongoStore(MongoTemplate mongoTemplate, boolean textIndexed) {
+		this.mongoTemplate = mongoTemplate;
+		this.textIndexed = textIndexed;
+		collections().forEach(this::ensureIndexes);
+	}
+
+	/**
+	 * @return <code>true</code> when every audit collection carries the text
+	 *         index over <code>requestBody</code> and <code>queryParams</code>
+	 */
+	public boolean isTextIndexed() {
+		return textIndexed;
+	}
+
+	/**
+	 * @param day in <code>yyyyMMdd</code>
+	 * @return the collection holding the day
+	 */
+	public static String collectionOf(String day) {
+		return COLLECTION_PREFIX + "_" + day;
+	}
+
+	/**
+	 * @return the audit collections, the legacy collection first and then the
+	 *         day collections in ascending day order
+	 */
+	public List<String> collections() {
+		return mongoTemplate.getCollectionNames().stream()
+				.filter(name -> name.equals(COLLECTION_PREFIX) || name.startsWith(COLLECTION_PREFIX + "_")).sorted()
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @param fromDay first day in <code>yyyyMMdd</code> or <code>null</code>
+	 * @param toDay   last day in <code>yyyyMMdd</code> or <code>null</code>
+	 * @return the collections that may hold records of the days, the legacy
+	 *         collection is always included
+	 */
+	public List<String> collections(String fromDay, String toDay) {
+		return collections().stream().filter(name -> {
+			if (name.equals(COLLECTION_PREFIX))
+				return true;
+			String day = name.substring(COLLECTION_PREFIX.length() + 1);
+			return (fromDay == null || day.compareTo(fromDay) >= 0) && (toDay == null || day.compareTo(toDay) <= 0);
+		}).collect(Collectors.toList());
+	}
+
+	/**
+	 * Inserts the records with one unordered bulk write per day collection.
+	 *
+	 * @param records
+	 */
+	public void insertAll(List<AuditTrail> records) {
+		Map<String, List<AuditTrail>> byCollection = records.stream()
+				.collect(Collectors.groupingBy(record -> collectionOf(record), LinkedHashMap::new, Collectors.toList()));
+		for (Map.Entry<String, List<AuditTrail>> entry : byCollection.entrySet()) {
+			ensureIndexes(entry.getKey());
+			mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AuditTrail.class, entry.getKey())
+					.insert(entry.getValue()).execute();
+		}
+	}
+
+	/**
+	 * Inserts or replaces the record in its day collection, a record that still
+	 * lives in the legacy collection is replaced there.
+	 *
+	 * @param record
+	 */
+	public void save(AuditTrail record) {
+		if (mongoTemplate.collectionExists(COLLECTION_PREFIX)
+				&& mongoTemplate.exists(Query.query(Criteria.where("_id").is(record.getId())), COLLECTION_PREFIX)) {
+			mongoTemplate.save(record, COLLECTION_PREFIX);
+			return;
+		}
+		String collection = collectionOf(record);
+		ensureIndexes(collection);
+		mongoTemplate.save(record, collection);
+	}
+
+	/**
+	 * Looks the id up in the day collections, newest first.
+	 *
+	 * @param id
+	 * @return the record or <code>null</code>
+	 */
+	public AuditTrail findById(UUID id) {
+		List<String> collections = new ArrayList<>(collections());
+		Collections.reverse(collections);
+		for (String collection : collections) {
+			AuditTrail record = mongoTemplate.findById(id, AuditTrail.class, collection);
+			if (record != null)
+				return record;
+		}
+		return null;
+	}
+
+	/**
+	 * @param queryFactory builds the query for a collection, it may return
+	 *                     <code>null</code> to skip the collection
+	 * @param collections  to query in order
+	 * @return the matching records
+	 */
+	public List<AuditTrail> find(Function<String, Query> queryFactory, List<String> collections) {
+		List<AuditTrail> records = new ArrayList<>();
+		stream(queryFactory, collections, 0, records::add);
+		return records;
+	}
+
+	/**
+	 * Walks a cursor over each collection in turn.
+	 *
+	 * @param queryFactory builds the query for a collection, it may return
+	 *                     <code>null</code> to skip the collection
+	 * @param collections  to query in order
+	 * @param limit        maximum number of records, 0 for no limit
+	 * @param consumer
+	 * @return the number of records handed to the consumer
+	 */
+	public int stream(Function<String, Query> queryFactory, List<String> collections, int limit,
+			Consumer<AuditTrail> consumer) {
+		int count = 0;
+		for (String collection : collections) {
+			Query query = queryFactory.apply(collection);
+			if (query == null)
+				continue;
+			if (limit > 0)
+				query.limit(limit - count);
+			try (CloseableIterator<AuditTrail> cursor = mongoTemplate.stream(query, AuditTrail.class, collection)) {
+				while (cursor.hasNext()) {
+					consumer.accept(cursor.next());
+					count++;
+				}
+			}
+			if (limit > 0 && count >= limit)
+				break;
+		}
+		return count;
+	}
+
+	/**
+	 * Applies the update to every matching document with one
+	 * <code>updateMulti</code> per collection.
+	 *
+	 * @param queryFactory builds the query for a collection, it may return
+	 *                     <code>null</code> to skip the collection
+	 * @param collections  to update
+	 * @param update
+	 * @return the number of documents modified
+	 */
+	public long updateMulti(Function<String, Query> queryFactory, List<String> collections, Update update) {
+		long modified = 0;
+		for (String collection : collections) {
+			Query query = queryFactory.apply(collection);
+			if (query != null)
+				modified += mongoTemplate.updateMulti(query, update, AuditTrail.class, collection).getModifiedCount();
+		}
+		return modified;
+	}
+
+	/**
+	 * Adds the counts to the rollup documents with one unordered bulk of
+	 * upserts.
+	 *
+	 * @param rollups
+	 */
+	public void incrementRollups(List<AuditRouteRollup> rollups) {
+		if (indexedCollections.add(ROLLUP_COLLECTION))
+			mongoTemplate.indexOps(ROLLUP_COLLECTION).ensureIndex(new Index().on("minute", Sort.Direction.ASC));
+		BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED,
+				AuditRouteRollup.class, ROLLUP_COLLECTION);
+		for (AuditRouteRollup rollup : rollups)
+			bulkOperations.upsert(
+					Query.query(Criteria.where("minute").is(rollup.getMinute()).and("serviceName")
+							.is(rollup.getServiceName()).and("requestMethod").is(rollup.getRequestMethod())
+							.and("responseCode").is(rollup.getResponseCode())),
+					new Update().inc("count", rollup.getCount()));
+		bulkOperations.execute();
+	}
+
+	/**
+	 * @param fromSecond epoch second
+	 * @param toSecond   epoch second
+	 * @return the rollups of the minutes starting within the range
+	 */
+	public List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) {
+		return mongoTemplate.find(Query.query(Criteria.where("minute").gte(fromSecond).lte(toSecond)),
+				AuditRouteRollup.class, ROLLUP_COLLECTION);
+	}
+
+	/**
+	 * @param epochSecond rollups of earlier minutes are removed
+	 */
+	public void dropRollupsBefore(long epochSecond) {
+		mongoTemplate.remove(Query.query(Criteria.where("minute").lt(epochSecond)), ROLLUP_COLLECTION);
+	}
+
+	/**
+	 * Drops the collection of a day.
+	 *
+	 * @param day in <code>yyyyMMdd</code>
+	 */
+	public void dropDay(String day) {
+		String collection = collectionOf(day);
+		mongoTemplate.dropCollection(collection);
+		indexedCollections.remove(collection);
+		storeLogger.info("Dropped audit collection {}", collection);
+	}
+
+	/**
+	 * Drops the collections of the days before the given one, the legacy
+	 * collection is kept.
+	 *
+	 * @param day in <code>yyyyMMdd</code>
+	 */
+	public void dropDaysBefore(String day) {
+		for (String collection : collections()) {
+			if (!collection.equals(COLLECTION_PREFIX)
+					&& collection.substring(COLLECTION_PREFIX.length() + 1).compareTo(day) < 0)
+				dropDay(collection.substring(COLLECTION_PREFIX.length() + 1));
+		}
+	}
+
+	private static String collectionOf(AuditTrail record) {
+		return collectionOf(AuditSegmentLog.dayOf(record.getRequestTimestamp()));
+	}
+
+	private void ensureIndexes(String collection) {
+		if (!indexedCollections.add(collection))
+			return;
+		IndexOperations indexOperations = mongoTemplate.indexOps(collection);
+		indexOperations.ensureIndex(new Index().on("requestTimestamp", Sort.Direction.ASC));
+		// named apart from the binary collated ones older versions created
+		indexOperations.ensureIndex(new Index().on("serviceName", Sort.Direction.ASC)
+				.on("requestTimestamp", Sort.Direction.ASC).named("serviceName_requestTimestamp_ci")
+				.collation(TEXT_COLLATION));
+		indexOperations.ensureIndex(
+				new Index().on("performedBy", Sort.Direction.ASC).named("performedBy_ci").collation(TEXT_COLLATION));
+		if (textIndexed)
+			indexOperations.ensureIndex(
+					new TextIndexDefinition.TextIndexDefinitionBuilder().onField("requestBody").onField("queryParams")
+							.build());
+	}
+}
@@ -0,0 +1,316 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.replay;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDbFactory;
+
+import com.google.gson.JsonParser;
+import com.mongodb.ConnectionString;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.plugin.gateway.enums.AuditReplaySchedule;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.mongo.AuditMongoStore;
+import com.plugin.gateway.trail.store.AuditSearchCriteria;
+import com.plugin.gateway.trail.store.AuditTrailStore;
+import com.plugin.gateway.trail.store.FileAuditTrailStore;
+import com.plugin.gateway.trail.store.MongoAuditTrailStore;
+
+/**
+ * Command line load harness replaying recorded audit trails against a
+ * gateway, see {@link AuditReplayer}. It runs on its own, without the gateway
+ * context, from the gateway jar:
+ *
+ * <pre>
+ * java -cp zuul-gateway.jar -Dloader.main=com.plugin.gateway.trail.replay.AuditReplayTool \
+ *     org.springframework.boot.loader.PropertiesLauncher \
+ *     --source=/data/AuditTrail --target=http://localhost:8762 \
+ *     --schedule=timeScaled --speed=2 --search='{"fromDate": 1600000000}'
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ * <li><code>--source</code> the audit folder of the file engine, or a
+ * <code>mongodb://</code> URI of the audit database, <code>AuditTrail</code>
+ * when the URI names none; the folder is opened read only and left as it
+ * is</li>
+ * <li><code>--target</code> base URL of the gateway to load</li>
+ * <li><code>--schedule</code> <code>timeScaled</code> with
+ * <code>--speed</code>, 1 by default, or <code>maxRate</code> with
+ * <code>--rate</code> requests a second</li>
+ * <li><code>--concurrency</code> requests in flight at most, 16 by
+ * default</li>
+ * <li><code>--search</code> an audit search body selecting what is replayed,
+ * see {@link AuditSearchCriteria}, <code>--limit</code> the most records
+ * replayed</li>
+ * <li><code>--slack</code> seconds a record may come after later ones and
+ * still be replayed in order, 5 by default</li>
+ * <li><code>--header=Name:value</code> sent with every request, repeatable,
+ * e.g. a token in place of the <code>Authorization</code> header the audit
+ * trail does not keep</li>
+ * </ul>
+ * The engines hand records over by day in write order, which trails request
+ * time by the request latency, and the file engine one writer stripe after
+ * the other. The stripes are read side by side and merged by request time,
+ * then a {@link ReorderWindow} holding <code>--slack</code> seconds of
+ * records puts them back in request time order, so the heap holds a few
+ * seconds of traffic rather than a day. The latency histogram of every route
+ * is printed at the end.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditReplayTool {
+
+	private static final Logger toolLogger = LoggerFactory.getLogger(AuditReplayTool.class);
+	private static final String AUDIT_TRAIL_DATABASE = "AuditTrail";
+	private static final int SOURCE_SEARCH_PARALLELISM = 2;
+	private static final long SOURCE_DAY_INDEX_BYTES = 64L * 1024 * 1024;
+	private static final int STRIPE_QUEUE_SIZE = 1024;
+	// ends the records of a stripe in its queue
+	private static final AuditTrail END_OF_STRIPE = new AuditTrail();
+
+	private AuditReplayTool() {
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, List<String>> options = options(args);
+		String source = option(options, "source", null);
+		String target = option(options, "target", null);
+		if (StringUtils.isBlank(source) || StringUtils.isBlank(target))
+			throw new IllegalArgumentException(
+					"Audit replay needs --source=<audit folder or mongodb:// URI> and --target=<gateway URL>");
+		int concurrency = Integer.parseInt(option(options, "concurrency", "16"));
+		Map<String, String> headers = new LinkedHashMap<>();
+		for (String header : options.getOrDefault("header", new ArrayList<>())) {
+			int colon = header.indexOf(':');
+			if (colon <= 0)
+				throw new IllegalArgumentException("Audit replay header " + header + " is not Name:value");
+			headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+		}
+		AuditReplayer replayer = new AuditReplayer(target,
+				AuditReplaySchedule.fromValue(option(options, "schedule", null)),
+				Double.parseDouble(option(options, "speed", "1")), Double.parseDouble(option(options, "rate", "0")),
+				concurrency, headers);
+		AuditSearchCriteria criteria = new AuditSearchCriteria(
+				new JsonParser().parse(option(options, "search", "{}")).getAsJsonObject());
+		int limit = Integer.parseInt(option(options, "limit", "0"));
+		long slackSeconds = Long.parseLong(option(options, "slack", "5"));
+
+		long start = System.nanoTime();
+		ReorderWindow window = new ReorderWindow(replayer, slackSeconds);
+		MongoClient mongoClient = null;
+		AuditTrailStore store;
+		if (source.startsWith("mongodb://") || source.startsWith("mongodb+srv://")) {
+			ConnectionString uri = new ConnectionString(source);
+			mongoClient = MongoClients.create(uri);
+			String database = uri.getDatabase() != null ? uri.getDatabase() : AUDIT_TRAIL_DATABASE;
+			store = new MongoAuditTrailStore(
+					new AuditMongoStore(new MongoTemplate(new SimpleMongoClientDbFactory(mongoClient, database))));
+		} else {
+			AuditConfigurationProperties sourceProperties = new AuditConfigurationProperties();
+			sourceProperties.setSearchParallelism(SOURCE_SEARCH_PARALLELISM);
+			sourceProperties.setDayIndexCacheMaxBytes(SOURCE_DAY_INDEX_BYTES);
+			store = new FileAuditTrailStore(Paths.get(source), sourceProperties, true);
+		}
+		try {
+			int read = store instanceof FileAuditTrailStore && ((FileAuditTrailStore) store).stripes() > 1
+					? mergeStripes((FileAuditTrailStore) store, criteria, limit, window)
+					: store.stream(criteria, null, limit, window);
+			window.flush();
+			replayer.finish();
+			toolLogger.info("Replayed {} audit records from {} to {} in {} ms, {} came over {} s late", read, source,
+					target, (System.nanoTime() - start) / 1_000_000, window.late, slackSeconds);
+		} finally {
+			store.close();
+			if (mongoClient != null)
+				mongoClient.close();
+		}
+		replayer.report(System.out);
+	}
+
+	/**
+	 * Reads every stripe on its own thread through a small queue and hands the
+	 * records over in request time order of the stripe heads.
+	 *
+	 * @return the number of records handed to the consumer
+	 */
+	private static int mergeStripes(FileAuditTrailStore store, AuditSearchCriteria criteria, int limit,
+			Consumer<AuditTrail> consumer) throws IOException, InterruptedException {
+		int stripes = store.stripes();
+		List<BlockingQueue<AuditTrail>> queues = new ArrayList<>(stripes);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		ExecutorService readers = Executors.newFixedThreadPool(stripes, runnable -> {
+			Thread thread = new Thread(runnable, "audit-replay-reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (int stripe = 0; stripe < stripes; stripe++) {
+				BlockingQueue<AuditTrail> queue = new ArrayBlockingQueue<>(STRIPE_QUEUE_SIZE);
+				queues.add(queue);
+				int reading = stripe;
+				readers.execute(() -> {
+					try {
+						store.stream(reading, criteria, limit, record -> {
+							try {
+								queue.put(record);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new RuntimeException("Audit replay interrupted " + e.getMessage(), e);
+							}
+						});
+					} catch (IOException | RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						try {
+							queue.put(END_OF_STRIPE);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			AuditTrail[] heads = new AuditTrail[stripes];
+			PriorityQueue<Integer> order = new PriorityQueue<>(stripes, Comparator.comparing(
+					stripe -> heads[stripe].getRequestTimestamp(), Comparator.nullsFirst(Comparator.naturalOrder())));
+			for (int stripe = 0; stripe < stripes; stripe++) {
+				heads[stripe] = next(queues.get(stripe), failure);
+				if (heads[stripe] != null)
+					order.add(stripe);
+			}
+			int count = 0;
+			while (!order.isEmpty() && (limit <= 0 || count < limit)) {
+				int stripe = order.poll();
+				consumer.accept(heads[stripe]);
+				count++;
+				heads[stripe] = next(queues.get(stripe), failure);
+				if (heads[stripe] != null)
+					order.add(stripe);
+			}
+			return count;
+		} finally {
+			// stops the readers still blocked on a full queue once the limit is reached
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the next record of the stripe, <code>null</code> once it is read
+	 *         to the end
+	 */
+	private static AuditTrail next(BlockingQueue<AuditTrail> queue, AtomicReference<Exception> failure)
+			throws IOException, InterruptedException {
+		AuditTrail record = queue.take();
+		if (record != END_OF_STRIPE)
+			return record;
+		Exception e = failure.get();
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e != null)
+			throw (RuntimeException) e;
+		return null;
+	}
+
+	/**
+	 * Holds the records of the last <code>slackSeconds</code> of request time
+	 * seen and replays each second once a record that much later came in, the
+	 * earliest first. A record coming later than that is replayed right away
+	 * and counted as late.
+	 */
+	private static final class ReorderWindow implements Consumer<AuditTrail> {
+		private final AuditReplayer replayer;
+		private final long slackSeconds;
+		private final PriorityQueue<AuditTrail> records = new PriorityQueue<>(
+				Comparator.comparing(AuditTrail::getRequestTimestamp));
+		private long latestSecond = Long.MIN_VALUE;
+		private long replayedSecond = Long.MIN_VALUE;
+		private int late;
+
+		private ReorderWindow(AuditReplayer replayer, long slackSeconds) {
+			this.replayer = replayer;
+			this.slackSeconds = Math.max(0, slackSeconds);
+		}
+
+		@Override
+		public void accept(AuditTrail record) {
+			Long second = record.getRequestTimestamp();
+			try {
+				if (second == null) {
+					// no place in time, sent as it comes
+					replayer.replay(Collections.singletonList(record));
+					return;
+				}
+				if (second <= replayedSecond)
+					late++;
+				records.add(record);
+				latestSecond = Math.max(latestSecond, second);
+				release(latestSecond - slackSeconds);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Audit replay interrupted " + e.getMessage(), e);
+			}
+		}
+
+		private void flush() throws InterruptedException {
+			release(Long.MAX_VALUE);
+		}
+
+		/**
+		 * Replays the held seconds up to the given one, a second at a time so
+		 * the replayer spreads its records over it.
+		 */
+		private void release(long untilSecond) throws InterruptedException {
+			while (!records.isEmpty() && records.peek().getRequestTimestamp() <= untilSecond) {
+				long second = records.peek().getRequestTimestamp();
+				List<AuditTrail> batch = new ArrayList<>();
+				while (!records.isEmpty() && records.peek().getRequestTimestamp() == second)
+					batch.add(records.poll());
+				replayer.replay(batch);
+				replayedSecond = Math.max(replayedSecond, second);
+			}
+		}
+	}
+
+	/**
+	 * @return the values of every <code>--name=value</code> argument by name
+	 */
+	private static Map<String, List<String>> options(String[] args) {
+		Map<String, List<String>> options = new HashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+				throw new IllegalArgumentException("Audit replay option " + arg + " is not --name=value");
+			options.computeIfAbsent(arg.substring(2, arg.indexOf('=')), name -> new ArrayList<>())
+					.add(arg.substring(arg.indexOf('=') + 1));
+		}
+		return options;
+	}
+
+	private static String option(Map<String, List<String>> options, String name, String defaultValue) {
+		List<String> values = options.get(name);
+		return values == null ? defaultValue : values.get(values.size() - 1);
+	}
+}
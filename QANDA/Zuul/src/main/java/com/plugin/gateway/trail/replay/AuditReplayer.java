@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.replay;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.google.gson.Gson;
+import com.plugin.gateway.enums.AuditReplaySchedule;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Sends recorded audit trails again to a target gateway and keeps a latency
+ * histogram per route. Batches are given in request time order and each
+ * request is sent at its place in the {@link AuditReplaySchedule}:
+ * <ul>
+ * <li>{@link AuditReplaySchedule#TIME_SCALED} keeps the recorded gaps divided
+ * by <code>speed</code>; timestamps are whole seconds, so the requests of one
+ * recorded second are spread evenly over it</li>
+ * <li>{@link AuditReplaySchedule#MAX_RATE} sends one request every
+ * <code>1 / rate</code> seconds</li>
+ * </ul>
+ * At most <code>concurrency</code> requests are in flight, a schedule the
+ * target cannot keep up with makes the later requests start late rather than
+ * pile up. Responses are counted per route as sent, failed when no response
+ * came back, and mismatched when the status differs from the recorded one.
+ * A request whose recorded body was cut at the capture limit is not sent,
+ * the target would only see a malformed body, and is counted as truncated.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditReplayer {
+
+	private static final String UNROUTED = "~unrouted";
+	// set by the HTTP client for the target or meaningless on a new connection
+	private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList("host", "content-length",
+			"connection", "keep-alive", "transfer-encoding", "upgrade", "expect"));
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+	private final Logger replayLogger = LoggerFactory.getLogger(AuditReplayer.class);
+	private final String target;
+	private final AuditReplaySchedule schedule;
+	private final double speed;
+	private final double rate;
+	private final Map<String, String> extraHeaders;
+	private final CloseableHttpClient httpClient;
+	private final RestTemplate restTemplate;
+	private final ExecutorService senders;
+	private final Semaphore inFlight;
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final Gson gson = new Gson();
+	private final AtomicInteger late = new AtomicInteger();
+	private long originNanos = -1;
+	private long originSecond;
+	private long scheduled;
+
+	/**
+	 * @param target       base URL of the gateway, e.g.
+	 *                     <code>http://localhost:8762</code>
+	 * @param schedule
+	 * @param speed        recorded time divided by replay time for
+	 *                     {@link AuditReplaySchedule#TIME_SCALED}
+	 * @param rate         requests a second for
+	 *                     {@link AuditReplaySchedule#MAX_RATE}
+	 * @param concurrency  requests in flight at most
+	 * @param extraHeaders sent with every request in place of the recorded
+	 *                     ones, e.g. a fresh <code>Authorization</code>
+	 */
+	public AuditReplayer(String target, AuditReplaySchedule schedule, double speed, double rate, int concurrency,
+			Map<String, String> extraHeaders) {
+		if ((schedule == AuditReplaySchedule.TIME_SCALED && speed <= 0)
+				|| (schedule == AuditReplaySchedule.MAX_RATE && rate <= 0))
+			throw new IllegalArgumentException("Audit replay " + schedule + " needs a positive speed or rate");
+		this.target = StringUtils.removeEnd(target, "/");
+		this.schedule = schedule;
+		this.speed = speed;
+		this.rate = rate;
+		this.extraHeaders = extraHeaders;
+		// a pooled connection per sender; redirects and compression are left to
+		// the caller so the timings are those of the recorded requests
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(Math.max(1, concurrency));
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, concurrency));
+		this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).disableRedirectHandling()
+				.disableContentCompression().disableCookieManagement().build();
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(
+				httpClient);
+		requestFactory.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(5));
+		requestFactory.setReadTimeout((int) TimeUnit.SECONDS.toMillis(60));
+		this.restTemplate = new RestTemplate(requestFactory);
+		// every status is an answer worth timing
+		this.restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+			@Override
+			public boolean hasError(ClientHttpResponse response) {
+				return false;
+			}
+		});
+		this.senders = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+			Thread thread = new Thread(runnable, "audit-replay-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.inFlight = new Semaphore(Math.max(1, concurrency));
+	}
+
+	/**
+	 * Sends the records, returning once the last one was handed to a sender.
+	 * The first record of the first batch starts the schedule, records without
+	 * a request timestamp are sent right away in the time scaled one.
+	 *
+	 * @param records in request time order
+	 * @throws InterruptedException
+	 */
+	public void replay(List<AuditTrail> records) throws InterruptedException {
+		int secondStart = 0;
+		int secondEnd = 0;
+		for (int i = 0; i < records.size(); i++) {
+			AuditTrail record = records.get(i);
+			Long second = record.getRequestTimestamp();
+			if (originNanos < 0) {
+				originNanos = System.nanoTime();
+				originSecond = second == null ? 0 : second;
+			}
+			long due;
+			if (schedule == AuditReplaySchedule.MAX_RATE) {
+				due = originNanos + (long) (scheduled * TimeUnit.SECONDS.toNanos(1) / rate);
+			} else if (second == null) {
+				due = System.nanoTime();
+			} else {
+				if (i >= secondEnd) {
+					secondStart = i;
+					secondEnd = i + 1;
+					while (secondEnd < records.size()
+							&& second.equals(records.get(secondEnd).getRequestTimestamp()))
+						secondEnd++;
+				}
+				double offsetSeconds = second - originSecond
+						+ (double) (i - secondStart) / (secondEnd - secondStart);
+				due = originNanos + (long) (offsetSeconds * TimeUnit.SECONDS.toNanos(1) / speed);
+			}
+			scheduled++;
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+				TimeUnit.NANOSECONDS.sleep(wait);
+			inFlight.acquire();
+			if (System.nanoTime() - due > TimeUnit.MILLISECONDS.toNanos(100))
+				late.incrementAndGet();
+			senders.execute(() -> {
+				try {
+					send(record);
+				} finally {
+					inFlight.release();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for the requests in flight, stops the senders and closes their
+	 * connections.
+	 *
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void finish() throws InterruptedException, IOException {
+		senders.shutdown();
+		senders.awaitTermination(5, TimeUnit.MINUTES);
+		httpClient.close();
+	}
+
+	/**
+	 * Prints the count and latency percentiles of every route.
+	 *
+	 * @param out
+	 */
+	public void report(PrintStream out) {
+		Set<String> routes = new TreeSet<>();
+		meterRegistry.getMeters().forEach(meter -> routes.add(meter.getId().getTag("route")));
+		out.printf(Locale.ROOT, "%-24s %8s %8s %8s %9s %10s %10s %10s %10s%n", "route", "sent", "failed",
+				"mismatch", "truncated", "p50 ms", "p90 ms", "p99 ms", "max ms");
+		for (String route : routes) {
+			HistogramSnapshot snapshot = timer(route).takeSnapshot();
+			double[] percentiles = new double[PERCENTILES.length];
+			for (ValueAtPercentile value : snapshot.percentileValues()) {
+				int index = Arrays.binarySearch(PERCENTILES, value.percentile());
+				if (index >= 0)
+					percentiles[index] = value.value(TimeUnit.MILLISECONDS);
+			}
+			out.printf(Locale.ROOT, "%-24s %8d %8.0f %8.0f %9.0f %10.1f %10.1f %10.1f %10.1f%n", route,
+					snapshot.count(), counter("audit.replay.failed", route).count(),
+					counter("audit.replay.mismatched", route).count(), counter("audit.replay.truncated", route).count(),
+					percentiles[0], percentiles[1], percentiles[2], snapshot.max(TimeUnit.MILLISECONDS));
+		}
+		out.printf(Locale.ROOT, "%d requests scheduled, %d started over 100 ms late%n", scheduled, late.get());
+	}
+
+	private void send(AuditTrail record) {
+		String route = StringUtils.isNotBlank(record.getServiceName()) ? record.getServiceName() : UNROUTED;
+		HttpMethod method = HttpMethod.resolve(record.getRequestMethod());
+		if (method == null || StringUtils.isBlank(record.getRequestUrl())) {
+			counter("audit.replay.failed", route).increment();
+			return;
+		}
+		if (record.isRequestBodyTruncated()) {
+			counter("audit.replay.truncated", route).increment();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			ResponseEntity<byte[]> response = restTemplate.exchange(uri(record), method,
+					new HttpEntity<>(body(record), headers(record)), byte[].class);
+			timer(route).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			if (record.getResponseCode() != 0 && response.getStatusCodeValue() != record.getResponseCode())
+				counter("audit.replay.mismatched", route).increment();
+		} catch (RestClientException | IllegalArgumentException e) {
+			counter("audit.replay.failed", route).increment();
+			replayLogger.debug("Replay of {} {} failed {}", method, record.getRequestUrl(), e.getMessage());
+		}
+	}
+
+	private URI uri(AuditTrail record) {
+		String query = StringUtils.isNotBlank(record.getQueryParams()) ? "?" + record.getQueryParams() : "";
+		return URI.create(target + record.getRequestUrl() + query);
+	}
+
+	private HttpHeaders headers(AuditTrail record) {
+		HttpHeaders headers = new HttpHeaders();
+		if (record.getRequestHeaders() != null) {
+			for (Map.Entry<String, Object> header : record.getRequestHeaders().entrySet()) {
+				if (header.getValue() != null && !SKIPPED_HEADERS.contains(header.getKey()))
+					headers.set(header.getKey(), header.getValue().toString());
+			}
+		}
+		extraHeaders.forEach(headers::set);
+		return headers;
+	}
+
+	private byte[] body(AuditTrail record) {
+		Object body = record.getRequestBody();
+		if (body == null)
+			return null;
+		return (body instanceof String ? (String) body : gson.toJson(body)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private Timer timer(String route) {
+		// the percentiles cover the whole run instead of a sliding window
+		return Timer.builder("audit.replay.latency").tag("route", route).publishPercentiles(PERCENTILES)
+				.distributionStatisticExpiry(Duration.ofDays(1)).distributionStatisticBufferLength(1)
+				.register(meterRegistry);
+	}
+
+	private Counter counter(String name, String route) {
+		return meterRegistry.counter(name, "route", route);
+	}
+}
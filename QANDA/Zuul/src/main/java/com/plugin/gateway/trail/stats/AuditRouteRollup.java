@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.stats;
+
+import java.io.Serializable;
+
+/**
+ * Number of requests of one route, a serviceName, requestMethod and
+ * responseCode, in one minute or over a range of minutes.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditRouteRollup implements Serializable {
+
+	private static final long serialVersionUID = -2870466095338571720L;
+
+	private Long minute;
+	private String serviceName, requestMethod;
+	private int responseCode;
+	private long count;
+
+	public AuditRouteRollup() {
+	}
+
+	/**
+	 * @param minute        epoch second the minute starts at, <code>null</code>
+	 *                      for a total over several minutes
+	 * @param serviceName
+	 * @param requestMethod
+	 * @param responseCode
+	 * @param count
+	 */
+	public AuditRouteRollup(Long minute, String serviceName, String requestMethod, int responseCode, long count) {
+		this.minute = minute;
+		this.serviceName = serviceName;
+		this.requestMethod = requestMethod;
+		this.responseCode = responseCode;
+		this.count = count;
+	}
+
+	/**
+	 * @return the minute
+	 */
+	public Long getMinute() {
+		return minute;
+	}
+
+	/**
+	 * @param minute the minute to set
+	 */
+	public void setMinute(Long minute) {
+		this.minute = minute;
+	}
+
+	/**
+	 * @return the serviceName
+	 */
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	/**
+	 * @param serviceName the serviceName to set
+	 */
+	public void setServiceName(String serviceName) {
+		this.serviceName = serviceName;
+	}
+
+	/**
+	 * @return the requestMethod
+	 */
+	public String getRequestMethod() {
+		return requestMethod;
+	}
+
+	/**
+	 * @param requestMethod the requestMethod to set
+	 */
+	public void setRequestMethod(String requestMethod) {
+		this.requestMethod = requestMethod;
+	}
+
+	/**
+	 * @return the responseCode
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * @param responseCode the responseCode to set
+	 */
+	public void setResponseCode(int responseCode) {
+		this.responseCode = responseCode;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @param count the count to set
+	 */
+	public void setCount(long count) {
+		this.count = count;
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Request counters per route and minute kept in primitive arrays. Each
+ * distinct serviceName, requestMethod and responseCode gets a dense route id
+ * and each minute a bucket holding one counter per route id, so recording a
+ * request is a map lookup and one atomic increment. Buckets live in a ring of
+ * <code>windowMinutes</code> slots; a bucket pushed out of the ring is kept
+ * until a flush finds nothing new in it. Each bucket remembers what was
+ * flushed of it, so a flush hands over only what was counted since and a
+ * request recorded late into an old minute still reaches the storage engine.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTrafficRollup {
+
+	/**
+	 * Service name the requests are counted under once the route table is full.
+	 */
+	public static final String OVERFLOW_SERVICE = "~other";
+
+	private final int windowMinutes;
+	private final int maxRoutes;
+	private final long startMinute;
+	private final Map<String, Integer> routeIds = new ConcurrentHashMap<>();
+	private final String[] routeServices;
+	private final String[] routeMethods;
+	private final int[] routeCodes;
+	private volatile int routeCount;
+	private final AtomicReferenceArray<Bucket> slots;
+	private final List<Bucket> evicted = new ArrayList<>();
+	private final Object flushLock = new Object();
+
+	/**
+	 * @param windowMinutes minutes kept in memory
+	 * @param maxRoutes     routes counted separately, the overflow route
+	 *                      included
+	 * @param nowSecond     epoch second the counting starts at
+	 */
+	public AuditTrafficRollup(int windowMinutes, int maxRoutes, long nowSecond) {
+		this.windowMinutes = Math.max(2, windowMinutes);
+		this.maxRoutes = Math.max(2, maxRoutes);
+		this.startMinute = nowSecond / 60;
+		this.routeServices = new String[this.maxRoutes];
+		this.routeMethods = new String[this.maxRoutes];
+		this.routeCodes = new int[this.maxRoutes];
+		this.slots = new AtomicReferenceArray<>(this.windowMinutes);
+		routeServices[0] = OVERFLOW_SERVICE;
+		routeMethods[0] = "";
+		routeCount = 1;
+	}
+
+	/**
+	 * Counts one request, a request older than the window is ignored.
+	 *
+	 * @param serviceName
+	 * @param requestMethod
+	 * @param responseCode
+	 * @param epochSecond   request time
+	 */
+	public void record(String serviceName, String requestMethod, int responseCode, long epochSecond) {
+		Bucket bucket = bucket(epochSecond / 60);
+		if (bucket != null)
+			bucket.counts.incrementAndGet(routeId(serviceName == null ? "" : serviceName,
+					requestMethod == null ? "" : requestMethod, responseCode));
+	}
+
+	/**
+	 * Hands what was counted since the last flush in every minute before
+	 * <code>beforeSecond</code> to the sink in one list, as increments to add
+	 * to the stored counts. The increments count as flushed only once the sink
+	 * returns, so a failing sink sees them again next time. Recording goes on
+	 * while the sink runs and what it adds meanwhile goes with the next flush.
+	 *
+	 * @param beforeSecond epoch second, minutes starting before it are flushed
+	 * @param sink
+	 * @return the number of rollups flushed
+	 */
+	public int flush(long beforeSecond, Consumer<List<AuditRouteRollup>> sink) {
+		long beforeMinute = Math.floorDiv(beforeSecond, 60);
+		synchronized (flushLock) {
+			List<Bucket> closed;
+			List<Bucket> pushedOut;
+			synchronized (this) {
+				pushedOut = new ArrayList<>(evicted);
+				closed = new ArrayList<>(evicted);
+				for (int slot = 0; slot < slots.length(); slot++) {
+					Bucket bucket = slots.get(slot);
+					if (bucket != null && bucket.minute < beforeMinute)
+						closed.add(bucket);
+				}
+			}
+			int routes = routeCount;
+			List<long[]> counted = new ArrayList<>(closed.size());
+			List<AuditRouteRollup> rollups = new ArrayList<>();
+			List<Bucket> unchanged = new ArrayList<>();
+			for (Bucket bucket : closed) {
+				long[] counts = new long[routes];
+				boolean changed = false;
+				for (int route = 0; route < routes; route++) {
+					counts[route] = bucket.counts.get(route);
+					long increment = counts[route] - bucket.flushedCounts[route];
+					if (increment > 0) {
+						rollups.add(new AuditRouteRollup(bucket.minute * 60, routeServices[route],
+								routeMethods[route], routeCodes[route], increment));
+						changed = true;
+					}
+				}
+				counted.add(counts);
+				if (!changed)
+					unchanged.add(bucket);
+			}
+			if (!rollups.isEmpty())
+				sink.accept(rollups);
+			for (int i = 0; i < closed.size(); i++)
+				System.arraycopy(counted.get(i), 0, closed.get(i).flushedCounts, 0, routes);
+			// a pushed out bucket goes once a flush found nothing left in it
+			pushedOut.retainAll(unchanged);
+			synchronized (this) {
+				evicted.removeAll(pushedOut);
+			}
+			return rollups.size();
+		}
+	}
+
+	/**
+	 * Hands the non zero counters of the minutes in memory that start within
+	 * the range to the consumer, one rollup per route and minute.
+	 *
+	 * @param fromSecond epoch second
+	 * @param toSecond   epoch second
+	 * @param consumer
+	 */
+	public void collect(long fromSecond, long toSecond, Consumer<AuditRouteRollup> consumer) {
+		long fromMinute = Math.floorDiv(fromSecond + 59, 60);
+		long toMinute = Math.floorDiv(toSecond, 60);
+		for (int slot = 0; slot < slots.length(); slot++) {
+			Bucket bucket = slots.get(slot);
+			if (bucket != null && bucket.minute >= fromMinute && bucket.minute <= toMinute)
+				collect(bucket, consumer);
+		}
+	}
+
+	/**
+	 * Minutes from the returned one on are counted completely in memory, older
+	 * minutes have to be read from the storage engine.
+	 *
+	 * @param nowSecond
+	 * @return epoch second of the first minute held in full
+	 */
+	public long coveredFrom(long nowSecond) {
+		return Math.max(startMinute + 1, nowSecond / 60 - windowMinutes + 1) * 60;
+	}
+
+	/**
+	 * @return the number of routes counted separately
+	 */
+	public int getRouteCount() {
+		return routeCount;
+	}
+
+	/**
+	 * @return the number of buckets pushed out of the ring a flush still has to
+	 *         look at
+	 */
+	synchronized int getPushedOutCount() {
+		return evicted.size();
+	}
+
+	private void collect(Bucket bucket, Consumer<AuditRouteRollup> consumer) {
+		int routes = routeCount;
+		for (int route = 0; route < routes; route++) {
+			long count = bucket.counts.get(route);
+			if (count > 0)
+				consumer.accept(new AuditRouteRollup(bucket.minute * 60, routeServices[route], routeMethods[route],
+						routeCodes[route], count));
+		}
+	}
+
+	private Bucket bucket(long minute) {
+		int slot = (int) Math.floorMod(minute, (long) windowMinutes);
+		Bucket bucket = slots.get(slot);
+		if (bucket != null && bucket.minute == minute)
+			return bucket;
+		synchronized (this) {
+			bucket = slots.get(slot);
+			if (bucket != null && bucket.minute == minute)
+				return bucket;
+			if (bucket != null && bucket.minute > minute)
+				return null;
+			if (bucket != null)
+				evicted.add(bucket);
+			bucket = new Bucket(minute, maxRoutes);
+			slots.set(slot, bucket);
+			return bucket;
+		}
+	}
+
+	private int routeId(String serviceName, String requestMethod, int responseCode) {
+		String key = serviceName + '\n' + requestMethod + '\n' + responseCode;
+		Integer routeId = routeIds.get(key);
+		if (routeId != null)
+			return routeId;
+		synchronized (routeIds) {
+			routeId = routeIds.get(key);
+			if (routeId != null)
+				return routeId;
+			if (routeCount == maxRoutes)
+				return 0;
+			int route = routeCount;
+			routeServices[route] = serviceName;
+			routeMethods[route] = requestMethod;
+			routeCodes[route] = responseCode;
+			routeIds.put(key, route);
+			routeCount = route + 1;
+			return route;
+		}
+	}
+
+	private static final class Bucket {
+		private final long minute;
+		private final AtomicLongArray counts;
+		// counts handed to the sink so far, guarded by flushLock
+		private final long[] flushedCounts;
+
+		private Bucket(long minute, int routes) {
+			this.minute = minute;
+			this.counts = new AtomicLongArray(routes);
+			this.flushedCounts = new long[routes];
+		}
+	}
+}
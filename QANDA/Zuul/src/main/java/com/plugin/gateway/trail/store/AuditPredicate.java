@@ -0,0 +1,392 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import com.plugin.gateway.enums.AuditSearchField;
+import com.plugin.gateway.enums.AuditSearchOperator;
+import com.plugin.gateway.trail.log.AuditTokenizer;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Immutable predicate tree a search compiles to, see
+ * {@link AuditSearchCriteria}. Comparison values are converted to the type of
+ * their field and text is lower cased when the tree is built, and number
+ * fields are read as primitives, so testing a record neither parses nor
+ * allocates. Engines that filter in memory call {@link #test(AuditTrail)},
+ * the others translate the tree with a {@link Visitor}.
+ *
+ * @author Sankha
+ *
+ */
+public abstract class AuditPredicate {
+
+	/**
+	 * Matches every record.
+	 */
+	public static final AuditPredicate ALL = new All();
+
+	private AuditPredicate() {
+	}
+
+	/**
+	 * @param record
+	 * @return <code>true</code> when the record matches
+	 */
+	public abstract boolean test(AuditTrail record);
+
+	public abstract <R> R accept(Visitor<R> visitor);
+
+	/**
+	 * Translates a tree node by node, children are visited by the visitor
+	 * itself.
+	 */
+	public interface Visitor<R> {
+
+		R all();
+
+		R and(List<AuditPredicate> operands);
+
+		R or(List<AuditPredicate> operands);
+
+		R not(AuditPredicate operand);
+
+		R compare(Comparison comparison);
+
+		R bodyContains(BodyContains bodyContains);
+	}
+
+	/**
+	 * @param operands
+	 * @return the conjunction, nested conjunctions and {@link #ALL} are folded
+	 *         in
+	 */
+	public static AuditPredicate and(List<AuditPredicate> operands) {
+		List<AuditPredicate> flat = new ArrayList<>();
+		for (AuditPredicate operand : operands) {
+			if (operand instanceof And)
+				flat.addAll(((And) operand).operands);
+			else if (operand != ALL)
+				flat.add(operand);
+		}
+		if (flat.isEmpty())
+			return ALL;
+		return flat.size() == 1 ? flat.get(0) : new And(flat);
+	}
+
+	/**
+	 * @param operands at least one
+	 * @return the disjunction
+	 */
+	public static AuditPredicate or(List<AuditPredicate> operands) {
+		if (operands.isEmpty())
+			throw new IllegalArgumentException("Audit search or needs at least one operand");
+		if (operands.contains(ALL))
+			return ALL;
+		return operands.size() == 1 ? operands.get(0) : new Or(operands);
+	}
+
+	public static AuditPredicate not(AuditPredicate operand) {
+		return operand instanceof Not ? ((Not) operand).operand : new Not(operand);
+	}
+
+	/**
+	 * @param field
+	 * @param operator
+	 * @param values   one value, or any number for {@link AuditSearchOperator#IN},
+	 *                 as sent with the search
+	 * @return the comparison
+	 * @throws IllegalArgumentException when the operator does not apply to the
+	 *                                  field or a value is not of its type
+	 */
+	public static AuditPredicate compare(AuditSearchField field, AuditSearchOperator operator, List<String> values) {
+		return new Comparison(field, operator, values);
+	}
+
+	/**
+	 * @param phrase words to find in order in the request body or query string
+	 * @return the body search, {@link #ALL} when the phrase holds no word
+	 */
+	public static AuditPredicate bodyContains(String phrase) {
+		long[] tokens = AuditTokenizer.hashes(phrase);
+		return tokens.length == 0 ? ALL : new BodyContains(phrase, tokens);
+	}
+
+	/**
+	 * @param predicate
+	 * @return the operands of a conjunction, the predicate alone otherwise
+	 */
+	public static List<AuditPredicate> conjuncts(AuditPredicate predicate) {
+		if (predicate instanceof And)
+			return ((And) predicate).operands;
+		return predicate == ALL ? Collections.emptyList() : Collections.singletonList(predicate);
+	}
+
+	private static final class All extends AuditPredicate {
+
+		@Override
+		public boolean test(AuditTrail record) {
+			return true;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.all();
+		}
+	}
+
+	private static final class And extends AuditPredicate {
+		private final List<AuditPredicate> operands;
+
+		private And(List<AuditPredicate> operands) {
+			this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+		}
+
+		@Override
+		public boolean test(AuditTrail record) {
+			for (AuditPredicate operand : operands) {
+				if (!operand.test(record))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.and(operands);
+		}
+	}
+
+	private static final class Or extends AuditPredicate {
+		private final List<AuditPredicate> operands;
+
+		private Or(List<AuditPredicate> operands) {
+			this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+		}
+
+		@Override
+		public boolean test(AuditTrail record) {
+			for (AuditPredicate operand : operands) {
+				if (operand.test(record))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.or(operands);
+		}
+	}
+
+	private static final class Not extends AuditPredicate {
+		private final AuditPredicate operand;
+
+		private Not(AuditPredicate operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public boolean test(AuditTrail record) {
+			return !operand.test(record);
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.not(operand);
+		}
+	}
+
+	/**
+	 * A field compared to constants. A record without the field only matches
+	 * {@link AuditSearchOperator#NE}, as in Mongo.
+	 */
+	public static final class Comparison extends AuditPredicate {
+		private final AuditSearchField field;
+		private final AuditSearchOperator operator;
+		private final List<String> texts;
+		// typed values, lower cased for text fields
+		private final Object[] values;
+		// the values of a number field unboxed
+		private final long[] longs;
+
+		private Comparison(AuditSearchField field, AuditSearchOperator operator, List<String> texts) {
+			if (texts.isEmpty() || (texts.size() > 1 && operator != AuditSearchOperator.IN))
+				throw new IllegalArgumentException("Audit search " + field + " " + operator + " takes "
+						+ (operator == AuditSearchOperator.IN ? "at least one value" : "one value"));
+			if ((operator.isRange() && field.getKind() != AuditSearchField.Kind.NUMBER)
+					|| (operator.isTextOnly() && field.getKind() != AuditSearchField.Kind.TEXT))
+				throw new IllegalArgumentException("Audit search operator " + operator + " does not apply to " + field);
+			if (operator == AuditSearchOperator.MATCH)
+				throw new IllegalArgumentException("Audit search operator match is resolved to a match mode first");
+			this.field = field;
+			this.operator = operator;
+			this.texts = Collections.unmodifiableList(new ArrayList<>(texts));
+			this.values = new Object[texts.size()];
+			this.longs = new long[field.getKind() == AuditSearchField.Kind.NUMBER ? values.length : 0];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = convert(field, texts.get(i));
+				if (longs.length > 0)
+					longs[i] = (Long) values[i];
+			}
+		}
+
+		public AuditSearchField getField() {
+			return field;
+		}
+
+		public AuditSearchOperator getOperator() {
+			return operator;
+		}
+
+		/**
+		 * @return the values as sent with the search
+		 */
+		public List<String> getTexts() {
+			return texts;
+		}
+
+		/**
+		 * @return the values typed for the field, a {@link UUID}, a lower cased
+		 *         {@link String} or a {@link Long}
+		 */
+		public List<Object> getValues() {
+			List<Object> typed = new ArrayList<>(values.length);
+			Collections.addAll(typed, values);
+			return typed;
+		}
+
+		@Override
+		public boolean test(AuditTrail record) {
+			if (field.getKind() == AuditSearchField.Kind.NUMBER)
+				return testNumber(record);
+			Object actual = field.valueOf(record);
+			if (actual == null)
+				return operator == AuditSearchOperator.NE;
+			switch (operator) {
+			case EQ:
+				return same(actual, values[0]);
+			case NE:
+				return !same(actual, values[0]);
+			case IN:
+				for (Object value : values) {
+					if (same(actual, value))
+						return true;
+				}
+				return false;
+			case PREFIX:
+				String prefix = (String) values[0];
+				return ((String) actual).regionMatches(true, 0, prefix, 0, prefix.length());
+			case CONTAINS:
+				return containsIgnoreCase((String) actual, (String) values[0]);
+			default:
+				return false;
+			}
+		}
+
+		private boolean testNumber(AuditTrail record) {
+			if (!field.hasLongValue(record))
+				return operator == AuditSearchOperator.NE;
+			long actual = field.longValueOf(record);
+			switch (operator) {
+			case EQ:
+				return actual == longs[0];
+			case NE:
+				return actual != longs[0];
+			case IN:
+				for (long value : longs) {
+					if (actual == value)
+						return true;
+				}
+				return false;
+			case GT:
+				return actual > longs[0];
+			case GTE:
+				return actual >= longs[0];
+			case LT:
+				return actual < longs[0];
+			case LTE:
+				return actual <= longs[0];
+			default:
+				return false;
+			}
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.compare(this);
+		}
+
+		private boolean same(Object actual, Object value) {
+			if (field.getKind() == AuditSearchField.Kind.TEXT)
+				return ((String) actual).equalsIgnoreCase((String) value);
+			return actual.equals(value);
+		}
+
+		private static boolean containsIgnoreCase(String actual, String part) {
+			for (int start = 0; start <= actual.length() - part.length(); start++) {
+				if (actual.regionMatches(true, start, part, 0, part.length()))
+					return true;
+			}
+			return false;
+		}
+
+		private static Object convert(AuditSearchField field, String text) {
+			try {
+				switch (field.getKind()) {
+				case ID:
+					return UUID.fromString(text);
+				case NUMBER:
+					return Long.valueOf(text.trim());
+				default:
+					return text.toLowerCase(Locale.ROOT);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Audit search value " + text + " is not valid for " + field, e);
+			}
+		}
+	}
+
+	/**
+	 * Words to find in order in the request body or query string, see
+	 * {@link AuditTokenizer}.
+	 */
+	public static final class BodyContains extends AuditPredicate {
+		private final String phrase;
+		private final long[] tokens;
+
+		private BodyContains(String phrase, long[] tokens) {
+			this.phrase = phrase;
+			this.tokens = tokens;
+		}
+
+		public String getPhrase() {
+			return phrase;
+		}
+
+		/**
+		 * @return the token hashes of the phrase in order
+		 */
+		public long[] getTokens() {
+			return tokens.clone();
+		}
+
+		@Override
+		public boolean test(AuditTrail record) {
+			return AuditTokenizer.containsPhrase(
+					record.getRequestBody() == null ? null : record.getRequestBody().toString(), tokens)
+					|| AuditTokenizer.containsPhrase(record.getQueryParams(), tokens);
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.bodyContains(this);
+		}
+	}
+}
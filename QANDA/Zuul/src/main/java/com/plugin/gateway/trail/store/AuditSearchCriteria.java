@@ -0,0 +1,348 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.enums.AuditSearchField;
+import com.plugin.gateway.enums.AuditSearchOperator;
+import com.plugin.gateway.trail.log.AuditDayIndex;
+import com.plugin.gateway.trail.log.AuditTokenizer;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * The search body of the audit endpoints compiled once into an
+ * {@link AuditPredicate} for the storage engines. Every key of an object is
+ * one condition and all of them must hold:
+ * <ul>
+ * <li>a field of {@link AuditSearchField} with a value, equal to it (text
+ * fields use <code>matchMode</code> when the search sends one and
+ * <code>audit.matchMode</code> otherwise), or with an
+ * object of {@link AuditSearchOperator} names to values, e.g.
+ * <code>{"responseCode": {"gte": 500, "lt": 600}}</code></li>
+ * <li>the record ids given as <code>id</code> or as an <code>ids</code>
+ * array</li>
+ * <li><code>fromDate</code>/<code>toDate</code>, the request time range, and
+ * <code>targetDate</code>, a request day</li>
+ * <li><code>bodyContains</code>, words looked up in the request bodies and
+ * query strings, see {@link AuditTokenizer}</li>
+ * <li><code>and</code>/<code>or</code>, an array of such objects, and
+ * <code>not</code>, one such object</li>
+ * </ul>
+ * The conditions at the top level narrow what the engines read through their
+ * indexes: the terms on the {@link AuditDayIndex#INDEXED_FIELDS}, the ids, the
+ * request time range and the body words. Whatever is read is then checked
+ * against the whole predicate.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSearchCriteria {
+
+	private final JsonObject source;
+	private final AuditPredicate predicate;
+	private final Map<String, String> terms;
+	private final Set<UUID> ids;
+	private final Long fromDate;
+	private final Long toDate;
+	private final AuditPredicate.BodyContains bodyContains;
+
+	/**
+	 * Compiles the search with bare text values compared for equality,
+	 * ignoring case.
+	 *
+	 * @param source
+	 * @throws IllegalArgumentException when the search names an unknown
+	 *                                  operator, a value does not fit its
+	 *                                  field or a key holds the wrong kind of
+	 *                                  JSON, e.g. an object in an
+	 *                                  <code>ids</code> array
+	 */
+	public AuditSearchCriteria(JsonObject source) {
+		this(source, AuditMatchMode.EXACT);
+	}
+
+	/**
+	 * @param source
+	 * @param defaultMatchMode how bare text values and the <code>match</code>
+	 *                         operator compare unless the search sends its own
+	 *                         <code>matchMode</code>
+	 * @throws IllegalArgumentException when the search names an unknown
+	 *                                  operator, a value does not fit its
+	 *                                  field or a key holds the wrong kind of
+	 *                                  JSON
+	 */
+	public AuditSearchCriteria(JsonObject source, AuditMatchMode defaultMatchMode) {
+		this.source = source;
+		try {
+			AuditSearchOperator textOperator = AuditSearchOperator.fromMatchMode(hasValue(source, "matchMode")
+					? AuditMatchMode.fromValue(source.get("matchMode").getAsString(), defaultMatchMode)
+					: defaultMatchMode);
+			this.predicate = compile(source, textOperator);
+		} catch (IllegalStateException | UnsupportedOperationException e) {
+			// Gson refusing to read an element as the kind the key needs
+			throw new IllegalArgumentException("Audit search is malformed " + e.getMessage(), e);
+		}
+
+		Map<String, String> fieldTerms = new HashMap<>();
+		Set<UUID> recordIds = null;
+		Long from = null;
+		Long to = null;
+		AuditPredicate.BodyContains body = null;
+		for (AuditPredicate conjunct : AuditPredicate.conjuncts(predicate)) {
+			if (conjunct instanceof AuditPredicate.BodyContains) {
+				if (body == null)
+					body = (AuditPredicate.BodyContains) conjunct;
+				continue;
+			}
+			if (!(conjunct instanceof AuditPredicate.Comparison))
+				continue;
+			AuditPredicate.Comparison comparison = (AuditPredicate.Comparison) conjunct;
+			AuditSearchOperator operator = comparison.getOperator();
+			AuditSearchField field = comparison.getField();
+			if (field == AuditSearchField.ID
+					&& (operator == AuditSearchOperator.EQ || operator == AuditSearchOperator.IN)) {
+				Set<UUID> conjunctIds = new LinkedHashSet<>();
+				comparison.getValues().forEach(value -> conjunctIds.add((UUID) value));
+				if (recordIds == null)
+					recordIds = conjunctIds;
+				else
+					recordIds.retainAll(conjunctIds);
+			} else if (field == AuditSearchField.REQUEST_TIMESTAMP && !operator.isTextOnly()
+					&& operator != AuditSearchOperator.NE && operator != AuditSearchOperator.IN) {
+				long value = (Long) comparison.getValues().get(0);
+				if (operator == AuditSearchOperator.GT)
+					value++;
+				else if (operator == AuditSearchOperator.LT)
+					value--;
+				if (operator != AuditSearchOperator.LT && operator != AuditSearchOperator.LTE)
+					from = from == null ? value : Math.max(from, value);
+				if (operator != AuditSearchOperator.GT && operator != AuditSearchOperator.GTE)
+					to = to == null ? value : Math.min(to, value);
+			} else if (operator == AuditSearchOperator.EQ
+					&& AuditDayIndex.INDEXED_FIELDS.containsKey(field.getValue().toLowerCase(Locale.ROOT))) {
+				fieldTerms.putIfAbsent(field.getValue().toLowerCase(Locale.ROOT), comparison.getTexts().get(0));
+			}
+		}
+		this.terms = Collections.unmodifiableMap(fieldTerms);
+		this.ids = recordIds == null ? null : Collections.unmodifiableSet(recordIds);
+		this.fromDate = from;
+		this.toDate = to;
+		this.bodyContains = body;
+	}
+
+	/**
+	 * @param object
+	 * @param key
+	 * @return <code>true</code> when the key holds a non blank value
+	 */
+	public static boolean hasValue(JsonObject object, String key) {
+		if (object.has(key) && !object.get(key).isJsonNull() && object.get(key) != null) {
+			String content = StringUtils.removeStart(object.get(key).toString(), "\"");
+			content = StringUtils.removeEnd(content, "\"");
+			return StringUtils.isNotBlank(content);
+		}
+		return false;
+	}
+
+	/**
+	 * @param record
+	 * @return <code>true</code> when the record meets the whole predicate
+	 */
+	public boolean matches(AuditTrail record) {
+		return predicate.test(record);
+	}
+
+	/**
+	 * @return <code>true</code> when the top level of the search pins record
+	 *         ids, an indexed field value or a request time bound, so it
+	 *         cannot select the whole trail by accident
+	 */
+	public boolean isNarrowed() {
+		return ids != null || !terms.isEmpty() || fromDate != null || toDate != null;
+	}
+
+	/**
+	 * @return the search body as it was sent
+	 */
+	public JsonObject getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the compiled search
+	 */
+	public AuditPredicate getPredicate() {
+		return predicate;
+	}
+
+	/**
+	 * @return lower cased field name to the value every match equals ignoring
+	 *         case
+	 */
+	public Map<String, String> getTerms() {
+		return terms;
+	}
+
+	/**
+	 * @return the record ids every match is among or <code>null</code> for any
+	 *         record
+	 */
+	public Set<UUID> getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return the lowest request timestamp of any match or <code>null</code>
+	 */
+	public Long getFromDate() {
+		return fromDate;
+	}
+
+	/**
+	 * @return the highest request timestamp of any match or <code>null</code>
+	 */
+	public Long getToDate() {
+		return toDate;
+	}
+
+	/**
+	 * @return the words every match holds in its request body or query string
+	 *         or <code>null</code>
+	 */
+	public String getBodyContains() {
+		return bodyContains == null ? null : bodyContains.getPhrase();
+	}
+
+	/**
+	 * @return the token hashes of {@link #getBodyContains()} in order, empty
+	 *         when there is none
+	 */
+	public long[] getBodyTokens() {
+		return bodyContains == null ? new long[0] : bodyContains.getTokens();
+	}
+
+	private static AuditPredicate compile(JsonObject object, AuditSearchOperator textOperator) {
+		List<AuditPredicate> conditions = new ArrayList<>();
+		for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+			JsonElement value = entry.getValue();
+			if (value == null || value.isJsonNull()
+					|| (value.isJsonPrimitive() && StringUtils.isBlank(value.getAsString())))
+				continue;
+			String key = entry.getKey().toLowerCase(Locale.ROOT);
+			switch (key) {
+			case "and":
+			case "or":
+				List<AuditPredicate> operands = new ArrayList<>();
+				for (JsonElement operand : value.getAsJsonArray())
+					operands.add(compile(operand.getAsJsonObject(), textOperator));
+				conditions.add(key.equals("and") ? AuditPredicate.and(operands) : AuditPredicate.or(operands));
+				break;
+			case "not":
+				conditions.add(AuditPredicate.not(compile(value.getAsJsonObject(), textOperator)));
+				break;
+			case "id":
+			case "ids":
+				conditions.add(value.isJsonObject() ? field(AuditSearchField.ID, value, textOperator)
+						: AuditPredicate.compare(AuditSearchField.ID, AuditSearchOperator.IN, texts(value)));
+				break;
+			case "fromdate":
+				conditions.add(AuditPredicate.compare(AuditSearchField.REQUEST_TIMESTAMP, AuditSearchOperator.GTE,
+						texts(value)));
+				break;
+			case "todate":
+				conditions.add(AuditPredicate.compare(AuditSearchField.REQUEST_TIMESTAMP, AuditSearchOperator.LTE,
+						texts(value)));
+				break;
+			case "targetdate":
+				conditions.add(targetDay(value.getAsString()));
+				break;
+			case "bodycontains":
+				conditions.add(AuditPredicate.bodyContains(value.getAsString()));
+				break;
+			default:
+				AuditSearchField field = AuditSearchField.fromValue(key);
+				if (field != null)
+					conditions.add(field(field, value, textOperator));
+			}
+		}
+		return AuditPredicate.and(conditions);
+	}
+
+	private static AuditPredicate field(AuditSearchField field, JsonElement value, AuditSearchOperator textOperator) {
+		if (!value.isJsonObject()) {
+			AuditSearchOperator operator = field.getKind() == AuditSearchField.Kind.TEXT ? textOperator
+					: AuditSearchOperator.EQ;
+			return AuditPredicate.compare(field, operator, texts(value));
+		}
+		List<AuditPredicate> comparisons = new ArrayList<>();
+		for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+			AuditSearchOperator operator = AuditSearchOperator.fromValue(entry.getKey());
+			if (operator == null)
+				throw new IllegalArgumentException("Unknown audit search operator " + entry.getKey());
+			// resolved here so every engine compares it the same way
+			if (operator == AuditSearchOperator.MATCH && field.getKind() == AuditSearchField.Kind.TEXT)
+				operator = textOperator;
+			comparisons.add(AuditPredicate.compare(field, operator, texts(entry.getValue())));
+		}
+		return AuditPredicate.and(comparisons);
+	}
+
+	private static List<String> texts(JsonElement value) {
+		if (!value.isJsonArray())
+			return Collections.singletonList(value.getAsString());
+		List<String> texts = new ArrayList<>();
+		for (JsonElement element : value.getAsJsonArray())
+			texts.add(element.getAsString());
+		return texts;
+	}
+
+	/**
+	 * @param targetDate <code>today</code>, <code>yesterday</code>,
+	 *                   <code>daybeforeyesterday</code> or a day in
+	 *                   <code>yyyyMMdd</code>
+	 * @return the request time range of the day
+	 */
+	private static AuditPredicate targetDay(String targetDate) {
+		LocalDate day;
+		if (targetDate.equalsIgnoreCase("today"))
+			day = LocalDate.now();
+		else if (targetDate.equalsIgnoreCase("yesterday"))
+			day = LocalDate.now().minusDays(1);
+		else if (targetDate.equalsIgnoreCase("daybeforeyesterday"))
+			day = LocalDate.now().minusDays(2);
+		else {
+			try {
+				day = LocalDate.parse(targetDate, DateTimeFormatter.BASIC_ISO_DATE);
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Audit search targetDate " + targetDate + " is not yyyyMMdd", e);
+			}
+		}
+		long start = day.atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+		long end = day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toEpochSecond() - 1;
+		List<AuditPredicate> range = new ArrayList<>();
+		range.add(AuditPredicate.compare(AuditSearchField.REQUEST_TIMESTAMP, AuditSearchOperator.GTE,
+				Collections.singletonList(Long.toString(start))));
+		range.add(AuditPredicate.compare(AuditSearchField.REQUEST_TIMESTAMP, AuditSearchOperator.LTE,
+				Collections.singletonList(Long.toString(end))));
+		return AuditPredicate.and(range);
+	}
+}
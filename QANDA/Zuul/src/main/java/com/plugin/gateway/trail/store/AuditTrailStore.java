@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * Storage engine SPI of the audit trail. One store is created per gateway by
+ * the {@link AuditTrailStoreFactory} matching <code>audit.storageEngine</code>
+ * and shared as a bean; it is closed when the context stops.
+ *
+ * @author Sankha
+ *
+ */
+public interface AuditTrailStore extends Closeable {
+
+	/**
+	 * The stripe a record goes to when writes are striped, the writer and the
+	 * file engine agree on it so each writer stripe appends to its own files.
+	 *
+	 * @param serviceName
+	 * @param stripes     number of stripes
+	 * @return the stripe of the service, 0 when there is only one
+	 */
+	static int stripeOf(String serviceName, int stripes) {
+		return stripes <= 1 || serviceName == null ? 0 : Math.floorMod(serviceName.hashCode(), stripes);
+	}
+
+	/**
+	 * @return the latest version of every record
+	 * @throws IOException
+	 */
+	List<AuditTrail> findAll() throws IOException;
+
+	/**
+	 * @param id
+	 * @return the latest version of the record or <code>null</code>
+	 * @throws IOException
+	 */
+	AuditTrail findById(UUID id) throws IOException;
+
+	/**
+	 * Writes a new record or a newer version of a stored one.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	void save(AuditTrail record) throws IOException;
+
+	/**
+	 * Writes a batch of records, engines should write it in one go.
+	 *
+	 * @param records
+	 * @throws IOException
+	 */
+	void saveAll(List<AuditTrail> records) throws IOException;
+
+	/**
+	 * Hands the matching records to the consumer one at a time.
+	 *
+	 * @param criteria search criteria, empty for all records
+	 * @param after    id of the last record the caller already has, or
+	 *                 <code>null</code> to start at the beginning
+	 * @param limit    maximum number of records, 0 for no limit
+	 * @param consumer
+	 * @return the number of records handed to the consumer
+	 * @throws IOException
+	 * @throws IllegalArgumentException when <code>after</code> names no stored
+	 *                                  record, rather than starting over
+	 */
+	int stream(AuditSearchCriteria criteria, String after, int limit, Consumer<AuditTrail> consumer)
+			throws IOException;
+
+	/**
+	 * Sets the status of every matching record in bulk. Engines should apply
+	 * the change in one pass over the storage they touch rather than one write
+	 * per record.
+	 *
+	 * @param criteria        selects the records, see
+	 *                        {@link AuditSearchCriteria#getIds()} for an id
+	 *                        list
+	 * @param status          new status
+	 * @param updatedBy       user making the change
+	 * @param updateTimestamp epoch second of the change
+	 * @return the number of records updated
+	 * @throws IOException
+	 */
+	int updateStatus(AuditSearchCriteria criteria, String status, String updatedBy, long updateTimestamp)
+			throws IOException;
+
+	/**
+	 * Adds per minute route counts to the ones already stored.
+	 *
+	 * @param rollups one per route and minute
+	 * @throws IOException
+	 */
+	void saveRollups(List<AuditRouteRollup> rollups) throws IOException;
+
+	/**
+	 * @param fromSecond epoch second
+	 * @param toSecond   epoch second
+	 * @return the stored route counts of the minutes starting within the range,
+	 *         in no particular order and possibly several per route and minute
+	 * @throws IOException
+	 */
+	List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) throws IOException;
+
+	/**
+	 * Drops audit data and rollups older than <code>retentionDays</code> and
+	 * keeps the store within <code>maxBytes</code> where the engine supports
+	 * it.
+	 *
+	 * @param retentionDays       days to keep, 0 keeps every day
+	 * @param maxBytes            disk budget, 0 for none
+	 * @param compactionThreshold share of superseded versions that triggers a
+	 *                            compaction
+	 * @throws IOException
+	 */
+	void applyRetention(int retentionDays, long maxBytes, double compactionThreshold) throws IOException;
+}
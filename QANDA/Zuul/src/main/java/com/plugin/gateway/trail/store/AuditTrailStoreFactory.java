@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.io.IOException;
+import java.util.Set;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+
+/**
+ * Creates the {@link AuditTrailStore} of one storage engine. Factories are
+ * Spring beans, so an engine is added by declaring one more factory.
+ *
+ * @author Sankha
+ *
+ */
+public interface AuditTrailStoreFactory {
+
+	/**
+	 * @return the lower cased names that select the engine in
+	 *         <code>audit.storageEngine</code>
+	 */
+	Set<String> getNames();
+
+	/**
+	 * @param auditProperties
+	 * @return a new store
+	 * @throws IOException
+	 */
+	AuditTrailStore create(AuditConfigurationProperties auditProperties) throws IOException;
+}
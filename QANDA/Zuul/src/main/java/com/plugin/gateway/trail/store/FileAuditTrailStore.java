@@ -0,0 +1,636 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.plugin.gateway.enums.AuditDurability;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.trail.log.AuditDayIndex;
+import com.plugin.gateway.trail.log.AuditLogOptions;
+import com.plugin.gateway.trail.log.AuditSegment;
+import com.plugin.gateway.trail.log.AuditSegmentLog;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * File engine, records live in {@link AuditSegmentLog}s and searches are
+ * answered from their day indexes, body searches from their token indexes
+ * when they are on. Writes can be striped by service, see
+ * {@link AuditTrailStore#stripeOf(String, int)}: stripe 0 is the log in the
+ * folder itself, stripe <code>i</code> the log in its
+ * <code>stripe-&lt;i&gt;</code> sub folder, each with its own segments,
+ * indexes and lock. All versions of a record stay in the stripe it was first
+ * written to. A folder keeps the stripe count it was first written with.
+ * Route rollups are appended to one
+ * <code>trailRollup_&lt;yyyyMMdd&gt;.rollup</code> file per day next to the
+ * segments. A store opened read only writes nothing to the folder, see
+ * {@link AuditSegmentLog}; it keeps the stripes it finds, leaves legacy
+ * files unmigrated and refuses every write.
+ *
+ * @author Sankha
+ *
+ */
+public class FileAuditTrailStore implements AuditTrailStore {
+
+	private static final String AUDIT_TRAIL_FILE_PREFIX = "trailList";
+	private static final String AUDIT_TRAIL_FILE_EXTENTION = ".dat";
+	private static final String ROLLUP_FILE_PREFIX = "trailRollup_";
+	private static final String ROLLUP_FILE_EXTENTION = ".rollup";
+	private static final int STREAM_CHUNK_SIZE = 256;
+	private static final String STRIPE_FOLDER_PREFIX = "stripe-";
+
+	private final Logger storeLogger = LoggerFactory.getLogger(FileAuditTrailStore.class);
+	private final Path folder;
+	// indexed by stripe
+	private final List<AuditSegmentLog> stripeLogs;
+	private final ForkJoinPool searchPool;
+	private final int searchParallelism;
+	private final boolean readOnly;
+
+	/**
+	 * @param folder          holding the segments
+	 * @param auditProperties the segment size, durability, search parallelism,
+	 *                        body index, stripe count and day index cache size
+	 *                        of the store, a folder already written with
+	 *                        another stripe count keeps it
+	 * @throws IOException
+	 */
+	public FileAuditTrailStore(Path folder, AuditConfigurationProperties auditProperties) throws IOException {
+		this(folder, auditProperties, false);
+	}
+
+	/**
+	 * @param folder          holding the segments
+	 * @param auditProperties the segment size, durability, search parallelism,
+	 *                        body index, stripe count and day index cache size
+	 *                        of the store, a folder already written with
+	 *                        another stripe count keeps it
+	 * @param readOnly        only search the folder, which has to exist
+	 * @throws IOException
+	 */
+	public FileAuditTrailStore(Path folder, AuditConfigurationProperties auditProperties, boolean readOnly)
+			throws IOException {
+		this.folder = folder;
+		this.readOnly = readOnly;
+		this.searchParallelism = Math.max(1, auditProperties.getSearchParallelism());
+		this.searchPool = new ForkJoinPool(this.searchParallelism);
+		int stripeCount = resolveStripes(folder, auditProperties.getWriterStripes());
+		long dayIndexMaxBytes = auditProperties.getDayIndexCacheMaxBytes();
+		// the cached day indexes are shared evenly by the stripes
+		AuditLogOptions options = new AuditLogOptions().segmentMaxBytes(auditProperties.getSegmentMaxBytes())
+				.durability(AuditDurability.fromValue(auditProperties.getDurability()))
+				.forceIntervalMillis(auditProperties.getDurabilityIntervalMillis())
+				.bodyIndexMaxTokens(auditProperties.isBodyIndex() ? auditProperties.getBodyIndexMaxTokens() : 0)
+				.dayIndexMaxBytes(dayIndexMaxBytes <= 0 ? 0 : Math.max(1, dayIndexMaxBytes / stripeCount))
+				.readOnly(readOnly);
+		List<AuditSegmentLog> logs = new ArrayList<>(stripeCount);
+		for (int stripe = 0; stripe < stripeCount; stripe++)
+			logs.add(new AuditSegmentLog(stripe == 0 ? folder : folder.resolve(STRIPE_FOLDER_PREFIX + stripe),
+					options));
+		this.stripeLogs = Collections.unmodifiableList(logs);
+		if (!readOnly)
+			migrateLegacyDataFiles(folder);
+	}
+
+	/**
+	 * @return the stripe count of the folder when it has stripe sub folders,
+	 *         the configured one otherwise unless the store is read only
+	 */
+	private int resolveStripes(Path folder, int configured) throws IOException {
+		if (!readOnly)
+			Files.createDirectories(folder);
+		int existing = 1;
+		try (Stream<Path> files = Files.list(folder)) {
+			for (Path file : files.filter(Files::isDirectory).collect(Collectors.toList())) {
+				String suffix = StringUtils.removeStart(file.getFileName().toString(), STRIPE_FOLDER_PREFIX);
+				if (!suffix.equals(file.getFileName().toString()) && StringUtils.isNumeric(suffix)
+						&& !suffix.isEmpty())
+					existing = Math.max(existing, Integer.parseInt(suffix) + 1);
+			}
+		}
+		if (readOnly)
+			return existing;
+		if (existing > 1 && existing != configured) {
+			storeLogger.warn("Audit folder {} is written with {} stripes, keeping them instead of {}", folder,
+					existing, configured);
+			return existing;
+		}
+		return Math.max(1, configured);
+	}
+
+	/**
+	 * Moves the records of the old whole-list <code>.dat</code> files into the
+	 * segment log once, the file is kept with a <code>.migrated</code> suffix.
+	 */
+	@SuppressWarnings("unchecked")
+	private void migrateLegacyDataFiles(Path folder) throws IOException {
+		List<Path> legacyFiles;
+		try (Stream<Path> files = Files.list(folder)) {
+			legacyFiles = files.filter(path -> {
+				String fileName = path.getFileName().toString();
+				return fileName.startsWith(AUDIT_TRAIL_FILE_PREFIX + "_") && fileName.endsWith(AUDIT_TRAIL_FILE_EXTENTION);
+			}).sorted().collect(Collectors.toList());
+		}
+		for (Path legacyFile : legacyFiles) {
+			try (ObjectInputStream objectStream = new ObjectInputStream(
+					new BufferedInputStream(Files.newInputStream(legacyFile)))) {
+				List<AuditTrail> legacyEntries = (List<AuditTrail>) objectStream.readObject();
+				saveAll(legacyEntries);
+			} catch (Exception e) {
+				storeLogger.error(ExceptionUtils.getFullStackTrace(e));
+				continue;
+			}
+			Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"));
+			storeLogger.info("Migrated legacy audit file {} into the audit log", legacyFile);
+		}
+	}
+
+	@Override
+	public List<AuditTrail> findAll() throws IOException {
+		List<AuditTrail> records = new ArrayList<>();
+		for (AuditSegmentLog auditLog : stripeLogs)
+			records.addAll(auditLog.read(auditLog.segments()));
+		return records;
+	}
+
+	@Override
+	public AuditTrail findById(UUID id) throws IOException {
+		for (AuditSegmentLog auditLog : stripeLogs) {
+			AuditTrail record = auditLog.find(id);
+			if (record != null)
+				return record;
+		}
+		return null;
+	}
+
+	/**
+	 * A newer version goes to the stripe holding the older ones and
+	 * supersedes them on read.
+	 */
+	@Override
+	public void save(AuditTrail record) throws IOException {
+		if (stripeLogs.size() > 1 && record.getId() != null) {
+			for (AuditSegmentLog auditLog : stripeLogs) {
+				if (auditLog.find(record.getId()) != null) {
+					auditLog.append(record);
+					return;
+				}
+			}
+		}
+		stripeLog(record).append(record);
+	}
+
+	/**
+	 * The records of each stripe are a single run of appends under the lock of
+	 * its log. The writer stripes by the same rule, so a batch of one writer
+	 * stripe is one run on one log and the stripes never wait on each other.
+	 */
+	@Override
+	public void saveAll(List<AuditTrail> records) throws IOException {
+		if (stripeLogs.size() == 1) {
+			stripeLogs.get(0).appendAll(records);
+			return;
+		}
+		Map<Integer, List<AuditTrail>> byStripe = records.stream().collect(Collectors.groupingBy(
+				record -> AuditTrailStore.stripeOf(record.getServiceName(), stripeLogs.size()),
+				LinkedHashMap::new, Collectors.toList()));
+		for (Map.Entry<Integer, List<AuditTrail>> entry : byStripe.entrySet())
+			stripeLogs.get(entry.getKey()).appendAll(entry.getValue());
+	}
+
+	private AuditSegmentLog stripeLog(AuditTrail record) {
+		return stripeLogs.get(AuditTrailStore.stripeOf(record.getServiceName(), stripeLogs.size()));
+	}
+
+	/**
+	 * Records come by day, then by stripe, then in write order, straight from
+	 * the day indexes. Only the days overlapping the search are opened. Up to
+	 * <code>searchParallelism</code> days of a stripe are indexed, matched and
+	 * read ahead on the search pool while the caller consumes the earliest one,
+	 * and the ones not started yet are dropped once <code>limit</code> records
+	 * were handed over.
+	 */
+	@Override
+	public int stream(AuditSearchCriteria criteria, String after, int limit, Consumer<AuditTrail> consumer)
+			throws IOException {
+		AuditTrail cursor = null;
+		int cursorStripe = 0;
+		if (StringUtils.isNotBlank(after)) {
+			UUID cursorId = UUID.fromString(after);
+			for (; cursorStripe < stripeLogs.size() && cursor == null; cursorStripe++)
+				cursor = stripeLogs.get(cursorStripe).find(cursorId);
+			cursorStripe--;
+			if (cursor == null)
+				throw new IllegalArgumentException("Unknown audit cursor " + after);
+		}
+		StripeDay cursorUnit = cursor == null ? null
+				: new StripeDay(cursorStripe, AuditSegmentLog.dayOf(cursor.getRequestTimestamp()));
+		List<StripeDay> units = stripeDays(criteria).stream()
+				.filter(unit -> cursorUnit == null || unit.compareTo(cursorUnit) >= 0).collect(Collectors.toList());
+		return stream(units, cursorUnit, cursor, criteria, limit, consumer);
+	}
+
+	/**
+	 * Streams the records of one stripe alone, by day then in write order, so
+	 * a reader can merge the stripes by request time itself.
+	 *
+	 * @param stripe   below {@link #stripes()}
+	 * @param criteria
+	 * @param limit    maximum number of records, 0 for no limit
+	 * @param consumer
+	 * @return the number of records handed to the consumer
+	 * @throws IOException
+	 */
+	public int stream(int stripe, AuditSearchCriteria criteria, int limit, Consumer<AuditTrail> consumer)
+			throws IOException {
+		List<StripeDay> units = stripeDays(criteria).stream().filter(unit -> unit.stripe == stripe)
+				.collect(Collectors.toList());
+		return stream(units, null, null, criteria, limit, consumer);
+	}
+
+	/**
+	 * @return the number of stripes the folder is written with
+	 */
+	public int stripes() {
+		return stripeLogs.size();
+	}
+
+	private int stream(List<StripeDay> units, StripeDay cursorUnit, AuditTrail cursorRecord,
+			AuditSearchCriteria criteria, int limit, Consumer<AuditTrail> consumer) throws IOException {
+		Deque<ForkJoinTask<DayScan>> scans = new ArrayDeque<>();
+		int next = 0;
+		int count = 0;
+		try {
+			while (limit <= 0 || count < limit) {
+				while (next < units.size() && scans.size() < searchParallelism) {
+					StripeDay unit = units.get(next++);
+					scans.add(searchPool
+							.submit(() -> scan(unit, criteria, unit.equals(cursorUnit) ? cursorRecord : null)));
+				}
+				if (scans.isEmpty())
+					break;
+				count += join(scans.poll()).emit(limit <= 0 ? 0 : limit - count, consumer);
+			}
+		} finally {
+			scans.forEach(scan -> scan.cancel(false));
+		}
+		return count;
+	}
+
+	/**
+	 * Matches the day of the stripe and reads its first chunk, runs on the
+	 * search pool.
+	 */
+	private DayScan scan(StripeDay unit, AuditSearchCriteria criteria, AuditTrail cursor) {
+		try {
+			AuditSegmentLog auditLog = stripeLogs.get(unit.stripe);
+			AuditDayIndex dayIndex = auditLog.dayIndex(unit.day);
+			BitSet matches = match(auditLog, unit.day, dayIndex, criteria);
+			if (cursor != null)
+				matches.clear(0, dayIndex.localId(cursor.getId()) + 1);
+			return new DayScan(dayIndex, matches, criteria);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the local ids matching the indexed criteria, narrowed to the
+	 *         records the token index finds the body words in; the whole
+	 *         predicate is checked again on the records read
+	 */
+	private static BitSet match(AuditSegmentLog auditLog, String day, AuditDayIndex dayIndex,
+			AuditSearchCriteria criteria) throws IOException {
+		BitSet matches = dayIndex.match(criteria.getTerms(), criteria.getIds(), criteria.getFromDate(),
+				criteria.getToDate());
+		if (criteria.getBodyContains() != null && !matches.isEmpty()) {
+			Map<AuditSegment, long[]> offsets = auditLog.findTokens(day, criteria.getBodyTokens());
+			if (offsets != null)
+				dayIndex.retainOffsets(matches, offsets);
+		}
+		return matches;
+	}
+
+	private static DayScan join(ForkJoinTask<DayScan> scan) throws IOException {
+		try {
+			return scan.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Audit search interrupted");
+		} catch (ExecutionException e) {
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+			}
+			throw new IOException("Audit search failed " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the matches of each segment in one pass and appends their new
+	 * versions as one batch to the same stripe, so a bulk change costs a read
+	 * per segment and a single run of appends instead of a lookup and a write
+	 * per record.
+	 */
+	@Override
+	public int updateStatus(AuditSearchCriteria criteria, String status, String updatedBy, long updateTimestamp)
+			throws IOException {
+		int count = 0;
+		for (StripeDay unit : stripeDays(criteria)) {
+			AuditSegmentLog auditLog = stripeLogs.get(unit.stripe);
+			AuditDayIndex dayIndex = auditLog.dayIndex(unit.day);
+			BitSet matches = match(auditLog, unit.day, dayIndex, criteria);
+			for (BitSet segmentMatches : dayIndex.splitBySegment(matches)) {
+				List<AuditTrail> records = dayIndex.read(segmentMatches);
+				records.removeIf(record -> !criteria.matches(record));
+				if (records.isEmpty())
+					continue;
+				for (AuditTrail record : records) {
+					record.setStatus(status);
+					record.setUpdatedBy(updatedBy);
+					record.setUpdateTimestamp(updateTimestamp);
+				}
+				auditLog.appendAll(records);
+				count += records.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the days of each stripe the search can match, by day then
+	 *         stripe; those outside the request time range are never opened
+	 */
+	private List<StripeDay> stripeDays(AuditSearchCriteria criteria) throws IOException {
+		String fromDay = criteria.getFromDate() == null ? null : AuditSegmentLog.dayOf(criteria.getFromDate());
+		String toDay = criteria.getToDate() == null ? null : AuditSegmentLog.dayOf(criteria.getToDate());
+		Set<StripeDay> units = new TreeSet<>();
+		for (int stripe = 0; stripe < stripeLogs.size(); stripe++) {
+			AuditSegmentLog auditLog = stripeLogs.get(stripe);
+			// the offset indexes name the day of each id, only those are read
+			Collection<String> days = criteria.getIds() == null ? auditLog.days() : new ArrayList<>();
+			if (criteria.getIds() != null) {
+				for (UUID id : criteria.getIds()) {
+					String day = auditLog.findDay(id);
+					if (day != null)
+						days.add(day);
+				}
+			}
+			for (String day : days) {
+				if ((fromDay == null || day.compareTo(fromDay) >= 0) && (toDay == null || day.compareTo(toDay) <= 0))
+					units.add(new StripeDay(stripe, day));
+			}
+		}
+		return new ArrayList<>(units);
+	}
+
+	/**
+	 * The records of one day in one stripe, the unit a search scans.
+	 */
+	private static final class StripeDay implements Comparable<StripeDay> {
+		private final int stripe;
+		private final String day;
+
+		private StripeDay(int stripe, String day) {
+			this.stripe = stripe;
+			this.day = day;
+		}
+
+		@Override
+		public int compareTo(StripeDay other) {
+			int byDay = day.compareTo(other.day);
+			return byDay != 0 ? byDay : Integer.compare(stripe, other.stripe);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof StripeDay && compareTo((StripeDay) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return day.hashCode() * 31 + stripe;
+		}
+	}
+
+	/**
+	 * The matches of one day with their first chunk already read. Records
+	 * failing the predicate are skipped as they are read.
+	 */
+	private static final class DayScan {
+		private final AuditDayIndex dayIndex;
+		private final BitSet matches;
+		private final AuditSearchCriteria criteria;
+		private final BitSet head = new BitSet();
+		private final List<AuditTrail> headRecords;
+
+		private DayScan(AuditDayIndex dayIndex, BitSet matches, AuditSearchCriteria criteria) throws IOException {
+			this.dayIndex = dayIndex;
+			this.matches = matches;
+			this.criteria = criteria;
+			int headSize = 0;
+			for (int localId = matches.nextSetBit(0); localId >= 0
+					&& headSize < STREAM_CHUNK_SIZE; localId = matches.nextSetBit(localId + 1)) {
+				head.set(localId);
+				headSize++;
+			}
+			this.headRecords = dayIndex.read(head);
+		}
+
+		/**
+		 * @param limit maximum number of records, 0 for no limit
+		 * @return the number of records handed to the consumer
+		 */
+		int emit(int limit, Consumer<AuditTrail> consumer) throws IOException {
+			int count = emit(headRecords, limit, consumer);
+			// decode the rest in small chunks to keep memory bounded on large days
+			BitSet chunk = new BitSet();
+			int localId = matches.nextSetBit(head.length());
+			while (localId >= 0 && (limit <= 0 || count < limit)) {
+				int chunkSize = limit <= 0 ? STREAM_CHUNK_SIZE : Math.min(STREAM_CHUNK_SIZE, limit - count);
+				chunk.clear();
+				for (int size = 0; localId >= 0 && size < chunkSize; size++) {
+					chunk.set(localId);
+					localId = matches.nextSetBit(localId + 1);
+				}
+				count += emit(dayIndex.read(chunk), limit <= 0 ? 0 : limit - count, consumer);
+			}
+			return count;
+		}
+
+		private int emit(List<AuditTrail> records, int limit, Consumer<AuditTrail> consumer) {
+			int count = 0;
+			for (AuditTrail record : records) {
+				if (limit > 0 && count >= limit)
+					break;
+				if (!criteria.matches(record))
+					continue;
+				consumer.accept(record);
+				count++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Appends <code>[long minute][utf serviceName][utf requestMethod][int
+	 * responseCode][long count]</code> entries to the rollup file of each day,
+	 * one write per file.
+	 */
+	@Override
+	public synchronized void saveRollups(List<AuditRouteRollup> rollups) throws IOException {
+		checkWritable();
+		Map<String, List<AuditRouteRollup>> byDay = new LinkedHashMap<>();
+		for (AuditRouteRollup rollup : rollups)
+			byDay.computeIfAbsent(AuditSegmentLog.dayOf(rollup.getMinute()), key -> new ArrayList<>()).add(rollup);
+		for (Map.Entry<String, List<AuditRouteRollup>> entry : byDay.entrySet()) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(buffer);
+			for (AuditRouteRollup rollup : entry.getValue()) {
+				output.writeLong(rollup.getMinute());
+				output.writeUTF(rollup.getServiceName());
+				output.writeUTF(rollup.getRequestMethod());
+				output.writeInt(rollup.getResponseCode());
+				output.writeLong(rollup.getCount());
+			}
+			Files.write(rollupFile(entry.getKey()), buffer.toByteArray(), StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
+	}
+
+	/**
+	 * Reads the rollup files of the days in range, a torn entry at the end of a
+	 * file is ignored.
+	 */
+	@Override
+	public List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) throws IOException {
+		String fromDay = AuditSegmentLog.dayOf(fromSecond);
+		String toDay = AuditSegmentLog.dayOf(toSecond);
+		List<AuditRouteRollup> rollups = new ArrayList<>();
+		for (String day : rollupDays()) {
+			if (day.compareTo(fromDay) < 0 || day.compareTo(toDay) > 0)
+				continue;
+			try (DataInputStream input = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(rollupFile(day))))) {
+				while (true) {
+					AuditRouteRollup rollup = new AuditRouteRollup(input.readLong(), input.readUTF(), input.readUTF(),
+							input.readInt(), input.readLong());
+					if (rollup.getMinute() >= fromSecond && rollup.getMinute() <= toSecond)
+						rollups.add(rollup);
+				}
+			} catch (EOFException e) {
+				// end of the file
+			}
+		}
+		return rollups;
+	}
+
+	private Path rollupFile(String day) {
+		return folder.resolve(ROLLUP_FILE_PREFIX + day + ROLLUP_FILE_EXTENTION);
+	}
+
+	private List<String> rollupDays() throws IOException {
+		try (Stream<Path> files = Files.list(folder)) {
+			return files.map(path -> path.getFileName().toString())
+					.filter(fileName -> fileName.startsWith(ROLLUP_FILE_PREFIX)
+							&& fileName.endsWith(ROLLUP_FILE_EXTENTION))
+					.map(fileName -> fileName.substring(ROLLUP_FILE_PREFIX.length(),
+							fileName.length() - ROLLUP_FILE_EXTENTION.length()))
+					.sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Deletes the days and rollups past retention, compacts and compresses the
+	 * closed days and then deletes the oldest closed days while the log takes
+	 * more than <code>maxBytes</code>.
+	 */
+	@Override
+	public void applyRetention(int retentionDays, long maxBytes, double compactionThreshold) throws IOException {
+		checkWritable();
+		String oldestDay = retentionDays > 0
+				? LocalDate.now().minusDays(retentionDays - 1).format(DateTimeFormatter.BASIC_ISO_DATE)
+				: null;
+		for (String day : rollupDays()) {
+			if (oldestDay != null && day.compareTo(oldestDay) < 0)
+				Files.deleteIfExists(rollupFile(day));
+		}
+		for (AuditSegmentLog auditLog : stripeLogs) {
+			for (String day : auditLog.days()) {
+				if (oldestDay != null && day.compareTo(oldestDay) < 0) {
+					auditLog.deleteDay(day);
+				} else {
+					auditLog.compact(day, compactionThreshold);
+					auditLog.compress(day);
+				}
+			}
+		}
+		// the size cap drops whole days, the oldest first and in every stripe
+		Set<String> days = new TreeSet<>();
+		stripeLogs.forEach(auditLog -> days.addAll(auditLog.days()));
+		String today = AuditSegmentLog.dayOf(null);
+		for (String day : days) {
+			if (maxBytes <= 0 || day.compareTo(today) >= 0 || sizeOnDisk() <= maxBytes)
+				break;
+			for (AuditSegmentLog auditLog : stripeLogs)
+				auditLog.deleteDay(day);
+		}
+	}
+
+	private void checkWritable() {
+		if (readOnly)
+			throw new IllegalStateException("Audit folder " + folder + " is open read only");
+	}
+
+	private long sizeOnDisk() throws IOException {
+		long size = 0;
+		for (AuditSegmentLog auditLog : stripeLogs)
+			size += auditLog.sizeOnDisk();
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		searchPool.shutdown();
+		for (AuditSegmentLog auditLog : stripeLogs)
+			auditLog.close();
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.springframework.stereotype.Component;
+
+import com.plugin.gateway.enums.AuditStorageEngine;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+
+/**
+ * Builds the {@link FileAuditTrailStore} over <code>AuditTrail/</code> in the
+ * working directory.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class FileAuditTrailStoreFactory implements AuditTrailStoreFactory {
+
+	private static final String AUDIT_TRAIL_FOLDER = "AuditTrail";
+
+	@Override
+	public Set<String> getNames() {
+		return new HashSet<>(
+				Arrays.asList(AuditStorageEngine.FILE.getValue(), AuditStorageEngine.FILESYSTEM.getValue()));
+	}
+
+	@Override
+	public AuditTrailStore create(AuditConfigurationProperties auditProperties) throws IOException {
+		return new FileAuditTrailStore(Paths.get(System.getProperty("user.dir"), AUDIT_TRAIL_FOLDER), auditProperties);
+	}
+}
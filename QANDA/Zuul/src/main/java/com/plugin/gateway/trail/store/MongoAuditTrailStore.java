@@ -0,0 +1,299 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.enums.AuditSearchField;
+import com.plugin.gateway.trail.log.AuditSegmentLog;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.mongo.AuditMongoStore;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * Mongo engine, records live in the day collections of an
+ * {@link AuditMongoStore} and the search predicate becomes a Mongo query. A
+ * body search is a phrase search on the text index when the store keeps one
+ * and a case insensitive word regex otherwise.
+ *
+ * @author Sankha
+ *
+ */
+public class MongoAuditTrailStore implements AuditTrailStore {
+
+	private static final String WORD_SEPARATOR = "[^\\p{L}\\p{N}]+";
+	// sorts after every other character under a collation, ends a prefix range
+	private static final char COLLATION_MAX_CHARACTER = '\uFFFF';
+
+	private final AuditMongoStore mongoStore;
+	private final CriteriaTranslator collatedTranslator = new CriteriaTranslator(true);
+	private final CriteriaTranslator regexTranslator = new CriteriaTranslator(false);
+
+	/**
+	 * @param mongoStore
+	 */
+	public MongoAuditTrailStore(AuditMongoStore mongoStore) {
+		this.mongoStore = mongoStore;
+	}
+
+	@Override
+	public List<AuditTrail> findAll() {
+		return mongoStore.find(collection -> new Query(), mongoStore.collections());
+	}
+
+	@Override
+	public AuditTrail findById(UUID id) {
+		return mongoStore.findById(id);
+	}
+
+	@Override
+	public void save(AuditTrail record) {
+		mongoStore.save(record);
+	}
+
+	@Override
+	public void saveAll(List<AuditTrail> records) {
+		mongoStore.insertAll(records);
+	}
+
+	/**
+	 * Records come by request time, straight from a Mongo cursor per day
+	 * collection.
+	 */
+	@Override
+	public int stream(AuditSearchCriteria criteria, String after, int limit, Consumer<AuditTrail> consumer) {
+		AuditTrail cursor = StringUtils.isNotBlank(after) ? mongoStore.findById(UUID.fromString(after)) : null;
+		if (StringUtils.isNotBlank(after) && cursor == null)
+			throw new IllegalArgumentException("Unknown audit cursor " + after);
+		String cursorCollection = cursor == null ? null
+				: AuditMongoStore.collectionOf(AuditSegmentLog.dayOf(cursor.getRequestTimestamp()));
+		List<String> collections = collections(criteria).stream()
+				.filter(collection -> cursorCollection == null || collection.equals(AuditMongoStore.COLLECTION_PREFIX)
+						|| collection.compareTo(cursorCollection) >= 0)
+				.collect(Collectors.toList());
+		return mongoStore.stream(collection -> {
+			Query streamQuery = buildMongoQuery(criteria);
+			if (cursor != null)
+				streamQuery.addCriteria(new Criteria().orOperator(
+						Criteria.where("requestTimestamp").gt(cursor.getRequestTimestamp()),
+						Criteria.where("requestTimestamp").is(cursor.getRequestTimestamp()).and("_id")
+								.gt(cursor.getId())));
+			return streamQuery.with(Sort.by(Sort.Direction.ASC, "requestTimestamp", "_id"));
+		}, collections, limit, consumer);
+	}
+
+	/**
+	 * One <code>updateMulti</code> per day collection the search can touch.
+	 */
+	@Override
+	public int updateStatus(AuditSearchCriteria criteria, String status, String updatedBy, long updateTimestamp) {
+		Update update = new Update().set("status", status).set("updatedBy", updatedBy).set("updateTimestamp",
+				updateTimestamp);
+		return (int) mongoStore.updateMulti(collection -> buildMongoQuery(criteria), collections(criteria), update);
+	}
+
+	@Override
+	public void saveRollups(List<AuditRouteRollup> rollups) {
+		mongoStore.incrementRollups(rollups);
+	}
+
+	@Override
+	public List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) {
+		return mongoStore.findRollups(fromSecond, toSecond);
+	}
+
+	/**
+	 * Drops the day collections and rollups past retention, Mongo manages its
+	 * own disk.
+	 */
+	@Override
+	public void applyRetention(int retentionDays, long maxBytes, double compactionThreshold) {
+		if (retentionDays > 0) {
+			LocalDate oldestDay = LocalDate.now().minusDays(retentionDays - 1);
+			mongoStore.dropDaysBefore(oldestDay.format(DateTimeFormatter.BASIC_ISO_DATE));
+			mongoStore.dropRollupsBefore(oldestDay.atStartOfDay(ZoneId.systemDefault()).toEpochSecond());
+		}
+	}
+
+	@Override
+	public void close() {
+		// the client belongs to the application context
+	}
+
+	/**
+	 * @param criteria
+	 * @return the day collections the search has to look at
+	 */
+	private List<String> collections(AuditSearchCriteria criteria) {
+		if (criteria.getFromDate() == null && criteria.getToDate() == null)
+			return mongoStore.collections();
+		return mongoStore.collections(
+				criteria.getFromDate() == null ? null : AuditSegmentLog.dayOf(criteria.getFromDate()),
+				criteria.getToDate() == null ? null : AuditSegmentLog.dayOf(criteria.getToDate()));
+	}
+
+	/**
+	 * The top level conditions of the predicate joined with <code>$and</code>,
+	 * except a body search that goes to the text index, which Mongo only takes
+	 * once and at the top level. Text compares under
+	 * {@link AuditMongoStore#TEXT_COLLATION} so equality and prefixes walk the
+	 * field indexes; Mongo takes no collation with a text index search, text
+	 * then compares through case insensitive regexes.
+	 */
+	Query buildMongoQuery(AuditSearchCriteria criteria) {
+		Query searchQuery = new Query();
+		List<AuditPredicate> conjuncts = AuditPredicate.conjuncts(criteria.getPredicate());
+		boolean textSearched = mongoStore.isTextIndexed()
+				&& conjuncts.stream().anyMatch(conjunct -> conjunct instanceof AuditPredicate.BodyContains);
+		CriteriaTranslator translator = textSearched ? regexTranslator : collatedTranslator;
+		List<Criteria> conditions = new ArrayList<>();
+		boolean phraseAdded = false;
+		for (AuditPredicate conjunct : conjuncts) {
+			if (conjunct instanceof AuditPredicate.BodyContains && textSearched && !phraseAdded) {
+				searchQuery.addCriteria(TextCriteria.forDefaultLanguage()
+						.matchingPhrase(((AuditPredicate.BodyContains) conjunct).getPhrase()));
+				phraseAdded = true;
+			} else
+				conditions.add(conjunct.accept(translator));
+		}
+		if (!conditions.isEmpty())
+			searchQuery.addCriteria(new Criteria().andOperator(conditions.toArray(new Criteria[0])));
+		if (!textSearched)
+			searchQuery.collation(AuditMongoStore.TEXT_COLLATION);
+		return searchQuery;
+	}
+
+	/**
+	 * The words of the term in order, ignoring case, punctuation and one
+	 * character words in between, like the file engine.
+	 */
+	private static Pattern bodyPattern(String term) {
+		List<String> words = Arrays.stream(term.split(WORD_SEPARATOR)).filter(word -> word.length() > 1)
+				.map(Pattern::quote).collect(Collectors.toList());
+		String separator = "(?:" + WORD_SEPARATOR + "[\\p{L}\\p{N}])*" + WORD_SEPARATOR;
+		return Pattern.compile("\\b" + String.join(separator, words) + "\\b", Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * Text compares ignoring case like the other engines, without a collation
+	 * through a quoted regex with the <code>i</code> option, anchored for
+	 * {@link AuditMatchMode#EXACT} and {@link AuditMatchMode#PREFIX}.
+	 */
+	private static Criteria regexCriteria(String field, String searchData, AuditMatchMode matchMode) {
+		switch (matchMode) {
+		case EXACT:
+			return Criteria.where(field).regex(exactPattern(searchData));
+		case PREFIX:
+			return Criteria.where(field)
+					.regex(Pattern.compile("^" + Pattern.quote(searchData), Pattern.CASE_INSENSITIVE));
+		default:
+			return Criteria.where(field).regex(Pattern.compile(Pattern.quote(searchData), Pattern.CASE_INSENSITIVE));
+		}
+	}
+
+	private static Pattern exactPattern(String searchData) {
+		return Pattern.compile("^" + Pattern.quote(searchData) + "$", Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * Turns each node of the predicate into its Mongo operator. Text
+	 * comparisons ignore case, the way
+	 * {@link AuditPredicate.Comparison#test(AuditTrail)} does: under the
+	 * collation of the query as plain values and a key range for a prefix, or
+	 * else through regexes. Contains is a regex either way.
+	 */
+	private final class CriteriaTranslator implements AuditPredicate.Visitor<Criteria> {
+
+		private final boolean collated;
+
+		private CriteriaTranslator(boolean collated) {
+			this.collated = collated;
+		}
+
+		@Override
+		public Criteria all() {
+			return new Criteria();
+		}
+
+		@Override
+		public Criteria and(List<AuditPredicate> operands) {
+			return new Criteria().andOperator(translate(operands));
+		}
+
+		@Override
+		public Criteria or(List<AuditPredicate> operands) {
+			return new Criteria().orOperator(translate(operands));
+		}
+
+		@Override
+		public Criteria not(AuditPredicate operand) {
+			return new Criteria().norOperator(operand.accept(this));
+		}
+
+		@Override
+		public Criteria compare(AuditPredicate.Comparison comparison) {
+			String field = comparison.getField().getMongoField();
+			boolean regex = comparison.getField().getKind() == AuditSearchField.Kind.TEXT && !collated;
+			// text as sent for the patterns, typed values otherwise
+			List<String> texts = comparison.getTexts();
+			List<Object> values = comparison.getValues();
+			switch (comparison.getOperator()) {
+			case EQ:
+				return regex ? regexCriteria(field, texts.get(0), AuditMatchMode.EXACT)
+						: Criteria.where(field).is(values.get(0));
+			case PREFIX:
+				return regex ? regexCriteria(field, texts.get(0), AuditMatchMode.PREFIX)
+						: Criteria.where(field).gte(values.get(0)).lt((String) values.get(0) + COLLATION_MAX_CHARACTER);
+			case CONTAINS:
+				return regexCriteria(field, texts.get(0), AuditMatchMode.CONTAINS);
+			case NE:
+				return regex ? Criteria.where(field).not().regex(exactPattern(texts.get(0)))
+						: Criteria.where(field).ne(values.get(0));
+			case IN:
+				return Criteria.where(field).in(regex
+						? texts.stream().map(MongoAuditTrailStore::exactPattern).collect(Collectors.toList())
+						: values);
+			case GT:
+				return Criteria.where(field).gt(values.get(0));
+			case GTE:
+				return Criteria.where(field).gte(values.get(0));
+			case LT:
+				return Criteria.where(field).lt(values.get(0));
+			default:
+				return Criteria.where(field).lte(values.get(0));
+			}
+		}
+
+		@Override
+		public Criteria bodyContains(AuditPredicate.BodyContains bodyContains) {
+			Pattern words = bodyPattern(bodyContains.getPhrase());
+			return new Criteria().orOperator(Criteria.where("requestBody").regex(words),
+					Criteria.where("queryParams").regex(words));
+		}
+
+		private Criteria[] translate(List<AuditPredicate> operands) {
+			Criteria[] criteria = new Criteria[operands.size()];
+			for (int i = 0; i < criteria.length; i++)
+				criteria[i] = operands.get(i).accept(this);
+			return criteria;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDbFactory;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.plugin.gateway.enums.AuditStorageEngine;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.trail.mongo.AuditMongoStore;
+
+/**
+ * Builds the {@link MongoAuditTrailStore} on the <code>AuditTrail</code>
+ * database through the client of the application context, see
+ * {@link com.plugin.gateway.config.MongoClientConfiguration}, so the gateway
+ * keeps a single connection pool. Audit writes use the write concern named by
+ * <code>audit.mongoWriteConcern</code>, e.g. <code>unacknowledged</code> for
+ * throughput, <code>journaled</code> or <code>majority</code> for durability.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class MongoAuditTrailStoreFactory implements AuditTrailStoreFactory {
+
+	private static final String AUDIT_TRAIL_DATABASE = "AuditTrail";
+
+	private final Logger factoryLogger = LoggerFactory.getLogger(MongoAuditTrailStoreFactory.class);
+	private final ObjectProvider<MongoClient> mongoClient;
+
+	@Autowired
+	public MongoAuditTrailStoreFactory(ObjectProvider<MongoClient> mongoClient) {
+		this.mongoClient = mongoClient;
+	}
+
+	@Override
+	public Set<String> getNames() {
+		return new HashSet<>(
+				Arrays.asList(AuditStorageEngine.MONGO.getValue(), AuditStorageEngine.MONGODB.getValue()));
+	}
+
+	@Override
+	public AuditTrailStore create(AuditConfigurationProperties auditProperties) {
+		MongoTemplate mongoTemplate = new MongoTemplate(
+				new SimpleMongoClientDbFactory(mongoClient.getIfAvailable(MongoClients::create), AUDIT_TRAIL_DATABASE));
+		WriteConcern writeConcern = WriteConcern.valueOf(auditProperties.getMongoWriteConcern());
+		if (writeConcern != null)
+			mongoTemplate.setWriteConcern(writeConcern);
+		else
+			factoryLogger.warn("Unknown audit write concern {}, using the client default",
+					auditProperties.getMongoWriteConcern());
+		return new MongoAuditTrailStore(new AuditMongoStore(mongoTemplate, auditProperties.isBodyIndex()));
+	}
+}
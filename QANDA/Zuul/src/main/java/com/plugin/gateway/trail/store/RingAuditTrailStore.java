@@ -0,0 +1,543 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.plugin.gateway.trail.log.AuditRecordCodec;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * In memory engine for load tests and edge nodes where audit persistence is
+ * optional. Records are kept off heap in the binary record format, in a
+ * direct buffer of <code>maxBytes</code> used as a ring. The heap only holds
+ * fixed size primitive arrays: the ring position, length, id and stamp of
+ * each of the <code>capacity</code> slots. Heap usage is set by the capacity
+ * alone, however much traffic goes through. The oldest records are
+ * overwritten once either the slots or the bytes run out, and a newer version
+ * of a record is a new slot that hides the older one on read.
+ * <p>
+ * Writers never lock. A batch claims its slots and bytes with one compare and
+ * set on the tail, fills them and publishes each slot by stamping it with its
+ * sequence. A writer whose bytes wrap onto ones still being filled a lap
+ * earlier waits for that writer, the only time writers wait on each other. A
+ * reader takes a slot only when the stamp holds the sequence it expects
+ * before and after the copy, and no later claim reached its bytes.
+ * <p>
+ * A lookup by id goes through an open addressing table of twice the slots,
+ * holding sequences only: the slot of a sequence names its id. A writer adds
+ * the sequence once the slot is published, over the entry of an older
+ * version of the same id or of a slot that was overwritten since, within
+ * {@value #MAX_PROBES} entries of the home of the id. A reader checks the
+ * entries of that window the way it checks a slot it reads. Entries are
+ * never emptied again, so the first empty one ends the window early. When a
+ * window holds nothing but live records of other ids the writer leaves the
+ * sequence out and flags the home, lookups from a flagged home fall back to
+ * walking the slots newest first.
+ *
+ * @author Sankha
+ *
+ */
+public class RingAuditTrailStore implements AuditTrailStore {
+
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	// stamp of a slot never written; -(sequence + 2) marks a slot being filled
+	private static final long EMPTY = -1;
+	// entries of the id table a lookup or an add looks at from the home of the id
+	private static final int MAX_PROBES = 16;
+
+	private final Logger storeLogger = LoggerFactory.getLogger(RingAuditTrailStore.class);
+	private final ByteBuffer ring;
+	private final int mask;
+	// per slot, indexed by sequence & mask, written before the stamp publishes them
+	private final long[] slotPositions;
+	private final int[] slotLengths;
+	private final long[] slotIdHigh;
+	private final long[] slotIdLow;
+	private final AtomicLongArray slotStamps;
+	// next sequence and logical end of the claimed bytes, moved together
+	private final AtomicReference<Tail> tail = new AtomicReference<>(new Tail(0, 0));
+	// every sequence below is written or given up, and so are the bytes below
+	private final AtomicReference<Tail> finished = new AtomicReference<>(new Tail(0, 0));
+	// sequence of a version of the id homed around each entry, EMPTY when never used
+	private final AtomicLongArray idEntries;
+	// 1 for a home some sequence was left out of, the window is full
+	private final AtomicIntegerArray idOverflows;
+	private final int idMask;
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 */
+	public RingAuditTrailStore(int capacity) {
+		this(capacity, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param maxBytes off heap bytes holding the encoded records
+	 */
+	public RingAuditTrailStore(int capacity, long maxBytes) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.ring = ByteBuffer.allocateDirect((int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, maxBytes)));
+		this.slotPositions = new long[size];
+		this.slotLengths = new int[size];
+		this.slotIdHigh = new long[size];
+		this.slotIdLow = new long[size];
+		this.slotStamps = new AtomicLongArray(size);
+		for (int slot = 0; slot < size; slot++)
+			slotStamps.set(slot, EMPTY);
+		this.idEntries = new AtomicLongArray(size * 2);
+		this.idOverflows = new AtomicIntegerArray(size * 2);
+		this.idMask = size * 2 - 1;
+		for (int entry = 0; entry < size * 2; entry++)
+			idEntries.set(entry, EMPTY);
+	}
+
+	@Override
+	public List<AuditTrail> findAll() throws IOException {
+		List<AuditTrail> records = new ArrayList<>();
+		for (long sequence : latestSequences())
+			addIfLive(records, sequence);
+		return records;
+	}
+
+	@Override
+	public AuditTrail findById(UUID id) throws IOException {
+		long sequence = latestSequence(id);
+		if (sequence < 0)
+			return null;
+		byte[] payload = payload(sequence);
+		return payload == null ? null : AuditRecordCodec.decode(payload);
+	}
+
+	@Override
+	public void save(AuditTrail record) throws IOException {
+		saveAll(Collections.singletonList(record));
+	}
+
+	/**
+	 * Records are encoded first, then the whole batch claims its slots and
+	 * bytes at once and copies them in without a lock.
+	 */
+	@Override
+	public void saveAll(List<AuditTrail> records) throws IOException {
+		List<UUID> ids = new ArrayList<>(records.size());
+		List<byte[]> payloads = new ArrayList<>(records.size());
+		long bytes = 0;
+		for (AuditTrail record : records) {
+			byte[] payload = AuditRecordCodec.encode(record);
+			if (payload.length > ring.capacity()) {
+				storeLogger.warn("Skipped audit record {} of {} bytes, larger than the ring", record.getId(),
+						payload.length);
+				continue;
+			}
+			ids.add(record.getId());
+			payloads.add(payload);
+			bytes += payload.length;
+		}
+		if (payloads.isEmpty())
+			return;
+		Tail claimed;
+		Tail moved;
+		do {
+			claimed = tail.get();
+			moved = new Tail(claimed.sequence + payloads.size(), claimed.position + bytes);
+		} while (!tail.compareAndSet(claimed, moved));
+		long position = claimed.position;
+		for (int i = 0; i < payloads.size(); i++) {
+			write(claimed.sequence + i, position, ids.get(i), payloads.get(i));
+			position += payloads.get(i).length;
+		}
+	}
+
+	/**
+	 * Records come in the order of their latest version.
+	 */
+	@Override
+	public int stream(AuditSearchCriteria criteria, String after, int limit, Consumer<AuditTrail> consumer)
+			throws IOException {
+		long[] sequences = latestSequences();
+		int start = 0;
+		if (StringUtils.isNotBlank(after)) {
+			long cursorSequence = latestSequence(UUID.fromString(after));
+			int found = Arrays.binarySearch(sequences, cursorSequence);
+			if (cursorSequence < 0 || found < 0)
+				throw new IllegalArgumentException("Unknown audit cursor " + after);
+			start = found + 1;
+		}
+		int count = 0;
+		List<AuditTrail> record = new ArrayList<>(1);
+		for (int i = start; i < sequences.length && (limit <= 0 || count < limit); i++) {
+			record.clear();
+			addIfLive(record, sequences[i]);
+			if (!record.isEmpty() && criteria.matches(record.get(0))) {
+				consumer.accept(record.get(0));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * New versions of the matches are appended as one batch.
+	 */
+	@Override
+	public int updateStatus(AuditSearchCriteria criteria, String status, String updatedBy, long updateTimestamp)
+			throws IOException {
+		List<AuditTrail> updated = new ArrayList<>();
+		for (AuditTrail record : findAll()) {
+			if (criteria.matches(record)) {
+				record.setStatus(status);
+				record.setUpdatedBy(updatedBy);
+				record.setUpdateTimestamp(updateTimestamp);
+				updated.add(record);
+			}
+		}
+		saveAll(updated);
+		return updated.size();
+	}
+
+	/**
+	 * Rollups are not kept, the in memory window of the stats is all there is.
+	 */
+	@Override
+	public void saveRollups(List<AuditRouteRollup> rollups) {
+	}
+
+	@Override
+	public List<AuditRouteRollup> findRollups(long fromSecond, long toSecond) {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * The ring bounds itself, nothing to do.
+	 */
+	@Override
+	public void applyRetention(int retentionDays, long maxBytes, double compactionThreshold) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Fills the slot and publishes it. A writer a whole ring behind waits for
+	 * the one still filling the slot, and gives up when a newer sequence
+	 * already took it: that record is overwritten anyway.
+	 */
+	private void write(long sequence, long position, UUID id, byte[] payload) {
+		awaitFinished(sequence, position + payload.length - ring.capacity());
+		int slot = (int) (sequence & mask);
+		for (;;) {
+			long stamp = slotStamps.get(slot);
+			if (holder(stamp) >= sequence)
+				return;
+			if (stamp < EMPTY)
+				Thread.yield();
+			else if (slotStamps.compareAndSet(slot, stamp, -sequence - 2))
+				break;
+		}
+		slotPositions[slot] = position;
+		slotLengths[slot] = payload.length;
+		slotIdHigh[slot] = id.getMostSignificantBits();
+		slotIdLow[slot] = id.getLeastSignificantBits();
+		copy(position, payload, true);
+		slotStamps.set(slot, sequence);
+		index(sequence, id.getMostSignificantBits(), id.getLeastSignificantBits());
+	}
+
+	/**
+	 * Adds the published sequence to the id table, over an empty entry, one
+	 * of an older version of the id or one whose slot was taken since.
+	 */
+	private void index(long sequence, long high, long low) {
+		int home = hash(high, low) & idMask;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int entry = (home + probe) & idMask;
+			for (;;) {
+				long held = idEntries.get(entry);
+				int match = held == EMPTY ? -1 : matches(held, high, low);
+				if (match == 0)
+					break;
+				if (match > 0 && held >= sequence)
+					return;
+				if (idEntries.compareAndSet(entry, held, sequence))
+					return;
+			}
+		}
+		idOverflows.set(home, 1);
+	}
+
+	/**
+	 * @return 1 when the sequence is published with the id and its bytes are
+	 *         live, 0 when it is with another id, -1 when the slot or its bytes
+	 *         were taken by a later sequence
+	 */
+	private int matches(long sequence, long high, long low) {
+		int slot = (int) (sequence & mask);
+		if (slotStamps.get(slot) != sequence)
+			return -1;
+		long position = slotPositions[slot];
+		boolean same = slotIdHigh[slot] == high && slotIdLow[slot] == low;
+		if (!validate(slot, sequence) || !isLive(tail.get(), position))
+			return -1;
+		return same ? 1 : 0;
+	}
+
+	/**
+	 * Waits until the writers of every older sequence starting below the
+	 * position are done, so none of them copies onto the bytes once they are
+	 * reused.
+	 */
+	private void awaitFinished(long sequence, long position) {
+		for (;;) {
+			Tail done = finished.get();
+			if (done.sequence >= sequence || done.position >= position)
+				return;
+			Tail advanced = advance(done);
+			if (advanced == done)
+				Thread.yield();
+			else
+				finished.compareAndSet(done, advanced);
+		}
+	}
+
+	/**
+	 * Moves past the sequences that are published or were taken over by a
+	 * later one, stopping at the first one still to be written. The position
+	 * is the end of the last published payload, never above where the first
+	 * unfinished sequence starts.
+	 */
+	private Tail advance(Tail done) {
+		long sequence = done.sequence;
+		long position = done.position;
+		long end = tail.get().sequence;
+		while (sequence < end) {
+			int slot = (int) (sequence & mask);
+			long stamp = slotStamps.get(slot);
+			if (stamp == sequence) {
+				long written = slotPositions[slot] + slotLengths[slot];
+				if (!validate(slot, sequence))
+					continue;
+				position = Math.max(position, written);
+			} else if (holder(stamp) <= sequence) {
+				break;
+			}
+			sequence++;
+		}
+		return sequence == done.sequence ? done : new Tail(sequence, position);
+	}
+
+	/**
+	 * @return the sequence published in or being written to the slot, -1 for
+	 *         an empty one
+	 */
+	private static long holder(long stamp) {
+		return stamp >= EMPTY ? stamp : -stamp - 2;
+	}
+
+	/**
+	 * @return the sequences holding the latest version of a record, oldest
+	 *         first; slots still being filled are left out
+	 */
+	private long[] latestSequences() {
+		Tail end = tail.get();
+		long first = Math.max(0, end.sequence - mask - 1);
+		long[] sequences = new long[(int) (end.sequence - first)];
+		IdTable seen = new IdTable(mask + 1);
+		int count = 0;
+		for (long sequence = end.sequence - 1; sequence >= first; sequence--) {
+			int slot = (int) (sequence & mask);
+			if (slotStamps.get(slot) != sequence)
+				continue;
+			long position = slotPositions[slot];
+			long high = slotIdHigh[slot];
+			long low = slotIdLow[slot];
+			if (!validate(slot, sequence))
+				continue;
+			// bytes and sequences are claimed together, every older slot is gone too
+			if (!isLive(end, position))
+				break;
+			if (seen.add(high, low))
+				sequences[count++] = sequence;
+		}
+		long[] oldestFirst = new long[count];
+		for (int i = 0; i < count; i++)
+			oldestFirst[i] = sequences[count - 1 - i];
+		return oldestFirst;
+	}
+
+	/**
+	 * @return the sequence of the latest published version of the record, -1
+	 *         when the ring holds none
+	 */
+	private long latestSequence(UUID id) {
+		long high = id.getMostSignificantBits();
+		long low = id.getLeastSignificantBits();
+		int home = hash(high, low) & idMask;
+		long latest = -1;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			long held = idEntries.get((home + probe) & idMask);
+			if (held == EMPTY)
+				break;
+			if (held > latest && matches(held, high, low) > 0)
+				latest = held;
+		}
+		return latest < 0 && idOverflows.get(home) != 0 ? scanSequence(high, low) : latest;
+	}
+
+	/**
+	 * Walks the slots newest first for the latest published version of the
+	 * record.
+	 */
+	private long scanSequence(long high, long low) {
+		Tail end = tail.get();
+		for (long sequence = end.sequence - 1; sequence >= Math.max(0, end.sequence - mask - 1); sequence--) {
+			int slot = (int) (sequence & mask);
+			if (slotStamps.get(slot) != sequence)
+				continue;
+			long position = slotPositions[slot];
+			boolean same = slotIdHigh[slot] == high && slotIdLow[slot] == low;
+			if (!validate(slot, sequence))
+				continue;
+			if (!isLive(end, position))
+				break;
+			if (same)
+				return sequence;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the slot unless it was overwritten since the sequences were
+	 * taken.
+	 */
+	private void addIfLive(List<AuditTrail> records, long sequence) throws IOException {
+		byte[] payload = payload(sequence);
+		if (payload != null)
+			records.add(AuditRecordCodec.decode(payload));
+	}
+
+	/**
+	 * @return a copy of the payload of the slot, <code>null</code> when the
+	 *         slot or its bytes were taken by a later sequence
+	 */
+	private byte[] payload(long sequence) {
+		int slot = (int) (sequence & mask);
+		if (slotStamps.get(slot) != sequence)
+			return null;
+		long position = slotPositions[slot];
+		byte[] payload = new byte[slotLengths[slot]];
+		if (!isLive(tail.get(), position))
+			return null;
+		copy(position, payload, false);
+		return validate(slot, sequence) && isLive(tail.get(), position) ? payload : null;
+	}
+
+	/**
+	 * Confirms the slot still holds the sequence after its fields were read. A
+	 * compare and set rather than a read: it also keeps those reads from
+	 * moving after it, Java 8 has no load fence.
+	 */
+	private boolean validate(int slot, long sequence) {
+		return slotStamps.compareAndSet(slot, sequence, sequence);
+	}
+
+	/**
+	 * @return <code>true</code> while no claim reached the bytes starting at
+	 *         the position
+	 */
+	private boolean isLive(Tail end, long position) {
+		return position >= end.position - ring.capacity();
+	}
+
+	/**
+	 * Copies between the array and the ring at a logical position, in two parts
+	 * when the range wraps around the end of the ring.
+	 */
+	private void copy(long position, byte[] bytes, boolean write) {
+		int start = (int) (position % ring.capacity());
+		int first = Math.min(bytes.length, ring.capacity() - start);
+		ByteBuffer view = ring.duplicate();
+		view.position(start);
+		if (write) {
+			view.put(bytes, 0, first);
+			view.position(0);
+			view.put(bytes, first, bytes.length - first);
+		} else {
+			view.get(bytes, 0, first);
+			view.position(0);
+			view.get(bytes, first, bytes.length - first);
+		}
+	}
+
+	/**
+	 * Linear probing set of record ids, used by one scan to keep the newest
+	 * version of each id. Sized to twice the slots, it stays at most half
+	 * full.
+	 */
+	private static final class IdTable {
+		private final long[] keyHigh;
+		private final long[] keyLow;
+		private final boolean[] used;
+		private final int tableMask;
+
+		IdTable(int slots) {
+			int size = slots * 2;
+			keyHigh = new long[size];
+			keyLow = new long[size];
+			used = new boolean[size];
+			tableMask = size - 1;
+		}
+
+		/**
+		 * @return <code>false</code> when the id was already added
+		 */
+		boolean add(long high, long low) {
+			int index = hash(high, low) & tableMask;
+			for (; used[index]; index = (index + 1) & tableMask) {
+				if (keyHigh[index] == high && keyLow[index] == low)
+					return false;
+			}
+			keyHigh[index] = high;
+			keyLow[index] = low;
+			used[index] = true;
+			return true;
+		}
+	}
+
+	private static int hash(long high, long low) {
+		long hash = (high ^ low) * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * Next sequence to claim and logical end of the claimed bytes.
+	 */
+	private static final class Tail {
+		private final long sequence;
+		private final long position;
+
+		Tail(long sequence, long position) {
+			this.sequence = sequence;
+			this.position = position;
+		}
+	}
+}
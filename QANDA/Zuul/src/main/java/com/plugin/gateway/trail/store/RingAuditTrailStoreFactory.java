@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.springframework.stereotype.Component;
+
+import com.plugin.gateway.enums.AuditStorageEngine;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+
+/**
+ * Builds the {@link RingAuditTrailStore} with
+ * <code>audit.ringCapacity</code> slots over <code>audit.ringMaxBytes</code>
+ * of off heap memory.
+ *
+ * @author Sankha
+ *
+ */
+@Component
+public class RingAuditTrailStoreFactory implements AuditTrailStoreFactory {
+
+	@Override
+	public Set<String> getNames() {
+		return Collections.singleton(AuditStorageEngine.RING.getValue());
+	}
+
+	@Override
+	public AuditTrailStore create(AuditConfigurationProperties auditProperties) {
+		return new RingAuditTrailStore(auditProperties.getRingCapacity(), auditProperties.getRingMaxBytes());
+	}
+}
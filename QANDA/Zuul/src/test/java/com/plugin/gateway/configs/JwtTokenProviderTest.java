@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package com.plugin.gateway.configs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+
+/**
+ * When {@link JwtTokenProvider} answers from its cache of verified claims and
+ * when it verifies the token again. Tokens are signed with the default key.
+ *
+ * @author Sankha
+ *
+ */
+public class JwtTokenProviderTest {
+
+	private static final String SIGNING_KEY = Base64.getEncoder()
+			.encodeToString("secret".getBytes(StandardCharsets.UTF_8));
+
+	private final AtomicInteger verifications = new AtomicInteger();
+	private final HttpServletRequest request = mock(HttpServletRequest.class);
+	private JwtTokenProvider provider;
+
+	@BeforeEach
+	public void setUp() {
+		provider = new JwtTokenProvider() {
+			@Override
+			Claims verify(String token) {
+				verifications.incrementAndGet();
+				return super.verify(token);
+			}
+		};
+		provider.init();
+	}
+
+	@DisplayName("A token seen before is answered from the cache without verifying it again")
+	@Test
+	public void whenTokenIsCached_thenVerifiedOnce() {
+		String token = token("sankha", new Date(System.currentTimeMillis() + 60_000));
+
+		Claims first = provider.resolveClaims(token, request);
+		Claims second = provider.resolveClaims(token, request);
+
+		assertEquals("sankha", first.getSubject());
+		assertSame(first, second);
+		assertEquals("sankha", provider.getUsername(token));
+		assertEquals(1, verifications.get());
+		assertThrows(UnsupportedOperationException.class, () -> first.setSubject("mallory"));
+	}
+
+	@DisplayName("A cached token is verified again once it expires, and marks the request expired")
+	@Test
+	public void whenCachedTokenExpires_thenNotServedFromCache() throws InterruptedException {
+		// expirations are whole seconds, the next one is at most a second away
+		Date expiration = new Date((System.currentTimeMillis() / 1000 + 1) * 1000);
+		String token = token("sankha", expiration);
+		assertEquals("sankha", provider.resolveClaims(token, request).getSubject());
+
+		while (!new Date().after(expiration))
+			Thread.sleep(20);
+
+		assertNull(provider.resolveClaims(token, request));
+		assertEquals(2, verifications.get());
+		verify(request).setAttribute(eq("Expired"), anyString());
+	}
+
+	@DisplayName("An expired token sets the Expired attribute")
+	@Test
+	public void whenTokenHasExpired_thenRequestIsMarked() {
+		String token = token("sankha", new Date(System.currentTimeMillis() - 60_000));
+
+		assertNull(provider.resolveClaims(token, request));
+		assertNull(provider.resolveClaims(token, request));
+
+		assertEquals(2, verifications.get());
+		verify(request, times(2)).setAttribute(eq("Expired"), anyString());
+	}
+
+	@DisplayName("A token without an expiration is refused and never cached")
+	@Test
+	public void whenTokenHasNoExpiration_thenNotCached() {
+		String token = token("sankha", null);
+
+		assertNull(provider.resolveClaims(token, request));
+		assertNull(provider.resolveClaims(token, request));
+
+		assertEquals(2, verifications.get());
+		verify(request, never()).setAttribute(eq("Expired"), anyString());
+	}
+
+	@DisplayName("A token whose signature was changed is rejected even when the original is cached")
+	@Test
+	public void whenSignatureIsTampered_thenNeverServedFromCache() {
+		String token = token("sankha", new Date(System.currentTimeMillis() + 60_000));
+		provider.resolveClaims(token, request);
+		int signature = token.lastIndexOf('.') + 1;
+		String tampered = token.substring(0, signature) + (token.charAt(signature) == 'A' ? 'B' : 'A')
+				+ token.substring(signature + 1);
+
+		assertThrows(SignatureException.class, () -> provider.resolveClaims(tampered, request));
+		assertThrows(SignatureException.class, () -> provider.resolveClaims(tampered, request));
+
+		assertEquals(3, verifications.get());
+		// the genuine token is still served from the cache
+		assertEquals("sankha", provider.resolveClaims(token, request).getSubject());
+		assertEquals(3, verifications.get());
+	}
+
+	private static String token(String username, Date expiration) {
+		JwtBuilder builder = Jwts.builder().setSubject(username).setIssuedAt(new Date());
+		if (expiration != null)
+			builder.setExpiration(expiration);
+		return builder.signWith(SignatureAlgorithm.HS256, SIGNING_KEY).compact();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package com.plugin.gateway.controller;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.fileStore;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.ResponseEntity;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.JsonParser;
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.service.AuditStatsService;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.store.FileAuditTrailStore;
+
+/**
+ * The bulk update of {@link AuditTrailController} over a file store: which
+ * bodies it turns away before touching a record and what it answers for the
+ * ones it applies.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTrailControllerTest {
+
+	@TempDir
+	Path folder;
+
+	private final AuditTrail question = record("question-service", "NEW", 500);
+	private final AuditTrail answer = record("answer-service", "NEW", 200);
+	private FileAuditTrailStore store;
+	private AuditTrailRepository repository;
+	private AuditTrailController controller;
+
+	/**
+	 * Opens a store holding the two records and points the controller at it.
+	 */
+	@BeforeEach
+	public void setUp() throws IOException {
+		store = fileStore(folder);
+		repository = new AuditTrailRepository(store, AuditMatchMode.EXACT);
+		controller = new AuditTrailController(repository, mock(AuditStatsService.class), mock(ObjectMapper.class));
+		repository.saveAll(Arrays.asList(question, answer));
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		store.close();
+	}
+
+	@DisplayName("A search no index can narrow is rejected before any record is updated")
+	@Test
+	public void whenSearchIsNotNarrowed_thenBadRequest() throws IOException {
+		assertBadRequest("{\"status\": \"DONE\"}");
+		assertBadRequest("{\"status\": \"DONE\", \"search\": {}}");
+		assertBadRequest("{\"status\": \"DONE\", \"search\": {\"colour\": \"blue\"}}");
+		assertBadRequest("{\"status\": \"DONE\", \"search\": {\"responseCode\": 500}}");
+
+		assertEquals("NEW", repository.findById(question.getId().toString()).getStatus());
+		assertEquals("NEW", repository.findById(answer.getId().toString()).getStatus());
+	}
+
+	@DisplayName("A body without a status or with broken JSON is rejected")
+	@Test
+	public void whenBodyIsIncomplete_thenBadRequest() throws IOException {
+		assertEquals(400, controller.bulkUpdateTrailObjects("reviewer", "").getStatusCodeValue());
+		assertBadRequest("{\"ids\": [\"" + question.getId() + "\"]}");
+		assertBadRequest("{\"status\": \"DONE\", \"ids\": [");
+
+		assertEquals("NEW", repository.findById(question.getId().toString()).getStatus());
+	}
+
+	@DisplayName("A narrowed selection updates its records and reports how many")
+	@Test
+	public void whenSelectionIsNarrowed_thenMatchesAreUpdated() throws IOException {
+		ResponseEntity<String> response = controller.bulkUpdateTrailObjects("reviewer",
+				"{\"status\": \"DONE\", \"ids\": [\"" + question.getId() + "\"]}");
+
+		assertEquals(200, response.getStatusCodeValue());
+		assertEquals(1, new JsonParser().parse(response.getBody()).getAsJsonObject().get("updated").getAsInt());
+		AuditTrail updated = repository.findById(question.getId().toString());
+		assertEquals("DONE", updated.getStatus());
+		assertEquals("reviewer", updated.getUpdatedBy());
+		assertEquals("NEW", repository.findById(answer.getId().toString()).getStatus());
+	}
+
+	@DisplayName("A narrowed selection matching nothing answers with no content")
+	@Test
+	public void whenSelectionMatchesNothing_thenNoContent() throws IOException {
+		ResponseEntity<String> response = controller.bulkUpdateTrailObjects("reviewer",
+				"{\"status\": \"DONE\", \"search\": {\"serviceName\": \"comment-service\"}}");
+
+		assertEquals(204, response.getStatusCodeValue());
+		assertEquals("NEW", repository.findById(question.getId().toString()).getStatus());
+	}
+
+	private void assertBadRequest(String body) {
+		ResponseEntity<String> response = controller.bulkUpdateTrailObjects("reviewer", body);
+		assertEquals(400, response.getStatusCodeValue(), body);
+		assertTrue(response.getBody().contains("message"), body);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package com.plugin.gateway.filters;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.exception.ZuulException;
+import com.plugin.gateway.service.AuditTrailWriter;
+import com.plugin.gateway.trail.capture.AuditLatencyRecorder;
+import com.plugin.gateway.trail.capture.AuditSamplingPolicy;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * When {@link AuditTrailResponseFilter} finishes a record: once the send
+ * response filter closes the streamed body, or at once when that filter will
+ * not run because routing failed.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTrailResponseFilterTest {
+
+	private static final String ROUTE = "question-service";
+
+	private final AuditTrailWriter auditTrailWriter = mock(AuditTrailWriter.class);
+	private final AuditSamplingPolicy auditSamplingPolicy = mock(AuditSamplingPolicy.class);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final AuditTrailResponseFilter filter = new AuditTrailResponseFilter(auditTrailWriter,
+			auditSamplingPolicy, new AuditLatencyRecorder(meterRegistry));
+	private RequestContext context;
+	private AuditTrail auditObject;
+
+	@BeforeEach
+	public void setUp() {
+		context = new RequestContext();
+		context.setResponse(new MockHttpServletResponse());
+		context.set(FilterConstants.PROXY_KEY, ROUTE);
+		context.set(AuditTrailFilter.AUDIT_START_KEY, System.nanoTime());
+		auditObject = record(ROUTE);
+		context.set(AuditTrailFilter.AUDIT_RECORD_KEY, auditObject);
+		RequestContext.testSetCurrentContext(context);
+		when(auditSamplingPolicy.sample(anyString(), anyInt(), anyBoolean())).thenReturn(true);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		RequestContext.testSetCurrentContext(null);
+	}
+
+	@DisplayName("A streamed response is audited when the send response filter closes it")
+	@Test
+	public void whenResponseIsStreamed_thenCompletedOnClose() throws ZuulException, IOException {
+		context.setResponseStatusCode(200);
+		context.setResponseDataStream(new ByteArrayInputStream("{\"id\": 7}".getBytes(StandardCharsets.UTF_8)));
+
+		filter.run();
+		verify(auditTrailWriter, never()).submit(auditObject);
+		try (InputStream body = context.getResponseDataStream()) {
+			StreamUtils.drain(body);
+		}
+
+		verify(auditTrailWriter).submit(auditObject);
+		assertEquals(9L, auditObject.getResponseBytes());
+		assertEquals(1, meterRegistry.timer("audit.route.gateway.latency", "route", ROUTE).count());
+	}
+
+	@DisplayName("A failed request is audited at once, its stream left alone for the error path")
+	@Test
+	public void whenRoutingFailed_thenCompletedAtOnce() throws ZuulException {
+		InputStream upstream = new ByteArrayInputStream("partial".getBytes(StandardCharsets.UTF_8));
+		context.setResponseStatusCode(500);
+		context.setResponseDataStream(upstream);
+		context.setThrowable(new IllegalStateException("upstream reset"));
+
+		filter.run();
+
+		verify(auditSamplingPolicy).sample("POST", 500, true);
+		verify(auditTrailWriter).submit(auditObject);
+		assertSame(upstream, context.getResponseDataStream());
+		assertEquals(500, auditObject.getResponseCode());
+		assertEquals(0L, auditObject.getResponseBytes());
+		assertEquals(1, meterRegistry.timer("audit.route.gateway.latency", "route", ROUTE).count());
+	}
+
+	@DisplayName("A failed request with a body set is audited at once without that body's bytes")
+	@Test
+	public void whenRoutingFailedWithBody_thenCompletedAtOnce() throws ZuulException {
+		context.setResponseStatusCode(502);
+		context.setResponseBody("{\"error\": \"bad gateway\"}");
+		context.setThrowable(new IllegalStateException("upstream reset"));
+
+		filter.run();
+
+		verify(auditTrailWriter).submit(auditObject);
+		assertEquals(0L, auditObject.getResponseBytes());
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package com.plugin.gateway.service;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Where {@link AuditStatsService#query} reads a range from: the stored rollups
+ * before the first minute held in full, memory from it on.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditStatsServiceTest {
+
+	// start of the minute the service starts counting in
+	private static final long MINUTE = REQUEST_TIMESTAMP / 60 * 60;
+
+	private final AuditTrailRepository repository = mock(AuditTrailRepository.class);
+	private final MovingClock clock = new MovingClock(MINUTE + 30);
+	private AuditStatsService statsService;
+
+	@BeforeEach
+	public void setUp() {
+		AuditConfigurationProperties auditProperties = new AuditConfigurationProperties();
+		auditProperties.setStatsWindowMinutes(5);
+		statsService = new AuditStatsService(repository, auditProperties, new SimpleMeterRegistry(), clock);
+		when(repository.findRollups(anyLong(), anyLong()))
+				.thenReturn(Collections.singletonList(rollup(MINUTE, 7)));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		statsService.shutdown();
+	}
+
+	@DisplayName("Minutes before the first one held in full come from storage, the others from memory")
+	@Test
+	public void whenRangeStartsBeforeCoveredFrom_thenSplitBetweenStorageAndMemory() {
+		// counted in memory too, but the service started in the middle of it
+		statsService.record(record("question-service", MINUTE + 40));
+		statsService.record(record("question-service", MINUTE + 60));
+		statsService.record(record("question-service", MINUTE + 130));
+		statsService.record(record("question-service", MINUTE + 140));
+		clock.now = MINUTE + 3 * 60 + 10;
+
+		List<AuditRouteRollup> perMinute = statsService.query(MINUTE, Long.MAX_VALUE, null, null, null, true);
+
+		verify(repository).findRollups(MINUTE, MINUTE + 59);
+		assertEquals(Arrays.asList(MINUTE + " 7", (MINUTE + 60) + " 1", (MINUTE + 120) + " 2"), counts(perMinute));
+
+		List<AuditRouteRollup> total = statsService.query(MINUTE, Long.MAX_VALUE, "QUESTION-SERVICE", "post", 0,
+				false);
+		assertEquals(Collections.singletonList("null 10"), counts(total));
+	}
+
+	@DisplayName("A range starting at the first minute held in full is answered from memory alone")
+	@Test
+	public void whenRangeStartsAtCoveredFrom_thenStorageIsNotRead() {
+		statsService.record(record("question-service", MINUTE + 60));
+		clock.now = MINUTE + 2 * 60;
+
+		List<AuditRouteRollup> rollups = statsService.query(MINUTE + 60, MINUTE + 119, null, null, null, true);
+
+		verify(repository, never()).findRollups(anyLong(), anyLong());
+		assertEquals(Collections.singletonList((MINUTE + 60) + " 1"), counts(rollups));
+	}
+
+	@DisplayName("As the window slides on, the minutes it left are read from storage")
+	@Test
+	public void whenWindowSlides_thenOlderMinutesComeFromStorage() {
+		statsService.record(record("question-service", MINUTE + 60));
+		statsService.record(record("question-service", MINUTE + 8 * 60));
+		clock.now = MINUTE + 10 * 60;
+
+		List<AuditRouteRollup> rollups = statsService.query(MINUTE, MINUTE + 10 * 60, null, null, null, true);
+
+		// five minutes in memory, the one starting at now included
+		verify(repository).findRollups(MINUTE, MINUTE + 6 * 60 - 1);
+		assertEquals(Arrays.asList(MINUTE + " 7", (MINUTE + 8 * 60) + " 1"), counts(rollups));
+	}
+
+	private static AuditRouteRollup rollup(long minute, long count) {
+		return new AuditRouteRollup(minute, "question-service", "POST", 0, count);
+	}
+
+	/**
+	 * @return <code>minute count</code> of each rollup in order
+	 */
+	private static List<String> counts(List<AuditRouteRollup> rollups) {
+		return rollups.stream().map(rollup -> rollup.getMinute() + " " + rollup.getCount())
+				.collect(Collectors.toList());
+	}
+
+	private static final class MovingClock extends Clock {
+		private volatile long now;
+
+		private MovingClock(long now) {
+			this.now = now;
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochSecond(now);
+		}
+	}
+}
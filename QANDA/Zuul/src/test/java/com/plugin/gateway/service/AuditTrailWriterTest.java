@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package com.plugin.gateway.service;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.repository.AuditTrailRepository;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * What {@link AuditTrailWriter} does with records submitted around its
+ * shutdown, while the gateway is still serving, and with records that find
+ * its queue full.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTrailWriterTest {
+
+	private final AuditTrailRepository repository = mock(AuditTrailRepository.class);
+	private final List<AuditTrail> saved = Collections.synchronizedList(new ArrayList<>());
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	@DisplayName("A record submitted after shutdown is written on the calling thread")
+	@Test
+	public void whenSubmittedAfterShutdown_thenWrittenAtOnce() {
+		recordSaves(null);
+		AuditTrailWriter writer = writer(10);
+		writer.shutdown();
+
+		AuditTrail late = record("question-service");
+		writer.submit(late);
+
+		assertEquals(Collections.singletonList(late), saved);
+		assertEquals(0, writer.getQueueDepth());
+		assertEquals(0, meterRegistry.counter("audit.writer.dropped", "policy", "block").count());
+	}
+
+	@DisplayName("A submit blocked on a full queue is released by shutdown and writes its record")
+	@Test
+	public void whenShutdownWhileSubmitBlocks_thenSubmitReturns() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AuditTrail first = record("question-service");
+		recordSaves(batch -> {
+			if (batch.contains(first))
+				release.await();
+		});
+		AuditTrailWriter writer = writer(1);
+		writer.submit(first);
+		// the drain thread holds the first record, the second fills the queue
+		while (writer.getQueueDepth() > 0)
+			Thread.sleep(5);
+		AuditTrail second = record("question-service");
+		writer.submit(second);
+		AuditTrail third = record("question-service");
+		Thread submitter = new Thread(() -> writer.submit(third));
+		submitter.start();
+		submitter.join(200);
+		assertTrue(submitter.isAlive());
+
+		Thread stopper = new Thread(writer::shutdown);
+		stopper.start();
+		submitter.join(TimeUnit.SECONDS.toMillis(5));
+
+		assertFalse(submitter.isAlive());
+		assertTrue(saved.contains(third));
+		release.countDown();
+		stopper.join(TimeUnit.SECONDS.toMillis(5));
+		assertTrue(saved.containsAll(Arrays.asList(first, second, third)));
+	}
+
+	@DisplayName("With drop-oldest a full queue drops its oldest records for the new ones and counts them")
+	@Test
+	public void whenQueueIsFullWithDropOldest_thenOldestAreDropped() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AuditTrailWriter writer = writer(2, "drop-oldest", 0.1);
+		List<AuditTrail> submitted = holdDrain(writer, release);
+
+		for (int i = 0; i < 3; i++) {
+			AuditTrail record = record("question-service");
+			writer.submit(record);
+			submitted.add(record);
+		}
+
+		assertEquals(2, writer.getQueueDepth());
+		assertEquals(2, meterRegistry.counter("audit.writer.dropped", "policy", "drop-oldest").count());
+		release.countDown();
+		writer.shutdown();
+		assertEquals(Arrays.asList(submitted.get(0), submitted.get(3), submitted.get(4)), saved);
+	}
+
+	@DisplayName("With sample a queue half full keeps new records at the sample rate and counts the others")
+	@Test
+	public void whenQueueIsHalfFullWithSample_thenRecordsAreSampled() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AuditTrailWriter writer = writer(4, "sample", 0);
+		List<AuditTrail> submitted = holdDrain(writer, release);
+
+		for (int i = 0; i < 3; i++) {
+			AuditTrail record = record("question-service");
+			writer.submit(record);
+			submitted.add(record);
+		}
+
+		// queued up to half the capacity, then sampled out
+		assertEquals(2, writer.getQueueDepth());
+		assertEquals(2, meterRegistry.counter("audit.writer.dropped", "policy", "sample").count());
+		release.countDown();
+		writer.shutdown();
+		assertEquals(submitted.subList(0, 3), saved);
+	}
+
+	@DisplayName("With sample every record is queued at a rate of 1 until the queue is full")
+	@Test
+	public void whenQueueIsFullWithSample_thenRecordsAreDropped() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AuditTrailWriter writer = writer(4, "sample", 1);
+		List<AuditTrail> submitted = holdDrain(writer, release);
+
+		for (int i = 0; i < 4; i++) {
+			AuditTrail record = record("question-service");
+			writer.submit(record);
+			submitted.add(record);
+		}
+
+		assertEquals(4, writer.getQueueDepth());
+		assertEquals(1, meterRegistry.counter("audit.writer.dropped", "policy", "sample").count());
+		release.countDown();
+		writer.shutdown();
+		assertEquals(submitted.subList(0, 5), saved);
+	}
+
+	private AuditTrailWriter writer(int queueCapacity) {
+		return writer(queueCapacity, "block", 0.1);
+	}
+
+	private AuditTrailWriter writer(int queueCapacity, String overflowPolicy, double sampleRate) {
+		AuditConfigurationProperties auditProperties = new AuditConfigurationProperties();
+		auditProperties.setQueueCapacity(queueCapacity);
+		auditProperties.setBatchSize(1);
+		auditProperties.setFlushIntervalMillis(10);
+		auditProperties.setOverflowPolicy(overflowPolicy);
+		auditProperties.setSampleRate(sampleRate);
+		return new AuditTrailWriter(repository, mock(AuditStatsService.class), auditProperties, meterRegistry);
+	}
+
+	/**
+	 * Submits a first record and waits until the drain thread holds it in a
+	 * save the latch keeps from finishing, then fills the queue with a second
+	 * record.
+	 *
+	 * @return the records submitted, oldest first
+	 */
+	private List<AuditTrail> holdDrain(AuditTrailWriter writer, CountDownLatch release) throws InterruptedException {
+		AuditTrail first = record("question-service");
+		recordSaves(batch -> {
+			if (batch.contains(first))
+				release.await();
+		});
+		writer.submit(first);
+		while (writer.getQueueDepth() > 0)
+			Thread.sleep(5);
+		AuditTrail second = record("question-service");
+		writer.submit(second);
+		return new ArrayList<>(Arrays.asList(first, second));
+	}
+
+	/**
+	 * Collects every saved record once the given hook, if any, lets the save
+	 * go on.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordSaves(SaveHook hook) {
+		doAnswer(invocation -> {
+			List<AuditTrail> batch = new ArrayList<>((List<AuditTrail>) invocation.getArgument(0));
+			if (hook != null)
+				hook.beforeSave(batch);
+			saved.addAll(batch);
+			return null;
+		}).when(repository).saveAll(anyList());
+	}
+
+	private interface SaveHook {
+		void beforeSave(List<AuditTrail> batch) throws InterruptedException;
+	}
+}
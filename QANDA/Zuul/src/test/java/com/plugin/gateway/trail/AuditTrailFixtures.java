@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.JsonParser;
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.store.AuditSearchCriteria;
+import com.plugin.gateway.trail.store.FileAuditTrailStore;
+
+/**
+ * Records, searches and stores shared by the audit tests. A record is a
+ * <code>POST /api/&lt;serviceName&gt;</code> in status <code>NEW</code> made
+ * at {@link #REQUEST_TIMESTAMP} unless the test says otherwise.
+ *
+ * @author Sankha
+ *
+ */
+public final class AuditTrailFixtures {
+
+	/** 2020-09-13, a day long closed */
+	public static final long REQUEST_TIMESTAMP = 1_600_000_000L;
+	public static final long DAY_SECONDS = 86_400L;
+	public static final long SEGMENT_BYTES = 1 << 20;
+
+	private AuditTrailFixtures() {
+	}
+
+	/**
+	 * @param serviceName
+	 * @return a new record with a random id
+	 */
+	public static AuditTrail record(String serviceName) {
+		return record(serviceName, REQUEST_TIMESTAMP);
+	}
+
+	/**
+	 * @param serviceName
+	 * @param requestTimestamp
+	 * @return a new record with a random id
+	 */
+	public static AuditTrail record(String serviceName, long requestTimestamp) {
+		AuditTrail record = new AuditTrail();
+		record.setId(UUID.randomUUID());
+		record.setServiceName(serviceName);
+		record.setRequestMethod("POST");
+		record.setRequestUrl("/api/" + serviceName);
+		record.setStatus("NEW");
+		record.setRequestTimestamp(requestTimestamp);
+		return record;
+	}
+
+	/**
+	 * @param serviceName
+	 * @param status
+	 * @param responseCode
+	 * @return a new record with a random id
+	 */
+	public static AuditTrail record(String serviceName, String status, int responseCode) {
+		AuditTrail record = record(serviceName);
+		record.setStatus(status);
+		record.setResponseCode(responseCode);
+		return record;
+	}
+
+	/**
+	 * @return a new record with every field set, headers and parameters
+	 *         included
+	 */
+	public static AuditTrail fullRecord() {
+		AuditTrail record = new AuditTrail();
+		record.setId(UUID.randomUUID());
+		record.setServiceName("question-service");
+		record.setAction("createPost");
+		record.setRequestMethod("POST");
+		record.setRequestUrl("/api/question/posts");
+		record.setPerformedBy("sankha");
+		record.setUpdatedBy("reviewer");
+		record.setContextPath("/api");
+		record.setQueryParams("draft=true&tag=java");
+		record.setStatus("FAILED");
+		record.setResponseCode(503);
+		record.setRequestTimestamp(REQUEST_TIMESTAMP);
+		record.setUpdateTimestamp(REQUEST_TIMESTAMP + 60);
+		Map<String, Object> headers = new LinkedHashMap<>();
+		headers.put("content-type", "application/json");
+		headers.put("x-username", "sankha");
+		// not one of the known header names, stored by name
+		headers.put("x-tenant", "qanda");
+		headers.put("x-empty", null);
+		record.setRequestHeaders(headers);
+		Map<String, String[]> params = new LinkedHashMap<>();
+		params.put("draft", new String[] { "true" });
+		params.put("tag", new String[] { "java", "spring" });
+		record.setRequestParams(params);
+		record.setRequestBody("{\"text\": \"Why does the gateway time out?\"}");
+		return record;
+	}
+
+	/**
+	 * @param search the JSON body of a search request
+	 * @return the parsed criteria, matched exactly
+	 */
+	public static AuditSearchCriteria criteria(String search) {
+		return new AuditSearchCriteria(new JsonParser().parse(search).getAsJsonObject());
+	}
+
+	/**
+	 * @param folder
+	 * @return a file store over the folder with two stripes
+	 * @throws IOException
+	 */
+	public static FileAuditTrailStore fileStore(Path folder) throws IOException {
+		return fileStore(folder, 2);
+	}
+
+	/**
+	 * @param folder
+	 * @param stripes
+	 * @return a file store over the folder with 1 MB segments and no body index
+	 * @throws IOException
+	 */
+	public static FileAuditTrailStore fileStore(Path folder, int stripes) throws IOException {
+		AuditConfigurationProperties auditProperties = new AuditConfigurationProperties();
+		auditProperties.setSegmentMaxBytes(SEGMENT_BYTES);
+		auditProperties.setSearchParallelism(2);
+		auditProperties.setWriterStripes(stripes);
+		auditProperties.setDayIndexCacheMaxBytes(0);
+		return new FileAuditTrailStore(folder, auditProperties);
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.plugin.gateway.property.AuditConfigurationProperties;
+import com.plugin.gateway.service.AuditTrailWriter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * How {@link AuditSamplingPolicy} moves its read rate with the load of a
+ * stubbed {@link AuditTrailWriter}, and which requests it always keeps.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSamplingPolicyTest {
+
+	private static final double DELTA = 1e-9;
+
+	private final AuditTrailWriter writer = mock(AuditTrailWriter.class);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final AuditConfigurationProperties auditProperties = new AuditConfigurationProperties();
+	// moves on by more than the adjust interval on every tick
+	private long now = System.nanoTime();
+
+	@BeforeEach
+	public void setUp() {
+		auditProperties.setReadSampleRate(0.8);
+		auditProperties.setSamplingMinRate(0.1);
+		auditProperties.setSamplingQueueThreshold(0.5);
+		auditProperties.setSamplingLatencyThresholdMillis(250);
+		when(writer.getQueueCapacity()).thenReturn(100);
+		load(0, 0);
+	}
+
+	@DisplayName("A writer queue above its threshold halves the rate down to the minimum")
+	@Test
+	public void whenQueueIsAboveThreshold_thenRateIsHalved() {
+		AuditSamplingPolicy policy = policy();
+		assertEquals(0.8, policy.getEffectiveRate(), DELTA);
+
+		load(51, 0);
+		tick(policy);
+		assertEquals(0.4, policy.getEffectiveRate(), DELTA);
+		tick(policy);
+		assertEquals(0.2, policy.getEffectiveRate(), DELTA);
+		tick(policy);
+		tick(policy);
+		assertEquals(0.1, policy.getEffectiveRate(), DELTA);
+		assertEquals(0.1, meterRegistry.get("audit.sampling.rate").gauge().value(), DELTA);
+	}
+
+	@DisplayName("A batch latency above its threshold halves the rate too")
+	@Test
+	public void whenLatencyIsAboveThreshold_thenRateIsHalved() {
+		AuditSamplingPolicy policy = policy();
+
+		load(50, 251);
+		tick(policy);
+
+		assertEquals(0.4, policy.getEffectiveRate(), DELTA);
+	}
+
+	@DisplayName("Once the load is gone the rate climbs back by a tenth of the configured rate, up to it")
+	@Test
+	public void whenLoadIsGone_thenRateRecovers() {
+		AuditSamplingPolicy policy = policy();
+		load(100, 1000);
+		for (int i = 0; i < 4; i++)
+			tick(policy);
+		assertEquals(0.1, policy.getEffectiveRate(), DELTA);
+
+		load(50, 250);
+		tick(policy);
+		assertEquals(0.18, policy.getEffectiveRate(), DELTA);
+		tick(policy);
+		assertEquals(0.26, policy.getEffectiveRate(), DELTA);
+		for (int i = 0; i < 10; i++)
+			tick(policy);
+		assertEquals(0.8, policy.getEffectiveRate(), DELTA);
+	}
+
+	@DisplayName("The rate never goes under the minimum, nor the minimum over the configured rate")
+	@Test
+	public void whenOverloadedForLong_thenRateStaysAtMinimum() {
+		auditProperties.setSamplingMinRate(0.3);
+		AuditSamplingPolicy policy = policy();
+		load(100, 0);
+		for (int i = 0; i < 5; i++)
+			tick(policy);
+		assertEquals(0.3, policy.getEffectiveRate(), DELTA);
+
+		auditProperties.setSamplingMinRate(0.9);
+		AuditSamplingPolicy capped = policy();
+		tick(capped);
+		assertEquals(0.8, capped.getEffectiveRate(), DELTA);
+	}
+
+	@DisplayName("Writes and responses outside 2xx are kept whatever the rate, successful reads are not")
+	@Test
+	public void whenRateIsZero_thenOnlyWritesAndErrorsAreKept() {
+		auditProperties.setReadSampleRate(0);
+		auditProperties.setSamplingMinRate(0);
+		AuditSamplingPolicy policy = policy();
+
+		for (String method : new String[] { "POST", "put", "DELETE", "PATCH" })
+			assertTrue(policy.sample(method, 200, false), method);
+		for (int code : new int[] { 199, 302, 404, 500 })
+			assertTrue(policy.sample("GET", code, false), Integer.toString(code));
+		assertTrue(policy.sample("GET", 200, true));
+		assertFalse(policy.sample("GET", 200, false));
+		assertFalse(policy.sample("head", 204, false));
+
+		assertEquals(4, decisions("kept", "write"), DELTA);
+		assertEquals(5, decisions("kept", "error"), DELTA);
+		assertEquals(0, decisions("kept", "sampled"), DELTA);
+		assertEquals(2, decisions("dropped", "sampled"), DELTA);
+	}
+
+	private AuditSamplingPolicy policy() {
+		return new AuditSamplingPolicy(writer, auditProperties, meterRegistry);
+	}
+
+	private void load(int queueDepth, double batchLatencyMillis) {
+		when(writer.getQueueDepth()).thenReturn(queueDepth);
+		when(writer.getBatchLatencyMillis()).thenReturn(batchLatencyMillis);
+	}
+
+	private void tick(AuditSamplingPolicy policy) {
+		now += TimeUnit.SECONDS.toNanos(2);
+		policy.adjust(now);
+	}
+
+	private double decisions(String decision, String reason) {
+		return meterRegistry.get("audit.sampling.decisions").tag("decision", decision).tag("reason", reason)
+				.counter().count();
+	}
+}
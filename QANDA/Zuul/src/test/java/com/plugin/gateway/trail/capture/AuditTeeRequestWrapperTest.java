@@ -0,0 +1,218 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.capture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.util.StreamUtils;
+
+/**
+ * What {@link AuditTeeRequestWrapper} keeps of a body streamed through it:
+ * the first <code>maxBytes</code> whichever way the body is read, the count of
+ * every byte and the text decoded with the request charset.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTeeRequestWrapperTest {
+
+	private static final String BODY = "{\"text\": \"Why does the gateway time out?\"}";
+
+	@DisplayName("A body shorter than the limit is kept whole and passed on unchanged")
+	@Test
+	public void whenBodyFitsTheLimit_thenKeptWhole() throws IOException {
+		AuditTeeRequestWrapper wrapper = wrapper(bytes(BODY), -1, null, 1024);
+
+		assertArrayEquals(bytes(BODY), StreamUtils.copyToByteArray(wrapper.getInputStream()));
+
+		assertEquals(BODY, wrapper.getCapturedBody());
+		assertEquals(BODY.length(), wrapper.getBodyBytes());
+		assertFalse(wrapper.isTruncated());
+	}
+
+	@DisplayName("Only the prefix is kept, every byte is still counted and passed on")
+	@Test
+	public void whenBodyExceedsTheLimit_thenPrefixIsKept() throws IOException {
+		AuditTeeRequestWrapper wrapper = wrapper(bytes(BODY), BODY.length(), null, 10);
+
+		assertArrayEquals(bytes(BODY), StreamUtils.copyToByteArray(wrapper.getInputStream()));
+
+		assertEquals(BODY.substring(0, 10), wrapper.getCapturedBody());
+		assertEquals(BODY.length(), wrapper.getBodyBytes());
+		assertTrue(wrapper.isTruncated());
+	}
+
+	@DisplayName("Reading a byte at a time and in blocks keeps the same prefix")
+	@Test
+	public void whenReadByteAtATimeOrInBlocks_thenSamePrefixIsKept() throws IOException {
+		byte[] body = body(5000);
+		AuditTeeRequestWrapper single = wrapper(body, -1, null, 3000);
+		AuditTeeRequestWrapper blocks = wrapper(body, -1, null, 3000);
+		AuditTeeRequestWrapper mixed = wrapper(body, -1, null, 3000);
+
+		InputStream in = single.getInputStream();
+		ByteArrayOutputStream passed = new ByteArrayOutputStream();
+		for (int value = in.read(); value >= 0; value = in.read())
+			passed.write(value);
+		assertArrayEquals(body, passed.toByteArray());
+		readInBlocks(blocks.getInputStream(), 700);
+		// blocks straddling the limit, then single bytes past it
+		in = mixed.getInputStream();
+		readFully(in, new byte[2999]);
+		assertEquals(body[2999], (byte) in.read());
+		assertEquals(body[3000], (byte) in.read());
+		readInBlocks(in, 512);
+
+		String prefix = new String(body, 0, 3000, StandardCharsets.UTF_8);
+		for (AuditTeeRequestWrapper wrapper : Arrays.asList(single, blocks, mixed)) {
+			assertEquals(prefix, wrapper.getCapturedBody());
+			assertEquals(5000, wrapper.getBodyBytes());
+			assertTrue(wrapper.isTruncated());
+		}
+	}
+
+	@DisplayName("A known content length sizes the copy once, a wrong one still keeps the prefix")
+	@Test
+	public void whenContentLengthIsKnown_thenCopyGrowsToIt() throws IOException {
+		byte[] body = body(3000);
+		HttpServletRequest sized = request(body, 3000, null);
+		AuditTeeRequestWrapper wrapper = new AuditTeeRequestWrapper(sized, 8192);
+		readInBlocks(wrapper.getInputStream(), 256);
+
+		assertEquals(new String(body, StandardCharsets.UTF_8), wrapper.getCapturedBody());
+		assertFalse(wrapper.isTruncated());
+		verify(sized, times(1)).getContentLength();
+
+		// a content length below the body grows by doubling from there
+		AuditTeeRequestWrapper understated = wrapper(body, 10, null, 8192);
+		readInBlocks(understated.getInputStream(), 256);
+		assertEquals(new String(body, StandardCharsets.UTF_8), understated.getCapturedBody());
+
+		// one above the limit is capped at it
+		AuditTeeRequestWrapper overstated = wrapper(body, Integer.MAX_VALUE, null, 100);
+		readInBlocks(overstated.getInputStream(), 256);
+		assertEquals(new String(body, 0, 100, StandardCharsets.UTF_8), overstated.getCapturedBody());
+		assertEquals(3000, overstated.getBodyBytes());
+	}
+
+	@DisplayName("With no bytes to keep the body is only counted")
+	@Test
+	public void whenMaxBytesIsZero_thenNothingIsKept() throws IOException {
+		AuditTeeRequestWrapper wrapper = wrapper(bytes(BODY), BODY.length(), null, 0);
+		InputStream in = wrapper.getInputStream();
+
+		assertEquals('{', in.read());
+		readInBlocks(in, 8);
+
+		assertNull(wrapper.getCapturedBody());
+		assertEquals(BODY.length(), wrapper.getBodyBytes());
+		assertTrue(wrapper.isTruncated());
+	}
+
+	@DisplayName("Nothing read yet means nothing kept and nothing cut")
+	@Test
+	public void whenNothingIsRead_thenNothingIsCaptured() {
+		AuditTeeRequestWrapper wrapper = wrapper(bytes(BODY), BODY.length(), null, 1024);
+
+		assertNull(wrapper.getCapturedBody());
+		assertEquals(0, wrapper.getBodyBytes());
+		assertFalse(wrapper.isTruncated());
+	}
+
+	@DisplayName("The copy is decoded with the request charset, UTF-8 when it is missing or unknown")
+	@Test
+	public void whenCharsetIsGivenOrNot_thenCopyIsDecodedWithIt() throws IOException {
+		String text = "Pourquoi la passerelle échoue ?";
+		AuditTeeRequestWrapper latin = wrapper(text.getBytes(StandardCharsets.ISO_8859_1), -1, "ISO-8859-1", 1024);
+		AuditTeeRequestWrapper missing = wrapper(text.getBytes(StandardCharsets.UTF_8), -1, null, 1024);
+		AuditTeeRequestWrapper unknown = wrapper(text.getBytes(StandardCharsets.UTF_8), -1, "x-no-such-charset",
+				1024);
+
+		assertEquals(text, StreamUtils.copyToString(latin.getInputStream(), StandardCharsets.ISO_8859_1));
+		StreamUtils.drain(missing.getInputStream());
+		StreamUtils.drain(unknown.getInputStream());
+
+		assertEquals(text, latin.getCapturedBody());
+		assertEquals(text, missing.getCapturedBody());
+		assertEquals(text, unknown.getCapturedBody());
+	}
+
+	@DisplayName("Reading through the reader goes through the same copy and charset")
+	@Test
+	public void whenReadThroughTheReader_thenCopyIsKept() throws IOException {
+		String text = "Pourquoi la passerelle échoue ?";
+		AuditTeeRequestWrapper wrapper = wrapper(text.getBytes(StandardCharsets.ISO_8859_1), -1, "ISO-8859-1", 1024);
+
+		assertEquals(text, wrapper.getReader().readLine());
+
+		assertEquals(text, wrapper.getCapturedBody());
+		assertEquals(text.length(), wrapper.getBodyBytes());
+	}
+
+	private static AuditTeeRequestWrapper wrapper(byte[] body, int contentLength, String encoding, int maxBytes) {
+		try {
+			return new AuditTeeRequestWrapper(request(body, contentLength, encoding), maxBytes);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static HttpServletRequest request(byte[] body, int contentLength, String encoding) throws IOException {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getInputStream()).thenReturn(new DelegatingServletInputStream(new ByteArrayInputStream(body)));
+		when(request.getContentLength()).thenReturn(contentLength);
+		when(request.getCharacterEncoding()).thenReturn(encoding);
+		return request;
+	}
+
+	private static void readInBlocks(InputStream in, int blockSize) throws IOException {
+		byte[] block = new byte[blockSize];
+		while (in.read(block, 0, block.length) >= 0)
+			;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer) throws IOException {
+		for (int read = 0; read < buffer.length;) {
+			int count = in.read(buffer, read, buffer.length - read);
+			if (count < 0)
+				throw new IOException("body ended after " + read + " bytes");
+			read += count;
+		}
+	}
+
+	/**
+	 * @return ASCII text of the given length, each position a different
+	 *         character than its neighbours
+	 */
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++)
+			body[i] = (byte) ('a' + i % 26);
+		return body;
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
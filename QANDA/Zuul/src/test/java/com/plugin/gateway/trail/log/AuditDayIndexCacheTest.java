@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.DAY_SECONDS;
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Which day indexes the {@link AuditSegmentLog} keeps once they outgrow
+ * <code>dayIndexMaxBytes</code>, and what a day evicted from the cache
+ * answers once it is built again.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditDayIndexCacheTest {
+
+	private static final String FIRST_DAY = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+	private static final String SECOND_DAY = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP + DAY_SECONDS);
+	private static final String ACTIVE_DAY = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP + 2 * DAY_SECONDS);
+	private static final long SEGMENT_BYTES = 2048;
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("Over the budget the day just built and the active day stay, older days go")
+	@Test
+	public void whenCacheIsOverBudget_thenBuiltAndActiveDaysStay() throws IOException {
+		try (AuditSegmentLog log = log(1)) {
+			writeDays(log);
+
+			AuditDayIndex active = log.dayIndex(ACTIVE_DAY);
+			AuditDayIndex first = log.dayIndex(FIRST_DAY);
+			// neither fits the budget, both are kept
+			assertSame(active, log.dayIndex(ACTIVE_DAY));
+			assertSame(first, log.dayIndex(FIRST_DAY));
+
+			AuditDayIndex second = log.dayIndex(SECOND_DAY);
+
+			assertSame(second, log.dayIndex(SECOND_DAY));
+			assertSame(active, log.dayIndex(ACTIVE_DAY));
+			assertNotSame(first, log.dayIndex(FIRST_DAY));
+		}
+	}
+
+	@DisplayName("Within the budget or without one no day is evicted")
+	@Test
+	public void whenCacheFits_thenNothingIsEvicted() throws IOException {
+		for (long budget : new long[] { 0, 64L << 20 }) {
+			try (AuditSegmentLog log = log(budget)) {
+				writeDays(log);
+
+				AuditDayIndex first = log.dayIndex(FIRST_DAY);
+				log.dayIndex(SECOND_DAY);
+				log.dayIndex(ACTIVE_DAY);
+
+				assertSame(first, log.dayIndex(FIRST_DAY), "budget " + budget);
+			}
+		}
+	}
+
+	@DisplayName("An evicted day is rebuilt with the same matches, late updates included")
+	@Test
+	public void whenEvictedDayIsRebuilt_thenMatchesAreTheSame() throws IOException {
+		try (AuditSegmentLog log = log(1)) {
+			List<AuditTrail> firstDay = writeDays(log);
+			AuditDayIndex first = log.dayIndex(FIRST_DAY);
+			// a late update the cached index follows
+			AuditTrail updated = firstDay.get(3);
+			updated.setStatus("DONE");
+			updated.setServiceName("answer-service");
+			log.append(updated);
+			List<Set<UUID>> before = matches(first);
+
+			log.dayIndex(SECOND_DAY);
+			AuditDayIndex rebuilt = log.dayIndex(FIRST_DAY);
+
+			assertNotSame(first, rebuilt);
+			assertEquals(first.size(), rebuilt.size());
+			assertEquals(before, matches(rebuilt));
+			assertEquals(Collections.singleton(updated.getId()), before.get(1));
+		}
+	}
+
+	private AuditSegmentLog log(long dayIndexMaxBytes) throws IOException {
+		return new AuditSegmentLog(directory,
+				new AuditLogOptions().segmentMaxBytes(SEGMENT_BYTES).dayIndexMaxBytes(dayIndexMaxBytes));
+	}
+
+	/**
+	 * Writes 20 records into each of the two closed days, then one into the
+	 * active day.
+	 *
+	 * @return the records of the first day
+	 */
+	private static List<AuditTrail> writeDays(AuditSegmentLog log) throws IOException {
+		List<AuditTrail> firstDay = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			AuditTrail record = record(i % 2 == 0 ? "question-service" : "user-service", REQUEST_TIMESTAMP + i * 60);
+			record.setStatus(i % 3 == 0 ? "FAILED" : "NEW");
+			firstDay.add(record);
+		}
+		log.appendAll(firstDay);
+		for (int i = 0; i < 20; i++)
+			log.append(record("question-service", REQUEST_TIMESTAMP + DAY_SECONDS + i * 60));
+		log.append(record("question-service", REQUEST_TIMESTAMP + 2 * DAY_SECONDS));
+		return firstDay;
+	}
+
+	/**
+	 * @return the ids matched by a few searches over terms and time
+	 */
+	private static List<Set<UUID>> matches(AuditDayIndex dayIndex) throws IOException {
+		List<Set<UUID>> matches = new ArrayList<>();
+		matches.add(ids(dayIndex, Collections.singletonMap("servicename", "QUESTION-SERVICE"), null, null));
+		matches.add(ids(dayIndex, Collections.singletonMap("status", "done"), null, null));
+		matches.add(ids(dayIndex, Collections.singletonMap("status", "FAILED"), REQUEST_TIMESTAMP + 5 * 60,
+				REQUEST_TIMESTAMP + 14 * 60));
+		matches.add(ids(dayIndex, Collections.emptyMap(), REQUEST_TIMESTAMP + 10 * 60, null));
+		return matches;
+	}
+
+	private static Set<UUID> ids(AuditDayIndex dayIndex, Map<String, String> terms, Long from, Long to)
+			throws IOException {
+		Set<UUID> ids = new HashSet<>();
+		for (AuditTrail record : dayIndex.read(dayIndex.match(terms, null, from, to)))
+			ids.add(record.getId());
+		return ids;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.fullRecord;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Payloads of every {@link AuditRecordCodec} version decode to the record
+ * that was written.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditRecordCodecTest {
+
+	@DisplayName("The current version keeps every field")
+	@Test
+	public void whenEncoded_thenDecodedRecordIsTheSame() throws IOException {
+		AuditTrail record = fullRecord();
+		record.setUpstreamLatencyMillis(42L);
+		record.setGatewayLatencyMillis(3L);
+		record.setResponseBytes(1_048_576L);
+		record.setRequestBodyBytes(70_000L);
+		record.setRequestBodyTruncated(true);
+
+		byte[] payload = AuditRecordCodec.encode(record);
+
+		assertEquals(AuditRecordCodec.VERSION, payload[0]);
+		assertSameRecord(record, AuditRecordCodec.decode(payload));
+	}
+
+	@DisplayName("Version 2 payloads, without the request body size, still decode")
+	@Test
+	public void whenVersion2Payload_thenRecordIsDecoded() throws IOException {
+		AuditTrail record = fullRecord();
+		record.setUpstreamLatencyMillis(42L);
+		byte[] payload = AuditRecordCodec.encode(record);
+		// version 3 only appends the request body size and flag, absent here
+		payload[0] = 2;
+
+		AuditTrail decoded = AuditRecordCodec.decode(payload);
+
+		assertSameRecord(record, decoded);
+		assertEquals(Long.valueOf(42L), decoded.getUpstreamLatencyMillis());
+		assertNull(decoded.getRequestBodyBytes());
+		assertFalse(decoded.isRequestBodyTruncated());
+	}
+
+	@DisplayName("Absent fields stay absent")
+	@Test
+	public void whenFieldsAreNull_thenTheyDecodeAsNull() throws IOException {
+		AuditTrail record = new AuditTrail();
+		record.setResponseCode(-1);
+
+		AuditTrail decoded = AuditRecordCodec.decode(AuditRecordCodec.encode(record));
+
+		assertNull(decoded.getId());
+		assertNull(decoded.getServiceName());
+		assertNull(decoded.getRequestTimestamp());
+		assertNull(decoded.getRequestHeaders());
+		assertNull(decoded.getRequestParams());
+		assertNull(decoded.getRequestBody());
+		assertNull(decoded.getUpstreamLatencyMillis());
+		assertNull(decoded.getRequestBodyBytes());
+		assertFalse(decoded.isRequestBodyTruncated());
+		assertEquals(-1, decoded.getResponseCode());
+	}
+
+	@DisplayName("Version 1 payloads, without the timings, still decode")
+	@Test
+	public void whenVersion1Payload_thenRecordIsDecoded() throws IOException {
+		AuditTrail record = fullRecord();
+		byte[] payload = AuditRecordCodec.encode(record);
+		// versions 2 and 3 only append fields absent here
+		payload[0] = 1;
+
+		AuditTrail decoded = AuditRecordCodec.decode(payload);
+
+		assertSameRecord(record, decoded);
+		assertNull(decoded.getUpstreamLatencyMillis());
+		assertNull(decoded.getGatewayLatencyMillis());
+		assertNull(decoded.getResponseBytes());
+	}
+
+	@DisplayName("Version 0 payloads, plain Java serialization, still decode")
+	@Test
+	public void whenVersion0Payload_thenRecordIsDeserialized() throws IOException {
+		AuditTrail record = fullRecord();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+			output.writeObject(record);
+		}
+
+		assertSameRecord(record, AuditRecordCodec.decode(bytes.toByteArray()));
+	}
+
+	@DisplayName("A payload of a newer version is refused")
+	@Test
+	public void whenUnknownVersion_thenDecodeFails() throws IOException {
+		byte[] payload = AuditRecordCodec.encode(fullRecord());
+		payload[0] = AuditRecordCodec.VERSION + 1;
+
+		assertThrows(IOException.class, () -> AuditRecordCodec.decode(payload));
+	}
+
+	private static void assertSameRecord(AuditTrail expected, AuditTrail actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getServiceName(), actual.getServiceName());
+		assertEquals(expected.getAction(), actual.getAction());
+		assertEquals(expected.getRequestMethod(), actual.getRequestMethod());
+		assertEquals(expected.getRequestUrl(), actual.getRequestUrl());
+		assertEquals(expected.getPerformedBy(), actual.getPerformedBy());
+		assertEquals(expected.getUpdatedBy(), actual.getUpdatedBy());
+		assertEquals(expected.getContextPath(), actual.getContextPath());
+		assertEquals(expected.getQueryParams(), actual.getQueryParams());
+		assertEquals(expected.getStatus(), actual.getStatus());
+		assertEquals(expected.getResponseCode(), actual.getResponseCode());
+		assertEquals(expected.getRequestTimestamp(), actual.getRequestTimestamp());
+		assertEquals(expected.getUpdateTimestamp(), actual.getUpdateTimestamp());
+		assertEquals(expected.getRequestHeaders(), actual.getRequestHeaders());
+		assertEquals(expected.getRequestParams().keySet(), actual.getRequestParams().keySet());
+		for (Map.Entry<String, String[]> param : expected.getRequestParams().entrySet())
+			assertArrayEquals(param.getValue(), actual.getRequestParams().get(param.getKey()));
+		assertEquals(expected.getRequestBody(), actual.getRequestBody());
+		assertEquals(expected.getUpstreamLatencyMillis(), actual.getUpstreamLatencyMillis());
+		assertEquals(expected.getGatewayLatencyMillis(), actual.getGatewayLatencyMillis());
+		assertEquals(expected.getResponseBytes(), actual.getResponseBytes());
+		assertEquals(expected.getRequestBodyBytes(), actual.getRequestBodyBytes());
+		assertEquals(expected.isRequestBodyTruncated(), actual.isRequestBodyTruncated());
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.DAY_SECONDS;
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.enums.AuditDurability;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Callers of the {@link AuditSegmentLog} racing each other: lookups by id
+ * while late updates append to the segments of a closed day, and group
+ * commits of batches appended from several threads at once.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSegmentLogConcurrencyTest {
+
+	private static final long NEXT_DAY_TIMESTAMP = REQUEST_TIMESTAMP + DAY_SECONDS;
+	// small enough for the late updates to roll the closed day a few times
+	private static final long SEGMENT_BYTES = 256 * 1024;
+	private static final int RECORDS = 50;
+	private static final int ROUNDS = 200;
+	private static final long TIMEOUT_SECONDS = 60;
+	// small enough for batches of 8 records to roll it every few calls
+	private static final long COMMIT_SEGMENT_BYTES = 4 * 1024;
+	private static final int COMMITTERS = 4;
+	private static final int CALLS = 50;
+	private static final int BATCH = 8;
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("Lookups during late updates never go back a version and see the last one once they are done")
+	@Test
+	public void whenFindRacesLateUpdates_thenLatestVersionIsFound() throws Exception {
+		List<AuditTrail> records = new ArrayList<>();
+		for (int i = 0; i < RECORDS; i++)
+			records.add(version(record("question-service"), 0));
+		String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+		List<AuditSegment> daySegments;
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			log.appendAll(records);
+			// the active segment moves on, the first day only takes late updates
+			log.append(record("question-service", NEXT_DAY_TIMESTAMP));
+			Future<?> writer = executor.submit(() -> {
+				for (int round = 1; round <= ROUNDS; round++) {
+					List<AuditTrail> updates = new ArrayList<>();
+					for (AuditTrail record : records)
+						updates.add(version(record, round));
+					log.appendAll(updates);
+				}
+				return null;
+			});
+			List<Future<?>> readers = new ArrayList<>();
+			for (int reader = 0; reader < 2; reader++) {
+				readers.add(executor.submit(() -> {
+					int[] seen = new int[RECORDS];
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (!writer.isDone()) {
+						int i = random.nextInt(RECORDS);
+						AuditTrail found = log.find(records.get(i).getId());
+						assertNotNull(found);
+						assertEquals(records.get(i).getId(), found.getId());
+						int round = round(found);
+						assertTrue(round >= seen[i], "went back from round " + seen[i] + " to " + round);
+						seen[i] = round;
+						assertEquals(day, log.findDay(found.getId()));
+					}
+					return null;
+				}));
+			}
+			writer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			for (Future<?> reader : readers)
+				reader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+			daySegments = log.segments(day);
+			assertTrue(daySegments.size() > 1);
+			for (AuditTrail record : records)
+				assertEquals(ROUNDS, round(log.find(record.getId())));
+		} finally {
+			executor.shutdownNow();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			List<Path> leftovers = files.filter(file -> file.getFileName().toString().endsWith(".tmp"))
+					.collect(Collectors.toList());
+			assertTrue(leftovers.isEmpty(), leftovers.toString());
+		}
+		for (AuditSegment segment : daySegments)
+			assertTrue(AuditSegmentIndex.isCurrent(segment), segment.toString());
+	}
+
+	@DisplayName("Under group commit each appendAll returns once its own batch is forced, rolls included")
+	@Test
+	public void whenBatchesAreGroupCommitted_thenEachReturnsCovered() throws Exception {
+		// the forced batch count each call saw on return, by its batch status
+		Map<String, Long> forcedOnReturn = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(COMMITTERS);
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, new AuditLogOptions()
+				.segmentMaxBytes(COMMIT_SEGMENT_BYTES).durability(AuditDurability.GROUP_COMMIT))) {
+			List<Future<?>> committers = new ArrayList<>();
+			for (int committer = 0; committer < COMMITTERS; committer++) {
+				String name = "C" + committer + "_";
+				committers.add(executor.submit(() -> {
+					for (int call = 0; call < CALLS; call++) {
+						List<AuditTrail> batch = new ArrayList<>();
+						for (int i = 0; i < BATCH; i++) {
+							AuditTrail record = record("question-service");
+							record.setStatus(name + call);
+							batch.add(record);
+						}
+						log.appendAll(batch);
+						forcedOnReturn.put(name + call, log.getForcedBatches());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> committer : committers)
+				committer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+			// batches are written whole and numbered in the order they are in the log
+			Map<String, Long> batchNumbers = new HashMap<>();
+			String previous = null;
+			int spanning = 0;
+			for (AuditSegment segment : log.segments()) {
+				boolean first = true;
+				for (AuditTrail record : log.read(Collections.singletonList(segment))) {
+					if (!record.getStatus().equals(previous))
+						assertNull(batchNumbers.put(record.getStatus(), batchNumbers.size() + 1L),
+								record.getStatus() + " was split");
+					else if (first)
+						spanning++;
+					previous = record.getStatus();
+					first = false;
+				}
+			}
+			assertEquals(COMMITTERS * CALLS, batchNumbers.size());
+			assertTrue(spanning > 0);
+			for (Map.Entry<String, Long> batch : batchNumbers.entrySet())
+				assertTrue(forcedOnReturn.get(batch.getKey()) >= batch.getValue(),
+						batch.getKey() + " returned at " + forcedOnReturn.get(batch.getKey()) + " of "
+								+ batch.getValue());
+			assertEquals(COMMITTERS * CALLS, log.getForcedBatches());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static AuditTrail version(AuditTrail record, int round) {
+		record.setStatus("ROUND_" + round);
+		return record;
+	}
+
+	private static int round(AuditTrail record) {
+		return Integer.parseInt(record.getStatus().substring("ROUND_".length()));
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.SEGMENT_BYTES;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * What a crash leaves at the end of a segment, a torn or corrupt last record,
+ * is skipped by {@link AuditSegment#forEach(AuditSegment.RecordVisitor)} and
+ * cut off when the {@link AuditSegmentLog} is opened again, unless it is
+ * opened read only. Damage in the middle of a segment is no tail: the records
+ * after it are kept and the damaged file is set aside.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSegmentRecoveryTest {
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("A record whose length runs past the end of the file is skipped")
+	@Test
+	public void whenLastRecordIsTorn_thenForEachStopsBeforeIt() throws IOException {
+		AuditSegment segment = writeSegment("first", "second");
+		long end = segment.length();
+		// a record header announcing more bytes than were written
+		Files.write(segment.getPath(), new byte[] { 0, 0, 0, 64, 1, 2, 3, 4, 5, 6 }, StandardOpenOption.APPEND);
+
+		List<String> visited = new ArrayList<>();
+		long offset = segment.forEach((recordOffset, record) -> visited.add(record.getServiceName()));
+
+		assertEquals(end, offset);
+		assertEquals(Arrays.asList("first", "second"), visited);
+	}
+
+	@DisplayName("A record header cut in the middle is skipped")
+	@Test
+	public void whenRecordHeaderIsCut_thenForEachStopsBeforeIt() throws IOException {
+		AuditSegment segment = writeSegment("first", "second");
+		long end = segment.length();
+		Files.write(segment.getPath(), new byte[] { 0, 0, 1 }, StandardOpenOption.APPEND);
+
+		List<String> visited = new ArrayList<>();
+		long offset = segment.forEach(segment.length(),
+				(recordOffset, record) -> visited.add(record.getServiceName()));
+
+		assertEquals(end, offset);
+		assertEquals(Arrays.asList("first", "second"), visited);
+	}
+
+	@DisplayName("A record failing its checksum and everything after it are skipped")
+	@Test
+	public void whenLastRecordIsCorrupt_thenForEachStopsBeforeIt() throws IOException {
+		AuditSegment segment = writeSegment("first", "second", "third");
+		List<Long> offsets = new ArrayList<>();
+		segment.forEach((recordOffset, record) -> offsets.add(recordOffset));
+		long corrupt = offsets.get(2);
+		try (RandomAccessFile file = new RandomAccessFile(segment.getPath().toFile(), "rw")) {
+			long position = corrupt + AuditSegment.RECORD_HEADER_BYTES + 4;
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xFF);
+		}
+
+		List<String> visited = new ArrayList<>();
+		long offset = segment.forEach((recordOffset, record) -> visited.add(record.getServiceName()));
+
+		assertEquals(corrupt, offset);
+		assertEquals(Arrays.asList("first", "second"), visited);
+	}
+
+	@DisplayName("Reopening the log cuts a torn tail so later records are read again")
+	@Test
+	public void whenLogReopensAfterTornTail_thenAppendsFollowTheLastCompleteRecord() throws IOException {
+		AuditSegment segment = writeSegment("first", "second");
+		long end = segment.length();
+		Files.write(segment.getPath(), new byte[] { 0, 0, 0, 64, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		AuditTrail late = record("third");
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			assertEquals(end, log.segments().get(0).length());
+			log.append(late);
+		}
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			List<String> read = log.read(log.segments()).stream().map(AuditTrail::getServiceName)
+					.collect(Collectors.toList());
+			assertEquals(Arrays.asList("first", "second", "third"), read);
+			assertNotNull(log.find(late.getId()));
+		}
+	}
+
+	@DisplayName("Reopening the log after a crash cuts a corrupt tail so later records are read again")
+	@Test
+	public void whenLogReopensAfterCorruptTail_thenCorruptRecordIsDropped() throws IOException {
+		AuditSegment segment = writeSegment("first", "second");
+		long size = segment.length();
+		try (RandomAccessFile file = new RandomAccessFile(segment.getPath().toFile(), "rw")) {
+			file.seek(size - 1);
+			int value = file.read();
+			file.seek(size - 1);
+			file.write(value ^ 0xFF);
+		}
+		// a crash leaves no index matching the segment
+		Files.delete(AuditSegmentIndex.pathOf(segment));
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			log.append(record("third"));
+		}
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			List<String> read = log.read(log.segments()).stream().map(AuditTrail::getServiceName)
+					.collect(Collectors.toList());
+			assertEquals(Arrays.asList("first", "third"), read);
+		}
+	}
+
+	@DisplayName("Reopening the log after damage mid-segment keeps the records after it")
+	@Test
+	public void whenLogReopensAfterDamageMidSegment_thenLaterRecordsSurvive() throws IOException {
+		AuditSegment segment = writeSegment("first", "second", "third", "fourth");
+		List<Long> offsets = new ArrayList<>();
+		segment.forEach((recordOffset, record) -> offsets.add(recordOffset));
+		flipByte(segment, offsets.get(1) + AuditSegment.RECORD_HEADER_BYTES + 4);
+		byte[] damaged = Files.readAllBytes(segment.getPath());
+		// a crash leaves no index matching the segment
+		Files.delete(AuditSegmentIndex.pathOf(segment));
+
+		AuditTrail fourth;
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			List<AuditTrail> read = log.read(log.segments());
+			assertEquals(Arrays.asList("first", "third", "fourth"),
+					read.stream().map(AuditTrail::getServiceName).collect(Collectors.toList()));
+			fourth = read.get(2);
+			assertNotNull(log.find(fourth.getId()));
+			log.append(record("fifth"));
+		}
+
+		Path corruptPath = segment.getPath().resolveSibling(segment.getPath().getFileName() + ".corrupt");
+		assertArrayEquals(damaged, Files.readAllBytes(corruptPath));
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			assertEquals(1, log.segments().size());
+			List<String> read = log.read(log.segments()).stream().map(AuditTrail::getServiceName)
+					.collect(Collectors.toList());
+			assertEquals(Arrays.asList("first", "third", "fourth", "fifth"), read);
+			assertEquals(fourth.getId(), log.find(fourth.getId()).getId());
+		}
+	}
+
+	@DisplayName("An appender finding a stale index keeps the records after damage mid-segment")
+	@Test
+	public void whenTailIsReopenedAfterDamageMidSegment_thenLaterRecordsSurvive() throws IOException {
+		// closing drops the active writer, the next append to the same log reopens the tail
+		AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES);
+		AuditSegment segment;
+		try (AuditSegmentLog writing = log) {
+			for (String serviceName : Arrays.asList("first", "second", "third"))
+				writing.append(record(serviceName));
+			segment = writing.segments().get(0);
+		}
+		List<Long> offsets = new ArrayList<>();
+		segment.forEach((recordOffset, record) -> offsets.add(recordOffset));
+		flipByte(segment, offsets.get(0) + AuditSegment.RECORD_HEADER_BYTES + 4);
+		Files.delete(AuditSegmentIndex.pathOf(segment));
+
+		try (AuditSegmentLog appending = log) {
+			appending.append(record("fourth"));
+
+			List<String> read = appending.read(appending.segments()).stream().map(AuditTrail::getServiceName)
+					.collect(Collectors.toList());
+			assertEquals(Arrays.asList("second", "third", "fourth"), read);
+		}
+	}
+
+	@DisplayName("Opening the log read only leaves a torn tail and a stale index on disk")
+	@Test
+	public void whenLogOpensReadOnly_thenFilesAreLeftAsTheyAre() throws IOException {
+		AuditSegment segment = writeSegment("first", "second");
+		Files.write(segment.getPath(), new byte[] { 0, 0, 0, 64, 1, 2, 3 }, StandardOpenOption.APPEND);
+		long size = Files.size(segment.getPath());
+		Path indexPath = AuditSegmentIndex.pathOf(segment);
+		byte[] staleIndex = Files.readAllBytes(indexPath);
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory,
+				new AuditLogOptions().segmentMaxBytes(SEGMENT_BYTES).readOnly(true))) {
+			List<AuditTrail> read = log.read(log.segments());
+			assertEquals(Arrays.asList("first", "second"),
+					read.stream().map(AuditTrail::getServiceName).collect(Collectors.toList()));
+			assertNotNull(log.find(read.get(1).getId()));
+			assertThrows(IllegalStateException.class, () -> log.append(record("third")));
+		}
+
+		assertEquals(size, Files.size(segment.getPath()));
+		assertArrayEquals(staleIndex, Files.readAllBytes(indexPath));
+	}
+
+	private static void flipByte(AuditSegment segment, long position) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(segment.getPath().toFile(), "rw")) {
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xFF);
+		}
+	}
+
+	/**
+	 * @return the one segment holding the records, closed cleanly
+	 */
+	private AuditSegment writeSegment(String... serviceNames) throws IOException {
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			for (String serviceName : serviceNames)
+				log.append(record(serviceName));
+			assertEquals(1, log.segments().size());
+			return log.segments().get(0);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.DAY_SECONDS;
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * What the retention methods of the {@link AuditSegmentLog} leave of a closed
+ * day: {@link AuditSegmentLog#compact(String, double)} keeps the latest
+ * version of each record, {@link AuditSegmentLog#compress(String)} keeps every
+ * byte read back and {@link AuditSegmentLog#deleteDay(String)} only the other
+ * days.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSegmentRetentionTest {
+
+	private static final long NEXT_DAY_TIMESTAMP = REQUEST_TIMESTAMP + DAY_SECONDS;
+	// small enough for a day to span a few segments
+	private static final long SEGMENT_BYTES = 512;
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("Compaction keeps only the latest version of each record")
+	@Test
+	public void whenDayIsCompacted_thenOnlyLatestVersionsSurvive() throws IOException {
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+		UUID third = UUID.randomUUID();
+		writeClosed(version(first, "NEW"), version(second, "NEW"), version(third, "NEW"),
+				version(first, "REVIEWED"), version(second, "DONE"), version(first, "DONE"));
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+			assertTrue(log.compact(day, 0.1));
+
+			assertEquals(3, versions(log, day));
+			Map<UUID, String> statuses = new HashMap<>();
+			for (AuditTrail record : log.read(log.segments(day)))
+				statuses.put(record.getId(), record.getStatus());
+			Map<UUID, String> expected = new HashMap<>();
+			expected.put(first, "DONE");
+			expected.put(second, "DONE");
+			expected.put(third, "NEW");
+			assertEquals(expected, statuses);
+			assertEquals("DONE", log.find(first).getStatus());
+		}
+	}
+
+	@DisplayName("Compaction leaves a day alone below the garbage ratio")
+	@Test
+	public void whenGarbageIsBelowRatio_thenDayIsNotCompacted() throws IOException {
+		UUID first = UUID.randomUUID();
+		writeClosed(version(first, "NEW"), version(UUID.randomUUID(), "NEW"), version(UUID.randomUUID(), "NEW"),
+				version(first, "DONE"));
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+			assertFalse(log.compact(day, 0.5));
+			assertEquals(4, versions(log, day));
+		}
+	}
+
+	@DisplayName("Reads of a compressed day are the same as before")
+	@Test
+	public void whenDayIsCompressed_thenReadsAreIdentical() throws IOException {
+		List<AuditTrail> written = new ArrayList<>();
+		for (int i = 0; i < 12; i++)
+			written.add(version(UUID.randomUUID(), i % 2 == 0 ? "NEW" : "DONE"));
+		written.add(version(written.get(3).getId(), "REVIEWED"));
+		writeClosed(written.toArray(new AuditTrail[0]));
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+			int segments = log.segments(day).size();
+			assertTrue(segments > 1);
+			List<byte[]> before = payloads(log.read(log.segments(day)));
+			byte[] found = AuditRecordCodec.encode(log.find(written.get(3).getId()));
+
+			assertEquals(segments, log.compress(day));
+
+			for (AuditSegment segment : log.segments(day)) {
+				assertTrue(Files.exists(segment.getCompressedPath()));
+				assertFalse(Files.exists(segment.getPath()));
+			}
+			assertEquals(before.size(), log.read(log.segments(day)).size());
+			List<byte[]> after = payloads(log.read(log.segments(day)));
+			for (int i = 0; i < before.size(); i++)
+				assertArrayEquals(before.get(i), after.get(i));
+			assertArrayEquals(found, AuditRecordCodec.encode(log.find(written.get(3).getId())));
+		}
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			assertEquals(written.size() - 1, log.read(log.segments()).size());
+		}
+	}
+
+	@DisplayName("Deleting a day removes its segments and indexes only")
+	@Test
+	public void whenDayIsDeleted_thenOtherDaysStay() throws IOException {
+		AuditTrail kept = version(UUID.randomUUID(), "NEW");
+		kept.setRequestTimestamp(NEXT_DAY_TIMESTAMP);
+		AuditTrail dropped = version(UUID.randomUUID(), "NEW");
+		writeClosed(dropped, kept);
+
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+			List<AuditSegment> daySegments = log.segments(day);
+			log.deleteDay(day);
+
+			assertEquals(Arrays.asList(AuditSegmentLog.dayOf(NEXT_DAY_TIMESTAMP)), log.days());
+			for (AuditSegment segment : daySegments) {
+				assertFalse(Files.exists(segment.getPath()));
+				assertFalse(Files.exists(AuditSegmentIndex.pathOf(segment)));
+			}
+			assertNull(log.find(dropped.getId()));
+			assertEquals(kept.getId(), log.find(kept.getId()).getId());
+		}
+	}
+
+	/**
+	 * Appends the records and closes the log, so their days are closed once
+	 * it is opened again.
+	 */
+	private void writeClosed(AuditTrail... records) throws IOException {
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, SEGMENT_BYTES)) {
+			for (AuditTrail record : records)
+				log.append(record);
+		}
+	}
+
+	private static int versions(AuditSegmentLog log, String day) throws IOException {
+		int[] count = new int[1];
+		for (AuditSegment segment : log.segments(day))
+			segment.forEach((offset, record) -> {
+				count[0]++;
+				return true;
+			});
+		return count[0];
+	}
+
+	private static List<byte[]> payloads(List<AuditTrail> records) throws IOException {
+		List<byte[]> payloads = new ArrayList<>();
+		for (AuditTrail record : records)
+			payloads.add(AuditRecordCodec.encode(record));
+		return payloads;
+	}
+
+	/**
+	 * @return a version of the record with the id, the ids repeat across
+	 *         versions
+	 */
+	private static AuditTrail version(UUID id, String status) {
+		AuditTrail record = record("question-service");
+		record.setId(id);
+		record.setStatus(status);
+		record.setRequestBody("{\"text\": \"Why does the gateway time out?\"}");
+		return record;
+	}
+}
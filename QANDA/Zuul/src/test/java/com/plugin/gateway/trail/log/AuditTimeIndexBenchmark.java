@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Range query latency of the {@link AuditTimeIndex} against a stream filter
+ * over the records with their boxed <code>requestTimestamp</code>, the way
+ * the file search worked before the day indexes. Records are written at 100
+ * a second and each query asks for a random window of
+ * <code>windowSeconds</code>. The heap holds every record for the stream
+ * filter, hence the large fork heap. Run the <code>main</code> method from
+ * the test classpath.
+ *
+ * @author Sankha
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms6g", "-Xmx6g" })
+public class AuditTimeIndexBenchmark {
+
+	private static final long BASE_SECOND = 1_600_000_000L;
+	private static final int RECORDS_PER_SECOND = 100;
+
+	@Param("10000000")
+	public int records;
+
+	@Param("60")
+	public int windowSeconds;
+
+	private AuditTimeIndex timeIndex;
+	private List<AuditTrail> trail;
+	private long lastSecond;
+
+	@Setup
+	public void setUp() {
+		timeIndex = new AuditTimeIndex(records);
+		trail = new ArrayList<>(records);
+		for (int i = 0; i < records; i++) {
+			long timestamp = BASE_SECOND + i / RECORDS_PER_SECOND;
+			timeIndex.add(timestamp, i);
+			AuditTrail record = new AuditTrail();
+			record.setRequestTimestamp(timestamp);
+			trail.add(record);
+		}
+		lastSecond = BASE_SECOND + records / RECORDS_PER_SECOND;
+	}
+
+	/**
+	 * Only the two binary searches, the size of the range.
+	 */
+	@Benchmark
+	public int timeIndexCount() {
+		long from = randomFrom();
+		return timeIndex.upperBound(from + windowSeconds - 1) - timeIndex.lowerBound(from);
+	}
+
+	/**
+	 * The binary searches plus a visit of every local id in range, what a
+	 * search does before reading the records.
+	 */
+	@Benchmark
+	public long timeIndexScan() {
+		long from = randomFrom();
+		long sum = 0;
+		int end = timeIndex.upperBound(from + windowSeconds - 1);
+		for (int position = timeIndex.lowerBound(from); position < end; position++)
+			sum += timeIndex.localIdAt(position);
+		return sum;
+	}
+
+	@Benchmark
+	public long streamFilter() {
+		long from = randomFrom();
+		long to = from + windowSeconds - 1;
+		return trail.stream().filter(record -> record.getRequestTimestamp() != null
+				&& record.getRequestTimestamp() >= from && record.getRequestTimestamp() <= to).count();
+	}
+
+	private long randomFrom() {
+		return ThreadLocalRandom.current().nextLong(BASE_SECOND, Math.max(BASE_SECOND + 1, lastSecond - windowSeconds));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(AuditTimeIndexBenchmark.class.getSimpleName()).build()).run();
+	}
+}
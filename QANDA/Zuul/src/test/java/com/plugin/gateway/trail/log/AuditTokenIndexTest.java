@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.log;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.SEGMENT_BYTES;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * The token postings of the segment being written answer like the
+ * <code>.tok</code> file written from them, and a view taken from them stays
+ * as it was while appends go on.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTokenIndexTest {
+
+	private static final int MAX_TOKENS = 64;
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("Postings return the ascending offsets of each token across table and list growth")
+	@Test
+	public void whenManyTokensAreAdded_thenEachFindsItsOffsets() {
+		AuditTokenIndex.Postings postings = new AuditTokenIndex.Postings();
+		// more distinct tokens than the initial table and more offsets than a list starts with
+		for (long offset = 0; offset < 3000; offset++)
+			postings.add(offset * 10, new long[] { AuditTokenizer.TRUNCATED, 1 + offset, 5000 + offset % 7 });
+
+		assertEquals(3000, postings.find(AuditTokenizer.TRUNCATED).length);
+		assertArrayEquals(new long[] { 12340 }, postings.find(1235));
+		long[] offsets = postings.find(5003);
+		assertEquals(429, offsets.length);
+		for (int i = 0; i < offsets.length; i++)
+			assertEquals((3 + 7L * i) * 10, offsets[i]);
+		assertEquals(0, postings.find(-1).length);
+	}
+
+	@DisplayName("A view keeps the offsets it was taken with while later appends grow the list")
+	@Test
+	public void whenAppendsFollowAView_thenTheViewIsUnchanged() {
+		AuditTokenIndex.Postings postings = new AuditTokenIndex.Postings();
+		postings.add(100, new long[] { 42 });
+		postings.add(200, new long[] { 42 });
+		AuditTokenIndex.View view = postings.view(42);
+
+		for (long offset = 300; offset < 10_000; offset += 100)
+			postings.add(offset, new long[] { 42 });
+
+		assertArrayEquals(new long[] { 100, 200 }, view.offsets());
+		assertEquals(99, postings.find(42).length);
+	}
+
+	@DisplayName("Searches racing over a segment without a current index rebuild it once and agree")
+	@Test
+	public void whenSearchesRebuildTheSameIndex_thenTheyAgree() throws Exception {
+		AuditLogOptions options = new AuditLogOptions().segmentMaxBytes(SEGMENT_BYTES).bodyIndexMaxTokens(MAX_TOKENS);
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, options)) {
+			log.appendAll(bodies(300));
+		}
+		String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+		long[] phrase = AuditTokenizer.hashes("gateway time");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, options)) {
+			AuditSegment segment = log.segments(day).get(0);
+			Files.delete(AuditTokenIndex.pathOf(segment));
+			Callable<long[]> search = () -> log.findTokens(day, phrase).get(segment);
+			List<Future<long[]>> searches = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				searches.add(executor.submit(search));
+
+			for (Future<long[]> found : searches)
+				assertEquals(100, found.get(30, TimeUnit.SECONDS).length);
+			assertTrue(AuditTokenIndex.isCurrent(segment));
+		} finally {
+			executor.shutdownNow();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			List<Path> leftovers = files.filter(file -> file.getFileName().toString().endsWith(".tmp"))
+					.collect(Collectors.toList());
+			assertTrue(leftovers.isEmpty(), leftovers.toString());
+		}
+	}
+
+	@DisplayName("Body searches of the active segment and of its written index agree")
+	@Test
+	public void whenSegmentIsClosed_thenItsIndexFindsWhatThePostingsFound() throws IOException {
+		List<AuditTrail> records = bodies(50);
+		String day = AuditSegmentLog.dayOf(REQUEST_TIMESTAMP);
+		long[] phrase = AuditTokenizer.hashes("gateway time");
+		AuditLogOptions options = new AuditLogOptions().segmentMaxBytes(SEGMENT_BYTES).bodyIndexMaxTokens(MAX_TOKENS);
+
+		Map<AuditSegment, long[]> active;
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, options)) {
+			log.appendAll(records);
+			active = log.findTokens(day, phrase);
+		}
+		try (AuditSegmentLog log = new AuditSegmentLog(directory, options)) {
+			Map<AuditSegment, long[]> written = log.findTokens(day, phrase);
+
+			assertEquals(active.keySet(), written.keySet());
+			AuditSegment segment = log.segments(day).get(0);
+			assertArrayEquals(active.get(segment), written.get(segment));
+			assertEquals(17, written.get(segment).length);
+		}
+	}
+
+	/**
+	 * @return records of which every third asks about the gateway timing out
+	 */
+	private static List<AuditTrail> bodies(int count) {
+		List<AuditTrail> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			AuditTrail record = record("question-service");
+			record.setRequestBody(i % 3 == 0 ? "{\"text\": \"Why does the gateway time out?\"}"
+					: "{\"text\": \"How do I page answers " + i + "?\"}");
+			records.add(record);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.stats;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * What {@link AuditTrafficRollup#flush(long, Consumer)} hands to the storage
+ * engine: increments only, again after a failed flush, and the minutes pushed
+ * out of the ring until nothing is left in them.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditTrafficRollupTest {
+
+	// start of the minute the counting starts in
+	private static final long MINUTE = REQUEST_TIMESTAMP / 60 * 60;
+
+	private final List<List<AuditRouteRollup>> flushed = new ArrayList<>();
+
+	@DisplayName("A request recorded late into a flushed minute is flushed as an increment")
+	@Test
+	public void whenRecordedIntoFlushedMinute_thenOnlyTheIncrementIsFlushed() {
+		AuditTrafficRollup rollup = new AuditTrafficRollup(5, 16, MINUTE);
+		rollup.record("question-service", "POST", 201, MINUTE + 5);
+		rollup.record("question-service", "POST", 201, MINUTE + 6);
+
+		assertEquals(1, rollup.flush(MINUTE + 60, flushed::add));
+		assertEquals(counts("question-service POST 201 @" + MINUTE, 2L), counts(flushed.get(0)));
+
+		rollup.record("question-service", "POST", 201, MINUTE + 50);
+		assertEquals(1, rollup.flush(MINUTE + 60, flushed::add));
+		assertEquals(counts("question-service POST 201 @" + MINUTE, 1L), counts(flushed.get(1)));
+
+		// nothing new, the sink is not called
+		assertEquals(0, rollup.flush(MINUTE + 60, flushed::add));
+		assertEquals(2, flushed.size());
+	}
+
+	@DisplayName("What a failing sink was handed is handed over again by the next flush")
+	@Test
+	public void whenSinkFails_thenCountsAreFlushedAgain() {
+		AuditTrafficRollup rollup = new AuditTrafficRollup(5, 16, MINUTE);
+		rollup.record("question-service", "GET", 200, MINUTE + 1);
+		rollup.record("answer-service", "GET", 200, MINUTE + 2);
+
+		assertThrows(IllegalStateException.class, () -> rollup.flush(MINUTE + 60, failing()));
+		rollup.record("question-service", "GET", 200, MINUTE + 3);
+
+		assertEquals(2, rollup.flush(MINUTE + 60, flushed::add));
+		Map<String, Long> expected = counts("question-service GET 200 @" + MINUTE, 2L);
+		expected.put("answer-service GET 200 @" + MINUTE, 1L);
+		assertEquals(expected, counts(flushed.get(0)));
+	}
+
+	@DisplayName("A minute pushed out of the ring is kept until a flush finds nothing new in it")
+	@Test
+	public void whenMinuteIsPushedOut_thenDroppedOnceNothingIsLeft() {
+		AuditTrafficRollup rollup = new AuditTrafficRollup(2, 16, MINUTE);
+		rollup.record("question-service", "GET", 200, MINUTE + 1);
+		rollup.record("question-service", "GET", 200, MINUTE + 2);
+		// two minutes later takes the same slot
+		rollup.record("question-service", "GET", 200, MINUTE + 120);
+		assertEquals(1, rollup.getPushedOutCount());
+
+		assertThrows(IllegalStateException.class, () -> rollup.flush(MINUTE + 60, failing()));
+		assertEquals(1, rollup.getPushedOutCount());
+
+		// pushed out minutes go with every flush whatever its bound
+		assertEquals(1, rollup.flush(MINUTE + 60, flushed::add));
+		assertEquals(counts("question-service GET 200 @" + MINUTE, 2L), counts(flushed.get(0)));
+		assertEquals(1, rollup.getPushedOutCount());
+
+		// a request that old is no longer counted
+		rollup.record("question-service", "GET", 200, MINUTE + 3);
+		assertEquals(0, rollup.flush(MINUTE + 60, flushed::add));
+		assertEquals(0, rollup.getPushedOutCount());
+		assertEquals(1, flushed.size());
+	}
+
+	@DisplayName("Once the route table is full new routes are counted under ~other")
+	@Test
+	public void whenRoutesOverflow_thenCountedUnderOther() {
+		AuditTrafficRollup rollup = new AuditTrafficRollup(5, 3, MINUTE);
+		rollup.record("question-service", "GET", 200, MINUTE + 1);
+		rollup.record("answer-service", "GET", 200, MINUTE + 1);
+		rollup.record("user-service", "GET", 200, MINUTE + 1);
+		rollup.record("tag-service", "DELETE", 404, MINUTE + 1);
+		rollup.record("question-service", "GET", 200, MINUTE + 1);
+
+		assertEquals(3, rollup.getRouteCount());
+		assertEquals(3, rollup.flush(MINUTE + 60, flushed::add));
+		Map<String, Long> expected = counts("question-service GET 200 @" + MINUTE, 2L);
+		expected.put("answer-service GET 200 @" + MINUTE, 1L);
+		expected.put(AuditTrafficRollup.OVERFLOW_SERVICE + "  0 @" + MINUTE, 2L);
+		assertEquals(expected, counts(flushed.get(0)));
+	}
+
+	@DisplayName("The minute counting started in is never covered in full")
+	@Test
+	public void whenWindowSlides_thenCoveredFromFollows() {
+		AuditTrafficRollup rollup = new AuditTrafficRollup(5, 16, MINUTE + 30);
+
+		assertEquals(MINUTE + 60, rollup.coveredFrom(MINUTE + 30));
+		assertEquals(MINUTE + 60, rollup.coveredFrom(MINUTE + 5 * 60));
+		assertEquals(MINUTE + 6 * 60, rollup.coveredFrom(MINUTE + 10 * 60 + 59));
+	}
+
+	private static Consumer<List<AuditRouteRollup>> failing() {
+		return rollups -> {
+			throw new IllegalStateException("storage engine down");
+		};
+	}
+
+	private static Map<String, Long> counts(String route, long count) {
+		Map<String, Long> counts = new HashMap<>();
+		counts.put(route, count);
+		return counts;
+	}
+
+	/**
+	 * @return the counts by <code>service method code @minute</code>
+	 */
+	private static Map<String, Long> counts(List<AuditRouteRollup> rollups) {
+		Map<String, Long> counts = new HashMap<>();
+		for (AuditRouteRollup rollup : rollups)
+			counts.merge(rollup.getServiceName() + ' ' + rollup.getRequestMethod() + ' ' + rollup.getResponseCode()
+					+ " @" + rollup.getMinute(), rollup.getCount(), Long::sum);
+		return counts;
+	}
+}
@@ -0,0 +1,300 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.DAY_SECONDS;
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.fileStore;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.google.gson.JsonParser;
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.enums.AuditSearchField;
+import com.plugin.gateway.trail.AuditTrailFixtures;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.mongo.AuditMongoStore;
+
+/**
+ * Every search operator selects the same records on every engine. The file
+ * and ring engines are searched for real; the Mongo query is evaluated here
+ * against the records with the semantics of the Mongo operators it uses, so
+ * no database is needed.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditEngineParityTest {
+
+	@TempDir
+	Path directory;
+
+	@DisplayName("eq compares whole text ignoring case, numbers and ids by value")
+	@Test
+	public void whenEqual_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT, "{\"serviceName\": \"question-service\"}",
+				"{\"serviceName\": {\"eq\": \"QUESTION-SERVICE\"}}", "{\"action\": {\"eq\": \"a.b*(c)\"}}",
+				"{\"action\": {\"eq\": \"A.B\"}}", "{\"responseCode\": 500}", "{\"responseCode\": {\"eq\": 404}}");
+	}
+
+	@DisplayName("ne also holds where the value is missing")
+	@Test
+	public void whenNotEqual_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT, "{\"status\": {\"ne\": \"failed\"}}",
+				"{\"action\": {\"ne\": \"a.b*(c)\"}}", "{\"responseCode\": {\"ne\": 500}}");
+	}
+
+	@DisplayName("in holds for any of the values")
+	@Test
+	public void whenIn_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT, "{\"requestMethod\": {\"in\": [\"get\", \"DELETE\"]}}",
+				"{\"action\": {\"in\": [\"A.B*(C)\", \"^post$\"]}}", "{\"responseCode\": {\"in\": [404, 503]}}");
+	}
+
+	@DisplayName("Range operators compare numbers")
+	@Test
+	public void whenRange_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT, "{\"responseCode\": {\"gt\": 404}}", "{\"responseCode\": {\"gte\": 404}}",
+				"{\"responseCode\": {\"lt\": 500}}", "{\"responseCode\": {\"lte\": 500}}",
+				"{\"requestTimestamp\": {\"gte\": " + (REQUEST_TIMESTAMP + DAY_SECONDS) + "}}",
+				"{\"fromDate\": " + REQUEST_TIMESTAMP + ", \"toDate\": " + (REQUEST_TIMESTAMP + 10) + "}",
+				"{\"upstreamLatencyMillis\": {\"lt\": 100}}");
+	}
+
+	@DisplayName("prefix and contains treat the value as text, never as a pattern")
+	@Test
+	public void whenPrefixOrContains_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT, "{\"serviceName\": {\"prefix\": \"QUESTION\"}}",
+				"{\"action\": {\"prefix\": \"a.\"}}", "{\"action\": {\"prefix\": \".\"}}",
+				"{\"requestUrl\": {\"contains\": \"/POSTS\"}}", "{\"action\": {\"contains\": \"*(\"}}",
+				"{\"action\": {\"contains\": \"b.c\"}}", "{\"performedBy\": {\"contains\": \"\\\\\"}}");
+	}
+
+	@DisplayName("match and bare text values follow the match mode")
+	@Test
+	public void whenMatch_thenEnginesAgreeInEveryMode() throws IOException {
+		for (AuditMatchMode matchMode : AuditMatchMode.values())
+			assertParity(matchMode, "{\"serviceName\": \"question\"}", "{\"serviceName\": {\"match\": \"SERVICE\"}}",
+					"{\"action\": \"a.b\"}", "{\"requestUrl\": {\"match\": \"/api/question/posts\"}}");
+	}
+
+	@DisplayName("and, or and not combine the same way")
+	@Test
+	public void whenCombined_thenEnginesAgree() throws IOException {
+		assertParity(AuditMatchMode.EXACT,
+				"{\"or\": [{\"serviceName\": \"answer-service\"}, {\"responseCode\": {\"gte\": 500}}]}",
+				"{\"not\": {\"status\": \"FAILED\"}}",
+				"{\"and\": [{\"requestMethod\": \"post\"}, {\"not\": {\"action\": {\"contains\": \".\"}}}]}",
+				"{\"serviceName\": {\"prefix\": \"q\"}, \"not\": {\"or\": [{\"responseCode\": 500}, "
+						+ "{\"status\": {\"ne\": \"done\"}}]}}");
+	}
+
+	@DisplayName("Ids select the same records")
+	@Test
+	public void whenIds_thenEnginesAgree() throws IOException {
+		List<AuditTrail> records = records();
+		assertParity(AuditMatchMode.EXACT, records,
+				"{\"ids\": [\"" + records.get(0).getId() + "\", \"" + records.get(3).getId() + "\"]}",
+				"{\"id\": {\"ne\": \"" + records.get(1).getId() + "\"}}");
+	}
+
+	@DisplayName("eq, ne, in and prefix on text reach Mongo without a case insensitive regex")
+	@Test
+	public void whenTextIsCompared_thenMongoQueryCanWalkTheIndexes() {
+		MongoAuditTrailStore mongoStore = new MongoAuditTrailStore(mock(AuditMongoStore.class));
+		for (String search : new String[] { "{\"serviceName\": \"Question-Service\"}",
+				"{\"serviceName\": {\"ne\": \"question-service\"}}",
+				"{\"performedBy\": {\"in\": [\"Sankha\", \"reviewer\"]}}",
+				"{\"serviceName\": {\"prefix\": \"QUEST\"}}" }) {
+			Query query = mongoStore.buildMongoQuery(
+					new AuditSearchCriteria(new JsonParser().parse(search).getAsJsonObject(), AuditMatchMode.EXACT));
+
+			assertTrue(query.getCollation().isPresent(), search);
+			assertFalse(hasCaseInsensitiveRegex(query.getQueryObject()), search + " as " + query.getQueryObject());
+		}
+	}
+
+	private void assertParity(AuditMatchMode matchMode, String... searches) throws IOException {
+		assertParity(matchMode, records(), searches);
+	}
+
+	private void assertParity(AuditMatchMode matchMode, List<AuditTrail> records, String... searches)
+			throws IOException {
+		MongoAuditTrailStore mongoStore = new MongoAuditTrailStore(mock(AuditMongoStore.class));
+		Path folder = directory.resolve(matchMode.getValue());
+		try (FileAuditTrailStore fileStore = fileStore(folder);
+				RingAuditTrailStore ringStore = new RingAuditTrailStore(64)) {
+			fileStore.saveAll(records);
+			ringStore.saveAll(records);
+			for (String search : searches) {
+				AuditSearchCriteria criteria = new AuditSearchCriteria(
+						new JsonParser().parse(search).getAsJsonObject(), matchMode);
+				Set<UUID> expected = records.stream().filter(criteria::matches).map(AuditTrail::getId)
+						.collect(Collectors.toSet());
+				Query query = mongoStore.buildMongoQuery(criteria);
+				Map<String, Object> mongoQuery = query.getQueryObject();
+				boolean collated = query.getCollation().isPresent();
+				Set<UUID> mongo = records.stream().filter(record -> matches(mongoQuery, record, collated))
+						.map(AuditTrail::getId).collect(Collectors.toSet());
+				String message = search + " in " + matchMode;
+				assertEquals(expected, ids(fileStore, criteria), "file " + message);
+				assertEquals(expected, ids(ringStore, criteria), "ring " + message);
+				assertEquals(expected, mongo, "mongo " + message + " as " + mongoQuery);
+			}
+		}
+	}
+
+	private static Set<UUID> ids(AuditTrailStore store, AuditSearchCriteria criteria) throws IOException {
+		Set<UUID> ids = new HashSet<>();
+		store.stream(criteria, null, 0, record -> ids.add(record.getId()));
+		return ids;
+	}
+
+	/**
+	 * Evaluates a query document the way Mongo does for the operators the
+	 * engine builds, a missing field only meeting <code>$ne</code> and
+	 * <code>$not</code>, and text ignoring case under the collation.
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean matches(Map<String, Object> query, AuditTrail record, boolean collated) {
+		for (Map.Entry<String, Object> condition : query.entrySet()) {
+			boolean held;
+			switch (condition.getKey()) {
+			case "$and":
+				held = ((List<Map<String, Object>>) condition.getValue()).stream()
+						.allMatch(operand -> matches(operand, record, collated));
+				break;
+			case "$or":
+				held = ((List<Map<String, Object>>) condition.getValue()).stream()
+						.anyMatch(operand -> matches(operand, record, collated));
+				break;
+			case "$nor":
+				held = ((List<Map<String, Object>>) condition.getValue()).stream()
+						.noneMatch(operand -> matches(operand, record, collated));
+				break;
+			default:
+				held = holds(condition.getValue(), valueOf(condition.getKey(), record), collated);
+			}
+			if (!held)
+				return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean holds(Object condition, Object actual, boolean collated) {
+		if (condition instanceof Map) {
+			for (Map.Entry<String, Object> operator : ((Map<String, Object>) condition).entrySet()) {
+				Object operand = operator.getValue();
+				boolean held;
+				switch (operator.getKey()) {
+				case "$not":
+				case "$ne":
+					held = !holds(operand, actual, collated);
+					break;
+				case "$in":
+					held = ((List<Object>) operand).stream().anyMatch(value -> holds(value, actual, collated));
+					break;
+				case "$gt":
+					held = actual != null && compare(actual, operand, collated) > 0;
+					break;
+				case "$gte":
+					held = actual != null && compare(actual, operand, collated) >= 0;
+					break;
+				case "$lt":
+					held = actual != null && compare(actual, operand, collated) < 0;
+					break;
+				case "$lte":
+					held = actual != null && compare(actual, operand, collated) <= 0;
+					break;
+				default:
+					throw new IllegalArgumentException("Unexpected Mongo operator " + operator.getKey());
+				}
+				if (!held)
+					return false;
+			}
+			return true;
+		}
+		if (actual == null)
+			return condition == null;
+		if (condition instanceof Pattern)
+			return actual instanceof String && ((Pattern) condition).matcher((String) actual).find();
+		if (condition instanceof Number && actual instanceof Number)
+			return compare(actual, condition, collated) == 0;
+		if (condition instanceof String && actual instanceof String)
+			return compare(actual, condition, collated) == 0;
+		return condition.equals(actual);
+	}
+
+	private static int compare(Object actual, Object operand, boolean collated) {
+		if (actual instanceof String && operand instanceof String)
+			return collated ? ((String) actual).compareToIgnoreCase((String) operand)
+					: ((String) actual).compareTo((String) operand);
+		return Long.compare(((Number) actual).longValue(), ((Number) operand).longValue());
+	}
+
+	private static boolean hasCaseInsensitiveRegex(Object condition) {
+		if (condition instanceof Pattern)
+			return (((Pattern) condition).flags() & Pattern.CASE_INSENSITIVE) != 0;
+		if (condition instanceof Map)
+			return ((Map<?, ?>) condition).values().stream().anyMatch(AuditEngineParityTest::hasCaseInsensitiveRegex);
+		if (condition instanceof List)
+			return ((List<?>) condition).stream().anyMatch(AuditEngineParityTest::hasCaseInsensitiveRegex);
+		return false;
+	}
+
+	private static Object valueOf(String mongoField, AuditTrail record) {
+		for (AuditSearchField field : AuditSearchField.values()) {
+			if (field.getMongoField().equals(mongoField))
+				return field.valueOf(record);
+		}
+		throw new IllegalArgumentException("Unexpected Mongo field " + mongoField);
+	}
+
+	private static List<AuditTrail> records() {
+		List<AuditTrail> records = new ArrayList<>();
+		records.add(record("question-service", "createPost", "POST", "/api/question/posts", 201, "DONE"));
+		records.add(record("Question-Service", "a.b*(c)", "post", "/api/question/posts/1", 500, "FAILED"));
+		records.add(record("QUESTION-SERVICE-V2", "A.B", "GET", "/api/question/POSTS", 404, null));
+		records.add(record("answer-service", "abc", "DELETE", "/api/answer/2", 503, "failed"));
+		records.add(record("answer-service", "^post$", "get", "/api/answer", 200, "Done"));
+		records.add(record(null, null, "PUT", null, 0, "DONE"));
+		AuditTrail nextDay = record("question-service", "b.c", "GET", "/api/question/posts", 500, "FAILED");
+		nextDay.setRequestTimestamp(REQUEST_TIMESTAMP + DAY_SECONDS);
+		nextDay.setPerformedBy("domain\\user");
+		records.add(nextDay);
+		for (int i = 0; i < records.size(); i++)
+			records.get(i).setUpstreamLatencyMillis(i % 3 == 0 ? null : 40L * i);
+		return records;
+	}
+
+	private static AuditTrail record(String serviceName, String action, String requestMethod, String requestUrl,
+			int responseCode, String status) {
+		AuditTrail record = AuditTrailFixtures.record(serviceName, status, responseCode);
+		record.setAction(action);
+		record.setRequestMethod(requestMethod);
+		record.setRequestUrl(requestUrl);
+		record.setPerformedBy("sankha");
+		record.setRequestTimestamp(REQUEST_TIMESTAMP + responseCode % 7);
+		return record;
+	}
+}
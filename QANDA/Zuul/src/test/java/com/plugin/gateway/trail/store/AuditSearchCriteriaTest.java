@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.criteria;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.plugin.gateway.enums.AuditMatchMode;
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * Compiling search bodies into {@link AuditSearchCriteria}: what is ignored,
+ * what is refused and what narrows the engines' reads.
+ *
+ * @author Sankha
+ *
+ */
+public class AuditSearchCriteriaTest {
+
+	private static final String FIRST_ID = "0b7e6c1a-3f1e-4d55-9a77-1c2b3d4e5f60";
+	private static final String SECOND_ID = "5a0d2c9e-8b14-4f6a-b2c3-9d8e7f6a5b41";
+
+	@DisplayName("Blank values and unknown keys select every record")
+	@Test
+	public void whenValuesAreBlankOrKeysUnknown_thenPredicateIsAll() {
+		AuditSearchCriteria criteria = criteria(
+				"{\"serviceName\": \"  \", \"status\": null, \"ids\": \"\", \"colour\": \"blue\"}");
+
+		assertSame(AuditPredicate.ALL, criteria.getPredicate());
+		assertFalse(criteria.isNarrowed());
+		assertTrue(criteria.matches(record("question-service", "FAILED", 500)));
+	}
+
+	@DisplayName("An empty search selects every record")
+	@Test
+	public void whenSearchIsEmpty_thenPredicateIsAll() {
+		AuditSearchCriteria criteria = criteria("{}");
+
+		assertSame(AuditPredicate.ALL, criteria.getPredicate());
+		assertNull(criteria.getIds());
+		assertTrue(criteria.getTerms().isEmpty());
+		assertFalse(criteria.isNarrowed());
+	}
+
+	@DisplayName("An ids array pins the records read")
+	@Test
+	public void whenIdsAreGiven_thenCriteriaIsNarrowedToThem() {
+		AuditSearchCriteria criteria = criteria("{\"ids\": [\"" + FIRST_ID + "\", \"" + SECOND_ID + "\"]}");
+
+		assertEquals(new HashSet<>(Arrays.asList(UUID.fromString(FIRST_ID), UUID.fromString(SECOND_ID))),
+				criteria.getIds());
+		assertTrue(criteria.isNarrowed());
+		AuditTrail record = record("question-service", "FAILED", 500);
+		record.setId(UUID.fromString(SECOND_ID));
+		assertTrue(criteria.matches(record));
+		record.setId(UUID.randomUUID());
+		assertFalse(criteria.matches(record));
+	}
+
+	@DisplayName("A single id and an ids array intersect")
+	@Test
+	public void whenIdAndIdsAreGiven_thenIdsIntersect() {
+		AuditSearchCriteria criteria = criteria(
+				"{\"id\": \"" + FIRST_ID + "\", \"ids\": [\"" + FIRST_ID + "\", \"" + SECOND_ID + "\"]}");
+
+		assertEquals(new HashSet<>(Arrays.asList(UUID.fromString(FIRST_ID))), criteria.getIds());
+	}
+
+	@DisplayName("An id that is no UUID is refused")
+	@Test
+	public void whenIdIsMalformed_thenCompileFails() {
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"ids\": [\"" + FIRST_ID + "\", \"42\"]}"));
+	}
+
+	@DisplayName("An ids array holding objects is refused")
+	@Test
+	public void whenIdsHoldObjects_thenCompileFails() {
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"ids\": [{\"eq\": \"" + FIRST_ID + "\"}]}"));
+	}
+
+	@DisplayName("An unknown operator is refused")
+	@Test
+	public void whenOperatorIsUnknown_thenCompileFails() {
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"responseCode\": {\"between\": 500}}"));
+	}
+
+	@DisplayName("A text operator on a number field is refused")
+	@Test
+	public void whenTextOperatorOnNumberField_thenCompileFails() {
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"responseCode\": {\"match\": \"50\"}}"));
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"responseCode\": {\"prefix\": \"50\"}}"));
+	}
+
+	@DisplayName("A number field with a value that is no number is refused")
+	@Test
+	public void whenNumberIsMalformed_thenCompileFails() {
+		assertThrows(IllegalArgumentException.class, () -> criteria("{\"responseCode\": \"teapot\"}"));
+	}
+
+	@DisplayName("An equal value of an indexed field becomes a term")
+	@Test
+	public void whenIndexedFieldIsEqual_thenItIsATerm() {
+		AuditSearchCriteria criteria = criteria("{\"serviceName\": \"Question-Service\"}");
+
+		assertEquals("Question-Service", criteria.getTerms().get("servicename"));
+		assertTrue(criteria.isNarrowed());
+		assertTrue(criteria.matches(record("QUESTION-service", "FAILED", 500)));
+		assertFalse(criteria.matches(record("question-service-v2", "FAILED", 500)));
+	}
+
+	@DisplayName("A contains match does not narrow the read")
+	@Test
+	public void whenMatchModeIsContains_thenNoTermIsTaken() {
+		AuditSearchCriteria criteria = new AuditSearchCriteria(
+				new JsonParser().parse("{\"serviceName\": \"question\"}").getAsJsonObject(), AuditMatchMode.CONTAINS);
+
+		assertTrue(criteria.getTerms().isEmpty());
+		assertFalse(criteria.isNarrowed());
+		assertTrue(criteria.matches(record("the-question-service", "FAILED", 500)));
+	}
+
+	@DisplayName("The match operator follows the match mode of the search before the default one")
+	@Test
+	public void whenMatchOperatorIsUsed_thenMatchModeDecides() {
+		JsonObject exact = new JsonParser().parse("{\"serviceName\": {\"match\": \"quest\"}}").getAsJsonObject();
+		JsonObject prefix = new JsonParser()
+				.parse("{\"serviceName\": {\"match\": \"quest\"}, \"matchMode\": \"prefix\"}").getAsJsonObject();
+		AuditTrail record = record("Question-Service", "FAILED", 500);
+
+		assertFalse(new AuditSearchCriteria(exact, AuditMatchMode.EXACT).matches(record));
+		assertTrue(new AuditSearchCriteria(exact, AuditMatchMode.CONTAINS).matches(record));
+		assertTrue(new AuditSearchCriteria(prefix, AuditMatchMode.EXACT).matches(record));
+		assertFalse(new AuditSearchCriteria(prefix, AuditMatchMode.EXACT).matches(record("my-question", "FAILED", 500)));
+	}
+
+	@DisplayName("Request time bounds become the date range, exclusive ones tightened by a second")
+	@Test
+	public void whenRequestTimeIsBounded_thenDateRangeIsSet() {
+		AuditSearchCriteria criteria = criteria(
+				"{\"fromDate\": 1600000000, \"requestTimestamp\": {\"gt\": 1600000100, \"lt\": 1600000200}}");
+
+		assertEquals(Long.valueOf(1600000101L), criteria.getFromDate());
+		assertEquals(Long.valueOf(1600000199L), criteria.getToDate());
+		assertTrue(criteria.isNarrowed());
+	}
+
+	@DisplayName("Conditions under or and not do not narrow the read")
+	@Test
+	public void whenConditionsAreNested_thenOnlyTheTopLevelNarrows() {
+		AuditSearchCriteria criteria = criteria("{\"or\": [{\"serviceName\": \"question-service\"}, "
+				+ "{\"status\": \"FAILED\"}], \"not\": {\"requestMethod\": \"GET\"}}");
+
+		assertFalse(criteria.isNarrowed());
+		assertTrue(criteria.matches(record("answer-service", "FAILED", 500)));
+		assertFalse(criteria.matches(record("answer-service", "DONE", 500)));
+		AuditTrail get = record("question-service", "DONE", 500);
+		get.setRequestMethod("get");
+		assertFalse(criteria.matches(get));
+	}
+
+	@DisplayName("A condition on a missing value only holds for ne")
+	@Test
+	public void whenValueIsMissing_thenOnlyNotEqualHolds() {
+		AuditTrail record = record("question-service", null, 500);
+
+		assertFalse(criteria("{\"status\": \"FAILED\"}").matches(record));
+		assertFalse(criteria("{\"status\": {\"contains\": \"a\"}}").matches(record));
+		assertTrue(criteria("{\"status\": {\"ne\": \"FAILED\"}}").matches(record));
+	}
+
+	@DisplayName("Number fields compare as longs, a missing one only holds for ne")
+	@Test
+	public void whenNumberIsCompared_thenValuesAreLongs() {
+		AuditTrail record = record("question-service", "FAILED", 503);
+
+		assertTrue(criteria("{\"responseCode\": 503}").matches(record));
+		assertTrue(criteria("{\"responseCode\": {\"in\": [500, 503]}}").matches(record));
+		assertTrue(criteria("{\"responseCode\": {\"gte\": 500, \"lt\": 600}}").matches(record));
+		assertFalse(criteria("{\"responseCode\": {\"gt\": 503}}").matches(record));
+		assertFalse(criteria("{\"responseCode\": {\"ne\": 503}}").matches(record));
+		assertTrue(criteria("{\"requestTimestamp\": {\"lte\": 1600000000}}").matches(record));
+		assertFalse(criteria("{\"upstreamLatencyMillis\": {\"lt\": 1000}}").matches(record));
+		assertTrue(criteria("{\"upstreamLatencyMillis\": {\"ne\": 0}}").matches(record));
+	}
+}
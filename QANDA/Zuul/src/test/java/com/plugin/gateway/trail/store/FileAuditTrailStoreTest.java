@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.DAY_SECONDS;
+import static com.plugin.gateway.trail.AuditTrailFixtures.REQUEST_TIMESTAMP;
+import static com.plugin.gateway.trail.AuditTrailFixtures.SEGMENT_BYTES;
+import static com.plugin.gateway.trail.AuditTrailFixtures.criteria;
+import static com.plugin.gateway.trail.AuditTrailFixtures.fileStore;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.plugin.gateway.trail.log.AuditSegment;
+import com.plugin.gateway.trail.log.AuditSegmentLog;
+import com.plugin.gateway.trail.model.AuditTrail;
+import com.plugin.gateway.trail.stats.AuditRouteRollup;
+
+/**
+ * The {@link FileAuditTrailStore} over a temporary folder: what retention
+ * keeps of the days it holds and which records a bulk update rewrites.
+ *
+ * @author Sankha
+ *
+ */
+public class FileAuditTrailStoreTest {
+
+	private static final long NEXT_DAY_TIMESTAMP = REQUEST_TIMESTAMP + DAY_SECONDS;
+	private static final long UPDATE_TIMESTAMP = 1_700_000_000L;
+
+	@TempDir
+	Path folder;
+
+	@DisplayName("Retention drops exactly the days and rollups older than the retained ones")
+	@Test
+	public void whenRetentionIsApplied_thenOnlyExpiredDaysAreDropped() throws IOException {
+		long expired = noonOf(10);
+		long oldestKept = noonOf(5);
+		long yesterday = noonOf(1);
+		AuditTrail expiredRecord = record("question-service", expired);
+		AuditTrail oldestRecord = record("answer-service", oldestKept);
+		AuditTrail yesterdayRecord = record("question-service", yesterday);
+
+		try (FileAuditTrailStore store = fileStore(folder)) {
+			store.saveAll(Arrays.asList(expiredRecord, oldestRecord, yesterdayRecord));
+			store.saveRollups(Arrays.asList(new AuditRouteRollup(expired - expired % 60, "question-service", "POST",
+					200, 3), new AuditRouteRollup(oldestKept - oldestKept % 60, "answer-service", "POST", 200, 2)));
+		}
+
+		try (FileAuditTrailStore store = fileStore(folder)) {
+			store.applyRetention(6, 0, 0.5);
+
+			assertNull(store.findById(expiredRecord.getId()));
+			assertEquals(oldestRecord.getId(), store.findById(oldestRecord.getId()).getId());
+			assertEquals(yesterdayRecord.getId(), store.findById(yesterdayRecord.getId()).getId());
+			List<String> days = store.findAll().stream()
+					.map(record -> AuditSegmentLog.dayOf(record.getRequestTimestamp())).sorted()
+					.collect(Collectors.toList());
+			assertEquals(Arrays.asList(AuditSegmentLog.dayOf(oldestKept), AuditSegmentLog.dayOf(yesterday)), days);
+			List<AuditRouteRollup> rollups = store.findRollups(0, Long.MAX_VALUE / 2);
+			assertEquals(1, rollups.size());
+			assertEquals("answer-service", rollups.get(0).getServiceName());
+		}
+	}
+
+	@DisplayName("A bulk update appends a new version of the matched records only")
+	@Test
+	public void whenStatusIsUpdated_thenOnlyMatchesGetANewVersion() throws IOException {
+		AuditTrail question = record("question-service", REQUEST_TIMESTAMP);
+		AuditTrail answer = record("answer-service", REQUEST_TIMESTAMP);
+		AuditTrail lateQuestion = record("question-service", NEXT_DAY_TIMESTAMP);
+
+		try (FileAuditTrailStore store = fileStore(folder, 1)) {
+			store.saveAll(Arrays.asList(question, answer, lateQuestion));
+
+			int updated = store.updateStatus(criteria("{\"serviceName\": \"Question-Service\"}"), "DONE",
+					"reviewer", UPDATE_TIMESTAMP);
+
+			assertEquals(2, updated);
+			for (AuditTrail record : Arrays.asList(question, lateQuestion)) {
+				AuditTrail read = store.findById(record.getId());
+				assertEquals("DONE", read.getStatus());
+				assertEquals("reviewer", read.getUpdatedBy());
+				assertEquals(Long.valueOf(UPDATE_TIMESTAMP), read.getUpdateTimestamp());
+			}
+			AuditTrail untouched = store.findById(answer.getId());
+			assertEquals("NEW", untouched.getStatus());
+			assertNull(untouched.getUpdatedBy());
+		}
+
+		Map<String, Integer> versions = versions();
+		assertEquals(Integer.valueOf(2), versions.get(question.getId().toString()));
+		assertEquals(Integer.valueOf(1), versions.get(answer.getId().toString()));
+		assertEquals(Integer.valueOf(2), versions.get(lateQuestion.getId().toString()));
+	}
+
+	@DisplayName("A bulk update by ids finds each record on its own day and stripe")
+	@Test
+	public void whenStatusIsUpdatedByIds_thenIdsResolveToTheirDays() throws IOException {
+		AuditTrail first = record("question-service", REQUEST_TIMESTAMP);
+		AuditTrail second = record("answer-service", NEXT_DAY_TIMESTAMP);
+		AuditTrail other = record("question-service", NEXT_DAY_TIMESTAMP);
+
+		try (FileAuditTrailStore store = fileStore(folder)) {
+			store.saveAll(Arrays.asList(first, second, other));
+
+			int updated = store.updateStatus(
+					criteria("{\"ids\": [\"" + first.getId() + "\", \"" + second.getId() + "\", \""
+							+ UUID.randomUUID() + "\"]}"),
+					"DONE", "reviewer", UPDATE_TIMESTAMP);
+
+			assertEquals(2, updated);
+			AuditTrail updatedFirst = store.findById(first.getId());
+			assertEquals("DONE", updatedFirst.getStatus());
+			assertEquals(AuditSegmentLog.dayOf(REQUEST_TIMESTAMP),
+					AuditSegmentLog.dayOf(updatedFirst.getRequestTimestamp()));
+			assertEquals("DONE", store.findById(second.getId()).getStatus());
+			assertEquals("NEW", store.findById(other.getId()).getStatus());
+		}
+	}
+
+	/**
+	 * @return the number of versions of every record id in the folder, read
+	 *         segment by segment
+	 */
+	private Map<String, Integer> versions() throws IOException {
+		Map<String, Integer> versions = new HashMap<>();
+		try (AuditSegmentLog log = new AuditSegmentLog(folder, SEGMENT_BYTES)) {
+			assertTrue(log.segments().size() > 1);
+			for (AuditSegment segment : log.segments())
+				segment.forEach((offset, record) -> {
+					versions.merge(record.getId().toString(), 1, Integer::sum);
+					return true;
+				});
+		}
+		return versions;
+	}
+
+	/**
+	 * @return noon of the day the given number of days before today
+	 */
+	private static long noonOf(int daysAgo) {
+		return LocalDate.now().minusDays(daysAgo).atTime(12, 0).atZone(ZoneId.systemDefault()).toEpochSecond();
+	}
+}
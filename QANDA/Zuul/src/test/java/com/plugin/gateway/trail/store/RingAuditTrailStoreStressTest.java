@@ -0,0 +1,191 @@
+/**
+ *
+ */
+package com.plugin.gateway.trail.store;
+
+import static com.plugin.gateway.trail.AuditTrailFixtures.criteria;
+import static com.plugin.gateway.trail.AuditTrailFixtures.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.plugin.gateway.trail.model.AuditTrail;
+
+/**
+ * The ring under concurrent writers that wrap it many times over, by slots
+ * and by bytes, while readers look records up by id, stream them and append
+ * new versions. Every record carries a body derived from its id, so a read
+ * that mixed two payloads or returned the slot of another id shows up, and
+ * every writer has to get through its batches in bounded time.
+ *
+ * @author Sankha
+ *
+ */
+public class RingAuditTrailStoreStressTest {
+
+	private static final int CAPACITY = 64;
+	private static final long MAX_BYTES = 16 * 1024;
+	private static final int WRITERS = 4;
+	private static final int BATCHES = 3000;
+	private static final int MAX_BATCH = 8;
+	private static final long WRITER_TIMEOUT_SECONDS = 60;
+	private static final String REVIEWED = "REVIEWED";
+	private static final String REVIEWER = "reviewer";
+	private static final long REVIEWED_AT = 1_700_000_000L;
+
+	private final RingAuditTrailStore store = new RingAuditTrailStore(CAPACITY, MAX_BYTES);
+	// ids written lately, looked up by the readers
+	private final AtomicReferenceArray<UUID> recentIds = new AtomicReferenceArray<>(256);
+	private volatile boolean writing = true;
+
+	@DisplayName("Concurrent writers wrapping the ring never stall and readers never see a torn or foreign record")
+	@Test
+	public void whenWritersWrapTheRingWhileReading_thenEveryReadIsWhole() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 4);
+		AtomicLong found = new AtomicLong();
+		AtomicLong streamed = new AtomicLong();
+		try {
+			List<Future<?>> writers = new ArrayList<>();
+			for (int writer = 0; writer < WRITERS; writer++)
+				writers.add(executor.submit(writer("writer-" + writer)));
+			List<Future<?>> readers = new ArrayList<>();
+			for (int reader = 0; reader < 2; reader++)
+				readers.add(executor.submit(lookups(found)));
+			readers.add(executor.submit(streams(streamed)));
+			readers.add(executor.submit(updates()));
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WRITER_TIMEOUT_SECONDS);
+			for (Future<?> writer : writers)
+				writer.get(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			writing = false;
+			for (Future<?> reader : readers)
+				reader.get(WRITER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} finally {
+			writing = false;
+			executor.shutdownNow();
+		}
+
+		assertTrue(found.get() > 0);
+		assertTrue(streamed.get() > 0);
+		List<AuditTrail> records = store.findAll();
+		assertFalse(records.isEmpty());
+		assertTrue(records.size() <= CAPACITY);
+		for (AuditTrail record : records) {
+			assertWhole(record);
+			AuditTrail latest = store.findById(record.getId());
+			assertNotNull(latest);
+			assertEquals(record.getId(), latest.getId());
+			assertEquals(record.getStatus(), latest.getStatus());
+		}
+	}
+
+	/**
+	 * Saves batches of one to {@value #MAX_BATCH} records with bodies of
+	 * varying length, so batches wrap the bytes at any offset.
+	 */
+	private Callable<Void> writer(String serviceName) {
+		return () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int batch = 0; batch < BATCHES; batch++) {
+				List<AuditTrail> records = new ArrayList<>();
+				for (int i = random.nextInt(MAX_BATCH) + 1; i > 0; i--) {
+					AuditTrail record = record(serviceName);
+					record.setRequestBody(body(record.getId()));
+					records.add(record);
+				}
+				store.saveAll(records);
+				for (AuditTrail record : records)
+					recentIds.set(random.nextInt(recentIds.length()), record.getId());
+			}
+			return null;
+		};
+	}
+
+	/**
+	 * Looks up recent ids, which may have been overwritten already but must
+	 * never come back as another record.
+	 */
+	private Callable<Void> lookups(AtomicLong found) {
+		return () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (writing) {
+				UUID id = recentIds.get(random.nextInt(recentIds.length()));
+				if (id == null)
+					continue;
+				AuditTrail record = store.findById(id);
+				if (record != null) {
+					assertEquals(id, record.getId());
+					assertWhole(record);
+					found.incrementAndGet();
+				}
+			}
+			return null;
+		};
+	}
+
+	private Callable<Void> streams(AtomicLong streamed) {
+		return () -> {
+			while (writing) {
+				Set<UUID> ids = new HashSet<>();
+				store.stream(criteria("{}"), null, 0, record -> {
+					assertTrue(ids.add(record.getId()), "one version per id");
+					assertWhole(record);
+					streamed.incrementAndGet();
+				});
+			}
+			return null;
+		};
+	}
+
+	/**
+	 * Appends reviewed versions of the records of one writer, a batch writer
+	 * racing the others.
+	 */
+	private Callable<Void> updates() {
+		return () -> {
+			while (writing)
+				store.updateStatus(criteria("{\"serviceName\": \"writer-0\"}"), REVIEWED, REVIEWER, REVIEWED_AT);
+			return null;
+		};
+	}
+
+	private static void assertWhole(AuditTrail record) {
+		assertEquals(body(record.getId()), record.getRequestBody());
+		assertEquals("/api/" + record.getServiceName(), record.getRequestUrl());
+		if (REVIEWED.equals(record.getStatus())) {
+			assertEquals("writer-0", record.getServiceName());
+			assertEquals(REVIEWER, record.getUpdatedBy());
+			assertEquals(REVIEWED_AT, record.getUpdateTimestamp());
+		} else {
+			assertEquals("NEW", record.getStatus());
+		}
+	}
+
+	/**
+	 * @return the id repeated one to eight times, depending on the id
+	 */
+	private static String body(UUID id) {
+		StringBuilder body = new StringBuilder();
+		for (int i = (id.hashCode() & 7); i >= 0; i--)
+			body.append(id);
+		return body.toString();
+	}
+}